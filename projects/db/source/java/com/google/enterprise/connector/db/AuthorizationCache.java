@@ -0,0 +1,223 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded cache of authorization decisions, keyed by user name and
+ * docid. PERMIT and DENY decisions are held in separate caches, so that
+ * they may expire at different times, and one cannot crowd out the
+ * other. Concurrent lookups of the same docids for the same user are
+ * coalesced into a single authorization query.
+ * <p>
+ * This class is thread-safe.
+ */
+public class AuthorizationCache {
+  private static final Logger LOG =
+      Logger.getLogger(AuthorizationCache.class.getName());
+
+  private final Cache<Map.Entry<String, String>, Boolean> permits;
+  private final Cache<Map.Entry<String, String>, Boolean> denials;
+
+  /** The lookups that are currently querying the database. */
+  private final ConcurrentMap<Map.Entry<String, Set<String>>,
+      FutureTask<Set<String>>> lookups =
+      new ConcurrentHashMap<Map.Entry<String, Set<String>>,
+          FutureTask<Set<String>>>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong queries = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * @param maximumSize the maximum number of decisions of each kind
+   * @param permitSeconds the number of seconds a PERMIT is cached
+   * @param denySeconds the number of seconds a DENY is cached
+   */
+  public AuthorizationCache(int maximumSize, int permitSeconds,
+      int denySeconds) {
+    this(maximumSize, permitSeconds, denySeconds, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AuthorizationCache(int maximumSize, int permitSeconds, int denySeconds,
+      Ticker ticker) {
+    permits = CacheBuilder.newBuilder().maximumSize(maximumSize)
+        .expireAfterWrite(permitSeconds, TimeUnit.SECONDS).ticker(ticker)
+        .build();
+    denials = CacheBuilder.newBuilder().maximumSize(maximumSize)
+        .expireAfterWrite(denySeconds, TimeUnit.SECONDS).ticker(ticker)
+        .build();
+  }
+
+  /**
+   * Gets a cached decision.
+   *
+   * @param userName the user name
+   * @param docId the docid
+   * @return {@code TRUE} for PERMIT, {@code FALSE} for DENY, or
+   *         {@code null} if there is no cached decision
+   */
+  public Boolean get(String userName, String docId) {
+    Map.Entry<String, String> key = Maps.immutableEntry(userName, docId);
+    if (permits.getIfPresent(key) != null) {
+      hits.incrementAndGet();
+      return Boolean.TRUE;
+    } else if (denials.getIfPresent(key) != null) {
+      hits.incrementAndGet();
+      return Boolean.FALSE;
+    } else {
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Gets the authorized docids from the given query, and caches the
+   * decisions. If another thread is already running a query for the same
+   * user and docids, this waits for its results instead.
+   *
+   * @param userName the user name
+   * @param docIds the docids to authorize
+   * @param query returns the authorized docids, or {@code null} if the
+   *        query failed, in which case nothing is cached
+   * @return the authorized docids, or {@code null} if the query failed
+   */
+  public Set<String> load(String userName, Collection<String> docIds,
+      Callable<Set<String>> query) {
+    Map.Entry<String, Set<String>> lookup =
+        Maps.<String, Set<String>>immutableEntry(userName,
+            ImmutableSet.copyOf(docIds));
+    FutureTask<Set<String>> task = new FutureTask<Set<String>>(query);
+    FutureTask<Set<String>> running = lookups.putIfAbsent(lookup, task);
+    if (running == null) {
+      queries.incrementAndGet();
+      try {
+        task.run();
+        Set<String> authorized = getResult(task);
+        if (authorized != null) {
+          for (String docId : lookup.getValue()) {
+            Map.Entry<String, String> key =
+                Maps.immutableEntry(userName, docId);
+            if (authorized.contains(docId)) {
+              permits.put(key, Boolean.TRUE);
+            } else {
+              denials.put(key, Boolean.TRUE);
+            }
+          }
+        }
+        return authorized;
+      } finally {
+        lookups.remove(lookup, task);
+      }
+    } else {
+      coalesced.incrementAndGet();
+      LOG.log(Level.FINE, "Waiting for a running authorization query for {0}",
+          userName);
+      return getResult(running);
+    }
+  }
+
+  private static Set<String> getResult(FutureTask<Set<String>> task) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "Authorization query failed.", e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /** Removes the cached decisions for the given user. */
+  public void invalidateUser(String userName) {
+    invalidate(permits, userName, null);
+    invalidate(denials, userName, null);
+  }
+
+  /** Removes the cached decisions for the given docid, for all users. */
+  public void invalidateDocId(String docId) {
+    invalidate(permits, null, docId);
+    invalidate(denials, null, docId);
+  }
+
+  /** Removes all of the cached decisions. */
+  public void invalidateAll() {
+    permits.invalidateAll();
+    denials.invalidateAll();
+  }
+
+  private static void invalidate(Cache<Map.Entry<String, String>, ?> cache,
+      String userName, String docId) {
+    Iterator<Map.Entry<String, String>> it =
+        cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, String> key = it.next();
+      if ((userName == null || userName.equals(key.getKey()))
+          && (docId == null || docId.equals(key.getValue()))) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Returns the number of decisions found in the cache. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of decisions not found in the cache. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the number of authorization queries run. */
+  public long getQueryCount() {
+    return queries.get();
+  }
+
+  /** Returns the number of lookups that waited for a running query. */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationCache{hits=" + hits + ", misses=" + misses
+        + ", queries=" + queries + ", coalesced=" + coalesced
+        + ", permits=" + permits.size() + ", denials=" + denials.size() + "}";
+  }
+}
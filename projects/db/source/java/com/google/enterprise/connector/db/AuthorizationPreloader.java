@@ -0,0 +1,196 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the complete set of accessible docids for a few configured users,
+ * loaded with the Authorization Preload SQL Query, so that their
+ * authorization requests are answered from memory. The docids are in the
+ * decoded form returned by the Authorization SQL Query.
+ * <p>
+ * The sets are loaded in the background, so that a request never waits
+ * for the preload query. A load is started by the first request, and a
+ * reload by the first request after three quarters of the expiration
+ * time, so that the set is usually replaced before it expires. Until a
+ * set is loaded, or after it expires, requests fall back to the
+ * Authorization SQL Query. After a failed load, the next load is delayed,
+ * doubling the delay after each failure up to the expiration time.
+ * <p>
+ * This class is thread-safe.
+ */
+class AuthorizationPreloader {
+  private static final Logger LOG =
+      Logger.getLogger(AuthorizationPreloader.class.getName());
+
+  /** The delay before retrying the first failed load. */
+  @VisibleForTesting
+  static final long MIN_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /** The accessible docids of one user. Guarded by the instance lock. */
+  private static class AccessibleDocIds {
+    private Set<String> docIds = null;
+    private long loadedNanos;
+    private boolean loading = false;
+    private long nextLoadNanos;
+    private long backoffNanos = 0L;
+  }
+
+  private final DBClient dbClient;
+  private final long expirationNanos;
+  private final long refreshNanos;
+  private final Ticker ticker;
+  private final Executor executor;
+  private final Map<String, AccessibleDocIds> users;
+
+  /**
+   * @param dbClient the client used to run the preload query
+   * @param userNames the users whose docids are preloaded
+   * @param seconds the number of seconds before a set expires
+   */
+  AuthorizationPreloader(DBClient dbClient, Collection<String> userNames,
+      int seconds) {
+    this(dbClient, userNames, seconds, Ticker.systemTicker(),
+        newExecutor());
+  }
+
+  @VisibleForTesting
+  AuthorizationPreloader(DBClient dbClient, Collection<String> userNames,
+      int seconds, Ticker ticker, Executor executor) {
+    this.dbClient = dbClient;
+    this.expirationNanos = TimeUnit.SECONDS.toNanos(seconds);
+    this.refreshNanos = expirationNanos / 4 * 3;
+    this.ticker = ticker;
+    this.executor = executor;
+    long now = ticker.read();
+    ImmutableMap.Builder<String, AccessibleDocIds> builder =
+        ImmutableMap.builder();
+    for (String userName : ImmutableSet.copyOf(userNames)) {
+      AccessibleDocIds accessible = new AccessibleDocIds();
+      accessible.nextLoadNanos = now;
+      builder.put(userName, accessible);
+    }
+    this.users = builder.build();
+  }
+
+  /** Creates a single daemon thread for the loads, which times out. */
+  private static Executor newExecutor() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("AuthorizationPreloader-%d").build());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** Returns whether the docids of the given user are preloaded. */
+  boolean isPreloaded(String userName) {
+    return users.containsKey(userName);
+  }
+
+  /**
+   * Gets the accessible docids of the given user, starting a background
+   * load if they have not been loaded or are due to be reloaded. This
+   * method does not wait for the load.
+   *
+   * @param userName the user name
+   * @return the accessible docids, or {@code null} if the user is not
+   *         preloaded, or the docids have not been loaded or have expired
+   */
+  Set<String> getAccessibleDocIds(final String userName) {
+    final AccessibleDocIds accessible = users.get(userName);
+    if (accessible == null) {
+      return null;
+    }
+    boolean load = false;
+    synchronized (accessible) {
+      if (!accessible.loading
+          && ticker.read() - accessible.nextLoadNanos >= 0) {
+        accessible.loading = true;
+        load = true;
+      }
+    }
+    if (load) {
+      try {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              load(userName, accessible);
+            }
+          });
+      } catch (RejectedExecutionException e) {
+        LOG.log(Level.WARNING, "Unable to start the preload query", e);
+        synchronized (accessible) {
+          accessible.loading = false;
+        }
+      }
+    }
+    synchronized (accessible) {
+      // Do not use an expired set; fall back to the authZ query.
+      if (accessible.docIds != null
+          && ticker.read() - accessible.loadedNanos >= expirationNanos) {
+        accessible.docIds = null;
+      }
+      return accessible.docIds;
+    }
+  }
+
+  /** Runs the preload query, and records the result or the failure. */
+  private void load(String userName, AccessibleDocIds accessible) {
+    long start = ticker.read();
+    List<String> docIds = null;
+    try {
+      docIds = dbClient.tryAuthZPreloadQuery(userName);
+    } finally {
+      synchronized (accessible) {
+        accessible.loading = false;
+        if (docIds == null) {
+          accessible.backoffNanos = (accessible.backoffNanos == 0L)
+              ? Math.min(MIN_BACKOFF_NANOS, expirationNanos)
+              : Math.min(2 * accessible.backoffNanos, expirationNanos);
+          accessible.nextLoadNanos = ticker.read() + accessible.backoffNanos;
+          LOG.log(Level.WARNING, "Unable to preload the accessible "
+              + "documents for {0}, retrying in {1} seconds",
+              new Object[] { userName,
+                  TimeUnit.NANOSECONDS.toSeconds(accessible.backoffNanos) });
+        } else {
+          accessible.docIds = ImmutableSet.copyOf(docIds);
+          accessible.loadedNanos = start;
+          accessible.nextLoadNanos = start + refreshNanos;
+          accessible.backoffNanos = 0L;
+          LOG.log(Level.FINE, "Preloaded {0} accessible documents for {1}",
+              new Object[] { accessible.docIds.size(), userName });
+        }
+      }
+    }
+  }
+}
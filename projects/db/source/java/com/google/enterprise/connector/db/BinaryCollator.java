@@ -0,0 +1,174 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.text.CollationKey;
+import java.text.Collator;
+
+/**
+ * An implementation of {@code java.text.Collator} that compares strings
+ * by Unicode code point, which is the same as comparing their UTF-8
+ * bytes. This matches a binary collation in the database, and the order
+ * does not change across database or JVM upgrades.
+ * <p>
+ * Some databases compare UTF-16 code units instead, which differs only
+ * for supplementary characters, so it may be selected with
+ * {@link #setCodeUnitOrder}.
+ * <p>
+ * The Traversal SQL Query must use a binary collation for the text
+ * columns in the ORDER BY clause. See {@link #getOrderByExpression}.
+ */
+public class BinaryCollator extends Collator {
+  /**
+   * Returns an ORDER BY expression that sorts the given text column
+   * using a binary collation, for the given database product.
+   *
+   * @param productName the database product name, as returned by
+   *        {@code DatabaseMetaData.getDatabaseProductName}
+   * @param column the text column name
+   * @return an ORDER BY expression using a binary collation
+   */
+  public static String getOrderByExpression(String productName,
+      String column) {
+    if ("Oracle".equalsIgnoreCase(productName)) {
+      return "NLSSORT(" + column + ", 'NLS_SORT = BINARY')";
+    } else if ("Microsoft SQL Server".equalsIgnoreCase(productName)) {
+      return column + " COLLATE Latin1_General_BIN2";
+    } else if ("MySQL".equalsIgnoreCase(productName)) {
+      return column + " COLLATE utf8mb4_bin";
+    } else {
+      // H2 and many other databases use a binary collation by default.
+      return column;
+    }
+  }
+
+  /**
+   * Returns whether the binary collation used by
+   * {@link #getOrderByExpression} compares UTF-16 code units rather than
+   * code points, for the given database product.
+   *
+   * @param productName the database product name
+   */
+  public static boolean isCodeUnitOrder(String productName) {
+    return "H2".equalsIgnoreCase(productName)
+        || "Microsoft SQL Server".equalsIgnoreCase(productName);
+  }
+
+  private boolean codeUnitOrder = false;
+
+  /**
+   * Sets whether to compare UTF-16 code units, as {@code String.compareTo}
+   * does, instead of code points. H2 compares strings this way, as does
+   * SQL Server, except for the supplementary character (_SC) collations.
+   * The default is {@code false}.
+   *
+   * @param codeUnitOrder {@code true} to compare UTF-16 code units
+   */
+  public void setCodeUnitOrder(boolean codeUnitOrder) {
+    this.codeUnitOrder = codeUnitOrder;
+  }
+
+  /** Returns whether this collator compares UTF-16 code units. */
+  public boolean isCodeUnitOrder() {
+    return codeUnitOrder;
+  }
+
+  /**
+   * Compares the source string to the target string by Unicode code
+   * point. Unlike {@code String.compareTo}, which compares UTF-16 code
+   * units, supplementary characters sort after all other characters.
+   *
+   * @param source the source string
+   * @param target the target string
+   * @return an integer less than, equal to, or greater than zero depending
+   * on whether the source string is less than, equal to, or greater than
+   * the target string.
+   */
+  @Override
+  public int compare(String source, String target) {
+    if (codeUnitOrder) {
+      return source.compareTo(target);
+    }
+    int length = Math.min(source.length(), target.length());
+    for (int i = 0; i < length; i++) {
+      char c1 = source.charAt(i);
+      char c2 = target.charAt(i);
+      if (c1 != c2) {
+        // Surrogates are moved above the rest of the BMP.
+        if (c1 >= Character.MIN_SURROGATE && c2 >= Character.MIN_SURROGATE) {
+          c1 = fixUp(c1);
+          c2 = fixUp(c2);
+        }
+        return c1 - c2;
+      }
+    }
+    return source.length() - target.length();
+  }
+
+  private static char fixUp(char c) {
+    return (c > Character.MAX_SURROGATE)
+        ? (char) (c - 0x800) : (char) (c + 0x2000);
+  }
+
+  /**
+   * Returns a key that compares the bytes of the string, encoded as UTF-8,
+   * or as UTF-16BE when comparing code units. Either way the byte order
+   * matches {@link #compare}.
+   */
+  @Override
+  public CollationKey getCollationKey(String source) {
+    if (source == null) {
+      return null;
+    }
+    return new ByteKey(source, source.getBytes(
+        codeUnitOrder ? Charsets.UTF_16BE : Charsets.UTF_8));
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof BinaryCollator
+        && codeUnitOrder == ((BinaryCollator) obj).codeUnitOrder
+        && super.equals(obj);
+  }
+
+  @Override
+  public int hashCode() {
+    return BinaryCollator.class.hashCode() + (codeUnitOrder ? 1 : 0);
+  }
+
+  /** A collation key that compares unsigned bytes. */
+  private static class ByteKey extends CollationKey {
+    private final byte[] key;
+
+    ByteKey(String source, byte[] key) {
+      super(source);
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(CollationKey target) {
+      return UnsignedBytes.lexicographicalComparator().compare(key,
+          target.toByteArray());
+    }
+
+    @Override
+    public byte[] toByteArray() {
+      return key.clone();
+    }
+  }
+}
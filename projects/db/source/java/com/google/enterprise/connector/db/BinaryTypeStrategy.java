@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+
 import java.sql.CallableStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -35,6 +37,19 @@ public class BinaryTypeStrategy implements LobTypeHandler.Strategy {
     return getBytes(cs.getBytes(columnIndex));
   }
 
+  @Override
+  public DigestContentHolder getContentHolder(ResultSet rs, int columnIndex,
+      LobLimits limits) throws SQLException {
+    // The driver has already read the whole value.
+    return limits.getContentHolder(getBytes(rs, columnIndex));
+  }
+
+  @Override
+  public DigestContentHolder getContentHolder(CallableStatement cs,
+      int columnIndex, LobLimits limits) throws SQLException {
+    return limits.getContentHolder(getBytes(cs, columnIndex));
+  }
+
   private byte[] getBytes(byte[] value) throws SQLException {
     if (value == null) {
       LOGGER.log(Level.FINEST, "LONGVARBINARY handler called with null byte[]");
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+
 import java.sql.Blob;
 import java.sql.CallableStatement;
 import java.sql.ResultSet;
@@ -36,6 +38,51 @@ public class BlobTypeStrategy implements LobTypeHandler.Strategy {
     return getBytes(cs.getBlob(columnIndex));
   }
 
+  @Override
+  public DigestContentHolder getContentHolder(ResultSet rs, int columnIndex,
+      LobLimits limits) throws SQLException {
+    return getContentHolder(rs.getBlob(columnIndex), limits);
+  }
+
+  @Override
+  public DigestContentHolder getContentHolder(CallableStatement cs,
+      int columnIndex, LobLimits limits) throws SQLException {
+    return getContentHolder(cs.getBlob(columnIndex), limits);
+  }
+
+  /**
+   * Checks the length and the first bytes of the BLOB before reading the
+   * rest of it, in chunks if it is large. If the MIME type is declared,
+   * only the length is checked, before reading any of the BLOB.
+   */
+  private DigestContentHolder getContentHolder(Blob blob, LobLimits limits)
+      throws SQLException {
+    if (blob == null) {
+      return limits.getContentHolder(getBytes(blob));
+    }
+    long length = blob.length();
+    byte[] head = limits.isMimeTypeDeclared() ? null
+        : blob.getBytes(1, (int) Math.min(length, LobLimits.HEAD_SIZE));
+    DigestContentHolder skipped = limits.checkHead(length, head);
+    if (skipped != null) {
+      free(blob);
+      return skipped;
+    } else if (head != null && head.length == length) {
+      free(blob);
+      return limits.getContentHolder(head);
+    }
+    ChunkedLobReader reader = limits.getChunkedReader(length);
+    if (reader == null) {
+      return limits.getContentHolder(getBytes(blob));
+    }
+    try {
+      return reader.read(blob, length, (head == null) ? new byte[0] : head,
+          limits.getMimeType(head), limits);
+    } finally {
+      free(blob);
+    }
+  }
+
   private byte[] getBytes(Blob blob) throws SQLException {
     if (blob == null) {
       LOGGER.log(Level.FINEST, "BLOB handler called with null BLOB");
@@ -45,6 +92,11 @@ public class BlobTypeStrategy implements LobTypeHandler.Strategy {
     LOGGER.log(Level.FINEST, "BLOB handler called with BLOB of length {0}",
         blob.length());
     byte[] bytes = blob.getBytes(1, (int) blob.length());
+    free(blob);
+    return bytes;
+  }
+
+  private void free(Blob blob) {
     try {
       blob.free();
     } catch (SQLException e) {
@@ -60,6 +112,5 @@ public class BlobTypeStrategy implements LobTypeHandler.Strategy {
       LOGGER.log(Level.WARNING,
           "Error freeing the BLOB, try a newer JDBC 4.0 driver", e);
     }
-    return bytes;
   }
 }
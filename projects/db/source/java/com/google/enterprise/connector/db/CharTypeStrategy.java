@@ -14,7 +14,7 @@
 
 package com.google.enterprise.connector.db;
 
-import com.google.common.base.Charsets;
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
 
 import java.sql.CallableStatement;
 import java.sql.ResultSet;
@@ -37,6 +37,19 @@ public class CharTypeStrategy implements LobTypeHandler.Strategy {
     return getBytes(cs.getString(columnIndex));
   }
 
+  @Override
+  public DigestContentHolder getContentHolder(ResultSet rs, int columnIndex,
+      LobLimits limits) throws SQLException {
+    // The driver has already read the whole value.
+    return limits.getContentHolder(getBytes(rs, columnIndex));
+  }
+
+  @Override
+  public DigestContentHolder getContentHolder(CallableStatement cs,
+      int columnIndex, LobLimits limits) throws SQLException {
+    return limits.getContentHolder(getBytes(cs, columnIndex));
+  }
+
   private byte[] getBytes(String value) throws SQLException {
     if (value == null) {
       LOGGER.log(Level.FINEST, "LONGVARCHAR handler called with null string");
@@ -45,6 +58,6 @@ public class CharTypeStrategy implements LobTypeHandler.Strategy {
 
     LOGGER.log(Level.FINEST,
         "LONGVARCHAR handler called with string of length {0}", value.length());
-    return value.getBytes(Charsets.UTF_8);
+    return Utf8Transcoder.getInstance().toByteArray(value);
   }
 }
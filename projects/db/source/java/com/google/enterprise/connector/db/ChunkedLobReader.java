@@ -0,0 +1,300 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.db.InputStreamFactories.ContentOutputStream;
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a large BLOB or CLOB in chunks with positioned reads. Each chunk
+ * is digested and spooled as it is read, so the LOB is never held in
+ * memory, and its length is not limited by the size of a byte array. A
+ * chunk that fails is retried from the same offset after a delay that
+ * doubles with each failure. If there is a {@link LobSource}, a new
+ * locator for the LOB is acquired before each retry, since the old
+ * locator may be tied to a broken connection.
+ * <p>
+ * A LOB that cannot be read completely fails with a
+ * {@link LobReadException}, rather than sending truncated content.
+ */
+public class ChunkedLobReader {
+  private static final Logger LOGGER =
+      Logger.getLogger(ChunkedLobReader.class.getName());
+
+  /** The delay before the first retry. */
+  private static final long DEFAULT_BACKOFF_MILLIS = 1000L;
+
+  /** The maximum delay between retries. */
+  private static final long MAX_BACKOFF_MILLIS = 60 * 1000L;
+
+  /**
+   * Gets a new locator for a LOB after a read fails, for example by
+   * querying for the LOB again on a new connection. If the length of the
+   * LOB has changed in the meantime, the read fails. Content of the same
+   * length may also have changed, in which case the checksum will not
+   * match the next time the document is read, and it will be sent again.
+   */
+  public interface LobSource {
+    /**
+     * Gets a new locator for the LOB. A locator from an earlier call may
+     * be released.
+     *
+     * @return a {@code Blob} or {@code Clob}, or {@code null} if the LOB
+     *         is no longer available
+     * @throws SQLException if the LOB cannot be acquired
+     */
+    Object getLob() throws SQLException;
+
+    /** Releases the resources held for the last locator, if any. */
+    void close();
+  }
+
+  private final int chunkSize;
+  private final int retries;
+  private final long backoffMillis;
+
+  /**
+   * @param chunkSize the number of bytes or characters in each read
+   * @param retries the number of times a failed read is retried
+   */
+  public ChunkedLobReader(int chunkSize, int retries) {
+    this(chunkSize, retries, DEFAULT_BACKOFF_MILLIS);
+  }
+
+  /**
+   * @param chunkSize the number of bytes or characters in each read
+   * @param retries the number of times a failed read is retried
+   * @param backoffMillis the delay before the first retry, in
+   *        milliseconds, which is doubled for each later retry
+   */
+  public ChunkedLobReader(int chunkSize, int retries, long backoffMillis) {
+    this.chunkSize = chunkSize;
+    this.retries = retries;
+    this.backoffMillis = backoffMillis;
+  }
+
+  /** Returns the number of bytes or characters in each read. */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Reads a BLOB in chunks, after the first bytes that have already been
+   * read.
+   *
+   * @param blob the BLOB
+   * @param length the length of the BLOB
+   * @param head the first bytes of the BLOB
+   * @param mimeType the MIME type of the content
+   * @param limits the limits, which give the spool manager, the digest
+   *        factory, and the source of new locators for the BLOB
+   * @return a holder for the content
+   * @throws LobReadException if a chunk cannot be read after the
+   *         retries, the BLOB ends early or changes length, or the content
+   *         cannot be spooled
+   */
+  public DigestContentHolder read(Blob blob, long length, byte[] head,
+      String mimeType, LobLimits limits) throws LobReadException {
+    MessageDigest digest = limits.getDigestFactory().newDigest();
+    LobSource source = limits.getLobSource();
+    ContentOutputStream out = null;
+    boolean done = false;
+    try {
+      out = InputStreamFactories.newOutputStream(limits.getSpoolManager(),
+          length, mimeType);
+      DigestOutputStream digestOut = new DigestOutputStream(out, digest);
+      digestOut.write(head);
+      long offset = head.length;
+      int attempt = 0;
+      while (offset < length) {
+        byte[] chunk;
+        try {
+          chunk = blob.getBytes(offset + 1,
+              (int) Math.min(chunkSize, length - offset));
+        } catch (SQLException e) {
+          blob = retryOrThrow(e, attempt++, offset, length, source, blob,
+              Blob.class);
+          continue;
+        }
+        if (chunk.length == 0) {
+          throw new LobReadException("BLOB ended at " + offset + " of "
+              + length + " bytes");
+        }
+        digestOut.write(chunk);
+        offset += chunk.length;
+        attempt = 0;
+      }
+      DigestContentHolder holder = DigestContentHolder.getInstance(
+          out.getInputStreamFactory(), mimeType, offset, digest);
+      done = true;
+      return holder;
+    } catch (IOException e) {
+      throw new LobReadException("Unable to spool the BLOB content", e);
+    } finally {
+      if (!done && out != null) {
+        out.discard();
+      }
+      if (source != null) {
+        source.close();
+      }
+    }
+  }
+
+  /**
+   * Reads a CLOB in chunks, encoding it as UTF-8.
+   *
+   * @param clob the CLOB
+   * @param length the length of the CLOB in characters
+   * @param mimeType the MIME type of the content
+   * @param limits the limits, which give the spool manager, the digest
+   *        factory, and the source of new locators for the CLOB
+   * @return a holder for the content
+   * @throws LobReadException if a chunk cannot be read after the
+   *         retries, the CLOB ends early or changes length, or the content
+   *         cannot be spooled
+   */
+  public DigestContentHolder read(Clob clob, long length, String mimeType,
+      LobLimits limits) throws LobReadException {
+    MessageDigest digest = limits.getDigestFactory().newDigest();
+    LobSource source = limits.getLobSource();
+    ContentOutputStream out = null;
+    boolean done = false;
+    try {
+      out = InputStreamFactories.newOutputStream(limits.getSpoolManager(),
+          length, mimeType);
+      DigestOutputStream digestOut = new DigestOutputStream(out, digest);
+      Utf8Transcoder transcoder = Utf8Transcoder.getInstance();
+      long offset = 0;
+      long bytes = 0;
+      int attempt = 0;
+      while (offset < length) {
+        String chunk;
+        try {
+          chunk = clob.getSubString(offset + 1,
+              (int) Math.min(chunkSize, length - offset));
+        } catch (SQLException e) {
+          clob = retryOrThrow(e, attempt++, offset, length, source, clob,
+              Clob.class);
+          continue;
+        }
+        if (chunk.length() == 0) {
+          throw new LobReadException("CLOB ended at " + offset + " of "
+              + length + " characters");
+        }
+        int count = chunk.length();
+        if (count > 1 && offset + count < length
+            && Character.isHighSurrogate(chunk.charAt(count - 1))) {
+          // Read the whole surrogate pair with the next chunk.
+          count--;
+        }
+        bytes += transcoder.transcode(new StringReader(chunk), count,
+            digestOut);
+        offset += count;
+        attempt = 0;
+      }
+      DigestContentHolder holder = DigestContentHolder.getInstance(
+          out.getInputStreamFactory(), mimeType, bytes, digest);
+      done = true;
+      return holder;
+    } catch (IOException e) {
+      throw new LobReadException("Unable to spool the CLOB content", e);
+    } finally {
+      if (!done && out != null) {
+        out.discard();
+      }
+      if (source != null) {
+        source.close();
+      }
+    }
+  }
+
+  /**
+   * Waits before retrying a failed read, and acquires a new locator for
+   * the LOB, if there is a source.
+   *
+   * @param e the exception from the failed read
+   * @param attempt the number of earlier retries of this read
+   * @param offset the zero-based offset of the read
+   * @param length the length of the LOB
+   * @param source the source of new locators, or {@code null}
+   * @param lob the current locator
+   * @param type the class of the locator
+   * @return the locator to use for the retry
+   * @throws LobReadException if there are no retries left, the wait is
+   *         interrupted, or the new locator has a different length, so
+   *         the read cannot be resumed
+   */
+  private <T> T retryOrThrow(SQLException e, int attempt, long offset,
+      long length, LobSource source, T lob, Class<T> type)
+      throws LobReadException {
+    if (attempt >= retries) {
+      throw new LobReadException("Unable to read the LOB at offset "
+          + offset + " after " + retries + " retries", e);
+    }
+    long delay = getBackoffMillis(attempt);
+    LOGGER.log(Level.WARNING, "Retrying LOB read at offset " + offset
+        + " in " + delay + " ms after error", e);
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      throw new LobReadException("Interrupted while retrying the LOB read "
+          + "at offset " + offset, e);
+    }
+    if (source == null) {
+      return lob;
+    }
+    Object newLob;
+    long newLength;
+    try {
+      newLob = source.getLob();
+      if (!type.isInstance(newLob)) {
+        LOGGER.log(Level.WARNING, "Unable to acquire the LOB again, got {0}",
+            newLob);
+        return lob;
+      }
+      newLength = (newLob instanceof Blob)
+          ? ((Blob) newLob).length() : ((Clob) newLob).length();
+    } catch (SQLException reacquireError) {
+      LOGGER.log(Level.WARNING, "Unable to acquire the LOB again",
+          reacquireError);
+      return lob;
+    }
+    if (newLength != length) {
+      // The content changed, so the chunks already read do not match.
+      throw new LobReadException("LOB length changed from " + length
+          + " to " + newLength + " while it was read");
+    }
+    return type.cast(newLob);
+  }
+
+  /** Gets the delay before a retry, doubling from the initial delay. */
+  @VisibleForTesting
+  long getBackoffMillis(int attempt) {
+    return Math.min(backoffMillis << Math.min(attempt, 30),
+        MAX_BACKOFF_MILLIS);
+  }
+}
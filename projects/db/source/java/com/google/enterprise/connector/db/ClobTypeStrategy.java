@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+
 import java.sql.CallableStatement;
 import java.sql.Clob;
 import java.sql.ResultSet;
@@ -36,6 +38,49 @@ public class ClobTypeStrategy implements LobTypeHandler.Strategy {
     return getBytes(cs.getClob(columnIndex));
   }
 
+  @Override
+  public DigestContentHolder getContentHolder(ResultSet rs, int columnIndex,
+      LobLimits limits) throws SQLException {
+    return getContentHolder(rs.getClob(columnIndex), limits);
+  }
+
+  @Override
+  public DigestContentHolder getContentHolder(CallableStatement cs,
+      int columnIndex, LobLimits limits) throws SQLException {
+    return getContentHolder(cs.getClob(columnIndex), limits);
+  }
+
+  /**
+   * Checks the length and the first characters of the CLOB before
+   * reading the rest of it, in chunks if it is large. The length in
+   * characters is a lower bound on the length of the UTF-8 content. If
+   * the MIME type is declared, only the length is checked.
+   */
+  private DigestContentHolder getContentHolder(Clob clob, LobLimits limits)
+      throws SQLException {
+    if (clob == null) {
+      return limits.getContentHolder(getBytes(clob));
+    }
+    long length = clob.length();
+    byte[] head = limits.isMimeTypeDeclared() ? null
+        : Utf8Transcoder.getInstance().toByteArray(clob.getSubString(1,
+            (int) Math.min(length, LobLimits.HEAD_SIZE)));
+    DigestContentHolder skipped = limits.checkHead(length, head);
+    if (skipped != null) {
+      free(clob);
+      return skipped;
+    }
+    ChunkedLobReader reader = limits.getChunkedReader(length);
+    if (reader == null) {
+      return limits.getContentHolder(getBytes(clob));
+    }
+    try {
+      return reader.read(clob, length, limits.getMimeType(head), limits);
+    } finally {
+      free(clob);
+    }
+  }
+
   private byte[] getBytes(Clob clob) throws SQLException {
     if (clob == null) {
       LOGGER.log(Level.FINEST, "CLOB handler called with null CLOB");
@@ -46,6 +91,11 @@ public class ClobTypeStrategy implements LobTypeHandler.Strategy {
         clob.length());
     byte[] bytes =
         Util.getBytes((int) clob.length(), clob.getCharacterStream());
+    free(clob);
+    return bytes;
+  }
+
+  private void free(Clob clob) {
     try {
       clob.free();
     } catch (SQLException e) {
@@ -61,6 +111,5 @@ public class ClobTypeStrategy implements LobTypeHandler.Strategy {
       LOGGER.log(Level.WARNING,
           "Error freeing the CLOB, try a newer JDBC 4.0 driver", e);
     }
-    return bytes;
   }
 }
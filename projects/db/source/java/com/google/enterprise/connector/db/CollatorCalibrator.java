@@ -0,0 +1,217 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.text.Collator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the sort order of a {@code Collator} to the sort order of the
+ * database, using a probe corpus of strings that differ in case, accents,
+ * punctuation, whitespace, and digits. The database sorts the corpus
+ * once, using its default collation, and each candidate {@code Collator}
+ * is checked against that order locally.
+ * <p>
+ * Most of the probe strings are limited to Latin-1 so that they survive
+ * the database character set. A few supplementary character probes
+ * distinguish UTF-16 code unit order from code point order, and are
+ * dropped if the database cannot store them. The empty string is omitted
+ * because Oracle treats it as NULL. The ordering of NULLs is determined
+ * separately, by the {@code nullsAreSortedLow} property.
+ */
+class CollatorCalibrator {
+  private static final Logger LOG =
+      Logger.getLogger(CollatorCalibrator.class.getName());
+
+  @VisibleForTesting
+  static final List<String> LATIN1_CORPUS = ImmutableList.of(
+      "a", "A", "b", "B", "z", "Z", "e", "E", "\u00e9", "\u00c9", "\u00e8",
+      "\u00ea", "n", "\u00f1", "\u00d1", "o", "\u00f6", "ae", "\u00e6",
+      "ab", "aB", "Ab", "AB", "a b", "a-b", "a_b", "a.b", "a,b", "a/b",
+      "ab1", "ab2", "ab10", "1", "2", "10", " a", "-a", "_a", "~a",
+      "co-op", "coop", "cote", "c\u00f4te", "cot\u00e9", "c\u00f4t\u00e9");
+
+  /**
+   * U+FF5E (FULLWIDTH TILDE) sorts before U+10400 (DESERET CAPITAL LONG
+   * I) by code point, but after its surrogate pair by UTF-16 code unit.
+   */
+  @VisibleForTesting
+  static final List<String> SUPPLEMENTARY_PROBES = ImmutableList.of(
+      "a\uff5e", "a\ud801\udc00");
+
+  @VisibleForTesting
+  static final List<String> PROBE_CORPUS = ImmutableList.<String>builder()
+      .addAll(LATIN1_CORPUS).addAll(SUPPLEMENTARY_PROBES).build();
+
+  private static final Map<String, Integer> STRENGTHS =
+      ImmutableMap.of("TERTIARY", Collator.TERTIARY,
+          "SECONDARY", Collator.SECONDARY, "PRIMARY", Collator.PRIMARY,
+          "IDENTICAL", Collator.IDENTICAL);
+
+  private final DBClient client;
+
+  CollatorCalibrator(DBClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Sorts the probe corpus using the database.
+   *
+   * @return the sorted strings, with only one of any strings that are
+   *         equivalent, or {@code null} if the database could not sort
+   *         the strings
+   */
+  List<String> getDatabaseOrder() {
+    List<String> sorted = client.executeCollationRankQuery(PROBE_CORPUS);
+    if (sorted == null) {
+      return null;
+    }
+    String unexpected = getUnexpectedValue(sorted, PROBE_CORPUS);
+    if (unexpected == null) {
+      return sorted;
+    }
+    LOG.log(Level.FINE, "Unexpected value from the collation probe query, "
+        + "retrying without the supplementary characters: {0}", unexpected);
+    sorted = client.executeCollationRankQuery(LATIN1_CORPUS);
+    if (sorted == null) {
+      return null;
+    }
+    unexpected = getUnexpectedValue(sorted, LATIN1_CORPUS);
+    if (unexpected != null) {
+      LOG.log(Level.WARNING, "Unexpected value from the collation probe "
+          + "query, perhaps due to the database character set: {0}",
+          unexpected);
+      return null;
+    }
+    return sorted;
+  }
+
+  private static String getUnexpectedValue(List<String> sorted,
+      List<String> corpus) {
+    for (String value : sorted) {
+      if (!corpus.contains(value)) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the probe strings that were sorted by the database, which omit
+   * the supplementary characters if the database could not store them.
+   */
+  private static List<String> getCorpus(List<String> databaseOrder) {
+    for (String value : databaseOrder) {
+      if (SUPPLEMENTARY_PROBES.contains(value)) {
+        return PROBE_CORPUS;
+      }
+    }
+    return LATIN1_CORPUS;
+  }
+
+  /**
+   * Checks whether the given {@code Collator} matches the database order.
+   * Each string in the database order must sort strictly before the
+   * next, and each of the other probe strings, which the database found
+   * equivalent to one of them, must be equivalent to one of them.
+   *
+   * @param collator the {@code Collator} to check
+   * @param databaseOrder the probe corpus as sorted by the database
+   * @return {@code true} if the {@code Collator} matches the database
+   */
+  static boolean matches(Collator collator, List<String> databaseOrder) {
+    for (int i = 1; i < databaseOrder.size(); i++) {
+      if (collator.compare(databaseOrder.get(i - 1), databaseOrder.get(i))
+          >= 0) {
+        return false;
+      }
+    }
+    Set<String> returned = ImmutableSet.copyOf(databaseOrder);
+    for (String value : getCorpus(databaseOrder)) {
+      if (!returned.contains(value) && !hasEquivalent(collator, value,
+          databaseOrder)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean hasEquivalent(Collator collator, String value,
+      List<String> values) {
+    for (String other : values) {
+      if (collator.compare(value, other) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the candidate {@code Collator}s, built from the rules for
+   * the default locale and for English, with each of the strengths,
+   * followed by a {@link BinaryCollator}, keyed by a description for
+   * logging.
+   *
+   * @param productName the database product name, which determines
+   *        whether the {@code BinaryCollator} compares UTF-16 code units
+   */
+  static Map<String, Collator> getCandidates(String productName) {
+    Map<String, Collator> candidates = Maps.newLinkedHashMap();
+    for (Locale locale : ImmutableSet.of(Locale.getDefault(), Locale.US)) {
+      for (Map.Entry<String, Integer> strength : STRENGTHS.entrySet()) {
+        Collator candidate = Collator.getInstance(locale);
+        candidate.setStrength(strength.getValue());
+        candidate.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+        if (!candidates.containsValue(candidate)) {
+          candidates.put(locale + " " + strength.getKey(), candidate);
+        }
+      }
+    }
+    BinaryCollator binary = new BinaryCollator();
+    binary.setCodeUnitOrder(BinaryCollator.isCodeUnitOrder(productName));
+    candidates.put("BINARY", binary);
+    return candidates;
+  }
+
+  /**
+   * Finds a {@code Collator} that matches the database order.
+   *
+   * @param databaseOrder the probe corpus as sorted by the database
+   * @param productName the database product name
+   * @return the description and {@code Collator} of the first matching
+   *         candidate, or {@code null} if none match
+   */
+  static Map.Entry<String, Collator> findMatch(List<String> databaseOrder,
+      String productName) {
+    for (Map.Entry<String, Collator> candidate
+             : getCandidates(productName).entrySet()) {
+      if (matches(candidate.getValue(), databaseOrder)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+}
@@ -22,6 +22,9 @@ import com.google.enterprise.connector.spi.SpiConstants.DatabaseType;
 import com.google.enterprise.connector.spi.XmlUtils;
 import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
@@ -53,9 +56,36 @@ import java.util.logging.Logger;
 public class DBClient {
   private static final Logger LOG = Logger.getLogger(DBClient.class.getName());
 
+  /**
+   * The maximum number of values in an IN list that are allowed by all
+   * of the supported databases. Oracle allows no more than 1000.
+   */
+  static final int MAX_IN_LIST_SIZE = 1000;
+
+  /** The result map with the LOB type handler. */
+  private static final String LOB_RESULT_MAP = "IbatisDBClient.lobResultMap";
+
   private boolean hasCustomCollationQuery = false;
+
+  /** True if string literals use backslash escapes, as in MySQL. */
+  private boolean backslashEscapes = false;
+  private final Map<String, RankQuery> rankQueries =
+      new HashMap<String, RankQuery>();
   protected DBContext dbContext;
   protected SqlSessionFactory sqlSessionFactory;
+
+  /** The factory for authorization queries, which may have its own pool. */
+  protected SqlSessionFactory authZSqlSessionFactory;
+
+  /** Limits concurrent authorization queries, or null for no limit. */
+  protected QueryBulkhead authZBulkhead;
+
+  /** The factory for LOB fetch queries, or null if there is no query. */
+  protected SqlSessionFactory lobSqlSessionFactory;
+
+  /** The parameters of the LOB fetch query running on each thread. */
+  private final ThreadLocal<Map<String, Object>> lobQueryRow =
+      new ThreadLocal<Map<String, Object>>();
   protected DatabaseType databaseType;
 
   static {
@@ -68,9 +98,13 @@ public class DBClient {
   public void setDBContext(DBContext dbContext) throws DBException {
     this.dbContext = dbContext;
     generateSqlMap();
-    this.sqlSessionFactory = getSqlSessionFactory(generateMyBatisConfig());
+    this.sqlSessionFactory = getSqlSessionFactory(
+        generateMyBatisConfig(dbContext.getConnectionUrl(), 0));
+    initAuthZ();
+    initLobFetch();
     LOG.info("DBClient for database " + getDatabaseInfo() + " is instantiated");
     this.databaseType = getDatabaseType();
+    this.backslashEscapes = hasBackslashEscapes();
   }
 
   /**
@@ -80,17 +114,98 @@ public class DBClient {
   @VisibleForTesting
   DBClient(DBContext dbContext) throws DBException {
     this.dbContext = dbContext;
-    this.sqlSessionFactory = getSqlSessionFactory(generateMyBatisConfig());
+    this.sqlSessionFactory = getSqlSessionFactory(
+        generateMyBatisConfig(dbContext.getConnectionUrl(), 0));
+    initAuthZ();
+    initLobFetch();
     this.databaseType = getDatabaseType();
+    this.backslashEscapes = hasBackslashEscapes();
+  }
+
+  /**
+   * Creates the separate connection pool and the concurrency limit for
+   * authorization queries, if they are configured.
+   */
+  private void initAuthZ() {
+    int maxConnections = dbContext.getAuthZMaxConnections();
+    if (maxConnections > 0) {
+      String url = Strings.isNullOrEmpty(dbContext.getAuthZConnectionUrl())
+          ? dbContext.getConnectionUrl() : dbContext.getAuthZConnectionUrl();
+      this.authZSqlSessionFactory = getSqlSessionFactory(
+          generateMyBatisConfig(url, maxConnections));
+    } else {
+      this.authZSqlSessionFactory = sqlSessionFactory;
+    }
+    int maxQueries = (dbContext.getAuthZMaxQueries() > 0)
+        ? dbContext.getAuthZMaxQueries() : maxConnections;
+    if (maxQueries > 0) {
+      this.authZBulkhead = new QueryBulkhead("authorization", maxQueries,
+          dbContext.getAuthZQueueTimeoutSeconds());
+    } else {
+      this.authZBulkhead = null;
+    }
+  }
+
+  /**
+   * Creates the connection pool for the LOB fetch query, if there is one,
+   * with two connections for each fetch thread, so that each thread can
+   * get a new locator for a LOB whose reads fail while it still holds
+   * the connection of the original query.
+   */
+  private void initLobFetch() {
+    if (Util.isNullOrWhitespace(dbContext.getLobQuery())) {
+      this.lobSqlSessionFactory = null;
+    } else {
+      this.lobSqlSessionFactory = getSqlSessionFactory(generateMyBatisConfig(
+          dbContext.getConnectionUrl(), 2 * dbContext.getLobFetchThreads()));
+    }
+  }
+
+  /**
+   * Gets the limit on concurrent authorization queries, for statistics.
+   *
+   * @return the bulkhead, or {@code null} if there is no limit
+   */
+  public QueryBulkhead getAuthZBulkhead() {
+    return authZBulkhead;
   }
 
   private SqlSessionFactory getSqlSessionFactory(String config) {
+    SqlSessionFactory factory;
     try {
       SqlSessionFactoryBuilder builder = new SqlSessionFactoryBuilder();
-      return builder.build(new StringReader(config));
+      factory = builder.build(new StringReader(config));
     } catch (RuntimeException e) {
       throw new RuntimeException("XML is not well formed", e);
     }
+    configureLobTypeHandlers(factory.getConfiguration());
+    return factory;
+  }
+
+  /**
+   * Configures the LOB type handlers for this connector instance. MyBatis
+   * creates the type handlers named in the mapper, so each configuration
+   * has its own instances.
+   */
+  private void configureLobTypeHandlers(Configuration configuration) {
+    if (!configuration.hasResultMap(LOB_RESULT_MAP)) {
+      return;
+    }
+    for (ResultMapping mapping
+        : configuration.getResultMap(LOB_RESULT_MAP).getResultMappings()) {
+      if (mapping.getTypeHandler() instanceof LobTypeHandler) {
+        LobTypeHandler handler = (LobTypeHandler) mapping.getTypeHandler();
+        handler.setSpoolManager(dbContext.getSpoolManager());
+        handler.setDigestFactory(dbContext.getDigestFactory());
+        handler.setChunkedReader((dbContext.getLobChunkSize() > 0)
+            ? new ChunkedLobReader(dbContext.getLobChunkSize(),
+                dbContext.getLobChunkRetries())
+            : null);
+        handler.setMimeTypeFields(dbContext.getMimeTypeField(),
+            dbContext.getFileNameField());
+        handler.setClient(this);
+      }
+    }
   }
 
   /**
@@ -99,8 +214,22 @@ public class DBClient {
   @VisibleForTesting
   SqlSession getSqlSession()
       throws SnapshotRepositoryRuntimeException {
+    return openSession(sqlSessionFactory);
+  }
+
+  /**
+   * @return a SqlSession for authorization queries
+   */
+  @VisibleForTesting
+  SqlSession getAuthZSqlSession()
+      throws SnapshotRepositoryRuntimeException {
+    return openSession(authZSqlSessionFactory);
+  }
+
+  private static SqlSession openSession(SqlSessionFactory factory)
+      throws SnapshotRepositoryRuntimeException {
     try {
-      return sqlSessionFactory.openSession();
+      return factory.openSession();
     } catch (RuntimeException e) {
       Throwable cause = (e.getCause() != null &&
           e.getCause() instanceof SQLException) ? e.getCause() : e;
@@ -144,6 +273,170 @@ public class DBClient {
     return rows;
   }
 
+  /**
+   * Executes the ACL query for a row of the SQL query.
+   *
+   * @param row the row, whose columns are the parameters of the query
+   * @return the ACL rows, which hold the ACL users and groups columns
+   * @throws SnapshotRepositoryRuntimeException if the query fails, so
+   *         that the document is not sent without its ACL
+   */
+  public List<Map<String, Object>> executeAclQuery(Map<String, Object> row)
+      throws SnapshotRepositoryRuntimeException {
+    SqlSession session = getSqlSession();
+    try {
+      @SuppressWarnings("unchecked") List<Map<String, Object>> rows =
+          session.selectList("IbatisDBClient.getAcl",
+              new HashMap<String, Object>(row));
+      return rows;
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Could not execute ACL query on the database.",
+          e);
+      throw new SnapshotRepositoryRuntimeException(
+          "Could not execute ACL query on the database.", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Executes the LOB fetch query for a row of the traversal query, on the
+   * LOB connection pool.
+   *
+   * @param row the row, whose columns are the parameters of the query
+   * @return the value of the LOB field, or {@code null} if the query
+   *         returned no rows
+   * @throws SnapshotRepositoryRuntimeException if the query fails, so
+   *         that the document is not sent without its content
+   */
+  public Object executeLobQuery(Map<String, Object> row)
+      throws SnapshotRepositoryRuntimeException {
+    SqlSession session = openSession(lobSqlSessionFactory);
+    Map<String, Object> parameters = new HashMap<String, Object>(row);
+    lobQueryRow.set(parameters);
+    try {
+      @SuppressWarnings("unchecked") List<Map<String, Object>> rows =
+          session.selectList("IbatisDBClient.getLob", parameters);
+      if (rows.isEmpty()) {
+        LOG.log(Level.WARNING, "LOB query returned no rows for {0}", row);
+        return null;
+      }
+      return rows.get(0).get(dbContext.getLobField());
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Could not execute LOB query on the database.",
+          e);
+      throw new SnapshotRepositoryRuntimeException(
+          "Could not execute LOB query on the database.", e);
+    } finally {
+      lobQueryRow.remove();
+      session.close();
+    }
+  }
+
+  /**
+   * Gets a source of new locators for the LOB being read by the LOB
+   * fetch query on this thread.
+   *
+   * @return the source, or {@code null} if the LOB fetch query is not
+   *         running on this thread
+   */
+  ChunkedLobReader.LobSource getLobSource() {
+    Map<String, Object> parameters = lobQueryRow.get();
+    return (parameters == null) ? null : getLobSource(parameters);
+  }
+
+  /**
+   * Gets a source of new locators for the LOB returned by the LOB fetch
+   * query with the given parameters.
+   */
+  @VisibleForTesting
+  ChunkedLobReader.LobSource getLobSource(Map<String, Object> parameters) {
+    return new LobQuerySource(parameters);
+  }
+
+  /**
+   * Runs the LOB fetch query again on a new connection, returning the
+   * LOB locator rather than its content. The connection is held until the
+   * next locator is acquired, or the source is closed.
+   */
+  private class LobQuerySource implements ChunkedLobReader.LobSource {
+    private final Map<String, Object> parameters;
+    private SqlSession session;
+
+    LobQuerySource(Map<String, Object> parameters) {
+      this.parameters = parameters;
+    }
+
+    @Override
+    public Object getLob() throws SQLException {
+      close();
+      session = openSession(lobSqlSessionFactory);
+      try {
+        @SuppressWarnings("unchecked") List<Map<String, Object>> rows =
+            session.selectList("IbatisDBClient.getLobLocator", parameters);
+        return rows.isEmpty() ? null : rows.get(0).get(dbContext.getLobField());
+      } catch (RuntimeException e) {
+        throw new SQLException("Could not execute LOB query", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      if (session != null) {
+        session.close();
+        session = null;
+      }
+    }
+  }
+
+  /**
+   * Executes the SQL query, passing each row to the given handler
+   * rather than returning them all at once.
+   *
+   * @param handler receives each row of the result of executing the
+   *        SQL query, as a {@code Map<String, Object>}
+   * @throws SnapshotRepositoryRuntimeException if the query fails, so
+   *         that a partial result is never taken for the whole table
+   */
+  public void executeQuery(ResultHandler handler)
+      throws SnapshotRepositoryRuntimeException {
+    LOG.info("Executing query");
+    SqlSession session = getSqlSession();
+    try {
+      session.select("IbatisDBClient.getAllStreaming", handler);
+      LOG.info("Sucessfully executed query");
+    } catch (RuntimeException e) {
+      throw new SnapshotRepositoryRuntimeException(
+          "Unable to execute the query.", e);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Executes the SQL query without reading the LOB column, passing each
+   * row to the given handler rather than returning them all at once.
+   *
+   * @param handler receives each row of the result of executing the
+   *        SQL query, as a {@code Map<String, Object>}
+   * @throws SnapshotRepositoryRuntimeException if the query fails
+   */
+  public void executeKeysQuery(ResultHandler handler)
+      throws SnapshotRepositoryRuntimeException {
+    LOG.info("Executing keys query");
+    SqlSession session = getSqlSession();
+    try {
+      session.select("IbatisDBClient.getAllKeys", handler);
+      LOG.info("Sucessfully executed keys query");
+    } catch (RuntimeException e) {
+      // A partial result would hide the rest of the rows from the check.
+      throw new SnapshotRepositoryRuntimeException(
+          "Unable to execute the keys query.", e);
+    } finally {
+      session.close();
+    }
+  }
+
   /**
    * Executes the partial parameterized query for given keyValue and
    * returns the list of records having their key value greater than keyValue
@@ -191,6 +484,15 @@ public class DBClient {
      * no data available.  If the SQLState is anything other than a syntax
      * error, throw a SnapshotRepositoryRuntimeException.
      */
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof LobReadException) {
+        // The rows were found, so they must not be taken for an empty
+        // table, even though the error has no SQLState.
+        LOG.log(Level.WARNING, "Unable to read the LOB content.", t);
+        throw new SnapshotRepositoryRuntimeException(
+            "Unable to read the LOB content.", t);
+      }
+    }
     SQLException sqlException;
     if (e instanceof SQLException) {
       sqlException = (SQLException) e;
@@ -249,9 +551,12 @@ public class DBClient {
    * the SqlMap which should be a url or a file. It assumes that the SqlMap is
    * in IbatisSqlMap.xml in the googleConnectorWorkDir.
    *
+   * @param url the JDBC URL of the database
+   * @param maxConnections the maximum number of active connections in the
+   *        pool, or zero for the MyBatis default
    * @return MyBatis Configuration XML string.
    */
-  private String generateMyBatisConfig() {
+  private String generateMyBatisConfig(String url, int maxConnections) {
     /*
      * TODO(meghna): Look into <properties resource="
      * examples/sqlmap/maps/SqlMapConfigExample.properties " /> Also look into
@@ -273,10 +578,16 @@ public class DBClient {
         + "        <property name=\"driver\" value=\""
         + toAttrValue(dbContext.getDriverClassName()) + "\"/>\n"
         + "        <property name=\"url\" value=\""
-        + toAttrValue(dbContext.getConnectionUrl()) + "\"/>\n"
+        + toAttrValue(url) + "\"/>\n"
         + "        <property name=\"username\" value=\""
         + toAttrValue(dbContext.getLogin()) + "\"/>\n"
         + "        " + passwordElem + "\n"
+        + ((maxConnections > 0)
+           ? "        <property name=\"poolMaximumActiveConnections\" "
+             + "value=\"" + maxConnections + "\"/>\n"
+             + "        <property name=\"poolMaximumIdleConnections\" "
+             + "value=\"" + maxConnections + "\"/>\n"
+           : "")
         + "      </dataSource>\n"
         + "    </environment>\n"
         + "  </environments>\n"
@@ -331,25 +642,70 @@ public class DBClient {
         + "\"http://mybatis.org/dtd/mybatis-3-mapper.dtd\">\n"
         + "<mapper namespace=\"IbatisDBClient\">\n";
 
-    // Add a type handler for the lob field, if there is one.
+    // Add a type handler for the lob field, if there is one, and one
+    // that skips it when only the keys are needed.
     String lobField = dbContext.getLobField();
     String resultAttribute;
+    String keysResultAttribute;
     if (lobField != null && lobField.trim().length() > 0) {
       sqlMap += "  <resultMap id=\"lobResultMap\" type=\"hashmap\">\n"
           + "    <result property=\"" + lobField + "\" column=\"" + lobField
           + "\" typeHandler=\""
           + "com.google.enterprise.connector.db.LobTypeHandler\"/>\n"
+          + "  </resultMap>\n"
+          + "  <resultMap id=\"keysResultMap\" type=\"hashmap\">\n"
+          + "    <result property=\"" + lobField + "\" column=\"" + lobField
+          + "\" typeHandler=\"com.google.enterprise.connector.db."
+          + "SkippedColumnTypeHandler\"/>\n"
           + "  </resultMap>\n";
       resultAttribute = "resultMap=\"lobResultMap\"";
+      keysResultAttribute = "resultMap=\"keysResultMap\"";
     } else {
       // TODO(jlacey): Could we just use an empty resultMap?
       resultAttribute = "resultType=\"hashmap\"";
+      keysResultAttribute = resultAttribute;
     }
 
     sqlMap +="  <select id=\"getAll\" " + resultAttribute + ">\n"
         + "    <![CDATA[ " + dbContext.getSqlQuery() + " ]]>\n"
         + "  </select>\n";
 
+    // The whole result is read once, so ask the driver to fetch it
+    // incrementally rather than buffering it in memory.
+    sqlMap +="  <select id=\"getAllStreaming\" " + resultAttribute
+        + " fetchSize=\"" + getStreamingFetchSize(
+            dbContext.getConnectionUrl(), dbContext.getNumberOfRows())
+        + "\">\n"
+        + "    <![CDATA[ " + dbContext.getSqlQuery() + " ]]>\n"
+        + "  </select>\n";
+    sqlMap +="  <select id=\"getAllKeys\" " + keysResultAttribute
+        + " fetchSize=\"" + getStreamingFetchSize(
+            dbContext.getConnectionUrl(), dbContext.getNumberOfRows())
+        + "\">\n"
+        + "    <![CDATA[ " + dbContext.getSqlQuery() + " ]]>\n"
+        + "  </select>\n";
+
+    // Add the LOB fetch query, if any, and a copy of it that returns the
+    // LOB locator rather than its content, to get a new locator for a LOB
+    // whose reads fail.
+    if (!Util.isNullOrWhitespace(dbContext.getLobQuery())) {
+      sqlMap += "  <select id=\"getLob\" parameterType=\"java.util.HashMap\" "
+          + resultAttribute + ">\n"
+          + "    <![CDATA[ " + dbContext.getLobQuery() + " ]]>\n"
+          + "  </select>\n";
+    }
+    if (!Util.isNullOrWhitespace(dbContext.getLobQuery())
+        && !Util.isNullOrWhitespace(lobField)) {
+      sqlMap += "  <resultMap id=\"lobLocatorMap\" type=\"hashmap\">\n"
+          + "    <result property=\"" + lobField + "\" column=\"" + lobField
+          + "\" typeHandler=\"org.apache.ibatis.type.ObjectTypeHandler\"/>\n"
+          + "  </resultMap>\n"
+          + "  <select id=\"getLobLocator\" "
+          + "parameterType=\"java.util.HashMap\" resultMap=\"lobLocatorMap\">\n"
+          + "    <![CDATA[ " + dbContext.getLobQuery() + " ]]>\n"
+          + "  </select>\n";
+    }
+
     /*
      * check if authZ query is provided. If authZ query is there , add 'select'
      * element for getting authorized documents.
@@ -360,11 +716,29 @@ public class DBClient {
           + "\"java.util.HashMap\" resultType=\"java.lang.String\">\n "
           + "    <![CDATA[ " + dbContext.getAuthZQuery()  + " ]]>\n"
           + "  </select>\n";
+      if (dbContext.isAuthZBindParameters()) {
+        sqlMap += generateBoundAuthZQuery(dbContext.getAuthZQuery());
+      }
+      if (dbContext.getAuthZPreloadQuery() != null
+          && dbContext.getAuthZPreloadQuery().trim().length() > 0) {
+        sqlMap += "  <select id=\"getAccessibleDocs\" parameterType="
+            + "\"java.util.HashMap\" resultType=\"java.lang.String\">\n "
+            + "    <![CDATA[ " + dbContext.getAuthZPreloadQuery() + " ]]>\n"
+            + "  </select>\n";
+      }
       dbContext.setPublicFeed(false);
     } else {
       dbContext.setPublicFeed(true);
     }
 
+    // Add the ACL query, if any.
+    if (!Util.isNullOrWhitespace(dbContext.getAclQuery())) {
+      sqlMap += "  <select id=\"getAcl\" parameterType=\"java.util.HashMap\" "
+          + "resultType=\"hashmap\">\n"
+          + "    <![CDATA[ " + dbContext.getAclQuery() + " ]]>\n"
+          + "  </select>\n";
+    }
+
     // Add in the SqlCollator Query strings, if any.
     sqlMap += generateCollationQueries(dbContext.getCollator());
 
@@ -383,6 +757,39 @@ public class DBClient {
     }
   }
 
+  /**
+   * Returns the fetch size for reading the whole result of the SQL query.
+   * MySQL buffers the result in memory for any other fetch size than
+   * {@code Integer.MIN_VALUE}, which streams the rows one at a time.
+   * Other drivers, such as PostgreSQL, fetch the given number of rows.
+   *
+   * @param url the JDBC URL of the database
+   * @param fetchSize the number of rows to fetch at a time
+   */
+  @VisibleForTesting
+  static int getStreamingFetchSize(String url, int fetchSize) {
+    if (url != null && (url.startsWith("jdbc:mysql:")
+            || url.startsWith("jdbc:mariadb:"))) {
+      return Integer.MIN_VALUE;
+    }
+    return Math.max(fetchSize, 1);
+  }
+
+  /**
+   * Returns a mapping of the AuthZ query that binds each docid as a
+   * parameter, in place of the literal ${docIds} list.
+   */
+  @VisibleForTesting
+  static String generateBoundAuthZQuery(String authZQuery) {
+    String docIds = "]]><foreach collection=\"docIdList\" item=\"docId\" "
+        + "separator=\",\">#{docId}</foreach><![CDATA[";
+    return "  <select id=\"getAuthorizedDocsBound\" parameterType="
+        + "\"java.util.HashMap\" resultType=\"java.lang.String\">\n "
+        + "    <![CDATA[ " + authZQuery.replace("${docIds}", docIds)
+        + " ]]>\n"
+        + "  </select>\n";
+  }
+
   /**
    * Returns the collation queries mappings for the supported databases.
    */
@@ -394,10 +801,15 @@ public class DBClient {
       SqlCollator dbCollator = (SqlCollator) collator;
       collationQuery = dbCollator.getCollationQuery();
       collationId = dbCollator.getCollationId();
+    } else if (collator != null) {
+      // The ranking queries are used to verify a Java Collator.
+      return generateDefaultRankQueries();
     } else {
       return "";
     }
 
+    // A custom collation query cannot be used to rank a list of strings,
+    // so only the pairwise comparison is available.
     if (!Strings.isNullOrEmpty(collationQuery)) {
       hasCustomCollationQuery = true;
       return generateCollationQuery("compareStrings", collationQuery);
@@ -415,6 +827,21 @@ public class DBClient {
               "SELECT Name FROM (SELECT ''$'{'source'}''' COLLATE {0} AS Name "
               + "UNION SELECT ''$'{'target'}''' COLLATE {0}) AS temp ORDER BY "
               + "Name", collationId));
+      // Equivalent values have the same sort key, and only the first of
+      // each is kept.
+      queries += generateRankQuery("rankStrings_oracle",
+          "SELECT Name FROM (SELECT Name, SortKey, ROW_NUMBER() OVER "
+          + "(PARTITION BY SortKey ORDER BY Name) AS Rn FROM (",
+          MessageFormat.format("SELECT $'{'value'}' AS Name, "
+              + "NLSSORT($'{'value'}', ''NLS_SORT = {0}'') AS SortKey "
+              + "FROM dual", collationId),
+          " UNION ALL ",
+          ") temp) WHERE Rn = 1 ORDER BY SortKey");
+      queries += generateRankQuery("rankStrings",
+          "SELECT Name FROM (",
+          MessageFormat.format("SELECT $'{'value'}' COLLATE {0} AS Name",
+              collationId),
+          " UNION ", ") AS temp ORDER BY Name");
       return queries;
     } else {
       return generateCollationQuery("compareStrings_oracle",
@@ -422,16 +849,78 @@ public class DBClient {
                  + "UNION SELECT '${target}' FROM dual) temp ORDER BY Name")
              + generateCollationQuery("compareStrings",
                  "SELECT Name FROM (SELECT '${source}' AS Name "
-                 + "UNION SELECT '${target}') AS temp ORDER BY Name");
+                 + "UNION SELECT '${target}') AS temp ORDER BY Name")
+             + generateDefaultRankQueries();
     }
   }
 
+  /** Returns the ranking queries that use the default collation. */
+  private String generateDefaultRankQueries() {
+    return generateRankQuery("rankStrings_oracle", "SELECT Name FROM (",
+               "SELECT ${value} AS Name FROM dual", " UNION ",
+               ") temp ORDER BY Name")
+           + generateRankQuery("rankStrings", "SELECT Name FROM (",
+               "SELECT ${value} AS Name", " UNION ",
+               ") AS temp ORDER BY Name");
+  }
+
   private String generateCollationQuery(String name, String query) {
     return "  <select id=\"" + name + "\" parameterType=\"java.util.HashMap\" "
          + "resultType=\"java.lang.String\">\n"
          + "    <![CDATA[ " + query + " ]]>\n  </select>\n";
   }
 
+  /**
+   * Returns a query that sorts a list of strings. The {@code ${values}}
+   * parameter holds one {@code SELECT} for each string, joined by the
+   * given set operator.
+   */
+  private String generateRankQuery(String name, String prefix, String select,
+      String separator, String suffix) {
+    rankQueries.put("IbatisDBClient." + name,
+        new RankQuery(select, separator));
+    return generateCollationQuery(name, prefix + "${values}" + suffix);
+  }
+
+  /** The parts of a ranking query that are repeated for each string. */
+  private static class RankQuery {
+    private final String select;
+    private final String separator;
+
+    RankQuery(String select, String separator) {
+      this.select = select;
+      this.separator = separator;
+    }
+
+    /** Returns the {@code SELECT}s for the given strings. */
+    String getValues(List<String> values, boolean backslashEscapes) {
+      StringBuilder builder = new StringBuilder();
+      for (String value : values) {
+        if (builder.length() > 0) {
+          builder.append(separator);
+        }
+        builder.append(select.replace("${value}",
+            toStringLiteral(value, backslashEscapes)));
+      }
+      return builder.toString();
+    }
+  }
+
+  /**
+   * Returns a quoted SQL string literal for the value.
+   *
+   * @param value the string value
+   * @param backslashEscapes {@code true} if backslashes must also be
+   *        escaped, as in MySQL
+   */
+  @VisibleForTesting
+  static String toStringLiteral(String value, boolean backslashEscapes) {
+    if (backslashEscapes) {
+      value = value.replace("\\", "\\\\");
+    }
+    return "'" + value.replace("'", "''") + "'";
+  }
+
   /**
    * Like google.common.base.Function, but apply() may
    * throw SQLExceptions.
@@ -478,6 +967,28 @@ public class DBClient {
         });
   }
 
+  /**
+   * Returns true if string literals in this database treat backslash as
+   * an escape character. MySQL does so unless the NO_BACKSLASH_ESCAPES
+   * mode is set. In that mode the ranked strings will not match, and
+   * {@link SqlCollator#rank} ignores the results.
+   */
+  private boolean hasBackslashEscapes() {
+    return "MySQL".equalsIgnoreCase(getDatabaseProductName());
+  }
+
+  /**
+   * Returns the database product name, or null if there was an error.
+   */
+  public String getDatabaseProductName() {
+    return getDatabaseMetaData(
+        new SqlFunction<DatabaseMetaData, String>() {
+          public String apply(DatabaseMetaData metaData) throws SQLException {
+            return metaData.getDatabaseProductName();
+          }
+        });
+  }
+
   /**
    * Returns information derived from the DatabaseMetaData.
    *
@@ -519,27 +1030,115 @@ public class DBClient {
    * @param docIds List of documents to be authorized
    * @return list of authorized documents
    */
-  @SuppressWarnings("unchecked")
   public List<String> executeAuthZQuery(String userName, String docIds) {
-    List<String> authorizedDocs = new ArrayList<String>();
+    List<String> authorizedDocs = tryAuthZQuery(userName, docIds);
+    return (authorizedDocs == null)
+        ? new ArrayList<String>() : authorizedDocs;
+  }
+
+  /**
+   * Executes the AuthZ query for given user-name and list of
+   * documents and returns the list of authorized documents.
+   *
+   * @param userName user-name
+   * @param docIds List of documents to be authorized
+   * @return list of authorized documents, or {@code null} if the query
+   *         failed
+   */
+  List<String> tryAuthZQuery(String userName, String docIds) {
     // Create a hashmap as to provide input parameters userName and list of
     // documents to AuthZ query.
     Map<String, Object> paramMap = new HashMap<String, Object>();
     paramMap.put("username", userName);
     paramMap.put("docIds", docIds);
+    return selectAuthorizedDocs("IbatisDBClient.getAuthorizedDocs", paramMap);
+  }
 
-    // Execute the AuthZ query.
-    SqlSession session = getSqlSession();
+  /**
+   * Executes the AuthZ query for given user-name and list of documents,
+   * with the documents as bind parameters, and returns the list of
+   * authorized documents. The list is padded to one of a few sizes, by
+   * repeating the last document, so that the database sees only a few
+   * distinct statements, and can reuse their plans.
+   *
+   * @param userName user-name
+   * @param docIds the documents to be authorized
+   * @return list of authorized documents, or {@code null} if the query
+   *         failed
+   */
+  List<String> tryBoundAuthZQuery(String userName, List<String> docIds) {
+    Map<String, Object> paramMap = new HashMap<String, Object>();
+    paramMap.put("username", userName);
+    paramMap.put("docIdList", padToBucket(docIds,
+            Math.min(dbContext.getAuthZChunkSize(), MAX_IN_LIST_SIZE)));
+    return selectAuthorizedDocs("IbatisDBClient.getAuthorizedDocsBound",
+        paramMap);
+  }
+
+  /**
+   * Executes the Authorization Preload query for the given user-name, and
+   * returns the list of all documents the user may access.
+   *
+   * @param userName user-name
+   * @return list of accessible documents, or {@code null} if the query
+   *         failed
+   */
+  List<String> tryAuthZPreloadQuery(String userName) {
+    Map<String, Object> paramMap = new HashMap<String, Object>();
+    paramMap.put("username", userName);
+    return selectAuthorizedDocs("IbatisDBClient.getAccessibleDocs", paramMap);
+  }
+
+  /**
+   * Pads a non-empty list to the next power of two in size, by repeating
+   * the last element. The list is not padded beyond the given maximum
+   * size, which is the last bucket.
+   *
+   * @param docIds the docids
+   * @param maxSize the maximum size of the padded list
+   */
+  @VisibleForTesting
+  static List<String> padToBucket(List<String> docIds, int maxSize) {
+    int size = docIds.size();
+    int bucket = Integer.highestOneBit(size);
+    if (bucket == size || size >= maxSize) {
+      return docIds;
+    }
+    int paddedSize = (int) Math.min(2L * bucket, maxSize);
+    List<String> padded = new ArrayList<String>(paddedSize);
+    padded.addAll(docIds);
+    String last = docIds.get(size - 1);
+    for (int i = size; i < paddedSize; i++) {
+      padded.add(last);
+    }
+    return padded;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<String> selectAuthorizedDocs(String statement,
+      Map<String, Object> paramMap) {
+    // Wait for a turn, so that a burst of searches does not take all of
+    // the connections.
+    if (authZBulkhead != null && !authZBulkhead.tryAcquire()) {
+      return null;
+    }
     try {
-      authorizedDocs = session.selectList(
-          "IbatisDBClient.getAuthorizedDocs", paramMap);
-    } catch (Exception e) {
-      LOG.log(Level.WARNING, "Could not execute AuthZ query on the database.",
-              e);
+      // Execute the AuthZ query.
+      SqlSession session = getAuthZSqlSession();
+      try {
+        return session.selectList(statement, paramMap);
+      } catch (Exception e) {
+        LOG.log(Level.WARNING,
+            "Could not execute AuthZ query on the database.", e);
+        return null;
+      } finally {
+        session.close();
+      }
     } finally {
-      session.close();
+      if (authZBulkhead != null) {
+        authZBulkhead.release();
+      }
     }
-    return authorizedDocs;
   }
 
   /**
@@ -553,6 +1152,26 @@ public class DBClient {
    * target string.
    */
   public int executeCollationQuery(String source, String target) {
+    Integer result = tryCollationQuery(source, target);
+    if (result == null) {
+      // Fall back to local Java Collation.
+      return Collator.getInstance().compare(source, target);
+    } else {
+      return result;
+    }
+  }
+
+  /**
+   * Executes the Collation SQL query, to determine the sort order of the two
+   * string values.
+   *
+   * @param source the source String
+   * @param target the target String
+   * @return an integer less than, equal to, or greater than zero depending
+   * on whether the source string is less than, equal to, or greater than the
+   * target string, or {@code null} if the query failed
+   */
+  Integer tryCollationQuery(String source, String target) {
     // Determine which query to use based on DatabaseType or custom query.
     String collationQueryId = "IbatisDBClient.compareStrings";
     if (!hasCustomCollationQuery) {
@@ -572,8 +1191,7 @@ public class DBClient {
       result = session.selectList(collationQueryId, paramMap);
     } catch (Exception e) {
       LOG.log(Level.WARNING, "Could not execute SQL Collation query.", e);
-      // Fall back to local Java Collation.
-      return Collator.getInstance().compare(source, target);
+      return null;
     } finally {
       session.close();
     }
@@ -587,6 +1205,39 @@ public class DBClient {
     }
   }
 
+  /**
+   * Executes the Collation ranking SQL query, to sort a list of string
+   * values in a single round trip.
+   *
+   * @param values the distinct String values to sort
+   * @return the values in sorted order, with only one of any values that
+   * are equivalent; or {@code null} if the values could not be sorted
+   * by the database
+   */
+  List<String> executeCollationRankQuery(List<String> values) {
+    String rankQueryId = "IbatisDBClient.rankStrings";
+    if (databaseType == DatabaseType.ORACLE) {
+      rankQueryId += "_" + databaseType.toString();
+    }
+    RankQuery rankQuery = rankQueries.get(rankQueryId);
+    if (hasCustomCollationQuery || rankQuery == null) {
+      return null;
+    }
+
+    Map<String, Object> paramMap = ImmutableMap.<String, Object>of("values",
+        rankQuery.getValues(values, backslashEscapes));
+
+    SqlSession session = getSqlSession();
+    try {
+      return session.selectList(rankQueryId, paramMap);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not execute SQL Collation rank query.", e);
+      return null;
+    } finally {
+      session.close();
+    }
+  }
+
   /**
    * Returns true if nulls sort low in this database implementation; or
    * false if nulls sort high.
@@ -14,6 +14,12 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
@@ -22,23 +28,115 @@ import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class provides an implementation of AuthorizationManager SPI provided by
  * CM for authorize the search users against Database documents.
+ * <p>
+ * If {@code authZCacheSize} is configured, the decisions are cached, and
+ * concurrent requests for the same documents share one query.
+ * <p>
+ * Large requests are split into chunks of {@code authZChunkSize} docids,
+ * which are queried concurrently, using up to {@code authZThreads}
+ * threads, within {@code authZTimeoutSeconds}. Documents in a chunk that
+ * fails or does not finish in time are denied.
+ * <p>
+ * If {@code authZBindParameters} is set, the docids are bound as
+ * parameters of the query, rather than substituted as literals.
+ * <p>
+ * If {@code authZPreloadQuery} is configured, all of the accessible
+ * docids of each of the {@code authZPreloadUsers} are loaded, reloaded
+ * every {@code authZPreloadSeconds}, and their requests are answered
+ * from memory.
  */
 public class DBConnectorAuthorizationManager implements AuthorizationManager {
   private static final Logger LOG =
       Logger.getLogger(DBConnectorAuthorizationManager.class.getName());
   private final DBClient dbClient;
 
+  /** The cached decisions, or null if caching is disabled. */
+  private final AuthorizationCache cache;
+
+  /** The preloaded docids of some users, or null if not configured. */
+  private final AuthorizationPreloader preloader;
+
+  private final boolean bindParameters;
+  private final int chunkSize;
+  private final int threads;
+  private final long timeoutNanos;
+
+  /** The executor for the chunk queries, created on first use. */
+  private ExecutorService executor;
+
   public DBConnectorAuthorizationManager(DBContext dbContext) throws DBException {
     this.dbClient = dbContext.getClient();
+    this.bindParameters = dbContext.isAuthZBindParameters();
+    if (bindParameters
+        && dbContext.getAuthZChunkSize() > DBClient.MAX_IN_LIST_SIZE) {
+      // Each docid in a chunk is a bind parameter in the IN list.
+      LOG.warning("Reducing authZChunkSize from "
+          + dbContext.getAuthZChunkSize() + " to "
+          + DBClient.MAX_IN_LIST_SIZE + " for authZBindParameters");
+      this.chunkSize = DBClient.MAX_IN_LIST_SIZE;
+    } else {
+      this.chunkSize = dbContext.getAuthZChunkSize();
+    }
+    this.threads = dbContext.getAuthZThreads();
+    this.timeoutNanos =
+        TimeUnit.SECONDS.toNanos(dbContext.getAuthZTimeoutSeconds());
+    if (chunkSize <= 0 || threads <= 0) {
+      throw new DBException("authZChunkSize and authZThreads must be "
+          + "positive: " + chunkSize + ", " + threads);
+    }
+    if (dbContext.getAuthZCacheSize() > 0) {
+      this.cache = new AuthorizationCache(dbContext.getAuthZCacheSize(),
+          dbContext.getAuthZCachePermitSeconds(),
+          dbContext.getAuthZCacheDenySeconds());
+    } else {
+      this.cache = null;
+    }
+    List<String> preloadUsers = (dbContext.getAuthZPreloadUsers() == null)
+        ? ImmutableList.<String>of()
+        : ImmutableList.copyOf(Splitter.on(',').trimResults()
+            .omitEmptyStrings().split(dbContext.getAuthZPreloadUsers()));
+    if (!Strings.isNullOrEmpty(dbContext.getAuthZPreloadQuery())
+        && !preloadUsers.isEmpty()) {
+      this.preloader = new AuthorizationPreloader(dbClient, preloadUsers,
+          dbContext.getAuthZPreloadSeconds());
+    } else {
+      this.preloader = null;
+    }
+  }
+
+  /**
+   * Gets the cache of authorization decisions, for invalidation and
+   * statistics.
+   *
+   * @return the cache, or {@code null} if caching is disabled
+   */
+  public AuthorizationCache getCache() {
+    return cache;
+  }
+
+  /** Gets the preloader, or {@code null} if preloading is disabled. */
+  @VisibleForTesting
+  AuthorizationPreloader getPreloader() {
+    return preloader;
   }
 
   @Override
@@ -48,42 +146,71 @@ public class DBConnectorAuthorizationManager implements AuthorizationManager {
     LOG.info("Documents to be authorized: " + docIds);
     List<AuthorizationResponse> encodedDocuments =
         new ArrayList<AuthorizationResponse>();
+    final String userName = identity.getUsername();
 
-    Map<String, String> docIdMap = DocIdUtil.getDocIdMap(docIds);
+    // Use the cached decisions, and look up the rest.
+    Collection<String> uncachedDocIds;
+    if (cache == null) {
+      uncachedDocIds = docIds;
+    } else {
+      uncachedDocIds = new ArrayList<String>();
+      for (String docId : docIds) {
+        Boolean isPermitted = cache.get(userName, docId);
+        if (isPermitted == null) {
+          uncachedDocIds.add(docId);
+        } else {
+          encodedDocuments.add(new AuthorizationResponse(
+              isPermitted ? Status.PERMIT : Status.DENY, docId));
+        }
+      }
+      LOG.log(Level.FINE, "Cached authorization decisions: {0} of {1}",
+          new Object[] { docIds.size() - uncachedDocIds.size(),
+                         docIds.size() });
+      if (uncachedDocIds.isEmpty()) {
+        return encodedDocuments;
+      }
+    }
+
+    final Map<String, String> docIdMap = DocIdUtil.getDocIdMap(uncachedDocIds);
     if (docIdMap.isEmpty()) {
       LOG.log(Level.INFO, "Unable to authorize invalid document IDs: {0}",
-          docIds);
-      for (String docId : docIds) {
+          uncachedDocIds);
+      for (String docId : uncachedDocIds) {
         encodedDocuments.add(new AuthorizationResponse(Status.DENY, docId));
       }
       return encodedDocuments;
     }
 
-    String docIdString = DocIdUtil.getDocIdString(docIdMap.keySet());
-    LOG.log(Level.FINE, "Encoded doc IDs: {0}", docIdString);
-    String userName = identity.getUsername();
-    List<String> authorizedDocIdList =
-        dbClient.executeAuthZQuery(userName, docIdString);
+    Set<String> accessibleDocIds = (preloader == null)
+        ? null : preloader.getAccessibleDocIds(userName);
+    Set<String> authorizedDocIds;
+    if (accessibleDocIds != null) {
+      authorizedDocIds = new HashSet<String>();
+      for (Map.Entry<String, String> entry : docIdMap.entrySet()) {
+        if (accessibleDocIds.contains(entry.getKey())) {
+          authorizedDocIds.add(entry.getValue());
+        }
+      }
+    } else {
+      authorizedDocIds = authorizeChunks(userName, docIdMap);
+    }
+
     StringBuilder logMessage = new StringBuilder();
     logMessage.append("User: " + userName + " is authorized for:");
 
     // Mark Authorization Response status PERMIT for authorized documents.
-    for (String docId : authorizedDocIdList) {
-      String encodedDocId = docIdMap.get(docId);
-      if (encodedDocId != null) {
+    for (String encodedDocId : docIdMap.values()) {
+      if (authorizedDocIds.contains(encodedDocId)) {
         encodedDocuments.add(new AuthorizationResponse(Status.PERMIT,
             encodedDocId));
         logMessage.append(encodedDocId + ", ");
-        docIdMap.remove(docId);
       }
     }
     logMessage.append(" and not authorized for document ID: ");
 
     // Mark Authorization Response status DENY for non-authorized documents.
-    Set<String> docIdKeys = docIdMap.keySet();
-    for (String docId : docIdKeys) {
-      String encodedDocId = docIdMap.get(docId);
-      if (encodedDocId != null) {
+    for (String encodedDocId : docIdMap.values()) {
+      if (!authorizedDocIds.contains(encodedDocId)) {
         encodedDocuments.add(new AuthorizationResponse(Status.DENY,
             encodedDocId));
         logMessage.append(encodedDocId + ", ");
@@ -92,4 +219,136 @@ public class DBConnectorAuthorizationManager implements AuthorizationManager {
     LOG.info(logMessage.toString());
     return encodedDocuments;
   }
+
+  /**
+   * Authorizes the docids in chunks, concurrently. The documents in any
+   * chunks that fail or that do not finish before the deadline are
+   * denied. A single chunk is also run by the executor, so that it is
+   * held to the same deadline.
+   *
+   * @param userName the user name
+   * @param docIdMap a map from decoded docids to the requested docids
+   * @return the authorized requested docids
+   */
+  private Set<String> authorizeChunks(final String userName,
+      Map<String, String> docIdMap) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    List<Future<Set<String>>> futures = new ArrayList<Future<Set<String>>>();
+    ExecutorService executor = getExecutor();
+    for (List<Map.Entry<String, String>> entries
+             : Iterables.partition(docIdMap.entrySet(), chunkSize)) {
+      final Map<String, String> chunk = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : entries) {
+        chunk.put(entry.getKey(), entry.getValue());
+      }
+      futures.add(executor.submit(new Callable<Set<String>>() {
+          @Override
+          public Set<String> call() {
+            return authorizeChunk(userName, chunk);
+          }
+        }));
+    }
+    LOG.log(Level.FINE, "Authorizing {0} documents in {1} chunks",
+        new Object[] { docIdMap.size(), futures.size() });
+
+    Set<String> authorizedDocIds = new HashSet<String>();
+    for (int i = 0; i < futures.size(); i++) {
+      Future<Set<String>> future = futures.get(i);
+      try {
+        Set<String> authorized =
+            future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (authorized == null) {
+          LOG.log(Level.WARNING, "Authorization query failed for chunk {0} "
+              + "of {1}; denying those documents", new Object[] { i + 1,
+              futures.size() });
+        } else {
+          authorizedDocIds.addAll(authorized);
+        }
+      } catch (TimeoutException e) {
+        LOG.log(Level.WARNING, "Authorization query timed out for chunk {0} "
+            + "of {1}; denying those documents", new Object[] { i + 1,
+            futures.size() });
+        future.cancel(true);
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Authorization query failed for chunk "
+            + (i + 1) + " of " + futures.size()
+            + "; denying those documents", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (Future<Set<String>> remaining
+                 : futures.subList(i, futures.size())) {
+          remaining.cancel(true);
+        }
+        break;
+      }
+    }
+    return authorizedDocIds;
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("DBConnectorAuthorizationManager-%d").build());
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /**
+   * Authorizes one chunk of docids, using the cache if it is enabled.
+   *
+   * @param userName the user name
+   * @param docIdMap a map from decoded docids to the requested docids
+   * @return the authorized requested docids, or {@code null} if the query
+   *         failed
+   */
+  private Set<String> authorizeChunk(final String userName,
+      final Map<String, String> docIdMap) {
+    if (cache == null) {
+      return getAuthorizedDocIds(userName, docIdMap);
+    } else {
+      return cache.load(userName, docIdMap.values(),
+          new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() {
+              return getAuthorizedDocIds(userName, docIdMap);
+            }
+          });
+    }
+  }
+
+  /**
+   * Runs the authorization query.
+   *
+   * @param userName the user name
+   * @param docIdMap a map from decoded docids to the requested docids
+   * @return the authorized requested docids, or {@code null} if the query
+   *         failed
+   */
+  private Set<String> getAuthorizedDocIds(String userName,
+      Map<String, String> docIdMap) {
+    List<String> authorizedDocIdList;
+    if (bindParameters) {
+      authorizedDocIdList = dbClient.tryBoundAuthZQuery(userName,
+          new ArrayList<String>(docIdMap.keySet()));
+    } else {
+      String docIdString = DocIdUtil.getDocIdString(docIdMap.keySet());
+      LOG.log(Level.FINE, "Encoded doc IDs: {0}", docIdString);
+      authorizedDocIdList = dbClient.tryAuthZQuery(userName, docIdString);
+    }
+    if (authorizedDocIdList == null) {
+      return null;
+    }
+    Set<String> authorizedDocIds = new HashSet<String>();
+    for (String docId : authorizedDocIdList) {
+      String encodedDocId = docIdMap.get(docId);
+      if (encodedDocId != null) {
+        authorizedDocIds.add(encodedDocId);
+      }
+    }
+    return authorizedDocIds;
+  }
 }
@@ -15,8 +15,12 @@
 package com.google.enterprise.connector.db;
 
 import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.db.diffing.DigestFactory;
 
+import java.io.File;
 import java.text.Collator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +32,18 @@ import java.util.logging.Logger;
 public class DBContext implements ValueOrdering {
   private static final Logger LOG = Logger.getLogger(DBContext.class.getName());
 
+  /** Do not compare the collator to the database sort order. */
+  public static final String COLLATOR_CALIBRATION_NONE = "none";
+
+  /** Report whether the collator matches the database sort order. */
+  public static final String COLLATOR_CALIBRATION_VERIFY = "verify";
+
+  /** Replace the collator if it does not match the database sort order. */
+  public static final String COLLATOR_CALIBRATION_CALIBRATE = "calibrate";
+
+  /** The spool subdirectory of the connector work directory. */
+  private static final String SPOOL_DIRECTORY = "spool";
+
   private DBClient client;
   private String connectionUrl;
   private String connectorName;
@@ -52,6 +68,44 @@ public class DBContext implements ValueOrdering {
   private boolean parameterizedQueryFlag = false;
   private Boolean nullsSortLow = null;
   private Collator collator;
+  private String collatorCalibration = COLLATOR_CALIBRATION_VERIFY;
+  private int maxOrderingInversions = 1000;
+  private boolean connectorSort = false;
+  private int sortRunSize = 100000;
+  private int docIdVersion = DocIdUtil.VERSION_1;
+  private boolean docIdMigration = false;
+  private int authZCacheSize = 0;
+  private int authZCachePermitSeconds = 300;
+  private int authZCacheDenySeconds = 60;
+  private int authZChunkSize = 500;
+  private int authZThreads = 4;
+  private int authZTimeoutSeconds = 30;
+  private boolean authZBindParameters = false;
+  private String authZPreloadQuery;
+  private String authZPreloadUsers;
+  private int authZPreloadSeconds = 600;
+  private String authZConnectionUrl;
+  private int authZMaxConnections = 0;
+  private int authZMaxQueries = 0;
+  private int authZQueueTimeoutSeconds = 10;
+  private String aclQuery;
+  private String aclUsersField;
+  private String aclGroupsField;
+  private String aclDelimiter = ",";
+  private String spoolDirectory;
+  private long spoolQuotaBytes = 1024L * 1024 * 1024;
+  private int spoolThreshold = 32 * 1024;
+  private boolean spoolCompression = false;
+  private SpoolManager spoolManager;
+  private String lobQuery;
+  private int lobFetchThreads = 4;
+  private long lobFetchMaxBytes = 64L * 1024 * 1024;
+  private int lobChunkSize = 1024 * 1024;
+  private int lobChunkRetries = 3;
+  private int treeHashThreads = 0;
+  private DigestFactory digestFactory;
+  private String mimeTypeField;
+  private String fileNameField;
 
   public DBContext() {
   }
@@ -67,6 +121,65 @@ public class DBContext implements ValueOrdering {
         throw new DBException("nullsSortLowFlag must be set in configuration.");
       }
     }
+
+    // A SqlCollator uses the database itself, so it always matches.
+    if (collator != null && !(collator instanceof SqlCollator)) {
+      if (COLLATOR_CALIBRATION_VERIFY.equals(collatorCalibration)) {
+        calibrateCollator(false);
+      } else if (COLLATOR_CALIBRATION_CALIBRATE.equals(collatorCalibration)) {
+        calibrateCollator(true);
+      } else if (!COLLATOR_CALIBRATION_NONE.equals(collatorCalibration)) {
+        throw new DBException("Invalid collatorCalibration value: "
+            + collatorCalibration);
+      }
+    }
+
+    if (docIdVersion != DocIdUtil.VERSION_1
+        && docIdVersion != DocIdUtil.VERSION_2) {
+      throw new DBException("Invalid docIdVersion value: " + docIdVersion);
+    }
+  }
+
+  /**
+   * Compares the collator to the sort order of the database, which can
+   * prevent documents from being needlessly deleted and re-added due to
+   * a mismatched collator.
+   *
+   * @param replace {@code true} to replace a mismatched collator with one
+   *        that matches the database, or {@code false} to only log it
+   */
+  private void calibrateCollator(boolean replace) {
+    List<String> databaseOrder =
+        new CollatorCalibrator(client).getDatabaseOrder();
+    if (databaseOrder == null) {
+      LOG.warning("Unable to compare the collator to the database sort order.");
+      return;
+    }
+    if (CollatorCalibrator.matches(collator, databaseOrder)) {
+      LOG.config("The collator matches the database sort order.");
+      return;
+    }
+    String productName = client.getDatabaseProductName();
+    Map.Entry<String, Collator> match =
+        CollatorCalibrator.findMatch(databaseOrder, productName);
+    if (match == null) {
+      LOG.warning("The collator does not match the database sort order, "
+          + "and no matching collator was found. Consider configuring a "
+          + "SqlCollator, or a BinaryCollator"
+          + (BinaryCollator.isCodeUnitOrder(productName)
+              ? " with codeUnitOrder set to true" : "")
+          + " and a binary collation in the ORDER BY clause, such as "
+          + "ORDER BY " + BinaryCollator.getOrderByExpression(productName,
+              "name")
+          + ". Database sort order: " + databaseOrder);
+    } else if (replace) {
+      LOG.info("The collator does not match the database sort order. "
+          + "Using a matching collator instead: " + match.getKey());
+      collator = match.getValue();
+    } else {
+      LOG.warning("The collator does not match the database sort order. "
+          + "A matching collator was found: " + match.getKey());
+    }
   }
 
   public boolean isParameterizedQueryFlag() {
@@ -275,4 +388,453 @@ public class DBContext implements ValueOrdering {
   public void setCollator(Collator collator) {
     this.collator = collator;
   }
+
+  public boolean isConnectorSort() {
+    return connectorSort;
+  }
+
+  /**
+   * Sets whether the connector sorts the database snapshots itself, so
+   * that the Traversal SQL Query does not need an ORDER BY clause.
+   */
+  public void setConnectorSort(boolean connectorSort) {
+    this.connectorSort = connectorSort;
+  }
+
+  public int getSortRunSize() {
+    return sortRunSize;
+  }
+
+  /**
+   * Sets the maximum number of snapshots that are sorted in memory when
+   * the connector sorts the snapshots.
+   */
+  public void setSortRunSize(int sortRunSize) {
+    this.sortRunSize = sortRunSize;
+  }
+
+  public int getMaxOrderingInversions() {
+    return maxOrderingInversions;
+  }
+
+  /**
+   * Sets the number of out of order snapshots that will stop a
+   * traversal, or a negative number for no limit.
+   */
+  public void setMaxOrderingInversions(int maxOrderingInversions) {
+    this.maxOrderingInversions = maxOrderingInversions;
+  }
+
+  public int getDocIdVersion() {
+    return docIdVersion;
+  }
+
+  /**
+   * Sets the format of the generated docids, {@link DocIdUtil#VERSION_1}
+   * or the more compact {@link DocIdUtil#VERSION_2}.
+   */
+  public void setDocIdVersion(int docIdVersion) {
+    this.docIdVersion = docIdVersion;
+  }
+
+  public boolean isDocIdMigration() {
+    return docIdMigration;
+  }
+
+  /**
+   * Sets whether documents on the GSA keep their docids when the docid
+   * format is changed, rather than being deleted and fed again with new
+   * docids.
+   */
+  public void setDocIdMigration(boolean docIdMigration) {
+    this.docIdMigration = docIdMigration;
+  }
+
+  public int getAuthZCacheSize() {
+    return authZCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of PERMIT and of DENY authorization decisions
+   * that are cached, or zero to disable the cache.
+   */
+  public void setAuthZCacheSize(int authZCacheSize) {
+    this.authZCacheSize = authZCacheSize;
+  }
+
+  public int getAuthZCachePermitSeconds() {
+    return authZCachePermitSeconds;
+  }
+
+  /** Sets the number of seconds that a PERMIT decision is cached. */
+  public void setAuthZCachePermitSeconds(int authZCachePermitSeconds) {
+    this.authZCachePermitSeconds = authZCachePermitSeconds;
+  }
+
+  public int getAuthZCacheDenySeconds() {
+    return authZCacheDenySeconds;
+  }
+
+  /** Sets the number of seconds that a DENY decision is cached. */
+  public void setAuthZCacheDenySeconds(int authZCacheDenySeconds) {
+    this.authZCacheDenySeconds = authZCacheDenySeconds;
+  }
+
+  public int getAuthZChunkSize() {
+    return authZChunkSize;
+  }
+
+  /**
+   * Sets the maximum number of docids in a single authorization query.
+   * Larger requests are split into chunks that are queried concurrently.
+   */
+  public void setAuthZChunkSize(int authZChunkSize) {
+    this.authZChunkSize = authZChunkSize;
+  }
+
+  public int getAuthZThreads() {
+    return authZThreads;
+  }
+
+  /** Sets the maximum number of concurrent authorization queries. */
+  public void setAuthZThreads(int authZThreads) {
+    this.authZThreads = authZThreads;
+  }
+
+  public int getAuthZTimeoutSeconds() {
+    return authZTimeoutSeconds;
+  }
+
+  /**
+   * Sets the number of seconds to wait for the chunks of an authorization
+   * request, after which the remaining documents are denied.
+   */
+  public void setAuthZTimeoutSeconds(int authZTimeoutSeconds) {
+    this.authZTimeoutSeconds = authZTimeoutSeconds;
+  }
+
+  public boolean isAuthZBindParameters() {
+    return authZBindParameters;
+  }
+
+  /**
+   * Sets whether the docids are passed to the Authorization SQL Query as
+   * bind parameters, rather than as a literal list.
+   */
+  public void setAuthZBindParameters(boolean authZBindParameters) {
+    this.authZBindParameters = authZBindParameters;
+  }
+
+  public String getAuthZPreloadQuery() {
+    return authZPreloadQuery;
+  }
+
+  /**
+   * Sets the query that returns all of the docids a user may access, in
+   * the same form as the Authorization SQL Query. The query may use the
+   * {@code #{username}} parameter.
+   */
+  public void setAuthZPreloadQuery(String authZPreloadQuery) {
+    this.authZPreloadQuery = authZPreloadQuery;
+  }
+
+  public String getAuthZPreloadUsers() {
+    return authZPreloadUsers;
+  }
+
+  /**
+   * Sets the comma-separated list of users whose accessible docids are
+   * preloaded with the Authorization Preload SQL Query.
+   */
+  public void setAuthZPreloadUsers(String authZPreloadUsers) {
+    this.authZPreloadUsers = authZPreloadUsers;
+  }
+
+  public int getAuthZPreloadSeconds() {
+    return authZPreloadSeconds;
+  }
+
+  /**
+   * Sets the number of seconds before preloaded docids expire. They are
+   * reloaded in the background before they expire.
+   */
+  public void setAuthZPreloadSeconds(int authZPreloadSeconds) {
+    this.authZPreloadSeconds = authZPreloadSeconds;
+  }
+
+  public String getAuthZConnectionUrl() {
+    return authZConnectionUrl;
+  }
+
+  /**
+   * Sets the JDBC URL for authorization queries, such as a read replica.
+   * This is only used if {@code authZMaxConnections} is set. The default
+   * is the {@code connectionUrl}.
+   */
+  public void setAuthZConnectionUrl(String authZConnectionUrl) {
+    this.authZConnectionUrl = authZConnectionUrl;
+  }
+
+  public int getAuthZMaxConnections() {
+    return authZMaxConnections;
+  }
+
+  /**
+   * Sets the size of a separate connection pool for authorization
+   * queries, or zero to share the traversal pool.
+   */
+  public void setAuthZMaxConnections(int authZMaxConnections) {
+    this.authZMaxConnections = authZMaxConnections;
+  }
+
+  public int getAuthZMaxQueries() {
+    return authZMaxQueries;
+  }
+
+  /**
+   * Sets the maximum number of concurrent authorization queries, or zero
+   * to use {@code authZMaxConnections}. If both are zero, there is no
+   * limit.
+   */
+  public void setAuthZMaxQueries(int authZMaxQueries) {
+    this.authZMaxQueries = authZMaxQueries;
+  }
+
+  public int getAuthZQueueTimeoutSeconds() {
+    return authZQueueTimeoutSeconds;
+  }
+
+  /**
+   * Sets the number of seconds an authorization query waits to run,
+   * after which it is rejected and its documents are denied.
+   */
+  public void setAuthZQueueTimeoutSeconds(int authZQueueTimeoutSeconds) {
+    this.authZQueueTimeoutSeconds = authZQueueTimeoutSeconds;
+  }
+
+  public String getAclQuery() {
+    return aclQuery;
+  }
+
+  /**
+   * Sets the query that returns the ACL of a document. The parameters of
+   * the query are the columns of the row, such as {@code #{id}}, and the
+   * results hold the {@code aclUsersField} and {@code aclGroupsField}
+   * columns. If this is not set, those columns are read from the row.
+   */
+  public void setAclQuery(String aclQuery) {
+    this.aclQuery = aclQuery;
+  }
+
+  public String getAclUsersField() {
+    return aclUsersField;
+  }
+
+  /** Sets the column that holds the users allowed to read a document. */
+  public void setAclUsersField(String aclUsersField) {
+    this.aclUsersField = aclUsersField;
+  }
+
+  public String getAclGroupsField() {
+    return aclGroupsField;
+  }
+
+  /** Sets the column that holds the groups allowed to read a document. */
+  public void setAclGroupsField(String aclGroupsField) {
+    this.aclGroupsField = aclGroupsField;
+  }
+
+  public String getAclDelimiter() {
+    return aclDelimiter;
+  }
+
+  /** Sets the separator between the principals in an ACL column value. */
+  public void setAclDelimiter(String aclDelimiter) {
+    this.aclDelimiter = aclDelimiter;
+  }
+
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  /**
+   * Sets the directory for spooled content. The content is spooled to a
+   * subdirectory named for the connector instance. The default is the
+   * spool subdirectory of the connector work directory.
+   */
+  public void setSpoolDirectory(String spoolDirectory) {
+    this.spoolDirectory = spoolDirectory;
+  }
+
+  /**
+   * Gets the spool manager for the content of this connector instance,
+   * creating it on first use. The spool files are written to the spool
+   * subdirectory of the connector work directory, or to a subdirectory
+   * named for the connector instance within the configured spool
+   * directory or the default temporary-file directory, so that no other
+   * connector instance or application uses the same directory.
+   */
+  public synchronized SpoolManager getSpoolManager() {
+    if (spoolManager == null) {
+      File directory;
+      if (!Util.isNullOrWhitespace(spoolDirectory)) {
+        directory = new File(spoolDirectory, getSpoolSubdirectory());
+      } else if (googleConnectorWorkDir != null) {
+        directory = new File(googleConnectorWorkDir, SPOOL_DIRECTORY);
+      } else {
+        directory = new File(System.getProperty("java.io.tmpdir"),
+            getSpoolSubdirectory());
+      }
+      spoolManager = new SpoolManager(directory, spoolQuotaBytes,
+          spoolThreshold, spoolCompression);
+      LOG.config("Spooling content with " + spoolManager);
+    }
+    return spoolManager;
+  }
+
+  /** Gets a subdirectory name for this connector instance. */
+  private String getSpoolSubdirectory() {
+    String name = (connectorName == null) ? "" : connectorName;
+    return "dbconnector-" + name.replaceAll("[^A-Za-z0-9_.-]", "_");
+  }
+
+  public long getSpoolQuotaBytes() {
+    return spoolQuotaBytes;
+  }
+
+  /** Sets the maximum number of bytes in the spool directory. */
+  public void setSpoolQuotaBytes(long spoolQuotaBytes) {
+    this.spoolQuotaBytes = spoolQuotaBytes;
+  }
+
+  public int getSpoolThreshold() {
+    return spoolThreshold;
+  }
+
+  /** Sets the maximum size of content that is kept in memory. */
+  public void setSpoolThreshold(int spoolThreshold) {
+    this.spoolThreshold = spoolThreshold;
+  }
+
+  public boolean isSpoolCompression() {
+    return spoolCompression;
+  }
+
+  /** Sets whether spooled content is compressed. */
+  public void setSpoolCompression(boolean spoolCompression) {
+    this.spoolCompression = spoolCompression;
+  }
+
+  public String getLobQuery() {
+    return lobQuery;
+  }
+
+  /**
+   * Sets the query that fetches the LOB field for one row of the
+   * Traversal SQL Query, which then need not return the LOB.
+   */
+  public void setLobQuery(String lobQuery) {
+    this.lobQuery = lobQuery;
+  }
+
+  public int getLobFetchThreads() {
+    return lobFetchThreads;
+  }
+
+  /** Sets the number of LOB fetch queries that run concurrently. */
+  public void setLobFetchThreads(int lobFetchThreads) {
+    this.lobFetchThreads = lobFetchThreads;
+  }
+
+  public long getLobFetchMaxBytes() {
+    return lobFetchMaxBytes;
+  }
+
+  /**
+   * Sets the number of bytes of fetched LOBs, waiting to be built into
+   * documents, above which no more fetches are started.
+   */
+  public void setLobFetchMaxBytes(long lobFetchMaxBytes) {
+    this.lobFetchMaxBytes = lobFetchMaxBytes;
+  }
+
+  public int getLobChunkSize() {
+    return lobChunkSize;
+  }
+
+  /**
+   * Sets the number of bytes or characters in each read of a large BLOB
+   * or CLOB, or zero to read each LOB at once.
+   */
+  public void setLobChunkSize(int lobChunkSize) {
+    this.lobChunkSize = lobChunkSize;
+  }
+
+  public int getLobChunkRetries() {
+    return lobChunkRetries;
+  }
+
+  /** Sets the number of times a failed LOB chunk read is retried. */
+  public void setLobChunkRetries(int lobChunkRetries) {
+    this.lobChunkRetries = lobChunkRetries;
+  }
+
+  public int getTreeHashThreads() {
+    return treeHashThreads;
+  }
+
+  /**
+   * Sets the number of threads used to compute tree hash checksums of LOB
+   * content, or zero to use a sequential SHA-1 checksum.
+   */
+  public void setTreeHashThreads(int treeHashThreads) {
+    this.treeHashThreads = treeHashThreads;
+  }
+
+  /**
+   * Gets the digest factory for the LOB content checksums of this
+   * connector instance, which is created on first use.
+   */
+  public synchronized DigestFactory getDigestFactory() {
+    if (digestFactory == null) {
+      digestFactory = DigestFactory.getInstance(treeHashThreads);
+    }
+    return digestFactory;
+  }
+
+  public String getMimeTypeField() {
+    return mimeTypeField;
+  }
+
+  /**
+   * Sets the column that gives the MIME type of the LOB content, so that
+   * the MIME type is not detected from the content.
+   */
+  public void setMimeTypeField(String mimeTypeField) {
+    this.mimeTypeField = Util.nullOrTrimmed(mimeTypeField);
+  }
+
+  public String getFileNameField() {
+    return fileNameField;
+  }
+
+  /**
+   * Sets the column that gives the file name of the LOB content, whose
+   * extension is used to detect the MIME type.
+   */
+  public void setFileNameField(String fileNameField) {
+    this.fileNameField = Util.nullOrTrimmed(fileNameField);
+  }
+
+  public String getCollatorCalibration() {
+    return collatorCalibration;
+  }
+
+  /**
+   * Sets how the collator is compared to the database sort order during
+   * initialization: {@code none}, {@code verify}, or {@code calibrate}.
+   */
+  public void setCollatorCalibration(String collatorCalibration) {
+    this.collatorCalibration = collatorCalibration;
+  }
 }
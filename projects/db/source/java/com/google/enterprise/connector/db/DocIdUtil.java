@@ -14,18 +14,21 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.enterprise.connector.util.Base64;
 import com.google.enterprise.connector.util.Base64DecoderException;
 
-import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -43,6 +46,22 @@ import java.util.logging.Logger;
 public class DocIdUtil {
   private static final Logger LOG = Logger.getLogger(DocIdUtil.class.getName());
   public static final String PRIMARY_KEYS_SEPARATOR = "/";
+  private static final char PRIMARY_KEYS_SEPARATOR_CHAR = '/';
+
+  /**
+   * The original docid format, with URL encoded text values. Version 1
+   * docids begin with the type codes.
+   */
+  public static final int VERSION_1 = 1;
+
+  /**
+   * The compact docid format. Version 2 docids begin with a '2', followed
+   * by the type codes, and text values escape only the characters that
+   * cannot appear in the docid. See {@link #generateDocId}.
+   */
+  public static final int VERSION_2 = 2;
+
+  private static final char VERSION_2_PREFIX = '2';
 
   /**
    * We will encode the various primary key value types into the docid so that
@@ -111,8 +130,8 @@ public class DocIdUtil {
   public static Map<String, String> getDocIdMap(Collection<String> docIds) {
     Map<String, String> docIdMap = new HashMap<String, String>();
     for (String docId : docIds) {
-      String[] tokens = docId.split(PRIMARY_KEYS_SEPARATOR, -1);
-      if (tokens.length == 1) {
+      int size = docId.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR);
+      if (size == -1) {
         // Legacy Base64-encoded docid.
         try {
           docIdMap.put(new String(Base64.decode(docId)), docId);
@@ -120,17 +139,23 @@ public class DocIdUtil {
           LOG.log(Level.WARNING, "Error decoding docId: " + docId, e);
         }
       } else {
-        String types = tokens[0];
+        int version = getVersion(docId);
+        int start = size;
         StringBuilder docIdString = new StringBuilder();
         // Build a legacy version of the docid, with comma-separated values.
         // TODO(bmj): This is fundmentally broken for multi-valued primary keys.
-        for (int i = 1; i < tokens.length; i++) {
-          if (types.charAt(i - 1) == Type.STRING.typeCode()) {
-            docIdString.append(urlDecode(tokens[i]));
+        for (int i = getTypesStart(version); i < size; i++) {
+          int end = docId.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR, start + 1);
+          if (end == -1) {
+            end = docId.length();
+          }
+          if (docId.charAt(i) == Type.STRING.typeCode()) {
+            docIdString.append(decodeValue(docId, start + 1, end, version));
           } else {
-            docIdString.append(tokens[i]);
+            docIdString.append(docId, start + 1, end);
           }
           docIdString.append(',');
+          start = end;
         }
         docIdString.deleteCharAt(docIdString.length() - 1);
         docIdMap.put(docIdString.toString(), docId);
@@ -139,6 +164,33 @@ public class DocIdUtil {
     return docIdMap;
   }
 
+  /**
+   * Returns the decoded text values of the given docids. Legacy docids
+   * have no text values.
+   *
+   * @param docIds
+   * @return the text values in the docids
+   */
+  public static List<String> getTextValues(Collection<String> docIds) {
+    List<String> values = new ArrayList<String>();
+    for (String docId : docIds) {
+      int size = docId.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR);
+      int start = size;
+      int version = getVersion(docId);
+      for (int i = getTypesStart(version); i < size; i++) {
+        int end = docId.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR, start + 1);
+        if (end == -1) {
+          end = docId.length();
+        }
+        if (docId.charAt(i) == Type.STRING.typeCode()) {
+          values.add(decodeValue(docId, start + 1, end, version));
+        }
+        start = end;
+      }
+    }
+    return values;
+  }
+
   /**
    * Generates the docId for a DB row.  The docid is formed from primary key
    * values separated by '/' character, preceded by a string that identifies
@@ -165,18 +217,72 @@ public class DocIdUtil {
    */
   public static String generateDocId(List<String> primaryKeys,
       Map<String, Object> row) {
-    StringBuilder values = new StringBuilder();
-    StringBuilder types = new StringBuilder();
-    for (String primaryKey : primaryKeys) {
-      values.append(PRIMARY_KEYS_SEPARATOR);
-      appendValue(row.get(primaryKey), values, types);
+    return generateDocId(primaryKeys, row, VERSION_1);
+  }
+
+  /**
+   * Generates the docId for a DB row in the given format. Version 2
+   * docids are the same as version 1 docids, except that they begin with
+   * a '2', and text values are not URL encoded. Only '%', '/', and the
+   * characters that are not allowed in XML are escaped, as '%' and the
+   * hexadecimal UTF-8 bytes. For example, the version 2 docid for the
+   * values 10 and 'hello world/2' is "2BF/10/hello world%2F2".
+   * </p>
+   * Docids in either format compare equal if their values are equal,
+   * except that the version is used to break the tie.
+   *
+   * @param primaryKeys array of primary key column names.
+   * @param row map representing a row in database table.
+   * @param version the docid format, {@link #VERSION_1} or
+   *        {@link #VERSION_2}
+   * @return docId encoded values of primary key columns, separated by '/'.
+   */
+  public static String generateDocId(List<String> primaryKeys,
+      Map<String, Object> row, int version) {
+    // The types precede the values, so reserve space for them, and
+    // fill them in as the values are appended.
+    StringBuilder docId = DOCID_BUILDER.get();
+    docId.setLength(0);
+    int typesStart = getTypesStart(version);
+    if (version == VERSION_2) {
+      docId.append(VERSION_2_PREFIX);
+    }
+    int size = primaryKeys.size();
+    for (int i = 0; i < size; i++) {
+      docId.append(Type.NULL.typeCode());
+    }
+    for (int i = 0; i < size; i++) {
+      docId.append(PRIMARY_KEYS_SEPARATOR_CHAR);
+      Type type = appendValue(row.get(primaryKeys.get(i)), docId, version);
+      docId.setCharAt(typesStart + i, type.typeCode());
     }
-    // Now glue the types and values together as the docId.
-    return types.toString() + values.toString();
+    String result = docId.toString();
+    if (docId.capacity() > MAX_CACHED_CAPACITY) {
+      DOCID_BUILDER.remove();
+    }
+    return result;
   }
 
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MILLIS =
-      new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+  /** Builds the docids, reused by each thread. */
+  private static final ThreadLocal<StringBuilder> DOCID_BUILDER =
+      new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+          return new StringBuilder();
+        }
+      };
+
+  /** Larger docid builders are not kept for reuse. */
+  private static final int MAX_CACHED_CAPACITY = 8192;
+
+  /** SimpleDateFormat is not thread-safe, so each thread has its own. */
+  private static final ThreadLocal<SimpleDateFormat>
+      ISO8601_DATE_FORMAT_MILLIS = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        }
+      };
 
   /**
    * Encode a primary key value so that it may be included in the docid.
@@ -186,58 +292,69 @@ public class DocIdUtil {
    * are returned as URLEncoded strings.
    *
    * @param value the primary key value to encode
-   * @param values the values encoding under construction
-   * @param types the types encoding under construction
+   * @param docId the docid under construction
+   * @param version the docid format
+   * @return the type of the value
    */
-  private static void appendValue(Object value, StringBuilder values,
-                                  StringBuilder types) {
-    String valueStr;
-    Type type;
+  private static Type appendValue(Object value, StringBuilder docId,
+      int version) {
     if (value == null) {
-      valueStr = "";
-      type = Type.NULL;
+      return Type.NULL;
     } else if (value instanceof Number) {
       if (value instanceof BigDecimal) {
         // BigDecimal generates E+nn exponential notation rather than Enn.
         // I strip the '+', so that URLDecoder does not convert it to space.
-        valueStr = value.toString().replaceAll("\\+", "");
-        type = Type.BIGDEC;
+        String valueStr = value.toString();
+        for (int i = 0; i < valueStr.length(); i++) {
+          char c = valueStr.charAt(i);
+          if (c != '+') {
+            docId.append(c);
+          }
+        }
+        return Type.BIGDEC;
       } else if (value instanceof BigInteger) {
-        valueStr = value.toString();
-        type = Type.BIGINT;
+        docId.append(value.toString());
+        return Type.BIGINT;
       } else if (value instanceof Float || value instanceof Double) {
-        valueStr = value.toString();
-        type = Type.DOUBLE;
+        docId.append(value.toString());
+        return Type.DOUBLE;
+      } else if (value instanceof Long || value instanceof Integer
+                 || value instanceof Short || value instanceof Byte) {
+        docId.append(((Number) value).longValue());
+        return Type.LONG;
       } else {
-        valueStr = value.toString();
-        type = Type.LONG;
+        docId.append(value.toString());
+        return Type.LONG;
       }
     } else if (value instanceof java.util.Date) {
       if (value instanceof Timestamp) {
-        valueStr = value.toString();
-        type = Type.TIMESTAMP;
+        docId.append(value.toString());
+        return Type.TIMESTAMP;
       } else if (value instanceof Time) {
-        valueStr = value.toString();
-        type = Type.TIME;
+        docId.append(value.toString());
+        return Type.TIME;
       } else if (value instanceof Date) {
-        valueStr = value.toString();
-        type = Type.DATE;
+        docId.append(value.toString());
+        return Type.DATE;
       } else {
         // Convert to ISO8601
         // TODO: What about timezone? I don't think it matters here.
-        valueStr = ISO8601_DATE_FORMAT_MILLIS.format((java.util.Date) value);
-        type = Type.UTILDATE;
+        docId.append(
+            ISO8601_DATE_FORMAT_MILLIS.get().format((java.util.Date) value));
+        return Type.UTILDATE;
       }
     } else if (value instanceof Boolean) {
-      valueStr = value.toString();
-      type = Type.BOOL;
+      docId.append(((Boolean) value).booleanValue());
+      return Type.BOOL;
     } else {
       // All other types (including Strings) are URLencoded strings.
-      valueStr = urlEncode(value.toString());
-      type = Type.STRING;
+      if (version == VERSION_2) {
+        escape(value.toString(), docId);
+      } else {
+        urlEncode(value.toString(), docId);
+      }
+      return Type.STRING;
     }
-    values.append(valueStr);
-    types.append(type.typeCode());
   }
 
   /**
@@ -256,25 +373,177 @@ public class DocIdUtil {
     if (docid1.equals(docid2)) {
       return 0;
     }
-    
-    String[] tokens1 = docid1.split(PRIMARY_KEYS_SEPARATOR, -1);
-    String[] tokens2 = docid2.split(PRIMARY_KEYS_SEPARATOR, -1);
+    return compare(valueOrdering, new Key(valueOrdering, docid1, false),
+                   new Key(valueOrdering, docid2, false));
+  }
+
+  /**
+   * Gets a pre-parsed comparison key for the given docid. Keys are
+   * intended for docids that will be compared repeatedly, and comparing
+   * two keys does not allocate any objects. If the {@code Collator} is
+   * a {@code RuleBasedCollator}, then its {@code CollationKey}s are
+   * used to compare text values; otherwise, the {@code Collator} is
+   * called with the decoded text values.
+   *
+   * @param valueOrdering used to determine sort order of NULLs and text
+   * @param docid a docid
+   * @return a comparison key for the docid
+   */
+  public static Key getKey(ValueOrdering valueOrdering, String docid) {
+    return new Key(valueOrdering, docid,
+        valueOrdering.getCollator() instanceof RuleBasedCollator);
+  }
+
+  /**
+   * A docid parsed into its typed primary key values. Integral and
+   * floating point values are held as primitives, and text values are
+   * URL decoded and optionally converted to {@code CollationKey}s.
+   */
+  public static final class Key {
+    private final String docid;
+
+    /** The docid format, or zero for legacy docids. */
+    private final int version;
+
+    /** The number of primary key values, or zero for legacy docids. */
+    private final int size;
+    private final Type[] types;
+
+    /**
+     * The decoded text of each value. Only text values are decoded;
+     * the other types are held as they appear in the docid.
+     */
+    private final String[] values;
+
+    /** Holds the LONG values, and the bits of the DOUBLE values. */
+    private final long[] primitives;
+
+    /** Holds the BIGINT, BIGDEC, and collated STRING values. */
+    private final Object[] objects;
+
+    /** The collator used to create any {@code CollationKey}s, or null. */
+    private final Collator collator;
+
+    private Key(ValueOrdering valueOrdering, String docid,
+        boolean useCollationKeys) {
+      this.docid = docid;
+      this.collator = (useCollationKeys) ? valueOrdering.getCollator() : null;
+
+      int start = docid.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR);
+      if (start == -1) {
+        // Legacy format docid.
+        version = 0;
+        size = 0;
+        types = null;
+        values = null;
+        primitives = null;
+        objects = null;
+        return;
+      }
+
+      // The type codes precede the first separator, one per value.
+      version = getVersion(docid);
+      int typesStart = getTypesStart(version);
+      size = start - typesStart;
+      types = new Type[size];
+      values = new String[size];
+      primitives = new long[size];
+      objects = new Object[size];
+      for (int i = 0; i < size; i++) {
+        int end = (i == size - 1)
+            ? docid.length() : docid.indexOf(PRIMARY_KEYS_SEPARATOR_CHAR,
+                                             start + 1);
+        if (end == -1) {
+          throw new IllegalArgumentException("Invalid docid: " + docid);
+        }
+        Type type = Type.valueOf(docid.charAt(typesStart + i));
+        String value = (type == Type.STRING)
+            ? decodeValue(docid, start + 1, end, version)
+            : docid.substring(start + 1, end);
+        types[i] = type;
+        switch (type) {
+          case LONG:
+            primitives[i] = Long.parseLong(value);
+            break;
+          case DOUBLE:
+            primitives[i] = Double.doubleToLongBits(Double.parseDouble(value));
+            break;
+          case BIGINT:
+            objects[i] = new BigInteger(value);
+            break;
+          case BIGDEC:
+            objects[i] = new BigDecimal(value);
+            break;
+          case STRING:
+            if (collator != null) {
+              objects[i] = collator.getCollationKey(value);
+            }
+            break;
+          default:
+            break;
+        }
+        values[i] = value;
+        start = end;
+      }
+    }
+
+    /** Returns the docid this key was parsed from. */
+    public String getDocId() {
+      return docid;
+    }
+
+    private boolean isLegacy() {
+      return size == 0;
+    }
+  }
+
+  /**
+   * Compares two docid keys. The result is the same as comparing the
+   * docids with {@link #compare(ValueOrdering, String, String)}.
+   *
+   * @param valueOrdering used to determine sort order of NULLs and text
+   * @param key1
+   * @param key2
+   * @return a negative integer, zero, or a positive integer indicating
+   *         whether key1 is less than, equal to, or greater than key2.
+   */
+  public static int compare(ValueOrdering valueOrdering, Key key1, Key key2) {
+    int retval = compareValues(valueOrdering, key1, key2);
+    return (retval == 0) ? key1.version - key2.version : retval;
+  }
+
+  /**
+   * Compares the values of two docid keys, ignoring the docid format. A
+   * version 1 and version 2 docid with the same values compare equal.
+   *
+   * @param valueOrdering used to determine sort order of NULLs and text
+   * @param key1
+   * @param key2
+   * @return a negative integer, zero, or a positive integer indicating
+   *         whether the values of key1 are less than, equal to, or greater
+   *         than the values of key2.
+   */
+  public static int compareValues(ValueOrdering valueOrdering, Key key1,
+      Key key2) {
+    if (key1 == key2 || key1.docid.equals(key2.docid)) {
+      return 0;
+    }
 
     // Handle legacy format docids.
-    if (tokens1.length == 1) {
-      return (tokens2.length == 1) ? docid1.compareTo(docid2) : -1;
-    } else if (tokens2.length == 1) {
+    if (key1.isLegacy()) {
+      return (key2.isLegacy()) ? key1.docid.compareTo(key2.docid) : -1;
+    } else if (key2.isLegacy()) {
       return 1;
     }
 
-    for (int i = 1; i < tokens1.length && i < tokens2.length; i++) {
-      Type type1 = Type.valueOf(tokens1[0].charAt(i - 1));
-      Type type2 = Type.valueOf(tokens2[0].charAt(i - 1));
+    for (int i = 0; i < key1.size && i < key2.size; i++) {
+      Type type1 = key1.types[i];
+      Type type2 = key2.types[i];
       int retval;
 
       // The most common case should be the types are the same.
       if (type1 == type2) {
-        retval = compareLikeTypes(valueOrdering, type1, tokens1[i], tokens2[i]);
+        retval = compareLikeTypes(valueOrdering, type1, key1, key2, i);
       } else {
         // The types are different?
         // Watch out for null values.
@@ -284,15 +553,12 @@ public class DocIdUtil {
           retval = valueOrdering.nullsAreSortedLow() ? 1 : -1;
         } else if (type1.isNumeric() && type2.isNumeric()) {
           // If they are different types of numbers, compare them numerically.
-          retval = new BigDecimal(tokens1[i])
-                   .compareTo(new BigDecimal(tokens2[i]));
+          retval = new BigDecimal(key1.values[i])
+                   .compareTo(new BigDecimal(key2.values[i]));
         } else {
           // Compare mis-matched types as Strings.
-          String value1 =
-              (type1 == Type.STRING) ? urlDecode(tokens1[i]) : tokens1[i];
-          String value2 =
-              (type2 == Type.STRING) ? urlDecode(tokens2[i]) : tokens2[i];
-          retval = valueOrdering.getCollator().compare(value1, value2);
+          retval = valueOrdering.getCollator()
+              .compare(key1.values[i], key2.values[i]);
         }
       }
       if (retval != 0) {
@@ -300,45 +566,238 @@ public class DocIdUtil {
       }
     }
     // If we got here, one docid matches the beginning of another docid.
-    return tokens1.length - tokens2.length;
+    return key1.size - key2.size;
   }
 
+  @SuppressWarnings("unchecked")
   private static int compareLikeTypes(ValueOrdering valueOrdering, Type type,
-                                      String value1, String value2) {
+                                      Key key1, Key key2, int i) {
     switch (type) {
       case NULL:
         return 0;
       case LONG:
-        return Long.valueOf(value1).compareTo(Long.valueOf(value2));
+        long long1 = key1.primitives[i];
+        long long2 = key2.primitives[i];
+        return (long1 < long2) ? -1 : ((long1 == long2) ? 0 : 1);
       case DOUBLE:
-        return Double.valueOf(value1).compareTo(Double.valueOf(value2));
+        return Double.compare(Double.longBitsToDouble(key1.primitives[i]),
+                              Double.longBitsToDouble(key2.primitives[i]));
       case BIGDEC:
-        return new BigDecimal(value1).compareTo(new BigDecimal(value2));
       case BIGINT:
-        return new BigInteger(value1).compareTo(new BigInteger(value2));
+        return ((Comparable<Object>) key1.objects[i])
+            .compareTo(key2.objects[i]);
       case STRING:
-        return valueOrdering.getCollator()
-               .compare(urlDecode(value1), urlDecode(value2));
+        // CollationKeys may only be compared if they come from the
+        // same Collator.
+        if (key1.collator != null && key1.collator == key2.collator
+            && key1.collator == valueOrdering.getCollator()) {
+          return ((CollationKey) key1.objects[i])
+              .compareTo((CollationKey) key2.objects[i]);
+        } else {
+          return valueOrdering.getCollator()
+              .compare(key1.values[i], key2.values[i]);
+        }
       default:  // All the ISO 8601 dates/times sort lexigraphically.
-        return value1.compareTo(value2);
+        return key1.values[i].compareTo(key2.values[i]);
+    }
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Appends the given string, encoded exactly as
+   * {@code URLEncoder.encode(s, "UTF-8")} would, without the charset
+   * lookup and intermediate strings. Unpaired surrogates are encoded as
+   * '?', as {@code URLEncoder} does.
+   */
+  @VisibleForTesting
+  static void urlEncode(String s, StringBuilder out) {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*'
+          || c == '_') {
+        out.append(c);
+      } else if (c == ' ') {
+        out.append('+');
+      } else {
+        i = appendEscapedUtf8(s, i, out);
+      }
+    }
+  }
+
+  /**
+   * Appends the given docid, percent-encoding the characters that are
+   * not allowed in the path of a URL, such as space, '#', '?', and
+   * non-ASCII characters, as well as ampersands. The existing '%' escapes
+   * in the docid are kept, so version 1 docids are not changed.
+   *
+   * @param docId a docid
+   * @return the docid encoded for use in a URL path
+   */
+  public static String encodeUrlPath(String docId) {
+    StringBuilder out = null;
+    int length = docId.length();
+    for (int i = 0; i < length; i++) {
+      char c = docId.charAt(i);
+      if (isUrlPathChar(c) || (c == '%' && i + 2 < length
+              && Character.digit(docId.charAt(i + 1), 16) != -1
+              && Character.digit(docId.charAt(i + 2), 16) != -1)) {
+        if (out != null) {
+          out.append(c);
+        }
+      } else {
+        if (out == null) {
+          out = new StringBuilder(length + 16);
+          out.append(docId, 0, i);
+        }
+        i = appendEscapedUtf8(docId, i, out);
+      }
     }
+    return (out == null) ? docId : out.toString();
+  }
+
+  /**
+   * Returns whether the character may appear unencoded in a URL path.
+   * These are the RFC 3986 path characters, except for '%' and ampersand.
+   */
+  private static boolean isUrlPathChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || "-._~!$'()*+,;=:@/".indexOf(c) != -1;
   }
 
-  private static String urlEncode(String s) {
-    try {
-      return URLEncoder.encode(s, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      // Should not happen with UTF-8.
-      throw new AssertionError(e);
+  /**
+   * Appends the UTF-8 bytes of the character at the given index as '%'
+   * escapes. Unpaired surrogates are encoded as '?'.
+   *
+   * @return the index of the last character used, which is the next
+   *         character for a surrogate pair
+   */
+  private static int appendEscapedUtf8(String s, int i, StringBuilder out) {
+    char c = s.charAt(i);
+    if (c < 0x80) {
+      appendEscaped(c, out);
+    } else if (c < 0x800) {
+      appendEscaped(0xC0 | (c >> 6), out);
+      appendEscaped(0x80 | (c & 0x3F), out);
+    } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+               && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(c, s.charAt(++i));
+      appendEscaped(0xF0 | (codePoint >> 18), out);
+      appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), out);
+      appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+      appendEscaped(0x80 | (codePoint & 0x3F), out);
+    } else if (Character.isHighSurrogate(c)
+               || Character.isLowSurrogate(c)) {
+      appendEscaped('?', out);
+    } else {
+      appendEscaped(0xE0 | (c >> 12), out);
+      appendEscaped(0x80 | ((c >> 6) & 0x3F), out);
+      appendEscaped(0x80 | (c & 0x3F), out);
+    }
+    return i;
+  }
+
+  private static void appendEscaped(int b, StringBuilder out) {
+    out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF])
+        .append(HEX_DIGITS[b & 0xF]);
+  }
+
+  /**
+   * Appends the given string, escaping only '%', '/', and the characters
+   * that are not allowed in XML, for version 2 docids. Unpaired
+   * surrogates are escaped as '?', as {@code URLEncoder} does.
+   */
+  @VisibleForTesting
+  static void escape(String s, StringBuilder out) {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c == '%' || c == PRIMARY_KEYS_SEPARATOR_CHAR || c < 0x20
+          || c == 0x7F) {
+        appendEscaped(c, out);
+      } else if (c == '\uFFFE' || c == '\uFFFF') {
+        appendEscaped(0xEF, out);
+        appendEscaped(0xBF, out);
+        appendEscaped(0x80 | (c & 0x3F), out);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+                 && Character.isLowSurrogate(s.charAt(i + 1))) {
+        out.append(c).append(s.charAt(++i));
+      } else if (Character.isHighSurrogate(c)
+                 || Character.isLowSurrogate(c)) {
+        appendEscaped('?', out);
+      } else {
+        out.append(c);
+      }
     }
   }
 
-  private static String urlDecode(String s) {
-    try {
-      return URLDecoder.decode(s, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      // Should not happen with UTF-8.
-      throw new AssertionError(e);
+  /** Returns the format version of a docid with type codes. */
+  private static int getVersion(String docId) {
+    return (docId.charAt(0) == VERSION_2_PREFIX) ? VERSION_2 : VERSION_1;
+  }
+
+  /** Returns the offset of the type codes in a docid. */
+  private static int getTypesStart(int version) {
+    return (version == VERSION_2) ? 1 : 0;
+  }
+
+  /**
+   * Decodes a text value in a docid, without allocating anything more
+   * than the result if there are no escapes. Version 1 values are URL
+   * encoded, and version 2 values use only '%' escapes.
+   *
+   * @param docId the docid
+   * @param start the offset of the value in the docid
+   * @param end the offset of the end of the value
+   * @param version the docid format
+   * @return the decoded value
+   * @throws IllegalArgumentException if an escape is invalid
+   */
+  private static String decodeValue(String docId, int start, int end,
+      int version) {
+    int i = start;
+    while (i < end) {
+      char c = docId.charAt(i);
+      if (c == '%' || (c == '+' && version == VERSION_1)) {
+        break;
+      }
+      i++;
+    }
+    if (i == end) {
+      return docId.substring(start, end);
+    }
+
+    StringBuilder value = new StringBuilder(end - start);
+    value.append(docId, start, i);
+    byte[] bytes = null;
+    while (i < end) {
+      char c = docId.charAt(i);
+      if (c == '%') {
+        // Decode a run of escaped bytes together, as UTF-8.
+        if (bytes == null) {
+          bytes = new byte[(end - i) / 3];
+        }
+        int count = 0;
+        while (i < end && docId.charAt(i) == '%') {
+          int high = (i + 2 < end) ? Character.digit(docId.charAt(i + 1), 16)
+              : -1;
+          int low = (i + 2 < end) ? Character.digit(docId.charAt(i + 2), 16)
+              : -1;
+          if (high == -1 || low == -1) {
+            throw new IllegalArgumentException("Invalid escape in docid: "
+                + docId);
+          }
+          bytes[count++] = (byte) ((high << 4) | low);
+          i += 3;
+        }
+        value.append(new String(bytes, 0, count, Charsets.UTF_8));
+      } else {
+        value.append((c == '+' && version == VERSION_1) ? ' ' : c);
+        i++;
+      }
     }
+    return value.toString();
   }
 }
@@ -27,9 +27,15 @@ import com.google.enterprise.connector.util.Base64FilterInputStream;
 import com.google.enterprise.connector.util.InputStreamFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,6 +45,12 @@ public class InputStreamFactories {
   private static final Logger LOG =
       Logger.getLogger(InputStreamFactories.class.getName());
 
+  /**
+   * The number of Base64 characters decoded at a time, which must be a
+   * multiple of 4.
+   */
+  private static final int BASE64_CHUNK_SIZE = 64 * 1024;
+
   /**
    * Gets an {@code InputStreamFactory} that tries not to consume large
    * amounts of memory, no matter how large the given byte array is.
@@ -46,11 +58,32 @@ public class InputStreamFactories {
    * @param data a byte array
    */
   public static final InputStreamFactory newInstance(byte[] data) {
+    return newInstance(null, data, null);
+  }
+
+  /**
+   * Gets an {@code InputStreamFactory} that tries not to consume large
+   * amounts of memory, no matter how large the given byte array is.
+   * The MIME type is used to decide whether spooled content might be
+   * compressible.
+   *
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to write large content to files in the default
+   *        temporary-file directory, which are deleted when they are
+   *        garbage collected
+   * @param data a byte array
+   * @param mimeType the MIME type of the data, or {@code null} if it is
+   *        not known
+   */
+  public static final InputStreamFactory newInstance(
+      SpoolManager spoolManager, byte[] data, String mimeType) {
     if (data == null) {
       return null;
     }
     try {
-      return new FileBackedInputStreamFactory(data);
+      return (spoolManager == null)
+          ? new FileBackedInputStreamFactory(data)
+          : spoolManager.newInstance(data, mimeType);
     } catch (IOException e) {
       if (LOG.isLoggable(Level.FINEST)) {
         LOG.log(Level.WARNING, "Failed to cache document content.", e);
@@ -62,29 +95,202 @@ public class InputStreamFactories {
     }
   }
 
+  /**
+   * Gets an {@code InputStreamFactory} for content with the given digest.
+   * If there is a spool manager, spooled content is shared with other
+   * content that has the same digest.
+   *
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to use temporary files
+   * @param data a byte array
+   * @param mimeType the MIME type of the data, or {@code null} if it is
+   *        not known
+   * @param digest the digest of the data
+   * @param detectedMimeType the MIME type detected from the data alone,
+   *        or {@code null} if it was not detected
+   */
+  public static final InputStreamFactory newInstance(
+      SpoolManager spoolManager, byte[] data, String mimeType,
+      String digest, String detectedMimeType) {
+    if (spoolManager == null) {
+      return newInstance(null, data, mimeType);
+    }
+    try {
+      return spoolManager.newInstance(data, mimeType, digest,
+          detectedMimeType);
+    } catch (IOException e) {
+      LOG.warning("Failed to cache document content:\n" + e.toString());
+      return new ByteArrayInputStreamFactory(data);
+    }
+  }
+
+  /**
+   * Gets a reference to spooled content with the given digest.
+   *
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null}
+   * @param digest the digest of the content
+   * @return the shared content, or {@code null} if there is none
+   */
+  public static final SpoolManager.SharedContent getSharedInstance(
+      SpoolManager spoolManager, String digest) {
+    return (spoolManager == null)
+        ? null : spoolManager.getSharedInstance(digest);
+  }
+
+  /**
+   * Releases any spool file held by the given factory. The factory must
+   * not be used after it is released. Other factories are left to the
+   * garbage collector.
+   */
+  public static final void release(InputStreamFactory factory) {
+    SpoolManager.release(factory);
+  }
+
+  /**
+   * Gets a factory for content that is read once, by the Connector
+   * Manager. If the given factory holds a spool file, the file is
+   * released when the first stream from the returned factory is closed,
+   * rather than when the factory is garbage collected, so that streamed
+   * documents do not hold on to the spool quota. Other factories are
+   * returned as is.
+   *
+   * @param factory the factory for the content
+   * @return a factory for the content
+   */
+  public static final InputStreamFactory releaseOnClose(
+      InputStreamFactory factory) {
+    return SpoolManager.isSpooled(factory)
+        ? new ReleaseOnCloseInputStreamFactory(factory) : factory;
+  }
+
+  /**
+   * Gets an output stream for content that is written incrementally,
+   * rather than held in a byte array. The content is spooled like the
+   * content of {@link #newInstance(SpoolManager, byte[], String)}.
+   *
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to use temporary files
+   * @param length the expected length of the content
+   * @param mimeType the MIME type of the content, or {@code null} if it
+   *        is not known
+   * @throws IOException if the content cannot be spooled, including when
+   *         the spool quota is exhausted, rather than buffering it in
+   *         memory
+   */
+  public static final ContentOutputStream newOutputStream(
+      SpoolManager spoolManager, long length, String mimeType)
+      throws IOException {
+    if (spoolManager == null) {
+      return new FileBackedContentOutputStream();
+    }
+    return spoolManager.newOutputStream(length, mimeType);
+  }
+
   /**
    * Gets an {@code InputStreamFactory} for a Base64-encoded string.
    * If the input is not Base64-encoded, it is converted to bytes
    * using UTF-8.
    */
   public static final InputStreamFactory fromBase64String(String content) {
-    byte[] bytes = content.getBytes(Charsets.UTF_8);
+    return fromBase64String(content, null);
+  }
+
+  /**
+   * Gets an {@code InputStreamFactory} for a Base64-encoded string of
+   * the given MIME type. The content may be a region of a larger
+   * string, such as a {@link java.nio.CharBuffer} view, which is not
+   * copied unless it is not Base64-encoded.
+   * If the input is not Base64-encoded, it is converted to bytes
+   * using UTF-8.
+   */
+  public static final InputStreamFactory fromBase64String(
+      CharSequence content, String mimeType) {
+    // Decode the content in chunks, so that neither the encoded bytes
+    // nor the decoded bytes are held in memory all at once.
+    ContentOutputStream out = new FileBackedContentOutputStream();
+    boolean done = false;
+    try {
+      if (decodeBase64(content, out)) {
+        InputStreamFactory factory = out.getInputStreamFactory();
+        done = true;
+        return factory;
+      }
+    } catch (IOException e) {
+      LOG.warning("Failed to cache document content:\n" + e.toString());
+    } finally {
+      if (!done) {
+        out.discard();
+      }
+    }
+    // Just leave the data as-is.
+    return newInstance(null, content.toString().getBytes(Charsets.UTF_8),
+        mimeType);
+  }
+
+  /**
+   * Decodes a Base64-encoded string to the output stream, ignoring
+   * whitespace.
+   *
+   * @return {@code true} if the string was decoded, or {@code false} if
+   *         it is not Base64-encoded
+   */
+  private static boolean decodeBase64(CharSequence content,
+      OutputStream out)
+      throws IOException {
+    byte[] chunk = new byte[BASE64_CHUNK_SIZE];
+    int count = 0;
+    for (int i = 0; i < content.length(); i++) {
+      char c = content.charAt(i);
+      if (c > 0x7f) {
+        return false;
+      } else if (!Character.isWhitespace(c)) {
+        chunk[count++] = (byte) c;
+        if (count == chunk.length) {
+          if (!decodeBase64(chunk, count, out)) {
+            return false;
+          }
+          count = 0;
+        }
+      }
+    }
+    return decodeBase64(chunk, count, out);
+  }
+
+  private static boolean decodeBase64(byte[] chunk, int count,
+      OutputStream out) throws IOException {
     byte[] decodedBytes;
     try {
-      decodedBytes = Base64.decode(bytes);
+      decodedBytes = Base64.decode(
+          (count == chunk.length) ? chunk : Arrays.copyOf(chunk, count));
     } catch (Base64DecoderException e) {
-      // Just leave the data as-is.
-      decodedBytes = bytes;
+      return false;
     }
-    return newInstance(decodedBytes);
+    out.write(decodedBytes);
+    return true;
   }
 
   /** Fully reads an input stream from the factory and Base64 encodes it. */
   public static final String toBase64String(InputStreamFactory factory)
       throws IOException {
-    return CharStreams.toString(new InputStreamReader(
-            new Base64FilterInputStream(factory.getInputStream()),
-            Charsets.UTF_8));
+    StringWriter out = new StringWriter();
+    writeBase64(factory, out);
+    return out.toString();
+  }
+
+  /**
+   * Reads an input stream from the factory and writes it to the writer,
+   * Base64 encoded, without holding all of it in memory.
+   */
+  public static final void writeBase64(InputStreamFactory factory,
+      Writer out) throws IOException {
+    InputStream in = factory.getInputStream();
+    try {
+      CharStreams.copy(new InputStreamReader(new Base64FilterInputStream(in),
+              Charsets.UTF_8), out);
+    } finally {
+      in.close();
+    }
   }
 
   /** Fully reads an input stream from the value and Base64 encodes it. */
@@ -104,11 +310,29 @@ public class InputStreamFactories {
     public long length();
   }
 
+  /**
+   * An output stream for content that is read back from an
+   * {@code InputStreamFactory}. Either {@link #getInputStreamFactory} or
+   * {@link #discard} must be called, after the content is written.
+   */
+  public abstract static class ContentOutputStream extends OutputStream {
+    /**
+     * Closes the stream, and gets a factory for the content.
+     *
+     * @throws IOException if the content cannot be closed
+     */
+    public abstract ContentLengthInputStreamFactory getInputStreamFactory()
+        throws IOException;
+
+    /** Closes the stream, and discards the content. */
+    public abstract void discard();
+  }
+
+  private static final int IN_MEMORY_THRESHOLD = 32 * 1024;
+
   /** An InputStreamFactory backed by a FileBackedOutputStream. */
   private static class FileBackedInputStreamFactory
       implements ContentLengthInputStreamFactory {
-    private static final int IN_MEMORY_THRESHOLD = 32 * 1024;
-
     /**
      * We hold onto a single supplier, because when that gets finalized,
      * the backing file will get deleted.
@@ -125,6 +349,12 @@ public class InputStreamFactories {
       supplier = out.getSupplier();
     }
 
+    FileBackedInputStreamFactory(InputSupplier<InputStream> supplier,
+        long length) {
+      this.supplier = supplier;
+      this.length = length;
+    }
+
     @Override
     public InputStream getInputStream() throws IOException {
       return supplier.getInput();
@@ -137,7 +367,7 @@ public class InputStreamFactories {
   }
 
   /** An InputStreamFactory backed by a byte array. */
-  private static class ByteArrayInputStreamFactory
+  static class ByteArrayInputStreamFactory
       implements ContentLengthInputStreamFactory {
     private final byte[] data;
 
@@ -157,6 +387,104 @@ public class InputStreamFactories {
     }
   }
 
+  /**
+   * An InputStreamFactory that releases the spool file of another
+   * factory when the first of its streams is closed.
+   */
+  private static class ReleaseOnCloseInputStreamFactory
+      implements ContentLengthInputStreamFactory {
+    private final InputStreamFactory factory;
+
+    ReleaseOnCloseInputStreamFactory(InputStreamFactory factory) {
+      this.factory = factory;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new FilterInputStream(factory.getInputStream()) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              release(factory);
+            }
+          }
+        };
+    }
+
+    @Override
+    public long length() {
+      return ((ContentLengthInputStreamFactory) factory).length();
+    }
+  }
+
+  /** A ContentOutputStream backed by a FileBackedOutputStream. */
+  private static class FileBackedContentOutputStream
+      extends ContentOutputStream {
+    private final FileBackedOutputStream out =
+        new FileBackedOutputStream(IN_MEMORY_THRESHOLD, true);
+    private long length = 0;
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      length += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    @Override
+    public ContentLengthInputStreamFactory getInputStreamFactory()
+        throws IOException {
+      out.close();
+      return new FileBackedInputStreamFactory(out.getSupplier(), length);
+    }
+
+    @Override
+    public void discard() {
+      try {
+        out.reset();
+      } catch (IOException e) {
+        LOG.warning("Failed to discard document content:\n" + e.toString());
+      }
+    }
+  }
+
+  /** A ContentOutputStream backed by a byte array. */
+  static class ByteArrayContentOutputStream extends ContentOutputStream {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public ContentLengthInputStreamFactory getInputStreamFactory() {
+      return new ByteArrayInputStreamFactory(out.toByteArray());
+    }
+
+    @Override
+    public void discard() {
+      out.reset();
+    }
+  }
+
   /** This class should not be instantiated. */
   private InputStreamFactories() {
     throw new AssertionError();
@@ -0,0 +1,177 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+import com.google.enterprise.connector.db.diffing.DigestFactory;
+import com.google.enterprise.connector.spi.TraversalContext;
+import com.google.enterprise.connector.util.MimeTypeDetector;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@code TraversalContext} limits on LOB content, applied before the
+ * content is read from the database. A LOB that is too large, or that
+ * has an unsupported MIME type, is detected from its length and its
+ * first few KB, and is replaced by empty content, just as
+ * {@code LobDocumentBuilder} would do after reading all of it. Large
+ * LOBs may be read in chunks, in which case the maximum document size is
+ * not limited by the size of a byte array.
+ * <p>
+ * If the row declares a MIME type, it is used without reading any of the
+ * content. A declared file name is used along with the content to
+ * detect the MIME type.
+ */
+public class LobLimits {
+  private static final Logger LOGGER =
+      Logger.getLogger(LobLimits.class.getName());
+
+  /** The number of bytes read to detect the MIME type. */
+  public static final int HEAD_SIZE = 16 * 1024;
+
+  private final TraversalContext context;
+  private final MimeTypeDetector mimeTypeDetector;
+  private final ChunkedLobReader chunkedReader;
+  private final long maxDocSize;
+  private final String mimeType;
+  private final String fileName;
+  private final SpoolManager spoolManager;
+  private final DigestFactory digestFactory;
+  private final ChunkedLobReader.LobSource lobSource;
+
+  /**
+   * @param context the traversal context, or {@code null} for no limits
+   * @param mimeTypeDetector the MIME type detector
+   * @param chunkedReader the reader for large LOBs, or {@code null} to
+   *        read each LOB at once
+   * @param mimeType the declared MIME type, or {@code null} to detect it
+   * @param fileName the declared file name, or {@code null}
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to use temporary files
+   * @param digestFactory the digest factory of the connector instance
+   * @param lobSource the source of new locators for a LOB whose chunked
+   *        reads fail, or {@code null}
+   */
+  public LobLimits(TraversalContext context,
+      MimeTypeDetector mimeTypeDetector, ChunkedLobReader chunkedReader,
+      String mimeType, String fileName, SpoolManager spoolManager,
+      DigestFactory digestFactory, ChunkedLobReader.LobSource lobSource) {
+    this.context = context;
+    this.mimeTypeDetector = mimeTypeDetector;
+    this.chunkedReader = chunkedReader;
+    this.mimeType = mimeType;
+    this.fileName = fileName;
+    this.spoolManager = spoolManager;
+    this.digestFactory = digestFactory;
+    this.lobSource = lobSource;
+    if (context == null) {
+      this.maxDocSize = Long.MAX_VALUE;
+    } else if (chunkedReader == null) {
+      this.maxDocSize =
+          Math.min(context.maxDocumentSize(), Integer.MAX_VALUE);
+    } else {
+      this.maxDocSize = context.maxDocumentSize();
+    }
+  }
+
+  /**
+   * Gets the spool manager for the content.
+   *
+   * @return the spool manager, or {@code null} to use temporary files
+   */
+  public SpoolManager getSpoolManager() {
+    return spoolManager;
+  }
+
+  /** Gets the digest factory for the content checksums. */
+  public DigestFactory getDigestFactory() {
+    return digestFactory;
+  }
+
+  /**
+   * Gets the source of new locators for a LOB whose chunked reads fail.
+   *
+   * @return the source, or {@code null} to retry with the same locator
+   */
+  public ChunkedLobReader.LobSource getLobSource() {
+    return lobSource;
+  }
+
+  /**
+   * Gets the reader for a LOB of the given length, if it should be read
+   * in chunks.
+   *
+   * @return the reader, or {@code null} if the LOB should be read at once
+   */
+  public ChunkedLobReader getChunkedReader(long length) {
+    return (chunkedReader != null && length > chunkedReader.getChunkSize())
+        ? chunkedReader : null;
+  }
+
+  /**
+   * Returns whether the MIME type is declared, in which case the content
+   * is not needed to detect it.
+   */
+  public boolean isMimeTypeDeclared() {
+    return mimeType != null;
+  }
+
+  /**
+   * Gets the declared MIME type, or detects the MIME type of content from
+   * its first bytes and the declared file name.
+   *
+   * @param head the first bytes of the content, which may be {@code null}
+   *        if the MIME type is declared
+   */
+  public String getMimeType(byte[] head) {
+    return (mimeType != null)
+        ? mimeType : mimeTypeDetector.getMimeType(fileName, head);
+  }
+
+  /** Returns a holder for the complete content. */
+  public DigestContentHolder getContentHolder(byte[] content) {
+    return DigestContentHolder.getInstance(content, mimeTypeDetector,
+        mimeType, fileName, spoolManager, digestFactory);
+  }
+
+  /**
+   * Checks the length and the first bytes of a LOB, before the rest of
+   * it is read.
+   *
+   * @param length the length of the content in bytes, or a lower bound
+   * @param head the first bytes of the content, up to {@link #HEAD_SIZE},
+   *        or {@code null} if the MIME type is declared
+   * @return an empty holder if the content is skipped, or {@code null} if
+   *         the content should be read
+   */
+  public DigestContentHolder checkHead(long length, byte[] head) {
+    if (context == null) {
+      return null;
+    }
+    String mimeType = getMimeType(head);
+    if (length > maxDocSize) {
+      LOGGER.log(Level.WARNING, "Skipping LOB content of length {0}, which "
+          + "is larger than supported", length);
+      return DigestContentHolder.getEmptyInstance(mimeType);
+    } else if (context.mimeTypeSupportLevel(mimeType) <= 0) {
+      LOGGER.log(Level.WARNING, "Skipping LOB content of MIME type {0}, "
+          + "which is not supported", mimeType);
+      return DigestContentHolder.getEmptyInstance(mimeType);
+    } else {
+      return null;
+    }
+  }
+}
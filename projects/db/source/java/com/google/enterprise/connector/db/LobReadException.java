@@ -0,0 +1,34 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when the content of a LOB cannot be read completely, because a
+ * chunk could not be read after the retries, the LOB ended or changed
+ * while it was read, or the content could not be spooled. It has no
+ * {@code SQLState}, but unlike other such errors it is never swallowed,
+ * so the batch fails rather than being taken for the end of the rows.
+ */
+public class LobReadException extends SQLException {
+  public LobReadException(String message) {
+    super(message);
+  }
+
+  public LobReadException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
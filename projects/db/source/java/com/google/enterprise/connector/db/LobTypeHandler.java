@@ -15,6 +15,8 @@
 package com.google.enterprise.connector.db;
 
 import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+import com.google.enterprise.connector.db.diffing.DigestFactory;
+import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.util.MimeTypeDetector;
 
 import org.apache.ibatis.type.BaseTypeHandler;
@@ -24,6 +26,7 @@ import java.sql.CallableStatement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,21 +48,17 @@ import java.util.logging.Logger;
  * types in DBClient. Instead, we register this generic type handler,
  * and use the strategy pattern to pick an implementation based on the
  * column type on the fly.
+ * <p/>
+ * The {@code TraversalContext} limits are applied before a BLOB or CLOB
+ * is read, using its length and its first few KB, so that LOBs that
+ * exceed the maximum document size or have an unsupported MIME type are
+ * not transferred from the database. BLOBs and CLOBs larger than the
+ * chunk size of the {@link ChunkedLobReader} are then read in chunks,
+ * and spooled and digested as they are read, rather than read into
+ * memory. If the MIME type is given by another column of the row, it is
+ * used instead of detecting the MIME type from the content.
  */
 /* TODO(bmj): Add NClob (and SQLXML?) support when Java 6 is required. */
-/* TODO(bmj): getBytes() could end up allocating significant amounts of memory
- * if the LOB field is large.  We should create the FileBackedOutputStream
- * here and shuffle content from the LOB InputStream (or CharacterStream)
- * into the FileBackedOutputStream.  We should also do the mime type detection
- * and checksum calculation on the bytes as we read them.  Finally, add a
- * InputStreamFactories.newInstance(FileBackedOutputStream s, long length)
- * method that wraps a FileBackedInputStreamFactory around the existing
- * FileBackedOutputStream.
- */
-/* TODO(bmj): Get access to the TraversalContext so we can skip mime types
- * we don't support, or supply zero-length content for LOBs that exceed
- * the max document size.
- */
 public class LobTypeHandler extends BaseTypeHandler<DigestContentHolder> {
   private static final Logger LOGGER =
       Logger.getLogger(LobTypeHandler.class.getName());
@@ -70,17 +69,114 @@ public class LobTypeHandler extends BaseTypeHandler<DigestContentHolder> {
 
     /** @return a non-null byte array */
     byte[] getBytes(CallableStatement rs, int columnIndex) throws SQLException;
+
+    /**
+     * Gets the content, unless the limits skip it.
+     *
+     * @return a non-null content holder
+     */
+    DigestContentHolder getContentHolder(ResultSet rs, int columnIndex,
+        LobLimits limits) throws SQLException;
+
+    /**
+     * Gets the content, unless the limits skip it.
+     *
+     * @return a non-null content holder
+     */
+    DigestContentHolder getContentHolder(CallableStatement cs,
+        int columnIndex, LobLimits limits) throws SQLException;
   }
 
   private static final MimeTypeDetector mimeTypeDetector =
       new MimeTypeDetector();
 
+  private static volatile TraversalContext traversalContext;
+
+  /**
+   * Sets the traversal context whose limits are applied to the LOBs.
+   * MyBatis creates the type handlers, so they cannot be given the
+   * context directly.
+   */
+  public static void setTraversalContext(TraversalContext traversalContext) {
+    LobTypeHandler.traversalContext = traversalContext;
+  }
+
   private Strategy strategy = null;
 
+  /** The spool manager of the connector instance, or null. */
+  private volatile SpoolManager spoolManager;
+
   public LobTypeHandler() {
     LOGGER.config("LobTypeHandler loaded");
   }
 
+  /**
+   * Sets the spool manager for the LOB content. Each connector instance
+   * has its own MyBatis configuration, and so its own type handlers.
+   *
+   * @param spoolManager the spool manager, or {@code null} to use
+   *        temporary files
+   */
+  public void setSpoolManager(SpoolManager spoolManager) {
+    this.spoolManager = spoolManager;
+  }
+
+  /** The reader for large LOBs, or null. */
+  private volatile ChunkedLobReader chunkedReader;
+
+  /**
+   * Sets the reader for large BLOBs and CLOBs.
+   *
+   * @param chunkedReader the reader, or {@code null} to read each LOB at
+   *        once
+   */
+  public void setChunkedReader(ChunkedLobReader chunkedReader) {
+    this.chunkedReader = chunkedReader;
+  }
+
+  /** The column with the MIME type of the content, or null. */
+  private volatile String mimeTypeField;
+
+  /** The column with the file name of the content, or null. */
+  private volatile String fileNameField;
+
+  /**
+   * Sets the columns that declare the MIME type and the file name of the
+   * LOB content.
+   *
+   * @param mimeTypeField the MIME type column, or {@code null}
+   * @param fileNameField the file name column, or {@code null}
+   */
+  public void setMimeTypeFields(String mimeTypeField, String fileNameField) {
+    this.mimeTypeField = mimeTypeField;
+    this.fileNameField = fileNameField;
+  }
+
+  /** The digest factory of the connector instance. */
+  private volatile DigestFactory digestFactory = DigestFactory.SHA1;
+
+  /**
+   * Sets the digest factory for the content checksums.
+   *
+   * @param digestFactory the digest factory
+   */
+  public void setDigestFactory(DigestFactory digestFactory) {
+    this.digestFactory = digestFactory;
+  }
+
+  /** The client that runs the LOB query, or null. */
+  private volatile DBClient client;
+
+  /**
+   * Sets the client whose LOB query is run again to get a new locator
+   * for a LOB whose chunked reads fail.
+   *
+   * @param client the client, or {@code null}
+   */
+  public void setClient(DBClient client) {
+    this.client = client;
+  }
+
   @Override
   public void setNonNullParameter(PreparedStatement ps, int i, 
       DigestContentHolder parameter, JdbcType jdbcType) throws SQLException {
@@ -96,15 +192,15 @@ public class LobTypeHandler extends BaseTypeHandler<DigestContentHolder> {
   @Override
   public DigestContentHolder getNullableResult(ResultSet rs, int columnIndex)
       throws SQLException {
-    return getContentHolder(
-        getStrategy(rs, columnIndex).getBytes(rs, columnIndex));
+    return getStrategy(rs, columnIndex).getContentHolder(rs, columnIndex,
+        getLimits(rs));
   }
 
   @Override
   public DigestContentHolder getNullableResult(CallableStatement cs,
       int columnIndex) throws SQLException {
-    return getContentHolder(
-        getStrategy(cs, columnIndex).getBytes(cs, columnIndex));
+    return getStrategy(cs, columnIndex).getContentHolder(cs, columnIndex,
+        getLimits());
   }
 
   /*
@@ -157,7 +253,35 @@ public class LobTypeHandler extends BaseTypeHandler<DigestContentHolder> {
     return value;
   }
 
-  private DigestContentHolder getContentHolder(byte[] contentBytes) {
-    return DigestContentHolder.getInstance(contentBytes, mimeTypeDetector);
+  private LobLimits getLimits() {
+    return new LobLimits(traversalContext, mimeTypeDetector, chunkedReader,
+        null, null, spoolManager, digestFactory, null);
+  }
+
+  /** Gets the limits, with the MIME type and file name from the row. */
+  private LobLimits getLimits(ResultSet rs) {
+    String mimeType = getString(rs, mimeTypeField);
+    return new LobLimits(traversalContext, mimeTypeDetector, chunkedReader,
+        (mimeType == null) ? null : mimeType.toLowerCase(Locale.ENGLISH),
+        getString(rs, fileNameField), spoolManager, digestFactory,
+        (client == null) ? null : client.getLobSource());
+  }
+
+  /**
+   * Gets the value of a column, or {@code null} if the column is not
+   * configured, not in the result set, or empty.
+   */
+  private static String getString(ResultSet rs, String columnName) {
+    if (columnName == null) {
+      return null;
+    }
+    try {
+      return Util.nullOrTrimmed(rs.getString(rs.findColumn(columnName)));
+    } catch (SQLException e) {
+      // The LOB query, for example, might not return the column.
+      LOGGER.log(Level.FINEST, "Unable to get the " + columnName
+          + " column", e);
+      return null;
+    }
   }
 }
@@ -0,0 +1,117 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of concurrent queries of one kind, so that a burst of
+ * them cannot take every database connection from other work. Callers
+ * wait in order for a permit, up to a timeout, and are rejected after
+ * that.
+ * <p>
+ * This class is thread-safe.
+ */
+public class QueryBulkhead {
+  private static final Logger LOG =
+      Logger.getLogger(QueryBulkhead.class.getName());
+
+  private final String name;
+  private final int maxConcurrent;
+  private final long timeoutNanos;
+  private final Semaphore permits;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param name the kind of query, for logging
+   * @param maxConcurrent the maximum number of concurrent queries
+   * @param timeoutSeconds the number of seconds to wait for a permit
+   */
+  public QueryBulkhead(String name, int maxConcurrent, int timeoutSeconds) {
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Waits for a permit to run a query. Each successful call must be
+   * followed by a call to {@link #release}.
+   *
+   * @return {@code true} if a permit was acquired, or {@code false} if
+   *         the query is rejected
+   */
+  public boolean tryAcquire() {
+    boolean acquired;
+    try {
+      acquired = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+    if (acquired) {
+      accepted.incrementAndGet();
+    } else {
+      rejected.incrementAndGet();
+      LOG.log(Level.WARNING, "Rejected {0} query: {1} queries are running "
+          + "and {2} are waiting", new Object[] { name, getActiveCount(),
+          getWaitingCount() });
+    }
+    return acquired;
+  }
+
+  /** Releases a permit acquired by {@link #tryAcquire}. */
+  public void release() {
+    permits.release();
+  }
+
+  /** Returns the maximum number of concurrent queries. */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  /** Returns the number of queries currently running. */
+  public int getActiveCount() {
+    return maxConcurrent - permits.availablePermits();
+  }
+
+  /** Returns an estimate of the number of queries waiting for a permit. */
+  public int getWaitingCount() {
+    return permits.getQueueLength();
+  }
+
+  /** Returns the number of queries that were given a permit. */
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  /** Returns the number of queries that timed out waiting for a permit. */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  @Override
+  public String toString() {
+    return "QueryBulkhead{name=" + name + ", maxConcurrent=" + maxConcurrent
+        + ", active=" + getActiveCount() + ", waiting=" + getWaitingCount()
+        + ", accepted=" + accepted + ", rejected=" + rejected + "}";
+  }
+}
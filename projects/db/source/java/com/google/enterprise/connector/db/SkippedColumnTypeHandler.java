@@ -0,0 +1,50 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A TypeHandler that skips a column without reading it, so that the
+ * rows of the Traversal SQL Query can be read without their LOBs.
+ */
+public class SkippedColumnTypeHandler extends BaseTypeHandler<Object> {
+  @Override
+  public void setNonNullParameter(PreparedStatement ps, int i,
+      Object parameter, JdbcType jdbcType) throws SQLException {
+    throw new SQLException("Unsupported Operation");
+  }
+
+  @Override
+  public Object getNullableResult(ResultSet rs, String columnName) {
+    return null;
+  }
+
+  @Override
+  public Object getNullableResult(ResultSet rs, int columnIndex) {
+    return null;
+  }
+
+  @Override
+  public Object getNullableResult(CallableStatement cs, int columnIndex) {
+    return null;
+  }
+}
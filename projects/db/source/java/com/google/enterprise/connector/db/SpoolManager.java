@@ -0,0 +1,687 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.db.InputStreamFactories.ContentLengthInputStreamFactory;
+import com.google.enterprise.connector.util.InputStreamFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Spools document content to files in a bounded directory. Content up to
+ * the in-memory threshold is kept in memory. A byte array that would
+ * exceed the quota of spooled bytes is also kept in memory, with a
+ * warning, since it is already there, but content that is written
+ * incrementally is refused, so that it fails rather than being buffered
+ * in memory. Spool files are deleted when they are released, typically
+ * once the Connector Manager closes the content stream of the document,
+ * or when they are garbage collected if they are never released.
+ * <p>
+ * Spooled content may optionally be compressed, unless its MIME type is
+ * already a compressed format, or it does not get smaller.
+ * <p>
+ * Identical content may share a spool file, keyed by its digest. Each
+ * {@link SharedContent} is a reference to the file, which is deleted
+ * when the last reference is released.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SpoolManager {
+  private static final Logger LOG =
+      Logger.getLogger(SpoolManager.class.getName());
+
+  private static final String PREFIX = "spool";
+
+  /** The suffix that {@code File.createTempFile} uses by default. */
+  private static final String SUFFIX = ".tmp";
+
+  /**
+   * The directories that have been cleaned up in this process. A spool
+   * manager that replaces another one for the same connector instance
+   * must not delete the live spool files of the old one.
+   */
+  private static final Set<File> cleanedDirectories =
+      Collections.synchronizedSet(new HashSet<File>());
+
+  /** MIME types of compressed formats, which are not compressed again. */
+  private static final Set<String> COMPRESSED_MIME_TYPES = ImmutableSet.of(
+      "application/pdf",
+      "application/zip",
+      "application/x-gzip",
+      "application/x-bzip2",
+      "application/x-7z-compressed",
+      "application/x-rar-compressed",
+      "application/java-archive",
+      "application/x-shockwave-flash");
+
+  /** MIME type prefixes of compressed formats. */
+  private static final String[] COMPRESSED_MIME_PREFIXES = {
+    "image/",
+    "audio/",
+    "video/",
+    "application/vnd.openxmlformats-officedocument.",
+    "application/vnd.oasis.opendocument.",
+  };
+
+  private final File directory;
+  private final long quotaBytes;
+  private final int threshold;
+  private final boolean compress;
+
+  private final AtomicLong spoolBytes = new AtomicLong();
+  private final AtomicInteger spoolFiles = new AtomicInteger();
+  private final AtomicLong overQuotaCount = new AtomicLong();
+  private final AtomicLong compressedCount = new AtomicLong();
+  private final AtomicLong compressionSavings = new AtomicLong();
+  private final AtomicLong sharedCount = new AtomicLong();
+
+  /** The shared spool files, keyed by the digest of their content. */
+  private final ConcurrentMap<String, SharedFile> sharedFiles =
+      new ConcurrentHashMap<String, SharedFile>();
+
+  /**
+   * Constructs a spool manager that does not compress the spool files.
+   *
+   * @see #SpoolManager(File, long, int, boolean)
+   */
+  public SpoolManager(File directory, long quotaBytes, int threshold) {
+    this(directory, quotaBytes, threshold, false);
+  }
+
+  /**
+   * Constructs a spool manager. Spool files left in the directory by an
+   * earlier process are deleted, so the directory must not be used by
+   * any other connector instance or application. Only the files that
+   * match the names of spool files, {@code spool*.tmp}, are deleted.
+   *
+   * @param directory the dedicated directory for the spool files, or
+   *        {@code null} for the default temporary-file directory, which
+   *        is never cleaned up
+   * @param quotaBytes the maximum number of bytes in the spool files
+   * @param threshold the maximum number of bytes kept in memory
+   * @param compress whether to compress the spool files
+   */
+  public SpoolManager(File directory, long quotaBytes, int threshold,
+      boolean compress) {
+    this.directory = directory;
+    this.quotaBytes = quotaBytes;
+    this.threshold = threshold;
+    this.compress = compress;
+
+    if (directory != null
+        && cleanedDirectories.add(directory.getAbsoluteFile())) {
+      File[] oldFiles = directory.listFiles();
+      if (oldFiles != null) {
+        for (File file : oldFiles) {
+          if (isSpoolFileName(file.getName()) && !file.delete()) {
+            LOG.warning("Unable to delete old spool file " + file);
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns whether the name matches {@code spool*.tmp}. */
+  @VisibleForTesting
+  static boolean isSpoolFileName(String name) {
+    return name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+        && name.length() >= PREFIX.length() + SUFFIX.length();
+  }
+
+  /**
+   * Gets an {@code InputStreamFactory} for the given content, which is
+   * spooled to a file if it is larger than the in-memory threshold.
+   *
+   * @param data a byte array
+   * @return a factory for the content
+   * @throws IOException if the spool file cannot be written
+   */
+  public ContentLengthInputStreamFactory newInstance(byte[] data)
+      throws IOException {
+    return newInstance(data, null);
+  }
+
+  /**
+   * Gets an {@code InputStreamFactory} for the given content, which is
+   * spooled to a file if it is larger than the in-memory threshold.
+   *
+   * @param data a byte array
+   * @param mimeType the MIME type of the content, or {@code null} if it
+   *        is not known
+   * @return a factory for the content
+   * @throws IOException if the spool file cannot be written
+   */
+  public ContentLengthInputStreamFactory newInstance(byte[] data,
+      String mimeType) throws IOException {
+    if (data.length <= threshold) {
+      return new InputStreamFactories.ByteArrayInputStreamFactory(data);
+    }
+    byte[] fileData = data;
+    if (compress && isCompressible(mimeType)) {
+      byte[] deflated = deflate(data);
+      if (deflated.length < data.length) {
+        fileData = deflated;
+        compressedCount.incrementAndGet();
+        compressionSavings.addAndGet(data.length - deflated.length);
+      }
+    }
+    if (!reserve(fileData.length)) {
+      return new InputStreamFactories.ByteArrayInputStreamFactory(data);
+    }
+    boolean written = false;
+    try {
+      SpoolFile spoolFile = writeSpoolFile(fileData, data.length,
+          fileData != data);
+      written = true;
+      return spoolFile;
+    } finally {
+      if (!written) {
+        spoolBytes.addAndGet(-fileData.length);
+      }
+    }
+  }
+
+  /**
+   * Gets an {@code InputStreamFactory} for the given content, which is
+   * spooled to a file if it is larger than the in-memory threshold. A
+   * spool file is shared with later content that has the same digest.
+   * <p>
+   * The MIME type of a row may be declared, or detected with the help of
+   * a file name, so it is not shared. Only a MIME type that was detected
+   * from the content alone is kept with the shared file.
+   *
+   * @param data a byte array
+   * @param mimeType the MIME type of the content, or {@code null} if it
+   *        is not known
+   * @param digest the digest of the content
+   * @param detectedMimeType the MIME type detected from the content
+   *        alone, or {@code null} if it was not detected
+   * @return a factory for the content, which is a {@link SharedContent}
+   *         if the content was spooled
+   * @throws IOException if the spool file cannot be written
+   */
+  public ContentLengthInputStreamFactory newInstance(byte[] data,
+      String mimeType, String digest, String detectedMimeType)
+      throws IOException {
+    ContentLengthInputStreamFactory factory = newInstance(data, mimeType);
+    if (!(factory instanceof SpoolFile)) {
+      return factory;
+    }
+    SharedFile shared =
+        new SharedFile(digest, (SpoolFile) factory, detectedMimeType);
+    SharedFile existing = sharedFiles.putIfAbsent(digest, shared);
+    if (existing != null) {
+      if (existing.retain()) {
+        // Another thread spooled the same content first.
+        ((SpoolFile) factory).delete();
+        sharedCount.incrementAndGet();
+        return new SharedContent(existing);
+      }
+      sharedFiles.replace(digest, existing, shared);
+    }
+    return new SharedContent(shared);
+  }
+
+  /**
+   * Gets a new reference to spooled content with the given digest.
+   *
+   * @param digest the digest of the content
+   * @return a reference to the content, or {@code null} if no content
+   *         with that digest is spooled
+   */
+  public SharedContent getSharedInstance(String digest) {
+    SharedFile shared = sharedFiles.get(digest);
+    if (shared == null || !shared.retain()) {
+      return null;
+    }
+    sharedCount.incrementAndGet();
+    return new SharedContent(shared);
+  }
+
+  /**
+   * Returns whether content of the given MIME type might be compressible.
+   * Parameters such as a charset are ignored.
+   */
+  static boolean isCompressible(String mimeType) {
+    if (mimeType == null) {
+      return true;
+    }
+    String type = mimeType.toLowerCase();
+    int semicolon = type.indexOf(';');
+    if (semicolon != -1) {
+      type = type.substring(0, semicolon).trim();
+    }
+    if (COMPRESSED_MIME_TYPES.contains(type)) {
+      return false;
+    }
+    for (String prefix : COMPRESSED_MIME_PREFIXES) {
+      if (type.startsWith(prefix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Compresses the data, favoring speed over size. */
+  private static byte[] deflate(byte[] data) throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      ByteArrayOutputStream buffer =
+          new ByteArrayOutputStream(data.length / 4);
+      DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater);
+      out.write(data);
+      out.close();
+      return buffer.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Writes a spool file.
+   *
+   * @param data the bytes to write to the file
+   * @param length the length of the uncompressed content
+   * @param compressed whether the data is compressed
+   */
+  private SpoolFile writeSpoolFile(byte[] data, long length,
+      boolean compressed) throws IOException {
+    File file = createSpoolFile();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } catch (IOException e) {
+      out.close();
+      file.delete();
+      throw e;
+    }
+    out.close();
+    return new SpoolFile(file, data.length, length, compressed);
+  }
+
+  private File createSpoolFile() throws IOException {
+    if (directory != null && !directory.isDirectory()
+        && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    return File.createTempFile(PREFIX, SUFFIX, directory);
+  }
+
+  /**
+   * Gets an output stream for content that is written incrementally. The
+   * content is spooled to a file if its expected length is larger than
+   * the in-memory threshold. The expected length is counted against the
+   * quota until the stream is closed.
+   *
+   * @param length the expected length of the content
+   * @param mimeType the MIME type of the content, or {@code null} if it
+   *        is not known
+   * @return an output stream for the content
+   * @throws IOException if the spool file cannot be created, or if the
+   *         content would exceed the quota. The content has not been
+   *         read yet, so it is not buffered in memory instead.
+   */
+  public InputStreamFactories.ContentOutputStream newOutputStream(
+      long length, String mimeType) throws IOException {
+    if (length <= threshold) {
+      return new InputStreamFactories.ByteArrayContentOutputStream();
+    }
+    if (!reserve(length)) {
+      throw new IOException("Spool quota of " + quotaBytes
+          + " bytes exceeded by content of " + length + " bytes");
+    }
+    boolean created = false;
+    try {
+      SpoolOutputStream out = new SpoolOutputStream(length,
+          compress && isCompressible(mimeType));
+      created = true;
+      return out;
+    } finally {
+      if (!created) {
+        spoolBytes.addAndGet(-length);
+      }
+    }
+  }
+
+  /** Reserves space for a spool file, if it fits under the quota. */
+  private boolean reserve(long length) {
+    while (true) {
+      long current = spoolBytes.get();
+      if (current + length > quotaBytes) {
+        overQuotaCount.incrementAndGet();
+        LOG.log(Level.WARNING, "Spool quota of {0} bytes exceeded by {1} "
+            + "bytes of content", new Object[] { quotaBytes, length });
+        return false;
+      }
+      if (spoolBytes.compareAndSet(current, current + length)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases the content of the given factory, if it is a spool file.
+   * The factory cannot be read after it is released.
+   */
+  public static void release(InputStreamFactory factory) {
+    if (factory instanceof SpoolFile) {
+      ((SpoolFile) factory).delete();
+    } else if (factory instanceof SharedContent) {
+      ((SharedContent) factory).release();
+    }
+  }
+
+  /** Returns whether the factory holds a spool file. */
+  static boolean isSpooled(InputStreamFactory factory) {
+    return factory instanceof SpoolFile || factory instanceof SharedContent;
+  }
+
+  /** Returns the spool directory, or {@code null} for the default. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Returns the number of bytes in the spool files. */
+  public long getSpoolBytes() {
+    return spoolBytes.get();
+  }
+
+  /** Returns the number of spool files. */
+  public int getSpoolFileCount() {
+    return spoolFiles.get();
+  }
+
+  /** Returns the number of times content would have exceeded the quota. */
+  public long getOverQuotaCount() {
+    return overQuotaCount.get();
+  }
+
+  /** Returns the number of compressed spool files written. */
+  public long getCompressedCount() {
+    return compressedCount.get();
+  }
+
+  /** Returns the total number of bytes saved by compression. */
+  public long getCompressionSavings() {
+    return compressionSavings.get();
+  }
+
+  /** Returns the number of times a spool file was shared. */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "SpoolManager{directory=" + directory + ", files=" + spoolFiles
+        + ", bytes=" + spoolBytes + ", quota=" + quotaBytes
+        + ", overQuota=" + overQuotaCount + ", compress=" + compress
+        + ", compressed=" + compressedCount + ", shared=" + sharedCount
+        + "}";
+  }
+
+  /**
+   * Content in a spool file, which is read through a file channel, and
+   * decompressed as it is read if the file is compressed.
+   */
+  private class SpoolFile implements ContentLengthInputStreamFactory {
+    private final File file;
+    private final long fileLength;
+    private final long length;
+    private final boolean compressed;
+    private final AtomicBoolean deleted = new AtomicBoolean();
+
+    /**
+     * @param file the spool file, which has been written
+     * @param fileLength the length of the file
+     * @param length the length of the uncompressed content
+     * @param compressed whether the file is compressed
+     */
+    SpoolFile(File file, long fileLength, long length, boolean compressed) {
+      this.file = file;
+      this.fileLength = fileLength;
+      this.length = length;
+      this.compressed = compressed;
+      spoolFiles.incrementAndGet();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      if (deleted.get()) {
+        throw new IOException("Spooled content was released: " + file);
+      }
+      InputStream in =
+          Channels.newInputStream(new RandomAccessFile(file, "r").getChannel());
+      return (compressed) ? new InflaterInputStream(in) : in;
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+
+    void delete() {
+      if (deleted.compareAndSet(false, true)) {
+        if (!file.delete()) {
+          LOG.warning("Unable to delete spool file " + file);
+        }
+        spoolFiles.decrementAndGet();
+        spoolBytes.addAndGet(-fileLength);
+      }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+      try {
+        delete();
+      } finally {
+        super.finalize();
+      }
+    }
+  }
+
+  /** A spool file shared by identical content, with a reference count. */
+  private class SharedFile {
+    private final String digest;
+    private final SpoolFile file;
+    private final String mimeType;
+
+    /* @GuardedBy("this") */
+    private int references = 1;
+
+    SharedFile(String digest, SpoolFile file, String mimeType) {
+      this.digest = digest;
+      this.file = file;
+      this.mimeType = mimeType;
+    }
+
+    /**
+     * Adds a reference to the file.
+     *
+     * @return {@code false} if the file has already been deleted
+     */
+    synchronized boolean retain() {
+      if (references == 0) {
+        return false;
+      }
+      references++;
+      return true;
+    }
+
+    /** Removes a reference, and deletes the file after the last one. */
+    synchronized void release() {
+      if (--references == 0) {
+        sharedFiles.remove(digest, this);
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * A reference to a shared spool file. Each reference must be released
+   * separately, or it is released when it is garbage collected.
+   */
+  public static class SharedContent
+      implements ContentLengthInputStreamFactory {
+    private final SharedFile shared;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private SharedContent(SharedFile shared) {
+      this.shared = shared;
+    }
+
+    /**
+     * Gets the MIME type detected from the content alone when it was
+     * spooled, or {@code null} if it was not detected.
+     */
+    public String getMimeType() {
+      return shared.mimeType;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      if (released.get()) {
+        throw new IOException("Spooled content was released: "
+            + shared.file.file);
+      }
+      return shared.file.getInputStream();
+    }
+
+    @Override
+    public long length() {
+      return shared.file.length();
+    }
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        shared.release();
+      }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+      try {
+        release();
+      } finally {
+        super.finalize();
+      }
+    }
+  }
+
+  /** Writes content incrementally to a spool file. */
+  private class SpoolOutputStream
+      extends InputStreamFactories.ContentOutputStream {
+    private final File file;
+    private final long reserved;
+    private final Deflater deflater;
+    private final OutputStream out;
+    private long length = 0;
+    private boolean closed = false;
+
+    /**
+     * @param reserved the number of bytes reserved under the quota
+     * @param compressed whether to compress the file
+     */
+    SpoolOutputStream(long reserved, boolean compressed) throws IOException {
+      this.file = createSpoolFile();
+      this.reserved = reserved;
+      OutputStream fileOut =
+          new BufferedOutputStream(new FileOutputStream(file));
+      if (compressed) {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        out = new DeflaterOutputStream(fileOut, deflater);
+      } else {
+        deflater = null;
+        out = fileOut;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      length += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        try {
+          out.close();
+        } finally {
+          if (deflater != null) {
+            deflater.end();
+          }
+        }
+      }
+    }
+
+    @Override
+    public ContentLengthInputStreamFactory getInputStreamFactory()
+        throws IOException {
+      close();
+      long fileLength = file.length();
+      // Replace the reservation with the actual length.
+      spoolBytes.addAndGet(fileLength - reserved);
+      if (deflater != null) {
+        compressedCount.incrementAndGet();
+        compressionSavings.addAndGet(length - fileLength);
+      }
+      return new SpoolFile(file, fileLength, length, deflater != null);
+    }
+
+    @Override
+    public void discard() {
+      try {
+        close();
+      } catch (IOException e) {
+        LOG.warning("Unable to close spool file " + file + ": " + e);
+      }
+      if (!file.delete()) {
+        LOG.warning("Unable to delete spool file " + file);
+      }
+      spoolBytes.addAndGet(-reserved);
+    }
+  }
+}
@@ -14,19 +14,86 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.text.CollationKey;
 import java.text.Collator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * An implementation of {@code java.text.Collator} that uses a SQL query
  * to perform the comparison.
+ * <p>
+ * To avoid a database round trip for every comparison, the strings
+ * in each batch of documents may be sorted by the database using
+ * {@link #rank}, which sorts up to {@link #MAX_RANK_SIZE} strings in
+ * each query, and merges the sorted chunks with more queries. A string
+ * from the other side of the merge, from the snapshots sent to the GSA,
+ * is ranked among the sorted strings near the first string that it is
+ * compared to. The results of individual comparisons are kept in a
+ * bounded cache. Individual comparison queries are only used for
+ * strings that have not been ranked or compared before.
  */
 public class SqlCollator extends Collator {
+  private static final Logger LOG =
+      Logger.getLogger(SqlCollator.class.getName());
+
+  /** The default maximum number of cached comparisons. */
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+
+  /**
+   * The maximum number of strings ranked in a single query. The strings
+   * are inlined as literals, so this keeps the statement length and the
+   * number of {@code UNION} terms within the limits of the databases.
+   */
+  @VisibleForTesting
+  static final int MAX_RANK_SIZE = 1000;
+
+  /**
+   * The difference between the ranks of adjacent sorted strings, which
+   * leaves room to rank other strings between them.
+   */
+  private static final long RANK_GAP = 1L << 20;
+
   private final DBClient dbClient;
   private String collationId;
   private String collationQuery;
+  private int cacheSize = DEFAULT_CACHE_SIZE;
+
+  /** The cached comparison results, guarded by this. */
+  private Map<Pair, Integer> cache = newCache(cacheSize);
+
+  /** The ranks of the most recently sorted strings, guarded by this. */
+  private Map<String, Long> ranks = Collections.emptyMap();
+
+  /**
+   * The most recently sorted strings in order, with only one of any
+   * equivalent strings, guarded by this.
+   */
+  private List<String> sorted = Collections.emptyList();
+
+  /**
+   * The strings that have been ranked among the sorted strings, or that
+   * failed to be, since the last call to {@link #rank}, guarded by this.
+   */
+  private Set<String> inserted = Sets.newHashSet();
+
+  /** The number of changes to the ranks, guarded by this. */
+  private int rankChanges = 0;
 
   /**
    * Creates a new {@link SqlCollator} the uses a database connection
@@ -114,10 +181,360 @@ public class SqlCollator extends Collator {
     return collationQuery;
   }
 
+  /**
+   * Sets the maximum number of comparison results to cache. The default
+   * is {@link #DEFAULT_CACHE_SIZE}. A size of zero disables the cache.
+   *
+   * @param cacheSize the maximum number of cached comparisons
+   */
+  public synchronized void setCacheSize(int cacheSize) {
+    this.cacheSize = cacheSize;
+    this.cache = newCache(cacheSize);
+  }
+
+  /** Returns the maximum number of cached comparisons. */
+  public synchronized int getCacheSize() {
+    return cacheSize;
+  }
+
+  private static Map<Pair, Integer> newCache(final int cacheSize) {
+    return new LinkedHashMap<Pair, Integer>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Pair, Integer> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Sorts the given strings using SQL queries, so that later comparisons
+   * between them do not need a database round trip. Up to
+   * {@link #MAX_RANK_SIZE} strings are sorted by each query, and the
+   * sorted chunks are merged by sorting a block from each of them at a
+   * time. The ranks replace those from any previous call.
+   * <p>
+   * The ranking query is only available when using a {@code collationId}
+   * or the default collation. If the query is not available or fails,
+   * the strings are not ranked and individual comparisons are used.
+   *
+   * @param values the strings to sort
+   */
+  public void rank(Collection<String> values) {
+    ImmutableSet<String> distinct = ImmutableSet.copyOf(values);
+    if (distinct.size() < 2) {
+      return;
+    }
+    List<List<String>> groups = sort(distinct.asList());
+    if (groups == null) {
+      return;
+    }
+
+    Map<String, Long> newRanks = Maps.newHashMap();
+    List<String> newSorted = Lists.newArrayListWithCapacity(groups.size());
+    for (List<String> group : groups) {
+      long rank = newSorted.size() * RANK_GAP;
+      for (String value : group) {
+        newRanks.put(value, rank);
+      }
+      newSorted.add(group.get(0));
+    }
+    synchronized (this) {
+      ranks = newRanks;
+      sorted = newSorted;
+      inserted = Sets.newHashSet();
+      rankChanges++;
+    }
+  }
+
+  /**
+   * Sorts the given distinct strings.
+   *
+   * @return the groups of equivalent strings, in order, or {@code null}
+   *         if the strings could not be sorted by the database
+   */
+  private List<List<String>> sort(List<String> distinct) {
+    List<List<List<String>>> chunks = Lists.newArrayList();
+    for (List<String> chunk : Lists.partition(distinct, MAX_RANK_SIZE)) {
+      Map<String, Integer> chunkRanks = rankChunk(chunk);
+      if (chunkRanks == null) {
+        return null;
+      }
+      chunks.add(getGroups(chunkRanks));
+    }
+    while (chunks.size() > 1) {
+      List<List<List<String>>> merged = Lists.newArrayList();
+      for (int i = 0; i < chunks.size(); i += 2) {
+        if (i + 1 == chunks.size()) {
+          merged.add(chunks.get(i));
+        } else {
+          List<List<String>> pair = merge(chunks.get(i), chunks.get(i + 1));
+          if (pair == null) {
+            return null;
+          }
+          merged.add(pair);
+        }
+      }
+      chunks = merged;
+    }
+    return chunks.get(0);
+  }
+
+  /**
+   * Merges two sorted lists of groups of equivalent strings, sorting up
+   * to half of {@link #MAX_RANK_SIZE} groups from each list at a time.
+   * The groups up to the lesser of the last groups sorted from each
+   * list are in their final order.
+   *
+   * @return the merged groups, or {@code null} if the strings could not
+   *         be sorted by the database
+   */
+  private List<List<String>> merge(List<List<String>> first,
+      List<List<String>> second) {
+    int blockSize = MAX_RANK_SIZE / 2;
+    List<List<String>> merged = Lists.newArrayList();
+    int i = 0;
+    int j = 0;
+    while (i < first.size() && j < second.size()) {
+      List<List<String>> firstBlock =
+          first.subList(i, Math.min(i + blockSize, first.size()));
+      List<List<String>> secondBlock =
+          second.subList(j, Math.min(j + blockSize, second.size()));
+      List<String> values = Lists.newArrayList();
+      for (List<String> group : Iterables.concat(firstBlock, secondBlock)) {
+        values.add(group.get(0));
+      }
+      Map<String, Integer> blockRanks = rankChunk(values);
+      if (blockRanks == null) {
+        return null;
+      }
+
+      // Groups after the end of a list do not limit the merge.
+      int limit = Integer.MAX_VALUE;
+      if (i + firstBlock.size() < first.size()) {
+        limit = blockRanks.get(getLast(firstBlock));
+      }
+      if (j + secondBlock.size() < second.size()) {
+        limit = Math.min(limit, blockRanks.get(getLast(secondBlock)));
+      }
+      SortedMap<Integer, List<String>> groups = Maps.newTreeMap();
+      i += addGroups(firstBlock, blockRanks, limit, groups);
+      j += addGroups(secondBlock, blockRanks, limit, groups);
+      merged.addAll(groups.values());
+    }
+    merged.addAll(first.subList(i, first.size()));
+    merged.addAll(second.subList(j, second.size()));
+    return merged;
+  }
+
+  private static String getLast(List<List<String>> groups) {
+    return groups.get(groups.size() - 1).get(0);
+  }
+
+  /**
+   * Adds the leading groups of the block whose ranks do not exceed the
+   * limit, combining equivalent groups.
+   *
+   * @return the number of groups added
+   */
+  private static int addGroups(List<List<String>> block,
+      Map<String, Integer> blockRanks, int limit,
+      SortedMap<Integer, List<String>> groups) {
+    int count = 0;
+    for (List<String> group : block) {
+      Integer rank = blockRanks.get(group.get(0));
+      if (rank > limit) {
+        break;
+      }
+      List<String> combined = groups.get(rank);
+      if (combined == null) {
+        combined = Lists.newArrayList();
+        groups.put(rank, combined);
+      }
+      combined.addAll(group);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Gets the groups of equivalent strings, in order, from their ranks,
+   * which must include every rank from zero up.
+   */
+  private static List<List<String>> getGroups(Map<String, Integer> ranks) {
+    SortedMap<Integer, List<String>> groups = Maps.newTreeMap();
+    for (Map.Entry<String, Integer> entry : ranks.entrySet()) {
+      List<String> group = groups.get(entry.getValue());
+      if (group == null) {
+        group = Lists.newArrayList();
+        groups.put(entry.getValue(), group);
+      }
+      group.add(entry.getKey());
+    }
+    return Lists.newArrayList(groups.values());
+  }
+
+  /**
+   * Ranks a string that was not sorted among the sorted strings near the
+   * given string, using a single SQL query. Each string is only ranked
+   * once, and not at all if it falls outside of the sorted strings that
+   * fit in the query.
+   *
+   * @return {@code true} if the string was ranked, or {@code false} if
+   *         it was not
+   */
+  private boolean rankNear(String value, String near) {
+    int changes;
+    int from;
+    List<String> window;
+    boolean atStart;
+    boolean atEnd;
+    List<Long> windowRanks = Lists.newArrayList();
+    synchronized (this) {
+      Long nearRank = ranks.get(near);
+      if (nearRank == null || !inserted.add(value)) {
+        return false;
+      }
+      int index = indexOf(nearRank);
+      from = Math.max(0, index - MAX_RANK_SIZE / 2);
+      int to = Math.min(sorted.size(), from + MAX_RANK_SIZE - 1);
+      window = Lists.newArrayList(sorted.subList(from, to));
+      atStart = (from == 0);
+      atEnd = (to == sorted.size());
+      for (String sortedValue : window) {
+        windowRanks.add(ranks.get(sortedValue));
+      }
+      changes = rankChanges;
+    }
+
+    List<String> values = Lists.newArrayList(window);
+    values.add(value);
+    Map<String, Integer> windowOrder = rankChunk(values);
+    if (windowOrder == null) {
+      return false;
+    }
+
+    // Find the sorted strings around the string.
+    int position = windowOrder.get(value);
+    int below = 0;
+    Long rank = null;
+    for (int k = 0; k < window.size(); k++) {
+      int order = windowOrder.get(window.get(k));
+      if (order == position) {
+        rank = windowRanks.get(k);
+      } else if (order < position) {
+        below++;
+      }
+    }
+    if (rank == null) {
+      if ((below == 0 && !atStart)
+          || (below == window.size() && !atEnd)) {
+        LOG.log(Level.FINE, "Not ranking {0}, because it is not near {1}",
+            new Object[] { value, near });
+        return false;
+      }
+      long low = (below == 0)
+          ? windowRanks.get(0) - RANK_GAP : windowRanks.get(below - 1);
+      long high = (below == window.size())
+          ? windowRanks.get(below - 1) + RANK_GAP : windowRanks.get(below);
+      rank = low + (high - low) / 2;
+      if (rank == low) {
+        LOG.log(Level.FINE, "Not ranking {0}, because there is no room "
+            + "near {1}", new Object[] { value, near });
+        return false;
+      }
+    }
+
+    synchronized (this) {
+      if (rankChanges != changes) {
+        // The strings were ranked again in the meantime.
+        return false;
+      }
+      if (!windowRanks.contains(rank)) {
+        sorted.add(from + below, value);
+      }
+      ranks.put(value, rank);
+      rankChanges++;
+    }
+    return true;
+  }
+
+  /** Finds the index of the sorted string with the given rank. */
+  private int indexOf(long rank) {
+    int low = 0;
+    int high = sorted.size() - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (ranks.get(sorted.get(mid)) < rank) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Sorts the given distinct strings using a single SQL query.
+   *
+   * @return the rank of each string, counting equivalent strings once,
+   *         or {@code null} if the strings could not be sorted by the
+   *         database
+   */
+  private Map<String, Integer> rankChunk(List<String> distinct) {
+    List<String> sortedValues = dbClient.executeCollationRankQuery(distinct);
+    if (sortedValues == null) {
+      LOG.log(Level.FINE, "Unable to rank {0} strings, so they will be "
+          + "compared individually", distinct.size());
+      return null;
+    }
+
+    Set<String> values = ImmutableSet.copyOf(distinct);
+    Map<String, Integer> newRanks = Maps.newHashMap();
+    for (String value : sortedValues) {
+      if (!values.contains(value) || newRanks.containsKey(value)) {
+        // The database did not return our strings, so we can't trust it.
+        LOG.log(Level.WARNING, "Unexpected value from the SQL Collation "
+            + "rank query: {0}", value);
+        return null;
+      }
+      newRanks.put(value, newRanks.size());
+    }
+
+    // Only one of any equivalent strings is returned by the query. Find
+    // the rank of the others by comparing them to the ranked strings.
+    for (String value : distinct) {
+      if (!newRanks.containsKey(value)) {
+        int low = 0;
+        int high = sortedValues.size() - 1;
+        while (low <= high) {
+          int mid = (low + high) >>> 1;
+          int result = compareByQuery(value, sortedValues.get(mid));
+          if (result < 0) {
+            high = mid - 1;
+          } else if (result > 0) {
+            low = mid + 1;
+          } else {
+            newRanks.put(value, mid);
+            break;
+          }
+        }
+        if (!newRanks.containsKey(value)) {
+          LOG.log(Level.FINE, "Unable to rank {0}, which the rank query "
+              + "omitted", value);
+          return null;
+        }
+      }
+    }
+    return newRanks;
+  }
+
   /**
    * Compares the source string to the target string using a SQL query to
    * perform the comparison and using the collation rules as specified by
-   * the {@code collationQuery} or {@code collationId}.
+   * the {@code collationQuery} or {@code collationId}. The ranks from
+   * {@link #rank} and the cached results of earlier comparisons are used
+   * if they are available. A string that has not been ranked is ranked
+   * near a ranked string that it is compared to.
    *
    * @param source the source string
    * @param target the target string
@@ -127,7 +544,62 @@ public class SqlCollator extends Collator {
    */
   @Override
   public int compare(String source, String target) {
-    return dbClient.executeCollationQuery(source, target);
+    if (source.equals(target)) {
+      return 0;
+    }
+
+    Long sourceRank;
+    Long targetRank;
+    synchronized (this) {
+      sourceRank = ranks.get(source);
+      targetRank = ranks.get(target);
+    }
+    if (sourceRank != null && targetRank != null) {
+      return sourceRank.compareTo(targetRank);
+    } else if (sourceRank != null) {
+      if (rankNear(target, source)) {
+        return compare(source, target);
+      }
+    } else if (targetRank != null) {
+      if (rankNear(source, target)) {
+        return compare(source, target);
+      }
+    }
+    if (sourceRank != null || targetRank != null) {
+      LOG.log(Level.FINE, "Comparing {0} and {1} individually, because "
+          + "only one of them is ranked", new Object[] { source, target });
+    }
+    return compareByQuery(source, target);
+  }
+
+  /**
+   * Compares the strings using the cached result, or an individual
+   * comparison query.
+   */
+  private int compareByQuery(String source, String target) {
+    if (source.equals(target)) {
+      return 0;
+    }
+
+    // Cache the result for each pair only once, in either order.
+    boolean swapped = source.compareTo(target) > 0;
+    Pair pair = swapped ? new Pair(target, source) : new Pair(source, target);
+    Integer result;
+    synchronized (this) {
+      result = cache.get(pair);
+    }
+
+    if (result == null) {
+      result = dbClient.tryCollationQuery(pair.lesser, pair.greater);
+      if (result == null) {
+        // Fall back to local Java Collation, but do not cache the result.
+        return Collator.getInstance().compare(source, target);
+      }
+      synchronized (this) {
+        cache.put(pair, result);
+      }
+    }
+    return swapped ? -result : result;
   }
 
   /** {@code getCollationKey} is not supported by this implementation. */
@@ -140,4 +612,29 @@ public class SqlCollator extends Collator {
   public int hashCode() {
     return Objects.hashCode(collationId, collationQuery);
   }
+
+  /** A pair of strings, used as the comparison cache key. */
+  private static class Pair {
+    private final String lesser;
+    private final String greater;
+
+    Pair(String lesser, String greater) {
+      this.lesser = lesser;
+      this.greater = greater;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Pair)) {
+        return false;
+      }
+      Pair other = (Pair) obj;
+      return lesser.equals(other.lesser) && greater.equals(other.greater);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * lesser.hashCode() + greater.hashCode();
+    }
+  }
 }
@@ -0,0 +1,199 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Encodes character content, such as a CLOB, as UTF-8. The content is
+ * streamed through a char buffer and a byte buffer that are reused for
+ * every call, so the only allocation is the output. A surrogate pair
+ * split across two reads is encoded correctly, and malformed input is
+ * replaced with {@code '?'}.
+ * <p>
+ * Instances are not thread-safe. Use {@link #getInstance} to get the
+ * instance for the current thread.
+ */
+public class Utf8Transcoder {
+  private static final int BUFFER_SIZE = 32 * 1024;
+
+  private static final ThreadLocal<Utf8Transcoder> INSTANCES =
+      new ThreadLocal<Utf8Transcoder>() {
+        @Override
+        protected Utf8Transcoder initialValue() {
+          return new Utf8Transcoder();
+        }
+      };
+
+  /** Gets the transcoder for the current thread. */
+  public static Utf8Transcoder getInstance() {
+    return INSTANCES.get();
+  }
+
+  private final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+  private Utf8Transcoder() {
+  }
+
+  /**
+   * Reads up to {@code length} characters and writes them to the output
+   * stream as UTF-8.
+   *
+   * @param reader a character reader
+   * @param length the maximum number of characters to read
+   * @param out the output stream, which is not closed
+   * @return the number of bytes written
+   * @throws IOException if the reader or the output stream fails
+   */
+  public long transcode(Reader reader, long length, OutputStream out)
+      throws IOException {
+    encoder.reset();
+    chars.clear();
+    bytes.clear();
+    long written = 0;
+    long remaining = length;
+    boolean endOfInput = false;
+    while (!endOfInput) {
+      int max = (int) Math.min(chars.remaining(), remaining);
+      int count = (max == 0)
+          ? -1 : reader.read(chars.array(), chars.position(), max);
+      if (count == -1) {
+        endOfInput = true;
+      } else {
+        chars.position(chars.position() + count);
+        remaining -= count;
+      }
+      chars.flip();
+      written += encode(chars, endOfInput, out);
+      // Keep a trailing high surrogate for the next read.
+      chars.compact();
+    }
+    return written + flush(out);
+  }
+
+  /**
+   * Reads up to {@code length} characters into a UTF-8 byte array.
+   *
+   * @param reader a character reader
+   * @param length the maximum number of characters to read
+   * @return the UTF-8 bytes
+   * @throws IOException if the reader fails
+   */
+  public byte[] toByteArray(Reader reader, int length) throws IOException {
+    ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(length);
+    transcode(reader, length, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Encodes a string as a UTF-8 byte array.
+   *
+   * @param value a string or other character sequence
+   * @return the UTF-8 bytes
+   */
+  public byte[] toByteArray(CharSequence value) {
+    ExposedByteArrayOutputStream out =
+        new ExposedByteArrayOutputStream(value.length());
+    encoder.reset();
+    bytes.clear();
+    try {
+      encode(CharBuffer.wrap(value), true, out);
+      flush(out);
+    } catch (IOException e) {
+      // ByteArrayOutputStream does not throw IOException.
+      throw new AssertionError(e);
+    }
+    return out.toByteArray();
+  }
+
+  /** Encodes the available characters, draining the bytes as needed. */
+  private long encode(CharBuffer in, boolean endOfInput, OutputStream out)
+      throws IOException {
+    long written = 0;
+    while (true) {
+      CoderResult result = encoder.encode(in, bytes, endOfInput);
+      if (result.isUnderflow()) {
+        return written + drain(out);
+      } else if (result.isOverflow()) {
+        written += drain(out);
+      } else {
+        throwException(result);
+      }
+    }
+  }
+
+  /** Flushes the encoder and drains the remaining bytes. */
+  private long flush(OutputStream out) throws IOException {
+    long written = 0;
+    while (true) {
+      CoderResult result = encoder.flush(bytes);
+      written += drain(out);
+      if (result.isUnderflow()) {
+        return written;
+      } else if (!result.isOverflow()) {
+        throwException(result);
+      }
+    }
+  }
+
+  private int drain(OutputStream out) throws IOException {
+    int count = bytes.position();
+    out.write(bytes.array(), 0, count);
+    bytes.clear();
+    return count;
+  }
+
+  /** Errors are replaced, so this should never happen. */
+  private static void throwException(CoderResult result) {
+    try {
+      result.throwException();
+    } catch (CharacterCodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A {@code ByteArrayOutputStream} that returns its buffer without a
+   * copy if the initial size was exactly right, which is the case for
+   * ASCII content.
+   */
+  private static class ExposedByteArrayOutputStream
+      extends ByteArrayOutputStream {
+    ExposedByteArrayOutputStream(int size) {
+      super(size);
+    }
+
+    @Override
+    public synchronized byte[] toByteArray() {
+      return (count == buf.length) ? buf : Arrays.copyOf(buf, count);
+    }
+  }
+}
@@ -21,7 +21,6 @@ import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.util.Base16;
 import com.google.enterprise.connector.util.InputStreamFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -166,25 +165,12 @@ public class Util {
    * @return byte array of read data, or null if there was an error
    */
   public static byte[] getBytes(int length, Reader reader) {
-    int charsRead = 0;
-    ByteArrayOutputStream content = new ByteArrayOutputStream(length *2);
-    char[] chars = new char[Math.min(length, 32 * 1024)];
-    while (charsRead < length) {
-      try {
-        int result = reader.read(chars);
-        if (result == -1) {
-          break;
-        }
-        charsRead += result;
-        // Convert the chars to bytes in UTF-8 representation.
-        byte[] bytes = (new String(chars, 0, result)).getBytes("UTF-8");
-        content.write(bytes);
-      } catch (IOException e) {
-        LOG.warning("Exception occurred while converting character reader into"
-            + " byte array: " + e.toString());
-        return null;
-      }
+    try {
+      return Utf8Transcoder.getInstance().toByteArray(reader, length);
+    } catch (IOException e) {
+      LOG.warning("Exception occurred while converting character reader into"
+          + " byte array: " + e.toString());
+      return null;
     }
-    return content.toByteArray();
   }
 }
@@ -0,0 +1,45 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.util.Collection;
+
+/**
+ * The users and groups allowed to read a document, which are sent to the
+ * GSA with the document so that it can authorize search results itself.
+ * The principals are sorted, so that the ACL does not depend on the order
+ * of the database rows.
+ */
+class Acl {
+  final ImmutableSortedSet<String> users;
+  final ImmutableSortedSet<String> groups;
+
+  Acl(Collection<String> users, Collection<String> groups) {
+    this.users = ImmutableSortedSet.copyOf(users);
+    this.groups = ImmutableSortedSet.copyOf(groups);
+  }
+
+  /** Returns whether the ACL has no users or groups. */
+  boolean isEmpty() {
+    return users.isEmpty() && groups.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "Acl{users=" + users + ", groups=" + groups + "}";
+  }
+}
@@ -43,6 +43,21 @@ public class ContentHolder {
     return checksum;
   }
 
+  /** Gets the version of the checksum, which is always SHA-1 here. */
+  public int getChecksumVersion() {
+    return DBSnapshot.SHA1_VERSION;
+  }
+
+  /**
+   * Gets the checksum in the given version.
+   *
+   * @return the checksum, or {@code null} if it is not available in
+   *         that version
+   */
+  public String getChecksum(int version) {
+    return (version == getChecksumVersion()) ? getChecksum() : null;
+  }
+
   public String getMimeType() {
     return mimeType;
   }
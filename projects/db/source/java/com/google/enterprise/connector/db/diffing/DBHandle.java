@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.db.diffing;
 
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.db.InputStreamFactories;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
@@ -23,18 +25,38 @@ import com.google.enterprise.connector.util.diffing.DocumentHandle;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Backed with a {@link JsonDocument}.
+ * Backed with a {@link JsonDocument}. A handle that is deserialized from
+ * a string parses only the properties other than the content at first.
+ * The Base64-encoded content is decoded from its region of the string
+ * when the document is first requested.
  */
 public class DBHandle implements DocumentHandle {
   private static final Logger LOG = Logger.getLogger(DBHandle.class.getName());
 
-  private final JsonDocument document;
+  /** The quoted content key, as written by {@link JsonDocument}. */
+  private static final String CONTENT_KEY =
+      JSONObject.quote(SpiConstants.PROPNAME_CONTENT) + ":\"";
+
+  /** The document, or null if the content has not been decoded yet. */
+  private JsonDocument document;
   private final String documentId;
 
+  /**
+   * The serialized form, if the content has not been decoded yet, along
+   * with the properties other than the content, and the content region.
+   */
+  private String jsonString;
+  private JSONObject properties;
+  private int contentStart;
+  private int contentEnd;
+
   /** Constructs a {@code DocumentHandle} wrapper on a {@code Document}. */
   public DBHandle(JsonDocument jsonDoc) {
     document = jsonDoc;
@@ -43,22 +65,56 @@ public class DBHandle implements DocumentHandle {
 
   /**
    * Reconstructs a {@code DocumentHandle} from a serialized string
-   * representation.
+   * representation. The content is not decoded until the document is
+   * requested, and the JSON parser never sees the content, so the
+   * encoded content is not copied.
    */
   public DBHandle(String jsonString) {
-    JSONObject jo;
-    try {
-      jo = new JSONObject(jsonString);
-    } catch (JSONException e) {
-      LOG.warning("Exception thrown while creating JSONObject from string"
-          + jsonString + "\n" + e.toString());
+    int keyStart = findContentKey(jsonString);
+    int valueStart = keyStart + CONTENT_KEY.length();
+    int valueEnd = (keyStart == -1) ? -1 : findEndQuote(jsonString,
+        valueStart);
+    if (valueEnd == -1) {
+      // No content, or content that needs the JSON parser to unescape it.
+      document = new JsonDocument(toJSONObject(jsonString));
+      documentId = getDocumentId(document);
+      return;
+    }
+
+    // Remove the content property, along with one adjacent comma.
+    int removeStart = keyStart;
+    int removeEnd = valueEnd + 1;
+    if (jsonString.charAt(keyStart - 1) == ',') {
+      removeStart--;
+    } else if (removeEnd < jsonString.length()
+        && jsonString.charAt(removeEnd) == ',') {
+      removeEnd++;
+    }
+    properties = toJSONObject(jsonString.substring(0, removeStart)
+        + jsonString.substring(removeEnd));
+    documentId = properties.optString(SpiConstants.PROPNAME_DOCID, null);
+    if (Strings.isNullOrEmpty(documentId)) {
       throw new IllegalArgumentException(
-          "Exception thrown for illegal JsonString" + jsonString + "\n", e);
+          "Unable to parse for docID from the properties:" + properties);
     }
+    this.jsonString = jsonString;
+    this.contentStart = valueStart;
+    this.contentEnd = valueEnd;
+  }
+
+  /**
+   * Reconstructs a {@code DocumentHandle} from a parsed JSON object. The
+   * Base64-encoded content in the object is decoded and replaced.
+   */
+  DBHandle(JSONObject jo) {
     document = new JsonDocument(jo);
+    documentId = getDocumentId(document);
+  }
+
+  private static String getDocumentId(JsonDocument document) {
     try {
-      documentId = Value.getSingleValueString(document,
-                                              SpiConstants.PROPNAME_DOCID);
+      return Value.getSingleValueString(document,
+                                        SpiConstants.PROPNAME_DOCID);
     } catch (RepositoryException e) {
       LOG.warning("Exception thrown while extracting docId for Document"
           + document + "\n" + e.toString());
@@ -68,8 +124,78 @@ public class DBHandle implements DocumentHandle {
     }
   }
 
+  /**
+   * Finds the content key in the compact JSON written by
+   * {@link JsonDocument}, where a key follows an opening brace or a
+   * comma. The quotes inside of string values are escaped, so the key
+   * cannot match there.
+   *
+   * @return the index of the key, or -1 if it is not found
+   */
+  private static int findContentKey(String jsonString) {
+    int index = jsonString.indexOf(CONTENT_KEY);
+    while (index > 0) {
+      char previous = jsonString.charAt(index - 1);
+      if (previous == '{' || previous == ',') {
+        return index;
+      }
+      index = jsonString.indexOf(CONTENT_KEY, index + 1);
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the closing quote of a string value that has no escaped
+   * characters. Base64-encoded content never does.
+   *
+   * @return the index of the closing quote, or -1 if it is not found,
+   *         or the value has an escaped character
+   */
+  private static int findEndQuote(String jsonString, int start) {
+    for (int i = start; i < jsonString.length(); i++) {
+      char c = jsonString.charAt(i);
+      if (c == '"') {
+        return i;
+      } else if (c == '\\') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static JSONObject toJSONObject(String jsonString) {
+    try {
+      return new JSONObject(jsonString);
+    } catch (JSONException e) {
+      LOG.warning("Exception thrown while creating JSONObject from string"
+          + jsonString + "\n" + e.toString());
+      throw new IllegalArgumentException(
+          "Exception thrown for illegal JsonString" + jsonString + "\n", e);
+    }
+  }
+
   @Override
-  public Document getDocument() throws RepositoryException {
+  public synchronized Document getDocument() throws RepositoryException {
+    if (document == null) {
+      LOG.log(Level.FINEST, "Decoding the content of {0}", documentId);
+      try {
+        if (contentStart == contentEnd) {
+          properties.put(SpiConstants.PROPNAME_CONTENT, "");
+        } else {
+          properties.put(SpiConstants.PROPNAME_CONTENT,
+              InputStreamFactories.fromBase64String(
+                  CharBuffer.wrap(jsonString, contentStart, contentEnd),
+                  properties.optString(SpiConstants.PROPNAME_MIMETYPE,
+                      null)));
+        }
+      } catch (JSONException e) {
+        throw new RepositoryException(
+            "Unable to decode the content of " + documentId, e);
+      }
+      document = new JsonDocument(properties);
+      jsonString = null;
+      properties = null;
+    }
     return document;
   }
 
@@ -78,9 +204,35 @@ public class DBHandle implements DocumentHandle {
     return documentId;
   }
 
+  /**
+   * Releases any spooled content held by the document, once the handle
+   * has been consumed.
+   */
+  public synchronized void release() {
+    if (document != null) {
+      document.release();
+    }
+  }
+
+  /**
+   * Writes the serialized form of the handle, without holding the
+   * encoded content in memory.
+   *
+   * @param out the writer, which is not closed
+   * @throws IOException if the content cannot be read or written
+   */
+  public synchronized void writeJson(Writer out) throws IOException {
+    LOG.log(Level.FINEST, "Serializing document handle for {0}", documentId);
+    if (document == null) {
+      out.write(jsonString);
+    } else {
+      document.writeJson(out);
+    }
+  }
+
   @Override
-  public String toString() {
+  public synchronized String toString() {
     LOG.log(Level.FINEST, "Serializing document handle for {0}", documentId);
-    return document.toJson();
+    return (document == null) ? jsonString : document.toJson();
   }
 }
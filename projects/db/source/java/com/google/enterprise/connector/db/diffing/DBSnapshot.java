@@ -19,6 +19,7 @@ import com.google.enterprise.connector.db.DocIdUtil;
 import com.google.enterprise.connector.db.ValueOrdering;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.util.Base64;
 import com.google.enterprise.connector.util.diffing.DocumentHandle;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 
@@ -32,6 +33,21 @@ import java.util.logging.Logger;
 /**
  * Represents both flavors of snapshot, from a snapshot file and from
  * a {@code SnapshotRepository}.
+ * <p>
+ * Snapshots are serialized in a compact form, consisting of a version
+ * prefix, the docid, a separator, and the binary checksum encoded in
+ * web-safe Base64 without padding. For example, {@code 1;B/42;<checksum>}.
+ * The checksum alphabet does not include the separator, so the last
+ * separator in the string always marks the start of the checksum. The
+ * version identifies the checksum algorithm, either {@link #SHA1_VERSION}
+ * or {@link #TREE_HASH_VERSION}. Checksums with different versions cannot
+ * be compared, so when the version changes, the checksum of the document
+ * is computed again in the old version, if its content is available. If
+ * that checksum matches, the document is unchanged, and the snapshot is
+ * written with the new version. Otherwise the document is sent again.
+ * Snapshots written by earlier versions of the connector as JSON
+ * objects, {@code {"google:docid":...,"google:sum":...}}, are still
+ * accepted and compare equal to their compact equivalents.
  */
 public class DBSnapshot
     implements DocumentSnapshot, Comparable<DocumentSnapshot> {
@@ -39,34 +55,157 @@ public class DBSnapshot
   private static final Logger LOG =
       Logger.getLogger(DBSnapshot.class.getName());
 
+  /** The version of a SHA-1 checksum. */
+  public static final int SHA1_VERSION = 1;
+
+  /** The version of a {@link TreeDigest} checksum. */
+  public static final int TREE_HASH_VERSION = 2;
+
+  /** The length of the version prefix, such as {@code "1;"}. */
+  private static final int VERSION_PREFIX_LENGTH = 2;
+
+  /** Separates the docid from the checksum in the serialized form. */
+  private static final char CHECKSUM_SEPARATOR = ';';
+
   /** An optional document holder, may be null. */
-  private final DocumentBuilder.DocumentHolder docHolder;
-  private final String documentId;
-  private final String jsonString;
+  private DocumentBuilder.DocumentHolder docHolder;
+  private String documentId;
+  private String serializedForm;
   private final ValueOrdering valueOrdering;
 
+  /** The version of the checksum. */
+  private int version;
+
+  /** The offset of the checksum within the {@code serializedForm}. */
+  private int checksumOffset;
+
+  /** The pre-parsed docid for comparisons, created on first use. */
+  private DocIdUtil.Key key;
+
+  /**
+   * Gets the serialized form of a snapshot with a SHA-1 checksum.
+   *
+   * @param documentId the docid
+   * @param checksum the checksum, as a hexadecimal string
+   * @return the compact serialized form
+   * @throws IllegalArgumentException if the checksum is not hexadecimal
+   */
+  public static String getSerializedForm(String documentId, String checksum) {
+    return getSerializedForm(SHA1_VERSION, documentId, checksum);
+  }
+
+  /**
+   * Gets the serialized form of a snapshot.
+   *
+   * @param version the version of the checksum
+   * @param documentId the docid
+   * @param checksum the checksum, as a hexadecimal string
+   * @return the compact serialized form
+   * @throws IllegalArgumentException if the checksum is not hexadecimal
+   */
+  public static String getSerializedForm(int version, String documentId,
+      String checksum) {
+    return new StringBuilder(VERSION_PREFIX_LENGTH + documentId.length()
+        + 1 + checksum.length())
+        .append(version)
+        .append(CHECKSUM_SEPARATOR)
+        .append(documentId)
+        .append(CHECKSUM_SEPARATOR)
+        .append(Base64.encodeWebSafe(decodeHex(checksum), false))
+        .toString();
+  }
+
   /** Constructs a snapshot from a {@code DBSnapshotRepository}. */
-  public DBSnapshot(ValueOrdering valueOrdering, String documentId, String jsonString,
-      DocumentBuilder.DocumentHolder docHolder) {
+  public DBSnapshot(ValueOrdering valueOrdering, String documentId,
+      String serializedForm, DocumentBuilder.DocumentHolder docHolder) {
     this.valueOrdering = valueOrdering;
     this.docHolder = docHolder;
     this.documentId = documentId;
-    this.jsonString = jsonString;
+    this.serializedForm = serializedForm;
+    this.checksumOffset = serializedForm.lastIndexOf(CHECKSUM_SEPARATOR) + 1;
+    this.version = getVersion(serializedForm);
   }
 
-  /** Reconstructs a snapshot from a snapshot file. */
-  public DBSnapshot(ValueOrdering valueOrdering, String jsonString) {
+  /**
+   * Reconstructs a snapshot from a snapshot file. Both the compact form
+   * and the legacy JSON form are supported.
+   */
+  public DBSnapshot(ValueOrdering valueOrdering, String serializedForm) {
     this.valueOrdering = valueOrdering;
     this.docHolder = null;
-    try {
-      JSONObject jo = new JSONObject(jsonString);
-      this.documentId = jo.getString(SpiConstants.PROPNAME_DOCID);
-    } catch (JSONException e) {
-      LOG.log(Level.SEVERE, "Invalid serialized snapshot: " + jsonString, e);
-      throw new IllegalArgumentException(
-          "Invalid serialized snapshot: " + jsonString, e);
+    this.version = getVersion(serializedForm);
+    if (version != 0) {
+      int separator = serializedForm.lastIndexOf(CHECKSUM_SEPARATOR);
+      if (separator < VERSION_PREFIX_LENGTH) {
+        LOG.log(Level.SEVERE, "Invalid serialized snapshot: {0}",
+            serializedForm);
+        throw new IllegalArgumentException(
+            "Invalid serialized snapshot: " + serializedForm);
+      }
+      this.documentId =
+          serializedForm.substring(VERSION_PREFIX_LENGTH, separator);
+      this.serializedForm = serializedForm;
+      this.checksumOffset = separator + 1;
+    } else {
+      // Convert the legacy JSON form to the compact form, so that an
+      // unchanged document is not reported as changed on migration.
+      try {
+        JSONObject jo = new JSONObject(serializedForm);
+        this.documentId = jo.getString(SpiConstants.PROPNAME_DOCID);
+        this.version = SHA1_VERSION;
+        this.serializedForm = getSerializedForm(documentId,
+            jo.getString(DocumentBuilder.ROW_CHECKSUM));
+      } catch (JSONException e) {
+        LOG.log(Level.SEVERE, "Invalid serialized snapshot: "
+            + serializedForm, e);
+        throw new IllegalArgumentException(
+            "Invalid serialized snapshot: " + serializedForm, e);
+      }
+      this.checksumOffset =
+          this.serializedForm.lastIndexOf(CHECKSUM_SEPARATOR) + 1;
     }
-    this.jsonString = jsonString;
+  }
+
+  /**
+   * Gets the version of the checksum from the compact serialized form.
+   *
+   * @return the version, or 0 if the string is not in the compact form
+   */
+  private static int getVersion(String serializedForm) {
+    if (serializedForm.length() >= VERSION_PREFIX_LENGTH
+        && serializedForm.charAt(1) == CHECKSUM_SEPARATOR) {
+      switch (serializedForm.charAt(0)) {
+        case '1': return SHA1_VERSION;
+        case '2': return TREE_HASH_VERSION;
+        default: break;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Decodes a hexadecimal string, as produced by {@code Base16}, into
+   * an array of bytes.
+   */
+  private static byte[] decodeHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid checksum: " + hex);
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high == -1 || low == -1) {
+        throw new IllegalArgumentException("Invalid checksum: " + hex);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /** Gets the document holder, or null for a deserialized snapshot. */
+  DocumentBuilder.DocumentHolder getDocumentHolder() {
+    return docHolder;
   }
 
   @Override
@@ -80,6 +219,10 @@ public class DBSnapshot
    * represents the same record as the supplied paramenter, then a subsequent
    * call to {@link #getUpdate(DocumentSnapshot)} may be made to determine
    * whether the record changed.
+   * <p>
+   * When migrating docids, a snapshot from the database is the same
+   * record as a snapshot with the same primary key values in another
+   * docid format.
    *
    * @return a negative integer, zero, or a positive integer as this snapshot
    *         is less than, equal to, or greater than the specified snapshot.
@@ -87,7 +230,29 @@ public class DBSnapshot
    */
   @Override
   public int compareTo(DocumentSnapshot onGsa) throws ClassCastException {
-    return DocIdUtil.compare(valueOrdering, documentId, onGsa.getDocumentId());
+    if (onGsa instanceof DBSnapshot) {
+      if (docHolder != null && docHolder.docIdMigration) {
+        return DocIdUtil.compareValues(valueOrdering, getKey(),
+                                       ((DBSnapshot) onGsa).getKey());
+      } else {
+        return DocIdUtil.compare(valueOrdering, getKey(),
+                                 ((DBSnapshot) onGsa).getKey());
+      }
+    } else {
+      return DocIdUtil.compare(valueOrdering, documentId,
+                               onGsa.getDocumentId());
+    }
+  }
+
+  /**
+   * Gets the pre-parsed docid. Each snapshot is compared to at most a
+   * few others during a traversal, so the key is created lazily.
+   */
+  private DocIdUtil.Key getKey() {
+    if (key == null) {
+      key = DocIdUtil.getKey(valueOrdering, documentId);
+    }
+    return key;
   }
 
   /**
@@ -116,9 +281,18 @@ public class DBSnapshot
           + "The parameter passed is not an instance of DBSnapshot.");
     }
 
-    // We just assume that if the serialized form is the same, then nothing
-    // has changed.
-    if (jsonString.equals(onGsa.toString())) {
+    // Keep the docid of the document on the GSA, so that it is not
+    // deleted and fed again with a docid in the new format.
+    if (!documentId.equals(onGsa.getDocumentId())
+        && docHolder.docIdMigration) {
+      LOG.log(Level.FINEST, "Keeping docid {0} for {1}",
+          new Object[] { onGsa.getDocumentId(), documentId });
+      setDocumentId(onGsa.getDocumentId());
+    }
+
+    // We just assume that if the docid and checksum are the same, then
+    // nothing has changed.
+    if (isUnchanged((DBSnapshot) onGsa)) {
       // null return tells the diffing framework to do nothing
       return null;
     }
@@ -130,6 +304,62 @@ public class DBSnapshot
     return getDocumentHandle();
   }
 
+  /**
+   * Replaces the docid of this snapshot, and of the document, with an
+   * equivalent docid in another format. The new docid is written to the
+   * snapshot file.
+   */
+  private void setDocumentId(String newDocumentId) {
+    String checksum = serializedForm.substring(checksumOffset);
+    serializedForm = version + String.valueOf(CHECKSUM_SEPARATOR)
+        + newDocumentId + CHECKSUM_SEPARATOR + checksum;
+    checksumOffset = serializedForm.length() - checksum.length();
+    documentId = newDocumentId;
+    docHolder = docHolder.withDocId(newDocumentId);
+    key = null;
+  }
+
+  /**
+   * Compares the docid and checksum of this snapshot with another,
+   * without allocating any substrings for the checksums of the same
+   * version.
+   */
+  private boolean isUnchanged(DBSnapshot onGsa) {
+    if (!documentId.equals(onGsa.documentId)) {
+      return false;
+    }
+    if (version != onGsa.version) {
+      return isUnchangedVersion(onGsa);
+    }
+    int checksumLength = serializedForm.length() - checksumOffset;
+    return checksumLength
+            == onGsa.serializedForm.length() - onGsa.checksumOffset
+        && serializedForm.regionMatches(checksumOffset, onGsa.serializedForm,
+            onGsa.checksumOffset, checksumLength);
+  }
+
+  /**
+   * Compares the checksum of the document in the version of the other
+   * snapshot. The document is changed if that checksum is not available.
+   */
+  private boolean isUnchangedVersion(DBSnapshot onGsa) {
+    String checksum = docHolder.getChecksum(onGsa.version);
+    if (checksum == null) {
+      LOG.log(Level.FINE, "Unable to compare the version {0} checksum of "
+          + "{1}", new Object[] { onGsa.version, documentId });
+      return false;
+    }
+    String other = getSerializedForm(onGsa.version, documentId, checksum);
+    boolean unchanged =
+        other.substring(other.lastIndexOf(CHECKSUM_SEPARATOR) + 1).equals(
+            onGsa.serializedForm.substring(onGsa.checksumOffset));
+    if (unchanged) {
+      LOG.log(Level.FINEST, "Changing the checksum version of {0} to {1}",
+          new Object[] { documentId, version });
+    }
+    return unchanged;
+  }
+
   private DocumentHandle getDocumentHandle() {
     try {
       return docHolder.getDocumentHandle();
@@ -146,6 +376,6 @@ public class DBSnapshot
   @Override
   public String toString() {
     LOG.log(Level.FINEST, "Serializing document snapshot for {0}", documentId);
-    return jsonString;
+    return serializedForm;
   }
 }
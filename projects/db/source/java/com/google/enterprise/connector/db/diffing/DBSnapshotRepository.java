@@ -35,7 +35,11 @@ public class DBSnapshotRepository
   @Override
   public Iterator<DocumentSnapshot> iterator()
       throws SnapshotRepositoryRuntimeException {
-    return new RepositoryHandlerIterator(repositoryHandler);
+    if (repositoryHandler.isConnectorSort()) {
+      return repositoryHandler.executeQueryAndSortDocs();
+    }
+    return new RepositoryHandlerIterator(repositoryHandler,
+        new OrderingMonitor(repositoryHandler.getMaxOrderingInversions()));
   }
 
   @Override
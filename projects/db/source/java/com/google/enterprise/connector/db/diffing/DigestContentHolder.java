@@ -16,13 +16,18 @@ package com.google.enterprise.connector.db.diffing;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.db.InputStreamFactories;
-import com.google.enterprise.connector.db.Util;
+import com.google.enterprise.connector.db.SpoolManager;
 import com.google.enterprise.connector.util.Base16;
 import com.google.enterprise.connector.util.InputStreamFactory;
 import com.google.enterprise.connector.util.MimeTypeDetector;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A {@link ContentHolder} that maintains an active MessageDigest to lazily
@@ -32,43 +37,155 @@ import java.security.NoSuchAlgorithmException;
  * is called.
  */
 public class DigestContentHolder extends ContentHolder {
+  private static final Logger LOG =
+      Logger.getLogger(DigestContentHolder.class.getName());
+
+  /**
+   * Gets a holder for the given content. Content that is spooled is
+   * shared with identical content, along with the MIME type detected
+   * from the content alone.
+   */
   public static DigestContentHolder getInstance(byte[] contentBytes,
       MimeTypeDetector mimeTypeDetector) {
+    return getInstance(contentBytes, mimeTypeDetector, null, null);
+  }
+
+  /**
+   * Gets a holder for the given content, with a declared MIME type or
+   * file name. The MIME type is detected only if it is not declared.
+   *
+   * @param mimeType the declared MIME type, or {@code null}
+   * @param fileName the declared file name, or {@code null}
+   */
+  public static DigestContentHolder getInstance(byte[] contentBytes,
+      MimeTypeDetector mimeTypeDetector, String mimeType, String fileName) {
+    return getInstance(contentBytes, mimeTypeDetector, mimeType, fileName,
+        null);
+  }
+
+  /**
+   * Gets a holder for the given content, with a declared MIME type or
+   * file name, spooled by the given spool manager.
+   *
+   * @param mimeType the declared MIME type, or {@code null}
+   * @param fileName the declared file name, or {@code null}
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to use temporary files
+   */
+  public static DigestContentHolder getInstance(byte[] contentBytes,
+      MimeTypeDetector mimeTypeDetector, String mimeType, String fileName,
+      SpoolManager spoolManager) {
+    return getInstance(contentBytes, mimeTypeDetector, mimeType, fileName,
+        spoolManager, DigestFactory.SHA1);
+  }
+
+  /**
+   * Gets a holder for the given content, with a declared MIME type or
+   * file name, spooled by the given spool manager, and digested by the
+   * given digest factory.
+   *
+   * @param mimeType the declared MIME type, or {@code null}
+   * @param fileName the declared file name, or {@code null}
+   * @param spoolManager the spool manager of the connector instance, or
+   *        {@code null} to use temporary files
+   * @param digestFactory the digest factory of the connector instance
+   */
+  public static DigestContentHolder getInstance(byte[] contentBytes,
+      MimeTypeDetector mimeTypeDetector, String mimeType, String fileName,
+      SpoolManager spoolManager, DigestFactory digestFactory) {
     Preconditions.checkNotNull(contentBytes);
-    DigestContentHolder contentHolder = new DigestContentHolder(
-        InputStreamFactories.newInstance(contentBytes),
-        mimeTypeDetector.getMimeType(null, contentBytes),
-        contentBytes.length);
-    contentHolder.updateDigest(contentBytes);
-    return contentHolder;
+    MessageDigest digest = digestFactory.newDigest();
+    digest.update(contentBytes);
+    String contentDigest = getContentDigest(digest, contentBytes.length);
+
+    InputStreamFactory content;
+    SpoolManager.SharedContent shared = (contentDigest == null)
+        ? null : InputStreamFactories.getSharedInstance(spoolManager,
+            contentDigest);
+    if (shared != null) {
+      content = shared;
+      if (mimeType == null) {
+        // The shared type was detected without a file name.
+        if (fileName == null) {
+          mimeType = shared.getMimeType();
+        }
+        if (mimeType == null) {
+          mimeType = mimeTypeDetector.getMimeType(fileName, contentBytes);
+        }
+      }
+    } else {
+      String detectedMimeType = null;
+      if (mimeType == null) {
+        mimeType = mimeTypeDetector.getMimeType(fileName, contentBytes);
+        if (fileName == null) {
+          detectedMimeType = mimeType;
+        }
+      }
+      content = (contentDigest == null)
+          ? InputStreamFactories.newInstance(spoolManager, contentBytes,
+              mimeType)
+          : InputStreamFactories.newInstance(spoolManager, contentBytes,
+              mimeType, contentDigest, detectedMimeType);
+    }
+    return new DigestContentHolder(content, mimeType, contentBytes.length,
+        digest);
+  }
+
+  /**
+   * Gets a holder for content that has already been written to the given
+   * factory. The digest must have been updated with the content.
+   */
+  public static DigestContentHolder getInstance(InputStreamFactory content,
+      String mimeType, long length, MessageDigest digest) {
+    return new DigestContentHolder(content, mimeType, length, digest);
   }
 
   public static DigestContentHolder getEmptyInstance(String mimeType) {
     return new DigestContentHolder(
-        InputStreamFactories.newInstance(new byte[0]), mimeType, 0);
+        InputStreamFactories.newInstance(new byte[0]), mimeType, 0,
+        DigestFactory.SHA1.newDigest());
   }
 
-  private final int length;
+  /**
+   * Gets a key for the content from a copy of the digest, which is still
+   * updated with metadata for the checksum.
+   *
+   * @return the key, or {@code null} if the digest cannot be copied
+   */
+  private static String getContentDigest(MessageDigest digest, int length) {
+    try {
+      MessageDigest copy = (MessageDigest) digest.clone();
+      return length + ":" + Base16.lowerCase().encode(copy.digest());
+    } catch (CloneNotSupportedException e) {
+      return null;
+    }
+  }
+
+  private final long length;
   private final MessageDigest digest;
   private String checksum;
 
+  /** The metadata added to the digest, to compute other checksums. */
+  private final List<byte[]> metadata = new ArrayList<byte[]>();
+
   private DigestContentHolder(InputStreamFactory content, String mimeType,
-      int length) {
+      long length, MessageDigest digest) {
     super(content, null, mimeType);
     this.length = length;
     this.checksum = null;
-    try {
-      this.digest = MessageDigest.getInstance(Util.CHECKSUM_ALGO);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("Could not get a message digest for "
-                                 + Util.CHECKSUM_ALGO, e);
-    }
+    this.digest = digest;
   }
 
   public long getLength() {
     return length;
   }
 
+  @Override
+  public int getChecksumVersion() {
+    return (digest instanceof TreeDigest)
+        ? DBSnapshot.TREE_HASH_VERSION : DBSnapshot.SHA1_VERSION;
+  }
+
   @Override
   public synchronized String getChecksum() {
     if (checksum == null) {
@@ -77,6 +194,40 @@ public class DigestContentHolder extends ContentHolder {
     return checksum;
   }
 
+  /**
+   * Gets the checksum in the given version, reading the content again if
+   * the version differs from the version of this holder.
+   *
+   * @return the checksum, or {@code null} if the content cannot be read
+   */
+  @Override
+  public synchronized String getChecksum(int version) {
+    if (version == getChecksumVersion()) {
+      return getChecksum();
+    }
+    MessageDigest other = DigestFactory.SHA1.newDigest(version);
+    try {
+      InputStream in = ((InputStreamFactory) getContent()).getInputStream();
+      try {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          other.update(buffer, 0, count);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read the content for a version "
+          + version + " checksum", e);
+      return null;
+    }
+    for (byte[] buf : metadata) {
+      other.update(buf);
+    }
+    return Base16.lowerCase().encode(other.digest());
+  }
+
   /**
    * Updates the digest using the specified array of bytes.
    *
@@ -84,5 +235,6 @@ public class DigestContentHolder extends ContentHolder {
    */
   public synchronized void updateDigest(byte[] buf) {
     digest.update(buf);
+    metadata.add(buf);
   }
 }
@@ -0,0 +1,97 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.db.Util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the digests for content checksums, either sequential SHA-1
+ * digests, or {@link TreeDigest} tree hashes computed on a pool of
+ * threads. Each connector instance has its own factory.
+ */
+public class DigestFactory {
+  /** A factory for sequential SHA-1 digests. */
+  public static final DigestFactory SHA1 = new DigestFactory(null);
+
+  /** The executor for tree hash checksums, or null to use SHA-1. */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Gets a factory that uses the given number of threads to compute tree
+   * hash checksums, or sequential SHA-1 checksums if there are none.
+   */
+  public static DigestFactory getInstance(int treeHashThreads) {
+    if (treeHashThreads <= 0) {
+      return SHA1;
+    }
+    // The pool is never shut down, because the factory may be in use
+    // until it is garbage collected. Its threads time out.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(treeHashThreads,
+        treeHashThreads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("TreeDigest-%d").build());
+    pool.allowCoreThreadTimeOut(true);
+    return new DigestFactory(pool);
+  }
+
+  private DigestFactory(ThreadPoolExecutor executor) {
+    this.executor = executor;
+  }
+
+  /** Gets the version of the checksums from this factory's digests. */
+  public int getVersion() {
+    return (executor == null)
+        ? DBSnapshot.SHA1_VERSION : DBSnapshot.TREE_HASH_VERSION;
+  }
+
+  /** Gets a new digest for a content checksum. */
+  public MessageDigest newDigest() {
+    return newDigest(getVersion());
+  }
+
+  /**
+   * Gets a new digest for a content checksum of the given version. If
+   * this factory does not compute tree hashes, a tree hash is computed
+   * on the calling thread.
+   *
+   * @param version {@link DBSnapshot#SHA1_VERSION} or
+   *        {@link DBSnapshot#TREE_HASH_VERSION}
+   */
+  public MessageDigest newDigest(int version) {
+    if (version == DBSnapshot.TREE_HASH_VERSION) {
+      ExecutorService service = (executor == null)
+          ? MoreExecutors.sameThreadExecutor() : executor;
+      int maxPending = (executor == null)
+          ? 1 : 2 * executor.getMaximumPoolSize();
+      return new TreeDigest(service, maxPending);
+    }
+    try {
+      return MessageDigest.getInstance(Util.CHECKSUM_ALGO);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Could not get a message digest for "
+                                 + Util.CHECKSUM_ALGO, e);
+    }
+  }
+}
@@ -14,7 +14,8 @@
 
 package com.google.enterprise.connector.db.diffing;
 
-import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.db.DBConnectorType;
 import com.google.enterprise.connector.db.DBContext;
@@ -28,10 +29,8 @@ import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.util.diffing.DocumentHandle;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,6 +51,7 @@ abstract class DocumentBuilder {
   private static final Logger LOG =
       Logger.getLogger(DocumentBuilder.class.getName());
 
+  /** The checksum property name in the legacy JSON snapshot form. */
   public static final String ROW_CHECKSUM = "google:sum";
 
   /**
@@ -114,10 +114,13 @@ abstract class DocumentBuilder {
         dbContext.getPrimaryKeyColumns(row.keySet());
     String docId = getDocId(row, primaryKey);
     ContentHolder contentHolder = getContentHolder(row, primaryKey, docId);
+    Acl acl = getAcl(row);
     DocumentHolder docHolder =
-        getDocumentHolder(row, primaryKey, docId, contentHolder);
-    String jsonString = getJsonString(docId, contentHolder.getChecksum());
-    return new DBSnapshot(dbContext, docId, jsonString, docHolder);
+        getDocumentHolder(row, primaryKey, docId, contentHolder, acl);
+    int version = contentHolder.getChecksumVersion();
+    String serializedForm = DBSnapshot.getSerializedForm(version, docId,
+        docHolder.getChecksum(version));
+    return new DBSnapshot(dbContext, docId, serializedForm, docHolder);
   }
 
   /**
@@ -171,20 +174,70 @@ abstract class DocumentBuilder {
     public final String docId;
     public final ContentHolder contentHolder;
 
+    /**
+     * Whether a document on the GSA with a docid in another format keeps
+     * that docid.
+     */
+    public final boolean docIdMigration;
+
+    /** The early-binding ACL, or null if ACLs are not configured. */
+    final Acl acl;
+
     public DocumentHolder(DocumentBuilder builder, Map<String, Object> row,
         ImmutableList<String> primaryKey, String docId,
         ContentHolder contentHolder) {
+      this(builder, row, primaryKey, docId, contentHolder, false);
+    }
+
+    public DocumentHolder(DocumentBuilder builder, Map<String, Object> row,
+        ImmutableList<String> primaryKey, String docId,
+        ContentHolder contentHolder, boolean docIdMigration) {
+      this(builder, row, primaryKey, docId, contentHolder, docIdMigration,
+          null);
+    }
+
+    DocumentHolder(DocumentBuilder builder, Map<String, Object> row,
+        ImmutableList<String> primaryKey, String docId,
+        ContentHolder contentHolder, boolean docIdMigration, Acl acl) {
       this.builder = builder;
 
       this.row = row;
       this.primaryKey = primaryKey;
       this.docId = docId;
       this.contentHolder = contentHolder;
+      this.docIdMigration = docIdMigration;
+      this.acl = acl;
     }
 
     public DocumentHandle getDocumentHandle() throws DBException {
       return builder.getDocumentHandle(this);
     }
+
+    /**
+     * Gets the checksum of the document in the given version, including
+     * the ACL, if any, so that the document is sent again when only the
+     * ACL changes.
+     *
+     * @return the checksum, or {@code null} if it is not available in
+     *         that version
+     */
+    public String getChecksum(int version) {
+      if (contentHolder == null) {
+        return null;
+      }
+      String checksum = contentHolder.getChecksum(version);
+      if (checksum != null && acl != null) {
+        checksum = Util.getChecksum(
+            (checksum + acl.toString()).getBytes(Charsets.UTF_8));
+      }
+      return checksum;
+    }
+
+    /** Returns a copy of this holder that uses the given docid. */
+    public DocumentHolder withDocId(String newDocId) {
+      return new DocumentHolder(builder, row, primaryKey, newDocId,
+          contentHolder, docIdMigration, acl);
+    }
   }
 
   // UTILITY METHODS FOR THE SUBCLASSES
@@ -203,7 +256,8 @@ abstract class DocumentBuilder {
   }
 
   protected final String getDisplayUrl(String docId) {
-    return String.format("dbconnector://%s.localhost/%s", connectorName, docId);
+    return String.format("dbconnector://%s.localhost/%s", connectorName,
+        DocIdUtil.encodeUrlPath(docId));
   }
 
   /**
@@ -221,6 +275,36 @@ abstract class DocumentBuilder {
     }
   }
 
+  /**
+   * Adds the ACL columns to the list of skip columns.
+   *
+   * @param skipColumns list of columns to be skipped as metadata
+   */
+  protected final void skipAclColumns(List<String> skipColumns) {
+    if (!Util.isNullOrWhitespace(dbContext.getAclUsersField())) {
+      skipColumns.add(dbContext.getAclUsersField().trim());
+    }
+    if (!Util.isNullOrWhitespace(dbContext.getAclGroupsField())) {
+      skipColumns.add(dbContext.getAclGroupsField().trim());
+    }
+  }
+
+  /**
+   * Adds the early-binding ACL, if there is one, and marks the document
+   * as secure. Documents without an ACL are left to the Authorization
+   * SQL Query.
+   */
+  protected final void setAcl(JsonObjectUtil jsonObjectUtil,
+      DocumentHolder holder) {
+    if (holder.acl != null && !holder.acl.isEmpty()) {
+      jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ACLUSERS,
+          holder.acl.users);
+      jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ACLGROUPS,
+          holder.acl.groups);
+      jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ISPUBLIC, "false");
+    }
+  }
+
   /**
    * Sets the value for last modified date.
    *
@@ -260,25 +344,56 @@ abstract class DocumentBuilder {
   // CONCRETE CONSTRUCTION METHODS USED BY THIS CLASS
 
   private String getDocId(Map<String, Object> row, List<String> primaryKey) {
-    return DocIdUtil.generateDocId(primaryKey, row);
+    return DocIdUtil.generateDocId(primaryKey, row,
+        dbContext.getDocIdVersion());
+  }
+
+  private DocumentHolder getDocumentHolder(Map<String, Object> row,
+      ImmutableList<String> primaryKey, String docId,
+      ContentHolder contentHolder, Acl acl) {
+    return new DocumentHolder(this, row, primaryKey, docId, contentHolder,
+        dbContext.isDocIdMigration(), acl);
   }
 
-  @VisibleForTesting
-  final String getJsonString(String docId, String checksum) {
-    JSONObject jsonObject = new JSONObject();
-    try {
-      jsonObject.put(SpiConstants.PROPNAME_DOCID, docId);
-      jsonObject.put(ROW_CHECKSUM, checksum);
-    } catch (JSONException impossible) {
-      // This exception is thrown on null keys and out-of-range numbers.
-      throw new AssertionError(impossible);
+  /**
+   * Gets the ACL from the ACL columns, either in the row or in the rows
+   * returned by the ACL SQL Query for the row.
+   *
+   * @return the ACL, or {@code null} if no ACL columns are configured
+   */
+  private Acl getAcl(Map<String, Object> row) {
+    String usersField = dbContext.getAclUsersField();
+    String groupsField = dbContext.getAclGroupsField();
+    if (Util.isNullOrWhitespace(usersField)
+        && Util.isNullOrWhitespace(groupsField)) {
+      return null;
+    }
+    List<Map<String, Object>> aclRows;
+    if (Util.isNullOrWhitespace(dbContext.getAclQuery())) {
+      aclRows = ImmutableList.of(row);
+    } else {
+      aclRows = dbContext.getClient().executeAclQuery(row);
+    }
+    Splitter splitter = Splitter.on(dbContext.getAclDelimiter())
+        .trimResults().omitEmptyStrings();
+    List<String> users = new ArrayList<String>();
+    List<String> groups = new ArrayList<String>();
+    for (Map<String, Object> aclRow : aclRows) {
+      addPrincipals(aclRow, usersField, splitter, users);
+      addPrincipals(aclRow, groupsField, splitter, groups);
     }
-    return jsonObject.toString();
+    return new Acl(users, groups);
   }
 
-  private DocumentHolder getDocumentHolder(Map<String, Object> row,
-      ImmutableList<String> primaryKey, String docId,
-      ContentHolder contentHolder) {
-    return new DocumentHolder(this, row, primaryKey, docId, contentHolder);
+  private static void addPrincipals(Map<String, Object> row, String field,
+      Splitter splitter, List<String> principals) {
+    if (!Util.isNullOrWhitespace(field)) {
+      Object value = row.get(field.trim());
+      if (value != null) {
+        for (String principal : splitter.split(value.toString())) {
+          principals.add(principal);
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,735 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.enterprise.connector.db.DBException;
+import com.google.enterprise.connector.db.DocIdUtil;
+import com.google.enterprise.connector.db.InputStreamFactories;
+import com.google.enterprise.connector.db.InputStreamFactories.ContentOutputStream;
+import com.google.enterprise.connector.db.SpoolManager;
+import com.google.enterprise.connector.db.SqlCollator;
+import com.google.enterprise.connector.db.ValueOrdering;
+import com.google.enterprise.connector.util.InputStreamFactory;
+import com.google.enterprise.connector.util.diffing.DocumentHandle;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.Collator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts database snapshots in the connector, using the docid order of
+ * {@link DocIdUtil#compare}, so that the Traversal SQL Query does not
+ * need an ORDER BY clause.
+ * <p>
+ * The snapshots are collected into runs of a bounded size, and each run
+ * is sorted in memory and written to a file as compact records of the
+ * docid, the serialized snapshot, and a reference to the row. The rows,
+ * without their content, are appended to a separate file, and the
+ * document is rebuilt from the row only if it needs to be sent to the
+ * GSA. Content that cannot be fetched again is stored with the row. The
+ * sorted runs are then merged to produce the snapshots in order.
+ * <p>
+ * This class is not thread-safe.
+ */
+class ExternalSnapshotSorter implements Closeable {
+  private static final Logger LOG =
+      Logger.getLogger(ExternalSnapshotSorter.class.getName());
+
+  private static final String RUN_PREFIX = "run";
+  private static final String ROWS_FILE = "rows";
+
+  /** Rebuilds the document for a row read back from the sort files. */
+  interface DocumentFactory {
+    /**
+     * @param row the row, including any stored content
+     * @param docId the docid of the document, which may be in another
+     *        format than the docid generated from the row
+     * @return the document handle
+     * @throws DBException if the document cannot be built
+     */
+    DocumentHandle getDocumentHandle(Map<String, Object> row, String docId)
+        throws DBException;
+  }
+
+  private final ValueOrdering valueOrdering;
+  private final File directory;
+  private final int runSize;
+  private final boolean docIdMigration;
+  private final String contentField;
+  private final SpoolManager spoolManager;
+  private final DocumentFactory documentFactory;
+  private final Comparator<Record> comparator;
+
+  private final List<Record> records = Lists.newArrayList();
+  private final List<Run> runs = Lists.newArrayList();
+  private final File rowsFile;
+  private DataOutputStream rows;
+  private long rowsLength = 0L;
+  private MergeIterator mergeIterator;
+
+  /** A snapshot in a sorted run. */
+  private static class Record {
+    final String docid;
+    final String serializedForm;
+    final long offset;
+    final long length;
+    final DocIdUtil.Key key;
+
+    Record(ValueOrdering valueOrdering, String docid, String serializedForm,
+        long offset, long length) {
+      this.docid = docid;
+      this.serializedForm = serializedForm;
+      this.offset = offset;
+      this.length = length;
+      this.key = DocIdUtil.getKey(valueOrdering, docid);
+    }
+  }
+
+  /** A sorted run file, and the number of records in it. */
+  private static class Run {
+    final File file;
+    final int size;
+
+    Run(File file, int size) {
+      this.file = file;
+      this.size = size;
+    }
+  }
+
+  /**
+   * @param valueOrdering the ordering used to compare docids
+   * @param directory the directory for the run files, which is emptied
+   *        of any files from a previous sort
+   * @param runSize the maximum number of snapshots sorted in memory
+   * @param docIdMigration whether documents on the GSA keep docids in
+   *        another format
+   * @param contentField the field whose content is stored with the row,
+   *        or {@code null} if the content can be fetched again
+   * @param spoolManager the spool manager for the stored content, or
+   *        {@code null} to use temporary files
+   * @param documentFactory rebuilds the documents from the rows
+   * @throws IOException if the directory or files cannot be created
+   */
+  ExternalSnapshotSorter(final ValueOrdering valueOrdering, File directory,
+      int runSize, boolean docIdMigration, String contentField,
+      SpoolManager spoolManager, DocumentFactory documentFactory)
+      throws IOException {
+    this.valueOrdering = valueOrdering;
+    this.directory = directory;
+    this.runSize = runSize;
+    this.docIdMigration = docIdMigration;
+    this.contentField = contentField;
+    this.spoolManager = spoolManager;
+    this.documentFactory = documentFactory;
+    this.comparator = new Comparator<Record>() {
+        @Override
+        public int compare(Record r1, Record r2) {
+          return DocIdUtil.compare(valueOrdering, r1.key, r2.key);
+        }
+      };
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    File[] oldFiles = directory.listFiles();
+    if (oldFiles != null) {
+      for (File file : oldFiles) {
+        if (!file.delete()) {
+          LOG.warning("Unable to delete old sort file " + file);
+        }
+      }
+    }
+    rowsFile = new File(directory, ROWS_FILE);
+    rows = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(rowsFile)));
+  }
+
+  /**
+   * Adds a snapshot to be sorted. The document is not built, and any
+   * content held by the row is released.
+   *
+   * @param snapshot a snapshot from the database
+   * @throws IOException if the snapshot cannot be written
+   */
+  void add(DBSnapshot snapshot) throws IOException {
+    DocumentBuilder.DocumentHolder holder = snapshot.getDocumentHolder();
+    long offset = rowsLength;
+    CountingOutputStream counter = new CountingOutputStream(rows);
+    try {
+      // The content holder of the document is stored, rather than the
+      // row value, because it may have been replaced with empty content.
+      Map<String, Object> row = holder.row;
+      if (contentField != null) {
+        row = Maps.newLinkedHashMap(row);
+        row.put(contentField, holder.contentHolder);
+      }
+      writeRow(new DataOutputStream(counter), row, contentField);
+    } finally {
+      releaseContent(holder);
+    }
+    rowsLength += counter.getCount();
+    records.add(new Record(valueOrdering, snapshot.getDocumentId(),
+            snapshot.toString(), offset, counter.getCount()));
+    if (records.size() >= runSize) {
+      writeRun();
+    }
+  }
+
+  /** Releases the spooled content of the row, which is no longer needed. */
+  private static void releaseContent(DocumentBuilder.DocumentHolder holder) {
+    if (holder.contentHolder.getContent() instanceof InputStreamFactory) {
+      InputStreamFactories.release(
+          (InputStreamFactory) holder.contentHolder.getContent());
+    }
+    for (Object value : holder.row.values()) {
+      if (value instanceof ContentHolder
+          && ((ContentHolder) value).getContent()
+          instanceof InputStreamFactory) {
+        InputStreamFactories.release(
+            (InputStreamFactory) ((ContentHolder) value).getContent());
+      }
+    }
+  }
+
+  /**
+   * Sorts the records in memory and writes them to a new run file. The
+   * text values of the run are ranked first by a {@link SqlCollator},
+   * so the sort does not need a query for each comparison.
+   */
+  private void writeRun() throws IOException {
+    Collator collator = valueOrdering.getCollator();
+    if (collator instanceof SqlCollator) {
+      List<String> docIds = Lists.newArrayListWithCapacity(records.size());
+      for (Record record : records) {
+        docIds.add(record.docid);
+      }
+      ((SqlCollator) collator).rank(DocIdUtil.getTextValues(docIds));
+    }
+    Collections.sort(records, comparator);
+    File file = new File(directory, RUN_PREFIX + runs.size());
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      for (Record record : records) {
+        writeString(out, record.docid);
+        writeString(out, record.serializedForm);
+        out.writeLong(record.offset);
+        out.writeLong(record.length);
+      }
+    } finally {
+      out.close();
+    }
+    LOG.log(Level.FINE, "Wrote {0} sorted snapshots to {1}",
+        new Object[] { records.size(), file });
+    runs.add(new Run(file, records.size()));
+    records.clear();
+  }
+
+  private static void writeString(DataOutput out, String value)
+      throws IOException {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  // The type tags of the values in a row.
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte BIG_DECIMAL = 5;
+  private static final byte TIMESTAMP = 6;
+  private static final byte DATE = 7;
+  private static final byte TIME = 8;
+  private static final byte BYTES = 9;
+  private static final byte SERIALIZED = 10;
+  private static final byte CONTENT = 11;
+
+  /**
+   * Writes a row. Common JDBC types are written compactly, and other
+   * serializable values are written with Java serialization. Values that
+   * are not serializable are written as strings. Content holders are
+   * omitted, except for the content of the given field, which is
+   * written in full.
+   *
+   * @param out the output
+   * @param row the row
+   * @param contentField the field whose content is written, or
+   *        {@code null}
+   */
+  @VisibleForTesting
+  static void writeRow(DataOutputStream out, Map<String, Object> row,
+      String contentField) throws IOException {
+    int size = 0;
+    for (Object value : row.values()) {
+      if (!(value instanceof ContentHolder)) {
+        size++;
+      }
+    }
+    Object content = (contentField == null) ? null : row.get(contentField);
+    boolean hasContent = content instanceof DigestContentHolder
+        && ((DigestContentHolder) content).getContent()
+        instanceof InputStreamFactory;
+    out.writeInt(hasContent ? size + 1 : size);
+    for (Map.Entry<String, Object> entry : row.entrySet()) {
+      if (!(entry.getValue() instanceof ContentHolder)) {
+        writeString(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    }
+    if (hasContent) {
+      writeString(out, contentField);
+      writeContent(out, (DigestContentHolder) content);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof BigDecimal) {
+      out.writeByte(BIG_DECIMAL);
+      writeString(out, value.toString());
+    } else if (value.getClass() == Timestamp.class) {
+      out.writeByte(TIMESTAMP);
+      out.writeLong(((Timestamp) value).getTime());
+      out.writeInt(((Timestamp) value).getNanos());
+    } else if (value.getClass() == java.sql.Date.class) {
+      out.writeByte(DATE);
+      out.writeLong(((java.sql.Date) value).getTime());
+    } else if (value.getClass() == Time.class) {
+      out.writeByte(TIME);
+      out.writeLong(((Time) value).getTime());
+    } else if (value instanceof byte[]) {
+      out.writeByte(BYTES);
+      out.writeInt(((byte[]) value).length);
+      out.write((byte[]) value);
+    } else if (value instanceof Serializable) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objects = new ObjectOutputStream(bytes);
+      objects.writeObject(value);
+      objects.close();
+      out.writeByte(SERIALIZED);
+      out.writeInt(bytes.size());
+      bytes.writeTo(out);
+    } else {
+      out.writeByte(STRING);
+      writeString(out, value.toString());
+    }
+  }
+
+  /** Writes the MIME type, length, and bytes of the content. */
+  private static void writeContent(DataOutputStream out,
+      DigestContentHolder holder) throws IOException {
+    out.writeByte(CONTENT);
+    writeValue(out, holder.getMimeType());
+    out.writeLong(holder.getLength());
+    InputStream in =
+        ((InputStreamFactory) holder.getContent()).getInputStream();
+    try {
+      long count = ByteStreams.copy(in, out);
+      if (count != holder.getLength()) {
+        throw new IOException("Expected " + holder.getLength()
+            + " bytes of content, but read " + count);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a row written by {@link #writeRow}. Stored content is copied
+   * to a new content holder, which does not depend on the sort files.
+   *
+   * @param in the input
+   * @param spoolManager the spool manager for the content, or
+   *        {@code null} to use temporary files
+   */
+  @VisibleForTesting
+  static Map<String, Object> readRow(DataInputStream in,
+      SpoolManager spoolManager) throws IOException {
+    int size = in.readInt();
+    Map<String, Object> row = Maps.newLinkedHashMap();
+    for (int i = 0; i < size; i++) {
+      String key = readString(in);
+      row.put(key, readValue(in, spoolManager));
+    }
+    return row;
+  }
+
+  private static Object readValue(DataInputStream in,
+      SpoolManager spoolManager) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case DOUBLE:
+        return in.readDouble();
+      case BIG_DECIMAL:
+        return new BigDecimal(readString(in));
+      case TIMESTAMP:
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        return timestamp;
+      case DATE:
+        return new java.sql.Date(in.readLong());
+      case TIME:
+        return new Time(in.readLong());
+      case BYTES:
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+      case SERIALIZED:
+        byte[] serialized = new byte[in.readInt()];
+        in.readFully(serialized);
+        ObjectInputStream objects =
+            new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+          return objects.readObject();
+        } catch (ClassNotFoundException e) {
+          throw new IOException("Unable to read a sorted row value", e);
+        } finally {
+          objects.close();
+        }
+      case CONTENT:
+        return readContent(in, spoolManager);
+      default:
+        throw new IOException("Invalid sorted row value type: " + type);
+    }
+  }
+
+  private static DigestContentHolder readContent(DataInputStream in,
+      SpoolManager spoolManager) throws IOException {
+    String mimeType = (String) readValue(in, spoolManager);
+    long length = in.readLong();
+    // The checksum of a rebuilt row is not compared with the snapshots,
+    // so the digest is always a sequential SHA-1 digest.
+    MessageDigest digest = DigestFactory.SHA1.newDigest();
+    ContentOutputStream out =
+        InputStreamFactories.newOutputStream(spoolManager, length, mimeType);
+    boolean done = false;
+    try {
+      long count = ByteStreams.copy(ByteStreams.limit(in, length),
+          new DigestOutputStream(out, digest));
+      if (count != length) {
+        throw new IOException("Expected " + length
+            + " bytes of content, but read " + count);
+      }
+      DigestContentHolder holder = DigestContentHolder.getInstance(
+          out.getInputStreamFactory(), mimeType, length, digest);
+      done = true;
+      return holder;
+    } finally {
+      if (!done) {
+        out.discard();
+      }
+    }
+  }
+
+  /**
+   * Merges the sorted runs. No more snapshots may be added. The files are
+   * deleted when the returned iterator is exhausted, or when this sorter
+   * is closed.
+   *
+   * @return an iterator over the sorted snapshots
+   * @throws IOException if the runs cannot be read
+   */
+  Iterator<DocumentSnapshot> merge() throws IOException {
+    if (!records.isEmpty()) {
+      writeRun();
+    }
+    rows.close();
+    LOG.info("Merging " + runs.size() + " sorted runs of snapshots");
+    mergeIterator = new MergeIterator();
+    return mergeIterator;
+  }
+
+  /**
+   * Closes the sort files and deletes them. The iterator from
+   * {@link #merge} may not be used after the sorter is closed.
+   */
+  @Override
+  public void close() {
+    try {
+      rows.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to close the sort files.", e);
+    }
+    if (mergeIterator != null) {
+      mergeIterator.close();
+    }
+    for (Run run : runs) {
+      run.file.delete();
+    }
+    rowsFile.delete();
+  }
+
+  /** Reads the records of one sorted run, in order. */
+  private class RunReader {
+    private final int index;
+    private final DataInputStream in;
+    private int remaining;
+    private Record head;
+
+    RunReader(int index, Run run) throws IOException {
+      this.index = index;
+      this.in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(run.file)));
+      this.remaining = run.size;
+    }
+
+    /** Reads the next record into {@code head}, returning false at EOF. */
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        head = null;
+        in.close();
+        return false;
+      }
+      remaining--;
+      head = new Record(valueOrdering, readString(in), readString(in),
+          in.readLong(), in.readLong());
+      return true;
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** A k-way merge of the sorted runs. */
+  private class MergeIterator extends AbstractIterator<DocumentSnapshot>
+      implements Closeable {
+    private final PriorityQueue<RunReader> queue;
+    private final FileChannel channel;
+
+    MergeIterator() throws IOException {
+      // Equal docids are returned in run order, to keep the sort stable.
+      queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()),
+          new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader r1, RunReader r2) {
+              int result = comparator.compare(r1.head, r2.head);
+              return (result == 0) ? r1.index - r2.index : result;
+            }
+          });
+      boolean done = false;
+      try {
+        for (int i = 0; i < runs.size(); i++) {
+          RunReader reader = new RunReader(i, runs.get(i));
+          if (reader.advance()) {
+            queue.add(reader);
+          }
+        }
+        channel = new RandomAccessFile(rowsFile, "r").getChannel();
+        done = true;
+      } finally {
+        if (!done) {
+          closeReaders();
+        }
+      }
+    }
+
+    @Override
+    protected DocumentSnapshot computeNext() {
+      boolean done = false;
+      try {
+        RunReader reader = queue.poll();
+        if (reader == null) {
+          ExternalSnapshotSorter.this.close();
+          done = true;
+          return endOfData();
+        }
+        Record record = reader.head;
+        if (reader.advance()) {
+          queue.add(reader);
+        }
+        done = true;
+        return new DBSnapshot(valueOrdering, record.docid,
+            record.serializedForm, new SortedDocumentHolder(channel,
+                record.offset, record.length, record.docid,
+                docIdMigration, spoolManager, documentFactory));
+      } catch (IOException e) {
+        throw new SnapshotRepositoryRuntimeException(
+            "Unable to read the sorted snapshots.", e);
+      } finally {
+        if (!done) {
+          ExternalSnapshotSorter.this.close();
+        }
+      }
+    }
+
+    private void closeReaders() {
+      for (RunReader reader : queue) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to close the sort files.", e);
+        }
+      }
+      queue.clear();
+    }
+
+    @Override
+    public void close() {
+      closeReaders();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to close the sort files.", e);
+      }
+    }
+  }
+
+  /** Reads the row from the rows file, and rebuilds the document. */
+  private static class SortedDocumentHolder
+      extends DocumentBuilder.DocumentHolder {
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final SpoolManager spoolManager;
+    private final DocumentFactory documentFactory;
+
+    SortedDocumentHolder(FileChannel channel, long offset, long length,
+        String docId, boolean docIdMigration, SpoolManager spoolManager,
+        DocumentFactory documentFactory) {
+      super(null, null, null, docId, null, docIdMigration);
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+      this.spoolManager = spoolManager;
+      this.documentFactory = documentFactory;
+    }
+
+    @Override
+    public DocumentBuilder.DocumentHolder withDocId(String newDocId) {
+      return new SortedDocumentHolder(channel, offset, length, newDocId,
+          docIdMigration, spoolManager, documentFactory);
+    }
+
+    @Override
+    public DocumentHandle getDocumentHandle() throws DBException {
+      Map<String, Object> row;
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ChannelInputStream(channel, offset, length)));
+        row = readRow(in, spoolManager);
+      } catch (IOException e) {
+        throw new DBException("Unable to read the row for " + docId, e);
+      }
+      return documentFactory.getDocumentHandle(row, docId);
+    }
+  }
+
+  /**
+   * Reads a range of a file channel with positional reads, which do not
+   * change the position of the channel.
+   */
+  private static class ChannelInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    ChannelInputStream(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position == end) {
+        return -1;
+      }
+      int count = channel.read(ByteBuffer.wrap(b, off,
+              (int) Math.min(len, end - position)), position);
+      if (count < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      position += count;
+      return count;
+    }
+  }
+}
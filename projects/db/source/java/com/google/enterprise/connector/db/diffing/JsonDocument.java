@@ -30,13 +30,15 @@ import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.util.InputStreamFactory;
 import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONWriter;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
@@ -90,47 +92,82 @@ public class JsonDocument implements Document {
   }
 
   public String toJson() {
-    // JSON does not support custom serialization, so we have to find
-    // the InputStreamFactory for the content and serialize it
-    // ourselves. This could be cleaner if we supported toString on the
-    // InputStreamFactory implementations, but that would mean less
-    // control over when the LOB was materialized in memory.
     try {
       StringWriter buffer = new StringWriter();
-      JSONWriter writer = new JSONWriter(buffer);
-      writer.object();
-      for (String name : JSONObject.getNames(jsonObject)) {
-        writer.key(name).value(toJson(name, jsonObject.get(name)));
-      }
-      writer.endObject();
+      writeJson(buffer);
       return buffer.toString();
     } catch (IOException e) {
       throw new SnapshotRepositoryRuntimeException(
           "Error serializing document " + objectId, e);
-    } catch (JSONException e) {
-      throw new SnapshotRepositoryRuntimeException(
-          "Error serializing document " + objectId, e);
     }
   }
 
   /**
-   * Serializes the given value. This always returns the value itself,
-   * unless it is an {@code InputStreamFactory} for the google:content
-   * property, in which case we Base64 encode it.
+   * Writes the document as a JSON object. The content is Base64 encoded
+   * as it is written, so it is never held in memory as a string.
+   *
+   * @param out the writer, which is not closed
+   * @throws IOException if the content cannot be read or written
    */
-  private Object toJson(String name, Object input) throws IOException {
-    if (name.equals(SpiConstants.PROPNAME_CONTENT)) {
-      if (input instanceof String) {
-        return input;
-      } else if (input instanceof InputStreamFactory) {
-        return InputStreamFactories.toBase64String((InputStreamFactory) input);
-      } else {
-        LOG.warning("Unexpected content object class: "
-            + input.getClass().getName());
-        return input;
+  public void writeJson(Writer out) throws IOException {
+    // JSON does not support custom serialization, so we have to find
+    // the InputStreamFactory for the content and serialize it
+    // ourselves. This could be cleaner if we supported toString on the
+    // InputStreamFactory implementations, but that would mean less
+    // control over when the LOB was materialized in memory.
+    Object content = jsonObject.opt(SpiConstants.PROPNAME_CONTENT);
+    if (content != null && !(content instanceof String)
+        && !(content instanceof InputStreamFactory)) {
+      LOG.warning("Unexpected content object class: "
+          + content.getClass().getName());
+    }
+    if (!(content instanceof InputStreamFactory)) {
+      out.write(toJson(jsonObject));
+      return;
+    }
+
+    // Write the other properties, and then stream the content at the end.
+    List<String> names = new ArrayList<String>();
+    for (String name : JSONObject.getNames(jsonObject)) {
+      if (!name.equals(SpiConstants.PROPNAME_CONTENT)) {
+        names.add(name);
       }
-    } else {
-      return input;
+    }
+    String json;
+    try {
+      json = toJson(new JSONObject(jsonObject,
+              names.toArray(new String[names.size()])));
+    } catch (JSONException e) {
+      throw new IOException("Error serializing document " + objectId, e);
+    }
+    out.write(json, 0, json.length() - 1);
+    if (!names.isEmpty()) {
+      out.write(',');
+    }
+    out.write(JSONObject.quote(SpiConstants.PROPNAME_CONTENT));
+    out.write(":\"");
+    InputStreamFactories.writeBase64((InputStreamFactory) content, out);
+    out.write("\"}");
+  }
+
+  /** Serializes a JSON object, which must not hold any content. */
+  private String toJson(JSONObject jo) throws IOException {
+    // JSONObject.toString returns null on errors.
+    String json = jo.toString();
+    if (json == null) {
+      throw new IOException("Error serializing document " + objectId);
+    }
+    return json;
+  }
+
+  /**
+   * Releases any spooled content held by this document. The content
+   * cannot be read after the document is released.
+   */
+  public void release() {
+    Object content = jsonObject.opt(SpiConstants.PROPNAME_CONTENT);
+    if (content instanceof InputStreamFactory) {
+      InputStreamFactories.release((InputStreamFactory) content);
     }
   }
 
@@ -159,13 +196,20 @@ public class JsonDocument implements Document {
   }
 
   /**
-   * Copies a string-valued attribute from a JSONObject to a map of SPI
-   * Value objects.
+   * Copies a string-valued attribute, or an array of strings, from a
+   * JSONObject to a map of SPI Value objects.
    */
   private static void extractAttribute(JSONObject jo,
       ImmutableMap.Builder<String, List<Value>> mapBuilder, String key) {
     try {
-      if (!jo.isNull(key)) {
+      JSONArray array = jo.optJSONArray(key);
+      if (array != null) {
+        ImmutableList.Builder<Value> values = ImmutableList.builder();
+        for (int i = 0; i < array.length(); i++) {
+          values.add(Value.getStringValue(array.getString(i)));
+        }
+        mapBuilder.put(key, values.build());
+      } else if (!jo.isNull(key)) {
         mapBuilder.put(key,
             ImmutableList.of(Value.getStringValue(jo.getString(key))));
       }
@@ -198,18 +242,26 @@ public class JsonDocument implements Document {
    * decoded value into an InputStreamFactory that minimizes memory
    * usage. If the google:content value is not Base64-encoded, it is
    * converted to bytes using UTF-8. The value in the JSONObject is
-   * also replaced by the new value to save memory.
+   * also replaced by the new value to save memory. A value that has
+   * already been decoded is used as is.
    */
   private static void extractContent(JSONObject jo,
       ImmutableMap.Builder<String, List<Value>> mapBuilder) {
     try {
+      Object decoded = jo.get(SpiConstants.PROPNAME_CONTENT);
+      if (decoded instanceof InputStreamFactory) {
+        mapBuilder.put(SpiConstants.PROPNAME_CONTENT, ImmutableList.of(
+            Value.getBinaryValue(InputStreamFactories.releaseOnClose(
+                (InputStreamFactory) decoded))));
+        return;
+      }
       String content = jo.getString(SpiConstants.PROPNAME_CONTENT);
       List<Value> values;
       if (Strings.isNullOrEmpty(content)) {
         values = null;
       } else {
-        InputStreamFactory factory =
-            InputStreamFactories.fromBase64String(content);
+        InputStreamFactory factory = InputStreamFactories.fromBase64String(
+            content, jo.optString(SpiConstants.PROPNAME_MIMETYPE, null));
         jo.put(SpiConstants.PROPNAME_CONTENT, factory);
         values = ImmutableList.of(Value.getBinaryValue(factory));
       }
@@ -15,14 +15,17 @@
 package com.google.enterprise.connector.db.diffing;
 
 import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.db.InputStreamFactories;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.util.InputStreamFactory;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.sql.Timestamp;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -82,6 +85,30 @@ public class JsonObjectUtil {
     }
   }
 
+  /**
+   * Sets a multi-valued property for JSONObject. If the collection is
+   * empty this does nothing.
+   *
+   * @param propertyName
+   * @param propertyValues
+   */
+  public void setProperty(String propertyName,
+      Collection<String> propertyValues) {
+    if (!propertyValues.isEmpty()) {
+      ImmutableList.Builder<Value> values = ImmutableList.builder();
+      for (String propertyValue : propertyValues) {
+        values.add(Value.getStringValue(propertyValue));
+      }
+      properties.put(propertyName, values.build());
+      try {
+        jsonObject.put(propertyName, new JSONArray(propertyValues));
+      } catch (JSONException e) {
+        LOG.warning("Exception for " + propertyName + " with value "
+            + propertyValues + "\n" + e.toString());
+      }
+    }
+  }
+
   /**
    * Adds the last modified date property to the JSON Object.
    *
@@ -116,7 +143,8 @@ public class JsonObjectUtil {
       return;
     }
     properties.put(propertyName,
-        ImmutableList.of(Value.getBinaryValue(propertyValue)));
+        ImmutableList.of(Value.getBinaryValue(
+            InputStreamFactories.releaseOnClose(propertyValue))));
     try {
       jsonObject.put(propertyName, propertyValue);
     } catch (JSONException e) {
@@ -18,21 +18,22 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Maps;
 import com.google.enterprise.connector.db.DBContext;
 import com.google.enterprise.connector.db.DBException;
+import com.google.enterprise.connector.db.Utf8Transcoder;
 import com.google.enterprise.connector.db.Util;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.util.InputStreamFactory;
 import com.google.enterprise.connector.util.MimeTypeDetector;
 
-import java.io.CharArrayReader;
 import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.CharBuffer;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -47,8 +48,9 @@ class LobDocumentBuilder extends DocumentBuilder {
   private final TraversalContext context;
 
   /**
-   * Maximum document size that connector manager supports, or the
-   * maximum size of a byte array (~2 GB), whichever is smaller.
+   * Maximum document size that connector manager supports. Content read
+   * into a byte array is also limited to about 2 GB, but content read in
+   * chunks by LobTypeHandler is not.
    */
   private final long maxDocSize;
 
@@ -58,7 +60,7 @@ class LobDocumentBuilder extends DocumentBuilder {
     super(dbContext);
 
     this.context = context;
-    this.maxDocSize = Math.min(context.maxDocumentSize(), Integer.MAX_VALUE);
+    this.maxDocSize = context.maxDocumentSize();
   }
 
   private byte[] getBinaryContent(Object largeObject, String docId)
@@ -87,30 +89,23 @@ class LobDocumentBuilder extends DocumentBuilder {
       }
       LOG.info("BLOB Data found");
     } else {
-      // Get the value of CLOB as StringBuilder. iBATIS returns char array or
+      // Encode the CLOB as UTF-8. iBATIS returns char array or
       // String for CLOB data depending upon Database.
-      long length;
-      Reader clobReader;
+      Utf8Transcoder transcoder = Utf8Transcoder.getInstance();
       if (largeObject instanceof char[]) {
-        length = ((char[]) largeObject).length;
-        clobReader = new CharArrayReader((char[]) largeObject);
-      } else if (largeObject instanceof String) {
-        length = ((String) largeObject).length();
-        clobReader = new StringReader((String) largeObject);
+        binaryContent =
+            transcoder.toByteArray(CharBuffer.wrap((char[]) largeObject));
       } else if (largeObject instanceof Clob) {
-        length = ((Clob) largeObject).length();
-        clobReader = ((Clob) largeObject).getCharacterStream();
-      } else {
-        // It's not a CLOB, but we'll include it anyway.
-        String value = largeObject.toString();
-        length = value.length();
-        clobReader = new StringReader(value);
-      }
-
-      if (clobReader != null) {
-        binaryContent = Util.getBytes((int) length, clobReader);
+        long length = ((Clob) largeObject).length();
+        Reader clobReader = ((Clob) largeObject).getCharacterStream();
+        if (clobReader != null) {
+          binaryContent = Util.getBytes((int) length, clobReader);
+        } else {
+          binaryContent = null;
+        }
       } else {
-        binaryContent = null;
+        // A String, or it's not a CLOB, but we'll include it anyway.
+        binaryContent = transcoder.toByteArray(largeObject.toString());
       }
 
       LOG.info("CLOB Data found");
@@ -150,10 +145,17 @@ class LobDocumentBuilder extends DocumentBuilder {
       holder = (DigestContentHolder) largeObject;
     } else {
       // TODO(jlacey): This should be dead code with the LOB TypeHandler.
+      String mimeType = getString(row, dbContext.getMimeTypeField());
       holder = DigestContentHolder.getInstance(getBytes(largeObject, docId),
-          mimeTypeDetector);
+          mimeTypeDetector,
+          (mimeType == null) ? null : mimeType.toLowerCase(Locale.ENGLISH),
+          getString(row, dbContext.getFileNameField()),
+          dbContext.getSpoolManager(), dbContext.getDigestFactory());
     }
 
+    // LobTypeHandler skips most oversized and unsupported BLOBs and CLOBs
+    // before reading them. These checks catch the rest, such as a CLOB
+    // whose UTF-8 encoding is longer than its length in characters.
     if (holder.getLength() > maxDocSize) {
       LOG.warning("Size of the document '" + docId
                   + "' is larger than supported");
@@ -195,6 +197,8 @@ class LobDocumentBuilder extends DocumentBuilder {
       jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ISPUBLIC, "false");
     }
 
+    setAcl(jsonObjectUtil, holder);
+
     jsonObjectUtil.setBinaryContent(SpiConstants.PROPNAME_CONTENT,
         (InputStreamFactory) holder.contentHolder.getContent());
     jsonObjectUtil.setProperty(SpiConstants.PROPNAME_MIMETYPE,
@@ -218,6 +222,7 @@ class LobDocumentBuilder extends DocumentBuilder {
     jsonObjectUtil.setProperty(SpiConstants.PROPNAME_DISPLAYURL, displayUrl);
 
     skipLastModified(skipColumns, dbContext);
+    skipAclColumns(skipColumns);
     skipColumns.addAll(holder.primaryKey);
     setLastModified(holder.row, jsonObjectUtil, dbContext);
     setMetaInfo(jsonObjectUtil, holder.row, skipColumns);
@@ -226,6 +231,18 @@ class LobDocumentBuilder extends DocumentBuilder {
      jsonObjectUtil.getJsonObject());
   }
 
+  /**
+   * Gets the trimmed value of a column, or {@code null} if the column is
+   * not configured or the value is null or empty.
+   */
+  private static String getString(Map<String, Object> row, String field) {
+    if (field == null) {
+      return null;
+    }
+    Object value = row.get(field);
+    return (value == null) ? null : Util.nullOrTrimmed(value.toString());
+  }
+
   /**
    * Returns a filtered Map of the row with the LOB field filtered out.
    *
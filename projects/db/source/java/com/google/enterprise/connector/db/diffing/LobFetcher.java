@@ -0,0 +1,161 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.db.DBClient;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the LOB field for a batch of rows with the LOB fetch query,
+ * running several queries at once on separate connections. The rows are
+ * returned in their original order, each with its LOB value. No more
+ * fetches are started while the fetched LOBs that have not been returned
+ * exceed a limit, except for the next row to be returned.
+ */
+class LobFetcher {
+  private static final Logger LOG =
+      Logger.getLogger(LobFetcher.class.getName());
+
+  private final DBClient dbClient;
+  private final String lobField;
+  private final int threads;
+  private final long maxBytes;
+
+  /** The executor for the LOB queries, created on first use. */
+  private ExecutorService executor;
+
+  /**
+   * @param dbClient the client used to run the LOB fetch query
+   * @param lobField the name of the LOB field
+   * @param threads the number of concurrent queries
+   * @param maxBytes the limit on fetched bytes that have not been returned
+   */
+  LobFetcher(DBClient dbClient, String lobField, int threads,
+      long maxBytes) {
+    this.dbClient = dbClient;
+    this.lobField = lobField;
+    this.threads = Math.max(threads, 1);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Fetches the LOB values for the given rows, ahead of the iteration.
+   * The LOB value is put into each row before it is returned.
+   *
+   * @param rows the rows of the traversal query
+   * @return an iterator over the same rows, in the same order
+   * @throws SnapshotRepositoryRuntimeException from the iterator if a
+   *         query fails, so that the documents are not sent without
+   *         their content
+   */
+  Iterator<Map<String, Object>> fetch(final List<Map<String, Object>> rows) {
+    final ExecutorService executor = getExecutor();
+    final List<Future<Object>> futures =
+        new ArrayList<Future<Object>>(rows.size());
+    // The number of bytes fetched but not yet returned.
+    final AtomicLong inFlightBytes = new AtomicLong();
+    return new AbstractIterator<Map<String, Object>>() {
+      private int next = 0;
+
+      @Override
+      protected Map<String, Object> computeNext() {
+        if (next == rows.size()) {
+          return endOfData();
+        }
+        // Keep the pool busy, within the memory limit.
+        int lookahead = 2 * threads;
+        while (futures.size() < rows.size()
+            && (futures.size() == next || (futures.size() - next < lookahead
+                && inFlightBytes.get() < maxBytes))) {
+          final Map<String, Object> row = rows.get(futures.size());
+          futures.add(executor.submit(new Callable<Object>() {
+              @Override
+              public Object call() {
+                Object lob = dbClient.executeLobQuery(row);
+                inFlightBytes.addAndGet(getLength(lob));
+                return lob;
+              }
+            }));
+        }
+
+        Object lob;
+        try {
+          lob = futures.get(next).get();
+        } catch (ExecutionException e) {
+          cancel();
+          Throwable cause = e.getCause();
+          if (cause instanceof SnapshotRepositoryRuntimeException) {
+            throw (SnapshotRepositoryRuntimeException) cause;
+          }
+          throw new SnapshotRepositoryRuntimeException(
+              "Could not fetch the LOB for " + rows.get(next), cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          cancel();
+          throw new SnapshotRepositoryRuntimeException(
+              "Interrupted while fetching LOBs", e);
+        }
+        inFlightBytes.addAndGet(-getLength(lob));
+        futures.set(next, null);
+        Map<String, Object> row = rows.get(next++);
+        row.put(lobField, lob);
+        return row;
+      }
+
+      /** Cancels the remaining fetches. */
+      private void cancel() {
+        for (Future<Object> future : futures.subList(next, futures.size())) {
+          future.cancel(true);
+        }
+        LOG.log(Level.FINE, "Cancelled {0} LOB fetches",
+            futures.size() - next);
+      }
+    };
+  }
+
+  private static long getLength(Object lob) {
+    return (lob instanceof DigestContentHolder)
+        ? ((DigestContentHolder) lob).getLength() : 0L;
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+          60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("LobFetcher-%d").build());
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+}
@@ -60,7 +60,8 @@ class MetadataDocumentBuilder extends DocumentBuilder {
     byte[] original = xml.getBytes(Charsets.UTF_8);
     byte[] output = Base64.encode(
         original, 0, original.length, Base64.ALPHABET, Integer.MAX_VALUE);
-    return InputStreamFactories.newInstance(output);
+    return InputStreamFactories.newInstance(dbContext.getSpoolManager(),
+        output, MIMETYPE);
   }
 
   /**
@@ -91,6 +92,8 @@ class MetadataDocumentBuilder extends DocumentBuilder {
       jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ISPUBLIC, "false");
     }
 
+    setAcl(jsonObjectUtil, holder);
+
     jsonObjectUtil.setProperty(SpiConstants.PROPNAME_MIMETYPE,
                                holder.contentHolder.getMimeType());
 
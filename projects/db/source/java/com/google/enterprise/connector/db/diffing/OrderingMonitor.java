@@ -0,0 +1,131 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the snapshots from the database are in increasing docid
+ * order. The diffing library merges the database snapshots with the
+ * snapshots sent to the GSA, assuming that both are sorted by docid. If
+ * the ORDER BY clause of the Traversal SQL Query does not match the
+ * {@code Collator}, a docid that is out of order looks like a deleted
+ * document, followed later by a new document.
+ * <p>
+ * The snapshots are checked as they are read during each traversal, by
+ * {@link RepositoryHandlerIterator}. The same check can be run offline
+ * against the whole table, using {@link #verify}.
+ */
+public class OrderingMonitor {
+  private static final Logger LOG =
+      Logger.getLogger(OrderingMonitor.class.getName());
+
+  /** The maximum number of out of order pairs kept as examples. */
+  private static final int MAX_EXAMPLES = 10;
+
+  private final int maxInversions;
+  private final List<String> examples = Lists.newArrayList();
+  private DBSnapshot previous = null;
+  private int count = 0;
+  private int inversions = 0;
+
+  /**
+   * Checks the order of the docids of all of the rows in the database,
+   * without sending any documents to the GSA. Only the docids are read,
+   * so the documents are not built and the LOBs are not read.
+   *
+   * @param repositoryHandler the source of the database rows
+   * @return a monitor holding the results of the check
+   * @throws SnapshotRepositoryRuntimeException if the rows cannot be read
+   */
+  public static OrderingMonitor verify(RepositoryHandler repositoryHandler)
+      throws SnapshotRepositoryRuntimeException {
+    OrderingMonitor monitor = new OrderingMonitor(-1);
+    repositoryHandler.checkOrder(monitor);
+    monitor.logSummary();
+    return monitor;
+  }
+
+  /**
+   * @param maxInversions the number of out of order snapshots allowed in
+   *        a traversal, or a negative number for no limit
+   */
+  public OrderingMonitor(int maxInversions) {
+    this.maxInversions = maxInversions;
+  }
+
+  /**
+   * Checks the order of the next snapshot. Only {@link DBSnapshot}s are
+   * checked.
+   *
+   * @param snapshot the next snapshot
+   * @return {@code true} if the traversal may continue, or {@code false}
+   *         if the number of out of order snapshots exceeds the maximum
+   */
+  public boolean check(DocumentSnapshot snapshot) {
+    if (!(snapshot instanceof DBSnapshot)) {
+      return true;
+    }
+    DBSnapshot current = (DBSnapshot) snapshot;
+    count++;
+    if (previous != null && previous.compareTo(current) >= 0) {
+      inversions++;
+      String example =
+          previous.getDocumentId() + " >= " + current.getDocumentId();
+      if (examples.size() < MAX_EXAMPLES) {
+        examples.add(example);
+        LOG.log(Level.WARNING, "Database snapshots out of order: {0}",
+            example);
+      } else {
+        LOG.log(Level.FINE, "Database snapshots out of order: {0}", example);
+      }
+    }
+    previous = current;
+    return maxInversions < 0 || inversions <= maxInversions;
+  }
+
+  /** Returns the number of snapshots checked. */
+  public int getCount() {
+    return count;
+  }
+
+  /** Returns the number of snapshots that were out of order. */
+  public int getInversions() {
+    return inversions;
+  }
+
+  /** Returns the first few out of order pairs of docids. */
+  public List<String> getExamples() {
+    return ImmutableList.copyOf(examples);
+  }
+
+  /** Logs the results at the end of a traversal. */
+  public void logSummary() {
+    if (inversions > 0) {
+      LOG.warning(inversions + " of " + count + " database snapshots were "
+          + "out of order. The ORDER BY clause of the Traversal SQL Query "
+          + "may not match the collator. Examples: " + examples);
+    } else {
+      LOG.fine("All " + count + " database snapshots were in order.");
+    }
+  }
+}
@@ -19,11 +19,23 @@ import com.google.common.collect.Lists;
 import com.google.enterprise.connector.db.DBClient;
 import com.google.enterprise.connector.db.DBContext;
 import com.google.enterprise.connector.db.DBException;
+import com.google.enterprise.connector.db.DocIdUtil;
+import com.google.enterprise.connector.db.LobTypeHandler;
+import com.google.enterprise.connector.db.SqlCollator;
+import com.google.enterprise.connector.db.Util;
 import com.google.enterprise.connector.spi.TraversalContext;
+import com.google.enterprise.connector.util.diffing.DocumentHandle;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 import com.google.enterprise.connector.util.diffing.TraversalContextManager;
 
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,14 +49,23 @@ import java.util.logging.Logger;
 public class RepositoryHandler {
   private static final Logger LOG = Logger.getLogger(RepositoryHandler.class.getName());
 
+  /** The subdirectory of the connector work directory for sort files. */
+  private static final String SORT_DIRECTORY = "sort";
+
   private final DBContext dbContext;
   private final DBClient dbClient;
   private final TraversalContextManager traversalContextManager;
   private final QueryStrategy queryStrategy;
 
+  /** Fetches the LOBs with the LOB fetch query, or null if there is none. */
+  private final LobFetcher lobFetcher;
+
   private TraversalContext traversalContext;
   private DocumentBuilder docBuilder;
 
+  /** The sorter of the last traversal, or null if it was not sorted. */
+  private ExternalSnapshotSorter sorter;
+
   public static RepositoryHandler makeRepositoryHandlerFromConfig(
       DBContext dbContext, TraversalContextManager traversalContextManager) {
     return new RepositoryHandler(dbContext, traversalContextManager);
@@ -58,6 +79,14 @@ public class RepositoryHandler {
 
     queryStrategy = (dbContext.isParameterizedQueryFlag())
         ? new ParameterizedQueryStrategy() : new PartialQueryStrategy();
+
+    if (!Util.isNullOrWhitespace(dbContext.getLobQuery())
+        && !Util.isNullOrWhitespace(dbContext.getLobField())) {
+      lobFetcher = new LobFetcher(dbClient, dbContext.getLobField(),
+          dbContext.getLobFetchThreads(), dbContext.getLobFetchMaxBytes());
+    } else {
+      lobFetcher = null;
+    }
   }
 
   private interface QueryStrategy {
@@ -151,6 +180,27 @@ public class RepositoryHandler {
     }
   }
 
+  /**
+   * Returns true if the snapshots should be sorted by the connector,
+   * using {@link #executeQueryAndSortDocs}.
+   */
+  public boolean isConnectorSort() {
+    return dbContext.isConnectorSort();
+  }
+
+  /**
+   * Returns the number of out of order snapshots that will stop a
+   * traversal, or a negative number for no limit.
+   */
+  public int getMaxOrderingInversions() {
+    return dbContext.getMaxOrderingInversions();
+  }
+
+  /** Restarts the traversal from the beginning on the next query. */
+  public void resetCursor() {
+    queryStrategy.resetCursor();
+  }
+
   /**
    * Function for fetching database rows and providing a collection of
    * snapshots.
@@ -178,37 +228,231 @@ public class RepositoryHandler {
       queryStrategy.updateCursor(rows);
     }
 
+    initDocumentBuilder();
+
+    List<DocumentSnapshot> docList = getDocList(rows);
+    rankTextValues(docList);
+    return docList;
+  }
+
+  /**
+   * Sorts the text values in the docids using a database query per
+   * chunk of values, if the collator is a {@link SqlCollator}, so that
+   * comparing them to the snapshots does not require a query per
+   * comparison. The values from the GSA snapshots are ranked by the
+   * collator as they are compared.
+   */
+  private void rankTextValues(List<DocumentSnapshot> docList) {
+    Collator collator = dbContext.getCollator();
+    if (collator instanceof SqlCollator && docList.size() > 0) {
+      List<String> docIds = Lists.newArrayListWithCapacity(docList.size());
+      for (DocumentSnapshot snapshot : docList) {
+        docIds.add(snapshot.getDocumentId());
+      }
+      ((SqlCollator) collator).rank(DocIdUtil.getTextValues(docIds));
+    }
+  }
+
+  /**
+   * Checks the order of the docids of all of the database rows, in a
+   * single query, without building the documents or reading the LOBs.
+   * The check does not stop at the monitor's limit.
+   *
+   * @param monitor the monitor that checks the docids
+   */
+  void checkOrder(final OrderingMonitor monitor)
+      throws SnapshotRepositoryRuntimeException {
+    dbClient.executeKeysQuery(new ResultHandler() {
+        @Override
+        public void handleResult(ResultContext context) {
+          @SuppressWarnings("unchecked") Map<String, Object> row =
+              (Map<String, Object>) context.getResultObject();
+          String docId;
+          try {
+            docId = DocIdUtil.generateDocId(
+                dbContext.getPrimaryKeyColumns(row.keySet()), row,
+                dbContext.getDocIdVersion());
+          } catch (DBException e) {
+            throw new SnapshotRepositoryRuntimeException(
+                "Unable to generate the docid for a row.", e);
+          }
+          // Only the docid is compared, so there is no checksum.
+          monitor.check(new DBSnapshot(dbContext, docId,
+              DBSnapshot.getSerializedForm(DBSnapshot.SHA1_VERSION, docId,
+                  ""), null));
+        }
+      });
+  }
+
+  /**
+   * Fetches all of the database rows in a single query, and sorts the
+   * snapshots in the connector rather than relying on an ORDER BY
+   * clause in the Traversal SQL Query.
+   *
+   * @return an iterator over the sorted snapshots
+   */
+  public Iterator<DocumentSnapshot> executeQueryAndSortDocs()
+      throws SnapshotRepositoryRuntimeException {
+    initDocumentBuilder();
+
+    if (sorter != null) {
+      // Delete the files of an earlier sort that was not completed.
+      sorter.close();
+      sorter = null;
+    }
+    // Content that cannot be fetched again with the LOB fetch query is
+    // stored in the sort files.
+    String contentField =
+        (docBuilder instanceof LobDocumentBuilder && lobFetcher == null)
+        ? dbContext.getLobField() : null;
+    final ExternalSnapshotSorter sorter;
+    try {
+      sorter = new ExternalSnapshotSorter(dbContext,
+          new File(dbContext.getGoogleConnectorWorkDir(), SORT_DIRECTORY),
+          dbContext.getSortRunSize(), dbContext.isDocIdMigration(),
+          contentField, dbContext.getSpoolManager(),
+          new ExternalSnapshotSorter.DocumentFactory() {
+            @Override
+            public DocumentHandle getDocumentHandle(Map<String, Object> row,
+                String docId) throws DBException {
+              return getSortedDocumentHandle(row, docId);
+            }
+          });
+    } catch (IOException e) {
+      throw new SnapshotRepositoryRuntimeException(
+          "Unable to create the sort files.", e);
+    }
+    boolean done = false;
+    try {
+      final int[] count = { 0 };
+      final List<Map<String, Object>> batch = Lists.newArrayList();
+      dbClient.executeQuery(new ResultHandler() {
+          @Override
+          public void handleResult(ResultContext context) {
+            @SuppressWarnings("unchecked") Map<String, Object> row =
+                (Map<String, Object>) context.getResultObject();
+            if (lobFetcher == null) {
+              count[0] += addSnapshot(sorter, row);
+            } else {
+              // Fetch the LOBs for a batch of rows concurrently.
+              batch.add(row);
+              if (batch.size() >= dbContext.getNumberOfRows()) {
+                count[0] += addBatch(sorter, batch);
+              }
+            }
+          }
+        });
+      if (!batch.isEmpty()) {
+        count[0] += addBatch(sorter, batch);
+      }
+      LOG.info(count[0] + " document(s) sorted for the GSA");
+
+      Iterator<DocumentSnapshot> snapshots = sorter.merge();
+      this.sorter = sorter;
+      done = true;
+      return snapshots;
+    } catch (IOException e) {
+      throw new SnapshotRepositoryRuntimeException(
+          "Unable to read the sort files.", e);
+    } finally {
+      if (!done) {
+        sorter.close();
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the document for a sorted row, which is only done if the
+   * document needs to be sent to the GSA. The LOB is fetched again if
+   * there is a LOB fetch query.
+   */
+  private DocumentHandle getSortedDocumentHandle(Map<String, Object> row,
+      String docId) throws DBException {
+    if (lobFetcher != null) {
+      row.put(dbContext.getLobField(), dbClient.executeLobQuery(row));
+    }
+    DBSnapshot snapshot = (DBSnapshot) docBuilder.getDocumentSnapshot(row);
+    return snapshot.getDocumentHolder().withDocId(docId).getDocumentHandle();
+  }
+
+  /**
+   * Fetches the LOBs for a batch of rows, and adds their snapshots to
+   * the sorter. The batch is cleared.
+   *
+   * @return the number of snapshots added
+   */
+  private int addBatch(ExternalSnapshotSorter sorter,
+      List<Map<String, Object>> batch) {
+    int count = 0;
+    Iterator<Map<String, Object>> rows = lobFetcher.fetch(batch);
+    while (rows.hasNext()) {
+      count += addSnapshot(sorter, rows.next());
+    }
+    batch.clear();
+    return count;
+  }
+
+  /**
+   * Adds the snapshot for a row to the sorter.
+   *
+   * @return the number of snapshots added, which is zero if the snapshot
+   *         cannot be created
+   */
+  private int addSnapshot(ExternalSnapshotSorter sorter,
+      Map<String, Object> row) {
+    DocumentSnapshot snapshot = getSnapshot(row);
+    if (snapshot == null) {
+      return 0;
+    }
+    try {
+      sorter.add((DBSnapshot) snapshot);
+      return 1;
+    } catch (IOException e) {
+      throw new SnapshotRepositoryRuntimeException(
+          "Unable to write the sort files.", e);
+    }
+  }
+
+  private void initDocumentBuilder() {
     if (traversalContext == null) {
       LOG.info("Setting Traversal Context");
       traversalContext = traversalContextManager.getTraversalContext();
       JsonDocument.setTraversalContext(traversalContext);
+      LobTypeHandler.setTraversalContext(traversalContext);
       docBuilder = DocumentBuilder.getInstance(dbContext, traversalContext);
     }
-
-    return getDocList(rows);
   }
 
   private List<DocumentSnapshot> getDocList(List<Map<String, Object>> rows) {
     LOG.log(Level.FINE, "Building document snapshots for {0} rows.",
         rows.size());
     List<DocumentSnapshot> docList = Lists.newArrayList();
-    for (Map<String, Object> row : rows) {
-      try {
-        DocumentSnapshot snapshot = docBuilder.getDocumentSnapshot(row);
-        if (snapshot != null) {
-          if (LOG.isLoggable(Level.FINER)) {
-            LOG.finer("DBSnapshotRepository returns document with docID "
-                + snapshot.getDocumentId());
-          }
-          docList.add(snapshot);
-        }
-      } catch (DBException e) {
-        // See the similar log message in DBSnapshot.getDocumentHandle.
-        LOG.log(Level.WARNING, "Cannot convert database record to snapshot "
-            + "for record " + row, e);
+    Iterator<Map<String, Object>> iterator =
+        (lobFetcher == null) ? rows.iterator() : lobFetcher.fetch(rows);
+    while (iterator.hasNext()) {
+      DocumentSnapshot snapshot = getSnapshot(iterator.next());
+      if (snapshot != null) {
+        docList.add(snapshot);
       }
     }
     LOG.info(docList.size() + " document(s) to be fed to GSA");
     return docList;
   }
+
+  /** Returns the snapshot for a row, or null if it cannot be created. */
+  private DocumentSnapshot getSnapshot(Map<String, Object> row) {
+    try {
+      DocumentSnapshot snapshot = docBuilder.getDocumentSnapshot(row);
+      if (snapshot != null && LOG.isLoggable(Level.FINER)) {
+        LOG.finer("DBSnapshotRepository returns document with docID "
+            + snapshot.getDocumentId());
+      }
+      return snapshot;
+    } catch (DBException e) {
+      // See the similar log message in DBSnapshot.getDocumentHandle.
+      LOG.log(Level.WARNING, "Cannot convert database record to snapshot "
+          + "for record " + row, e);
+      return null;
+    }
+  }
 }
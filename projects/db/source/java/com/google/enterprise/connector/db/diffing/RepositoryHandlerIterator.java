@@ -17,16 +17,20 @@ package com.google.enterprise.connector.db.diffing;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
 
 import java.util.Iterator;
 
 /**
  * Iterates over the collections of {@link DocumentSnapshot} objects
- * produced by a {@code RepositoryHandler}.
+ * produced by a {@code RepositoryHandler}. The order of the snapshots
+ * is checked by an {@link OrderingMonitor}, and the traversal is stopped
+ * if too many of them are out of order.
  */
 public class RepositoryHandlerIterator
     extends AbstractIterator<DocumentSnapshot> {
   private final RepositoryHandler repositoryHandler;
+  private final OrderingMonitor monitor;
   private Iterator<DocumentSnapshot> current;
 
   /**
@@ -34,21 +38,40 @@ public class RepositoryHandlerIterator
    *        DocumentSnapshot form.
    */
   public RepositoryHandlerIterator(RepositoryHandler repositoryHandler) {
+    this(repositoryHandler, new OrderingMonitor(-1));
+  }
+
+  /**
+   * @param repositoryHandler RepositoryHandler object for fetching DB rows in
+   *        DocumentSnapshot form.
+   * @param monitor checks the order of the snapshots
+   */
+  public RepositoryHandlerIterator(RepositoryHandler repositoryHandler,
+      OrderingMonitor monitor) {
     this.repositoryHandler = repositoryHandler;
+    this.monitor = monitor;
     this.current = Iterators.emptyIterator();
   }
 
   @Override
   protected DocumentSnapshot computeNext() {
-    if (current.hasNext()) {
-      return current.next();
-    } else {
+    if (!current.hasNext()) {
       current = repositoryHandler.executeQueryAndAddDocs().iterator();
-      if (current.hasNext()) {
-        return current.next();
-      } else {
+      if (!current.hasNext()) {
+        monitor.logSummary();
         return endOfData();
       }
     }
+    DocumentSnapshot snapshot = current.next();
+    if (!monitor.check(snapshot)) {
+      // Stop before the out of order snapshots cause the GSA documents
+      // to be deleted and fed again. Start over on the next traversal.
+      monitor.logSummary();
+      repositoryHandler.resetCursor();
+      throw new SnapshotRepositoryRuntimeException("Too many database "
+          + "snapshots are out of order. The ORDER BY clause of the "
+          + "Traversal SQL Query may not match the collator.", null);
+    }
+    return snapshot;
   }
 }
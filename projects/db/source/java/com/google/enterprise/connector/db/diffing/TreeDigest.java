@@ -0,0 +1,199 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.base.Throwables;
+import com.google.enterprise.connector.db.Util;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A tree hash that computes the SHA-1 digests of fixed-size chunks of
+ * the input in parallel. The input is split into chunks of
+ * {@link #CHUNK_SIZE} bytes, and the digest is the SHA-1 digest of the
+ * concatenated chunk digests. The last chunk is partial, and possibly
+ * empty. Each full chunk is hashed on the executor, and the last chunk
+ * is hashed on the calling thread, so small inputs never wait for the
+ * executor.
+ * <p>
+ * The chunk size is part of the checksum, so changing it would change
+ * every checksum. The checksums are marked with
+ * {@link DBSnapshot#TREE_HASH_VERSION} in the snapshots.
+ */
+public class TreeDigest extends MessageDigest implements Cloneable {
+  /** The number of bytes in each chunk. */
+  public static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final ExecutorService executor;
+
+  /** The number of chunks being hashed before the caller waits. */
+  private final int maxPending;
+
+  /** The digest of the chunk digests. */
+  private MessageDigest root;
+
+  /** The chunk digests that have not been added to the root, in order. */
+  private LinkedList<Future<byte[]>> pending =
+      new LinkedList<Future<byte[]>>();
+
+  /**
+   * The current chunk, created on first use. It grows up to the chunk
+   * size, so that small inputs do not allocate a full chunk.
+   */
+  private byte[] chunk;
+  private int count;
+
+  /**
+   * @param executor the executor for hashing the chunks
+   * @param maxPending the number of chunks being hashed before
+   *        {@code update} waits for the oldest chunk
+   */
+  public TreeDigest(ExecutorService executor, int maxPending) {
+    super("SHA1-TREE");
+    this.executor = executor;
+    this.maxPending = Math.max(maxPending, 1);
+    this.root = newDigest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(Util.CHECKSUM_ALGO);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Could not get a message digest for "
+                                 + Util.CHECKSUM_ALGO, e);
+    }
+  }
+
+  private static byte[] digest(byte[] data, int length) {
+    MessageDigest digest = newDigest();
+    digest.update(data, 0, length);
+    return digest.digest();
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return root.getDigestLength();
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    ensureCapacity(1);
+    chunk[count++] = input;
+    if (count == CHUNK_SIZE) {
+      submit();
+    }
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int length) {
+    while (length > 0) {
+      // The caller may reuse the input, so it is always copied.
+      int size = Math.min(length, CHUNK_SIZE - count);
+      ensureCapacity(size);
+      System.arraycopy(input, offset, chunk, count, size);
+      count += size;
+      offset += size;
+      length -= size;
+      if (count == CHUNK_SIZE) {
+        submit();
+      }
+    }
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    while (!pending.isEmpty()) {
+      addPending();
+    }
+    // The last chunk is always included, even if it is empty.
+    root.update((chunk == null) ? digest(new byte[0], 0)
+        : digest(chunk, count));
+    byte[] result = root.digest();
+    engineReset();
+    return result;
+  }
+
+  @Override
+  protected void engineReset() {
+    // The chunks may be shared with a clone, so they are not cancelled.
+    pending.clear();
+    root.reset();
+    chunk = null;
+    count = 0;
+  }
+
+  /**
+   * Clones the digest. Chunks that are still being hashed are shared
+   * with the clone.
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    TreeDigest copy = (TreeDigest) super.clone();
+    copy.root = (MessageDigest) root.clone();
+    copy.pending = new LinkedList<Future<byte[]>>(pending);
+    copy.chunk = (chunk == null) ? null : chunk.clone();
+    return copy;
+  }
+
+  /** Makes room in the current chunk for the given number of bytes. */
+  private void ensureCapacity(int size) {
+    if (chunk == null) {
+      chunk = new byte[Math.max(size, 1024)];
+    } else if (count + size > chunk.length) {
+      chunk = Arrays.copyOf(chunk,
+          Math.min(Math.max(count + size, 2 * chunk.length), CHUNK_SIZE));
+    }
+  }
+
+  /** Hashes the current chunk on the executor. */
+  private void submit() {
+    final byte[] data = chunk;
+    pending.add(executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return digest(data, data.length);
+        }
+      }));
+    chunk = null;
+    count = 0;
+    while (pending.size() > maxPending) {
+      addPending();
+    }
+  }
+
+  /** Waits for the oldest chunk and adds its digest to the root. */
+  private void addPending() {
+    // The future is left in the list if it is interrupted.
+    Future<byte[]> future = pending.getFirst();
+    try {
+      root.update(future.get());
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SnapshotRepositoryRuntimeException(
+          "Interrupted while computing a checksum", e);
+    }
+    pending.removeFirst();
+  }
+}
@@ -114,7 +114,10 @@ class UrlDocumentBuilder extends DocumentBuilder {
     jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ACTION,
                                SpiConstants.ActionType.ADD.toString());
 
+    setAcl(jsonObjectUtil, holder);
+
     skipLastModified(skipColumns, dbContext);
+    skipAclColumns(skipColumns);
     skipColumns.addAll(holder.primaryKey);
     setMetaInfo(jsonObjectUtil, holder.row, skipColumns);
 
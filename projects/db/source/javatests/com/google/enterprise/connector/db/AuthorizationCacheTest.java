@@ -0,0 +1,172 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AuthorizationCacheTest extends TestCase {
+  private static final List<String> DOCIDS = ImmutableList.of("B/1", "B/2");
+
+  /** A ticker that is advanced manually. */
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0L;
+
+    @Override
+    public synchronized long read() {
+      return nanos;
+    }
+
+    synchronized void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  /** A query that permits the first docid, and counts its calls. */
+  private static class CountingQuery implements Callable<Set<String>> {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Set<String> call() throws Exception {
+      count.incrementAndGet();
+      return ImmutableSet.of("B/1");
+    }
+  }
+
+  private FakeTicker ticker;
+  private AuthorizationCache cache;
+
+  @Override
+  protected void setUp() {
+    ticker = new FakeTicker();
+    cache = new AuthorizationCache(100, 300, 60, ticker);
+  }
+
+  public void testLoad() {
+    CountingQuery query = new CountingQuery();
+    assertNull(cache.get("user1", "B/1"));
+    assertEquals(ImmutableSet.of("B/1"), cache.load("user1", DOCIDS, query));
+    assertEquals(Boolean.TRUE, cache.get("user1", "B/1"));
+    assertEquals(Boolean.FALSE, cache.get("user1", "B/2"));
+    assertNull(cache.get("user2", "B/1"));
+    assertEquals(1, query.count.get());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1, cache.getQueryCount());
+  }
+
+  /** PERMIT and DENY decisions expire separately. */
+  public void testExpiration() {
+    cache.load("user1", DOCIDS, new CountingQuery());
+    ticker.advance(61);
+    assertEquals(Boolean.TRUE, cache.get("user1", "B/1"));
+    assertNull(cache.get("user1", "B/2"));
+    ticker.advance(240);
+    assertNull(cache.get("user1", "B/1"));
+  }
+
+  public void testFailedQuery() {
+    assertNull(cache.load("user1", DOCIDS, new Callable<Set<String>>() {
+        @Override
+        public Set<String> call() {
+          return null;
+        }
+      }));
+    assertNull(cache.get("user1", "B/1"));
+    assertNull(cache.get("user1", "B/2"));
+
+    assertNull(cache.load("user1", DOCIDS, new Callable<Set<String>>() {
+        @Override
+        public Set<String> call() {
+          throw new RuntimeException("expected");
+        }
+      }));
+    assertNull(cache.get("user1", "B/1"));
+  }
+
+  public void testInvalidate() {
+    cache.load("user1", DOCIDS, new CountingQuery());
+    cache.load("user2", DOCIDS, new CountingQuery());
+
+    cache.invalidateDocId("B/1");
+    assertNull(cache.get("user1", "B/1"));
+    assertNull(cache.get("user2", "B/1"));
+    assertEquals(Boolean.FALSE, cache.get("user1", "B/2"));
+
+    cache.invalidateUser("user1");
+    assertNull(cache.get("user1", "B/2"));
+    assertEquals(Boolean.FALSE, cache.get("user2", "B/2"));
+
+    cache.invalidateAll();
+    assertNull(cache.get("user2", "B/2"));
+  }
+
+  /** Concurrent lookups of the same docids share one query. */
+  public void testCoalescing() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    final AtomicInteger count = new AtomicInteger();
+    final Callable<Set<String>> query = new Callable<Set<String>>() {
+        @Override
+        public Set<String> call() throws Exception {
+          count.incrementAndGet();
+          started.countDown();
+          finish.await();
+          return ImmutableSet.of("B/2");
+        }
+      };
+
+    final Set<?>[] results = new Set<?>[2];
+    Thread first = new Thread() {
+        @Override
+        public void run() {
+          results[0] = cache.load("user1", DOCIDS, query);
+        }
+      };
+    first.start();
+    started.await();
+
+    Thread second = new Thread() {
+        @Override
+        public void run() {
+          results[1] = cache.load("user1", ImmutableList.of("B/2", "B/1"),
+              query);
+        }
+      };
+    second.start();
+    // Wait for the second thread to find the running query.
+    while (cache.getCoalescedCount() == 0) {
+      Thread.sleep(10);
+    }
+    finish.countDown();
+    first.join();
+    second.join();
+
+    assertEquals(1, count.get());
+    assertEquals(1, cache.getQueryCount());
+    assertEquals(ImmutableSet.of("B/2"), results[0]);
+    assertEquals(ImmutableSet.of("B/2"), results[1]);
+  }
+}
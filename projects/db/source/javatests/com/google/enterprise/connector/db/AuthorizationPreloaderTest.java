@@ -0,0 +1,172 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class AuthorizationPreloaderTest extends TestCase {
+  /** A ticker that is advanced manually. */
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0L;
+
+    @Override
+    public synchronized long read() {
+      return nanos;
+    }
+
+    synchronized void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  /** Holds the submitted loads until they are run. */
+  private static class FakeExecutor implements Executor {
+    final List<Runnable> tasks = Lists.newArrayList();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      List<Runnable> pending = Lists.newArrayList(tasks);
+      tasks.clear();
+      for (Runnable task : pending) {
+        task.run();
+      }
+    }
+  }
+
+  /** Returns the next result for each preload query, and counts them. */
+  private static class PreloadDBClient extends DBClient {
+    List<String> result = ImmutableList.of("1", "3");
+    int count = 0;
+
+    @Override
+    List<String> tryAuthZPreloadQuery(String userName) {
+      count++;
+      return result;
+    }
+  }
+
+  private FakeTicker ticker;
+  private FakeExecutor executor;
+  private PreloadDBClient client;
+  private AuthorizationPreloader preloader;
+
+  @Override
+  protected void setUp() {
+    ticker = new FakeTicker();
+    executor = new FakeExecutor();
+    client = new PreloadDBClient();
+    preloader = new AuthorizationPreloader(client,
+        ImmutableList.of("user1", "user2", "user1"), 600, ticker, executor);
+  }
+
+  /** Requests the docids, and runs any load that was started. */
+  private void load(String userName) {
+    preloader.getAccessibleDocIds(userName);
+    executor.runAll();
+  }
+
+  public void testNotPreloaded() {
+    assertFalse(preloader.isPreloaded("user3"));
+    assertNull(preloader.getAccessibleDocIds("user3"));
+    assertEquals(0, executor.tasks.size());
+    assertEquals(0, client.count);
+  }
+
+  /** The first request does not wait for the load. */
+  public void testBackground() {
+    assertNull(preloader.getAccessibleDocIds("user1"));
+    assertNull(preloader.getAccessibleDocIds("user1"));
+    assertEquals(1, executor.tasks.size());
+    assertEquals(0, client.count);
+
+    executor.runAll();
+    assertEquals(ImmutableSet.of("1", "3"),
+        preloader.getAccessibleDocIds("user1"));
+    assertEquals(1, client.count);
+  }
+
+  public void testReload() {
+    load("user1");
+    assertTrue(preloader.isPreloaded("user1"));
+    client.result = ImmutableList.of("2");
+    ticker.advance(449);
+    assertEquals(ImmutableSet.of("1", "3"),
+        preloader.getAccessibleDocIds("user1"));
+    assertEquals(0, executor.tasks.size());
+
+    // The old set is used while it is reloaded.
+    ticker.advance(1);
+    assertEquals(ImmutableSet.of("1", "3"),
+        preloader.getAccessibleDocIds("user1"));
+    executor.runAll();
+    assertEquals(ImmutableSet.of("2"), preloader.getAccessibleDocIds("user1"));
+    assertEquals(2, client.count);
+  }
+
+  /** An expired set is dropped, even if the reload has not finished. */
+  public void testExpired() {
+    load("user1");
+    ticker.advance(600);
+    assertNull(preloader.getAccessibleDocIds("user1"));
+    assertEquals(1, executor.tasks.size());
+  }
+
+  /** Each user is loaded separately. */
+  public void testUsers() {
+    load("user1");
+    load("user2");
+    load("user2");
+    assertEquals(2, client.count);
+  }
+
+  /** A failed load is retried after a delay that doubles. */
+  public void testFailedQuery() {
+    client.result = null;
+    load("user1");
+    load("user1");
+    assertEquals(1, client.count);
+
+    long backoff = TimeUnit.NANOSECONDS.toSeconds(
+        AuthorizationPreloader.MIN_BACKOFF_NANOS);
+    ticker.advance(backoff);
+    load("user1");
+    assertEquals(2, client.count);
+    ticker.advance(backoff);
+    load("user1");
+    assertEquals(2, client.count);
+    ticker.advance(backoff);
+    load("user1");
+    assertEquals(3, client.count);
+
+    client.result = ImmutableList.of("2");
+    ticker.advance(4 * backoff);
+    load("user1");
+    assertEquals(ImmutableSet.of("2"), preloader.getAccessibleDocIds("user1"));
+    assertEquals(4, client.count);
+  }
+}
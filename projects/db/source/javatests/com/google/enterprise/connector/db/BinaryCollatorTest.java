@@ -0,0 +1,84 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import junit.framework.TestCase;
+
+import java.text.Collator;
+
+public class BinaryCollatorTest extends TestCase {
+  private final BinaryCollator collator = new BinaryCollator();
+
+  private void compare(String lesser, String greater) {
+    compare(collator, lesser, greater);
+  }
+
+  private void compare(Collator collator, String lesser, String greater) {
+    assertEquals(0, collator.compare(lesser, lesser));
+    assertEquals(0, collator.compare(greater, greater));
+    assertTrue(collator.compare(lesser, greater) < 0);
+    assertTrue(collator.compare(greater, lesser) > 0);
+
+    // The collation keys have the same order.
+    assertTrue(collator.getCollationKey(lesser).compareTo(
+        collator.getCollationKey(greater)) < 0);
+    assertEquals(0, collator.getCollationKey(lesser).compareTo(
+        collator.getCollationKey(lesser)));
+  }
+
+  public void testCompare() {
+    compare("A", "B");
+    compare("B", "a");
+    compare("a", "ab");
+    compare("", "a");
+    compare("z", "\u00e9");
+  }
+
+  /** Supplementary characters sort after the rest of the BMP. */
+  public void testCompareSupplementary() {
+    compare("\ufffd", "\ud83d\ude00");
+    compare("\uffff", "\ud800\udc00");
+    compare("\ud800\udc00", "\ud83d\ude00");
+    compare("\ud7ff", "\ue000");
+  }
+
+  /** UTF-16 code units put supplementary characters in the BMP order. */
+  public void testCompareCodeUnits() {
+    BinaryCollator codeUnits = new BinaryCollator();
+    codeUnits.setCodeUnitOrder(true);
+    compare(codeUnits, "A", "a");
+    compare(codeUnits, "\ud83d\ude00", "\ufffd");
+    compare(codeUnits, "\ud7ff", "\ue000");
+    assertFalse(codeUnits.equals(collator));
+  }
+
+  public void testGetOrderByExpression() {
+    assertEquals("NLSSORT(name, 'NLS_SORT = BINARY')",
+        BinaryCollator.getOrderByExpression("Oracle", "name"));
+    assertEquals("name COLLATE Latin1_General_BIN2",
+        BinaryCollator.getOrderByExpression("Microsoft SQL Server", "name"));
+    assertEquals("name COLLATE utf8mb4_bin",
+        BinaryCollator.getOrderByExpression("MySQL", "name"));
+    assertEquals("name",
+        BinaryCollator.getOrderByExpression("H2", "name"));
+    assertTrue(BinaryCollator.isCodeUnitOrder("H2"));
+    assertFalse(BinaryCollator.isCodeUnitOrder("Oracle"));
+  }
+
+  public void testGetCollationKey() {
+    assertNull(collator.getCollationKey(null));
+    assertEquals("a", collator.getCollationKey("a").getSourceString());
+  }
+}
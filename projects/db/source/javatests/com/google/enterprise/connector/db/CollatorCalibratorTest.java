@@ -0,0 +1,155 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+import java.text.Collator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class CollatorCalibratorTest extends DBTestBase {
+  private static final Logger LOG =
+      Logger.getLogger(CollatorCalibratorTest.class.getName());
+
+  /**
+   * Sorts the probe corpus with the given collator, keeping only the
+   * first of any equivalent strings, as the database would.
+   */
+  private List<String> sortCorpus(Collator collator) {
+    List<String> sorted = Lists.newArrayList(CollatorCalibrator.PROBE_CORPUS);
+    Collections.sort(sorted, collator);
+    List<String> distinct = Lists.newArrayList();
+    for (String value : sorted) {
+      if (distinct.isEmpty()
+          || collator.compare(distinct.get(distinct.size() - 1), value) != 0) {
+        distinct.add(value);
+      }
+    }
+    return distinct;
+  }
+
+  private Collator getCollator(int strength) {
+    Collator collator = Collator.getInstance(Locale.US);
+    collator.setStrength(strength);
+    collator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+    return collator;
+  }
+
+  public void testMatchesSameCollator() {
+    Collator collator = getCollator(Collator.TERTIARY);
+    assertTrue(CollatorCalibrator.matches(collator, sortCorpus(collator)));
+  }
+
+  public void testMatchesDifferentStrength() {
+    List<String> databaseOrder = sortCorpus(getCollator(Collator.PRIMARY));
+    assertTrue(CollatorCalibrator.matches(getCollator(Collator.PRIMARY),
+        databaseOrder));
+    assertFalse(CollatorCalibrator.matches(getCollator(Collator.TERTIARY),
+        databaseOrder));
+  }
+
+  public void testFindMatch() {
+    Collator expected = getCollator(Collator.SECONDARY);
+    Map.Entry<String, Collator> match =
+        CollatorCalibrator.findMatch(sortCorpus(expected), "H2");
+    assertNotNull(match);
+    assertTrue(match.getKey(), match.getKey().endsWith("SECONDARY"));
+    assertTrue(CollatorCalibrator.matches(match.getValue(),
+        sortCorpus(expected)));
+  }
+
+  /** H2 and SQL Server compare UTF-16 code units. */
+  public void testFindMatchBinaryOrder() {
+    List<String> databaseOrder =
+        Ordering.natural().sortedCopy(CollatorCalibrator.PROBE_CORPUS);
+    Map.Entry<String, Collator> match =
+        CollatorCalibrator.findMatch(databaseOrder, "H2");
+    assertNotNull(match);
+    assertTrue(match.getValue() instanceof BinaryCollator);
+    assertTrue(((BinaryCollator) match.getValue()).isCodeUnitOrder());
+
+    assertNull(CollatorCalibrator.findMatch(databaseOrder, "Oracle"));
+  }
+
+  /** Other databases compare code points. */
+  public void testFindMatchCodePointOrder() {
+    List<String> databaseOrder = Ordering.from(new BinaryCollator())
+        .sortedCopy(CollatorCalibrator.PROBE_CORPUS);
+    Map.Entry<String, Collator> match =
+        CollatorCalibrator.findMatch(databaseOrder, "Oracle");
+    assertNotNull(match);
+    assertTrue(match.getValue() instanceof BinaryCollator);
+    assertFalse(((BinaryCollator) match.getValue()).isCodeUnitOrder());
+
+    assertNull(CollatorCalibrator.findMatch(databaseOrder, "H2"));
+  }
+
+  /** The supplementary probes are optional in the database order. */
+  public void testFindMatchLatin1Order() {
+    List<String> databaseOrder =
+        Ordering.natural().sortedCopy(CollatorCalibrator.LATIN1_CORPUS);
+    Map.Entry<String, Collator> match =
+        CollatorCalibrator.findMatch(databaseOrder, "Oracle");
+    assertNotNull(match);
+    assertTrue(match.getValue() instanceof BinaryCollator);
+  }
+
+  public void testFindMatchNone() {
+    // Sorting in reverse does not match any candidate.
+    List<String> databaseOrder = Ordering.natural().reverse()
+        .sortedCopy(CollatorCalibrator.PROBE_CORPUS);
+    assertNull(CollatorCalibrator.findMatch(databaseOrder, "H2"));
+  }
+
+  /** H2 uses binary string comparisons by default. */
+  public void testGetDatabaseOrder() {
+    CollatorCalibrator calibrator = new CollatorCalibrator(getDbClient());
+    assertEquals(Ordering.natural().sortedCopy(CollatorCalibrator.PROBE_CORPUS),
+        calibrator.getDatabaseOrder());
+  }
+
+  public void testVerify() throws DBException {
+    DBContext dbContext = getDbContext();
+    Collator collator = dbContext.getCollator();
+    dbContext.setCollatorCalibration(DBContext.COLLATOR_CALIBRATION_VERIFY);
+    dbContext.init();
+    assertSame(collator, dbContext.getCollator());
+  }
+
+  public void testCalibrate() throws DBException {
+    DBContext dbContext = getDbContext();
+    dbContext.setCollatorCalibration(DBContext.COLLATOR_CALIBRATION_CALIBRATE);
+    dbContext.init();
+    assertTrue(dbContext.getCollator() instanceof BinaryCollator);
+    assertTrue(((BinaryCollator) dbContext.getCollator()).isCodeUnitOrder());
+  }
+
+  public void testInvalidCalibration() {
+    DBContext dbContext = getDbContext();
+    dbContext.setCollatorCalibration("invalid");
+    try {
+      dbContext.init();
+      fail("Expected a DBException");
+    } catch (DBException expected) {
+      LOG.log(Level.INFO, "Expected exception", expected);
+    }
+  }
+}
@@ -14,12 +14,29 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.enterprise.connector.db.diffing.ContentHolder;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.SqlSession;
+
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.sql.Blob;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -102,6 +119,218 @@ public class DBClientTest extends DBTestBase {
     }
   }
 
+  public void testPadToBucket() {
+    List<String> one = ImmutableList.of("a");
+    assertSame(one, DBClient.padToBucket(one, 1000));
+    List<String> four = ImmutableList.of("a", "b", "c", "d");
+    assertSame(four, DBClient.padToBucket(four, 1000));
+    assertEquals(ImmutableList.of("a", "b", "c", "c"),
+        DBClient.padToBucket(ImmutableList.of("a", "b", "c"), 1000));
+    assertEquals(8, DBClient.padToBucket(
+        ImmutableList.of("a", "b", "c", "d", "e"), 1000).size());
+  }
+
+  public void testPadToBucketMaxSize() {
+    assertEquals(6, DBClient.padToBucket(
+        ImmutableList.of("a", "b", "c", "d", "e"), 6).size());
+    List<String> five = ImmutableList.of("a", "b", "c", "d", "e");
+    assertSame(five, DBClient.padToBucket(five, 5));
+    assertSame(five, DBClient.padToBucket(five, 3));
+
+    List<String> large = Collections.nCopies(600, "a");
+    assertEquals(1000, DBClient.padToBucket(large, 1000).size());
+  }
+
+  public void testGetStreamingFetchSize() {
+    assertEquals(Integer.MIN_VALUE, DBClient.getStreamingFetchSize(
+        "jdbc:mysql://localhost/test", 500));
+    assertEquals(Integer.MIN_VALUE, DBClient.getStreamingFetchSize(
+        "jdbc:mariadb://localhost/test", 500));
+    assertEquals(500, DBClient.getStreamingFetchSize(
+        "jdbc:postgresql://localhost/test", 500));
+    assertEquals(1, DBClient.getStreamingFetchSize("jdbc:h2:mem:test", 0));
+  }
+
+  public void testGenerateBoundAuthZQuery() {
+    String query = DBClient.generateBoundAuthZQuery(
+        "SELECT id FROM t WHERE user = #{username} AND id IN (${docIds})");
+    assertTrue(query, query.contains("<![CDATA[ SELECT id FROM t WHERE "
+        + "user = #{username} AND id IN (]]><foreach collection=\"docIdList\" "
+        + "item=\"docId\" separator=\",\">#{docId}</foreach><![CDATA[) ]]>"));
+  }
+
+  /** Tests the bound AuthZ query, including a quote in a docid. */
+  public void testBoundAuthZQuery() throws Exception {
+    runDBScript(CREATE_USER_DOC_MAP_TABLE);
+    runDBScript(LOAD_USER_DOC_MAP_TEST_DATA);
+    Map<String, String> bindConfig = new HashMap<String, String>(configMap);
+    bindConfig.put("authZQuery", "SELECT username FROM user_doc_map "
+        + "WHERE username IN (${docIds})");
+    DBContext dbContext = getDbContext(bindConfig);
+    dbContext.setAuthZBindParameters(true);
+    DBClient dbClient = dbContext.getClient();
+    dbClient.setDBContext(dbContext);
+
+    assertEquals(ImmutableList.of("user1", "user1"),
+        dbClient.tryBoundAuthZQuery(null,
+            ImmutableList.of("user1", "user1' OR 'x' = 'x", "user3")));
+  }
+
+  /** Authorization queries may use a separate, limited pool. */
+  public void testAuthZConnectionPool() throws Exception {
+    runDBScript(CREATE_USER_DOC_MAP_TABLE);
+    runDBScript(LOAD_USER_DOC_MAP_TEST_DATA);
+    DBContext dbContext = getDbContext();
+    DBClient dbClient = dbContext.getClient();
+    assertSame(dbClient.sqlSessionFactory, dbClient.authZSqlSessionFactory);
+    assertNull(dbClient.getAuthZBulkhead());
+
+    dbContext.setAuthZMaxConnections(2);
+    dbClient.setDBContext(dbContext);
+    assertNotSame(dbClient.sqlSessionFactory,
+        dbClient.authZSqlSessionFactory);
+    QueryBulkhead bulkhead = dbClient.getAuthZBulkhead();
+    assertEquals(2, bulkhead.getMaxConcurrent());
+
+    assertEquals(ImmutableList.of("1", "3"),
+        dbClient.tryAuthZQuery("user1", "'1','2','3'"));
+    assertEquals(1, bulkhead.getAcceptedCount());
+    assertEquals(0, bulkhead.getActiveCount());
+  }
+
+  /** A new LOB locator is acquired by running the LOB query again. */
+  public void testLobSource() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setLobQuery("SELECT lob FROM lob_source WHERE id = #{id}");
+    DBClient dbClient = dbContext.getClient();
+    dbClient.setDBContext(dbContext);
+    assertNull(dbClient.getLobSource());
+
+    SqlSession session = dbClient.getSqlSession();
+    Statement stmt = session.getConnection().createStatement();
+    try {
+      stmt.execute("CREATE TABLE lob_source (id INT, lob BLOB)");
+      stmt.execute("INSERT INTO lob_source VALUES (1, X'68656c6c6f')");
+      session.commit(true);
+
+      ChunkedLobReader.LobSource source =
+          dbClient.getLobSource(ImmutableMap.<String, Object>of("id", 1));
+      try {
+        Object lob = source.getLob();
+        assertTrue(String.valueOf(lob), lob instanceof Blob);
+        assertEquals("hello",
+            new String(((Blob) lob).getBytes(1, 5), Charsets.UTF_8));
+      } finally {
+        source.close();
+      }
+      source = dbClient.getLobSource(ImmutableMap.<String, Object>of("id", 2));
+      assertNull(source.getLob());
+      source.close();
+    } finally {
+      stmt.execute("DROP TABLE lob_source");
+      stmt.close();
+      session.close();
+    }
+  }
+
+  /** The keys query reads the rows without reading the LOB column. */
+  public void testKeysQuery() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setSqlQuery("SELECT id, lob FROM lob_keys ORDER BY id");
+    dbContext.setLobField("lob");
+    DBClient dbClient = dbContext.getClient();
+    dbClient.setDBContext(dbContext);
+
+    SqlSession session = dbClient.getSqlSession();
+    Statement stmt = session.getConnection().createStatement();
+    try {
+      stmt.execute("CREATE TABLE lob_keys (id INT, lob BLOB)");
+      stmt.execute("INSERT INTO lob_keys VALUES (1, X'68656c6c6f')");
+      session.commit(true);
+
+      final List<Map<String, Object>> rows = Lists.newArrayList();
+      dbClient.executeKeysQuery(new ResultHandler() {
+          @Override
+          public void handleResult(ResultContext context) {
+            @SuppressWarnings("unchecked") Map<String, Object> row =
+                (Map<String, Object>) context.getResultObject();
+            rows.add(row);
+          }
+        });
+      assertEquals(1, rows.size());
+      for (Object value : rows.get(0).values()) {
+        assertFalse(String.valueOf(value), value instanceof Blob);
+        assertFalse(String.valueOf(value), value instanceof byte[]);
+        assertFalse(String.valueOf(value),
+            value instanceof ContentHolder);
+      }
+      assertTrue(rows.get(0).toString(), rows.get(0).containsValue(1));
+    } finally {
+      stmt.execute("DROP TABLE lob_keys");
+      stmt.close();
+      session.close();
+    }
+  }
+
+  /**
+   * A LOB that cannot be spooled fails the batch, rather than returning
+   * no rows, which would be taken for the end of the table.
+   */
+  public void testPartialQueryLobSpoolFailure() throws Exception {
+    // Configure the LOB field after init, so that the spool manager is
+    // created with the smaller quota.
+    Map<String, String> newConfig = Maps.newHashMap(configMap);
+    newConfig.remove("lobField");
+    DBContext dbContext = getDbContext(newConfig);
+    dbContext.setSqlQuery("SELECT id, lob FROM lob_quota ORDER BY id");
+    dbContext.setLobField("lob");
+    dbContext.setLobChunkSize(65536);
+    dbContext.setSpoolQuotaBytes(100000);
+    DBClient dbClient = dbContext.getClient();
+    dbClient.setDBContext(dbContext);
+
+    SqlSession session = dbClient.getSqlSession();
+    Statement stmt = session.getConnection().createStatement();
+    try {
+      stmt.execute("CREATE TABLE lob_quota (id INT, lob BLOB)");
+      PreparedStatement insert = session.getConnection().prepareStatement(
+          "INSERT INTO lob_quota VALUES (?, ?)");
+      for (int i = 1; i <= 3; i++) {
+        insert.setInt(1, i);
+        insert.setBytes(2, new byte[200 * 1024]);
+        insert.executeUpdate();
+      }
+      insert.close();
+      session.commit(true);
+
+      try {
+        dbClient.executePartialQuery(0, 10);
+        fail("Expected a SnapshotRepositoryRuntimeException");
+      } catch (SnapshotRepositoryRuntimeException expected) {
+      }
+    } finally {
+      stmt.execute("DROP TABLE lob_quota");
+      stmt.close();
+      session.close();
+    }
+  }
+
+  /** The streaming query fails rather than returning a partial table. */
+  public void testExecuteQueryMissingTable() throws Exception {
+    DBClient dbClient = getDbClient();
+    runDBScript(DROP_TEST_DB_TABLE);
+    try {
+      dbClient.executeQuery(new ResultHandler() {
+          @Override
+          public void handleResult(ResultContext context) {
+            fail("Unexpected row: " + context.getResultObject());
+          }
+        });
+      fail("Expected a SnapshotRepositoryRuntimeException");
+    } catch (SnapshotRepositoryRuntimeException expected) {
+    }
+  }
+
   /**
    * Check that missing table returns no rows, but throws no exceptions.
    */
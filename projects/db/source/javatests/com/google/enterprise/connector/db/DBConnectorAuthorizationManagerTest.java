@@ -26,7 +26,9 @@ import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 import com.google.enterprise.connector.util.Base64;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public class DBConnectorAuthorizationManagerTest extends DBTestBase {
   private AuthorizationManager authZmanager;
@@ -97,6 +99,170 @@ public class DBConnectorAuthorizationManagerTest extends DBTestBase {
         ImmutableMap.<String, Boolean>of("l/2", false, "l/3", true));
   }
 
+  /** Version 2 docids are decoded the same as version 1 docids. */
+  public void testAuthorizeDocids_version2() throws RepositoryException {
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "2l/1", true, "2l/2", false, "2F/3", true, "2F/4", false));
+  }
+
+  /** Cached decisions are used until they are invalidated. */
+  public void testAuthorizeDocids_cached() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setAuthZCacheSize(100);
+    DBConnectorAuthorizationManager cachingManager =
+        new DBConnectorAuthorizationManager(dbContext);
+    authZmanager = cachingManager;
+    ImmutableMap<String, Boolean> expected = ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/2", false, "l/3", true);
+    testAuthorizeDocids(expected);
+
+    // Revoke access to document 1, and grant access to document 2.
+    runDBScript(CREATE_USER_DOC_MAP_TABLE);
+    testAuthorizeDocids(expected);
+    AuthorizationCache cache = cachingManager.getCache();
+    assertEquals(1, cache.getQueryCount());
+    assertEquals(3, cache.getHitCount());
+
+    // A new docid is queried alone.
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/4", false));
+    assertEquals(2, cache.getQueryCount());
+
+    cache.invalidateUser("user1");
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", false, "l/2", false, "l/3", false));
+  }
+
+  public void testAuthorizeDocids_chunked() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setAuthZChunkSize(1);
+    authZmanager = new DBConnectorAuthorizationManager(dbContext);
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/2", false, "l/3", true, "l/4", false));
+  }
+
+  public void testAuthorizeDocids_bindParameters() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setAuthZBindParameters(true);
+    dbContext.getClient().setDBContext(dbContext);
+    authZmanager = new DBConnectorAuthorizationManager(dbContext);
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/2", false, "l/3", true));
+  }
+
+  /** Preloaded users are authorized without the Authorization query. */
+  public void testAuthorizeDocids_preloaded() throws Exception {
+    DBContext dbContext = getDbContext();
+    dbContext.setAuthZPreloadQuery(
+        "SELECT ReportId FROM user_doc_map WHERE username = #{username}");
+    dbContext.setAuthZPreloadUsers("user2, user1");
+    dbContext.getClient().setDBContext(dbContext);
+    DBConnectorAuthorizationManager preloadingManager =
+        new DBConnectorAuthorizationManager(dbContext);
+    authZmanager = preloadingManager;
+
+    // The docids are loaded in the background.
+    AuthorizationPreloader preloader = preloadingManager.getPreloader();
+    for (int i = 0; i < 100
+             && preloader.getAccessibleDocIds("user1") == null; i++) {
+      Thread.sleep(100L);
+    }
+    ImmutableMap<String, Boolean> expected = ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/2", false, "l/3", true, "2F/4", false);
+    testAuthorizeDocids(expected);
+
+    // The preloaded docids are used until they expire.
+    runDBScript(CREATE_USER_DOC_MAP_TABLE);
+    testAuthorizeDocids(expected);
+  }
+
+  /**
+   * Permits every docid, except that queries including docid 3 fail,
+   * and queries including docid 4 take too long.
+   */
+  private static class FailingDBClient extends DBClient {
+    @Override
+    List<String> tryAuthZQuery(String userName, String docIds) {
+      if (docIds.contains("'3'")) {
+        return null;
+      } else if (docIds.contains("'4'")) {
+        try {
+          Thread.sleep(10000L);
+        } catch (InterruptedException e) {
+          // Cancelled after the deadline.
+        }
+      }
+      List<String> authorized = new ArrayList<String>();
+      for (String docId : docIds.split(",")) {
+        authorized.add(docId.substring(1, docId.length() - 1));
+      }
+      return authorized;
+    }
+  }
+
+  /** Only the documents in a failed or late chunk are denied. */
+  public void testAuthorizeDocids_failedChunks() throws Exception {
+    DBContext dbContext = new DBContext();
+    dbContext.setClient(new FailingDBClient());
+    dbContext.setAuthZChunkSize(1);
+    dbContext.setAuthZTimeoutSeconds(1);
+    authZmanager = new DBConnectorAuthorizationManager(dbContext);
+
+    long start = System.currentTimeMillis();
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", true, "l/2", true, "l/3", false, "l/4", false));
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+  }
+
+  /** A single chunk is held to the same deadline. */
+  public void testAuthorizeDocids_lateSingleChunk() throws Exception {
+    DBContext dbContext = new DBContext();
+    dbContext.setClient(new FailingDBClient());
+    dbContext.setAuthZTimeoutSeconds(1);
+    authZmanager = new DBConnectorAuthorizationManager(dbContext);
+
+    long start = System.currentTimeMillis();
+    testAuthorizeDocids(ImmutableMap.<String, Boolean>of(
+        "l/1", false, "l/2", false, "l/4", false));
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+  }
+
+  /** Records the size of the bound IN lists, and permits every docid. */
+  private static class BoundSizeDBClient extends DBClient {
+    int maxSize = 0;
+
+    @Override
+    synchronized List<String> tryBoundAuthZQuery(String userName,
+        List<String> docIds) {
+      maxSize = Math.max(maxSize, docIds.size());
+      return docIds;
+    }
+  }
+
+  /** Bound chunks are limited to the size of an IN list. */
+  public void testAuthorizeDocids_bindParametersLargeChunks()
+      throws Exception {
+    BoundSizeDBClient client = new BoundSizeDBClient();
+    DBContext dbContext = new DBContext();
+    dbContext.setClient(client);
+    dbContext.setAuthZBindParameters(true);
+    dbContext.setAuthZChunkSize(DBClient.MAX_IN_LIST_SIZE * 2);
+    authZmanager = new DBConnectorAuthorizationManager(dbContext);
+
+    List<String> docIds = new ArrayList<String>();
+    for (int i = 0; i < DBClient.MAX_IN_LIST_SIZE * 3 / 2; i++) {
+      docIds.add("l/" + i);
+    }
+    Collection<AuthorizationResponse> authZResponse =
+        authZmanager.authorizeDocids(docIds,
+            new SimpleAuthenticationIdentity("user1"));
+    assertEquals(docIds.size(), authZResponse.size());
+    for (AuthorizationResponse response : authZResponse) {
+      assertTrue(response.getDocid(), response.isValid());
+    }
+    assertEquals(DBClient.MAX_IN_LIST_SIZE, client.maxSize);
+  }
+
   private String base64(String input) {
     return Base64.encodeWebSafe(input.getBytes(UTF_8), false);
   }
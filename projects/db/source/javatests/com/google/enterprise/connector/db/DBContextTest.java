@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableSet;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -80,4 +81,28 @@ public class DBContextTest extends TestCase {
   public void testCommaWhitespacePrimaryKey() {
     testPrimaryKeyException(" ,  , ");
   }
+
+  /** Each connector instance spools to its own subdirectory. */
+  public void testSpoolManager() {
+    String spoolDirectory = System.getProperty("java.io.tmpdir");
+    dbContext.setGoogleConnectorName("first");
+    dbContext.setSpoolDirectory(spoolDirectory);
+    DBContext other = new DBContext();
+    other.setGoogleConnectorName("second");
+    other.setSpoolDirectory(spoolDirectory);
+
+    SpoolManager manager = dbContext.getSpoolManager();
+    assertSame(manager, dbContext.getSpoolManager());
+    assertEquals(new File(spoolDirectory, "dbconnector-first"),
+        manager.getDirectory());
+    assertEquals(new File(spoolDirectory, "dbconnector-second"),
+        other.getSpoolManager().getDirectory());
+  }
+
+  public void testSpoolManagerWorkDir() {
+    String workDir = System.getProperty("java.io.tmpdir");
+    dbContext.setGoogleConnectorWorkDir(workDir);
+    assertEquals(new File(workDir, "spool"),
+        dbContext.getSpoolManager().getDirectory());
+  }
 }
@@ -20,10 +20,14 @@ import junit.framework.TestCase;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.net.URLEncoder;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.Collator;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -73,6 +77,25 @@ public class DocIdUtilTest extends TestCase {
     assertEquals(docIdMap.toString(), docId3, docIdMap.get("3,March Madness!"));
   }
 
+  public void testGetDocIdMapVersion2() {
+    String docId1 = "2BF/2/Feb";
+    String docId2 = "2BF/3/March Madness! 100%25 a%2Fb+c";
+    Map<String, String> docIdMap =
+        DocIdUtil.getDocIdMap(ImmutableList.of(docId1, docId2));
+    assertEquals(2, docIdMap.size());
+    assertEquals(docId1, docIdMap.get("2,Feb"));
+    assertEquals(docIdMap.toString(), docId2,
+        docIdMap.get("3,March Madness! 100% a/b+c"));
+  }
+
+  public void testGetTextValues() {
+    List<String> docIds = ImmutableList.of("MSxKYW4", "BF/2/Feb",
+        "FBF/March+Madness%21/3/a%2Fb", "B/4");
+
+    assertEquals(ImmutableList.of("Feb", "March Madness!", "a/b"),
+        DocIdUtil.getTextValues(docIds));
+  }
+
   /**
    * Test generateDocId method.
    */
@@ -116,6 +139,108 @@ public class DocIdUtilTest extends TestCase {
     assertEquals(expectedDocId, actualDocId);
   }
 
+  /** The docid encoding of strings must match URLEncoder exactly. */
+  public void testUrlEncode() throws Exception {
+    String[] values = { "", "Banana", "a b+c/d%e", "~!@#$^&()=[]{};:'\",<>?",
+        ".-*_", "\u00e9\u00c9\u00f1", "\u20ac\u4e2d\uffff",
+        "\ud83d\ude00", "\ud83d", "\ude00a", "a\ud83db", "\u0000\u007f" };
+    for (String value : values) {
+      StringBuilder buffer = new StringBuilder();
+      DocIdUtil.urlEncode(value, buffer);
+      assertEquals(value, URLEncoder.encode(value, "UTF-8"),
+          buffer.toString());
+    }
+  }
+
+  /** The docid buffer is reused, and must not leak between docids. */
+  public void testGenerateDocIdReuse() throws Exception {
+    List<String> primaryKey = ImmutableList.of("id", "name");
+    Map<String, Object> row = new HashMap<String, Object>();
+    row.put("id", 1L);
+    row.put("name", "a much longer value than the next one");
+    assertEquals("BF/1/a+much+longer+value+than+the+next+one",
+        DocIdUtil.generateDocId(primaryKey, row));
+    row.put("name", "x");
+    assertEquals("BF/1/x", DocIdUtil.generateDocId(primaryKey, row));
+  }
+
+  /** Dates are formatted correctly from many threads at once. */
+  public void testGenerateDocIdThreads() throws Exception {
+    final List<String> primaryKey = ImmutableList.of("id", "date");
+    final List<String> failures =
+        Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final long base = t * 86400000L * 400;
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            Map<String, Object> row = new HashMap<String, Object>();
+            for (long i = 0; i < 1000; i++) {
+              java.util.Date date = new java.util.Date(base + i * 3600007L);
+              row.put("id", i);
+              row.put("date", date);
+              String expected = "BG/" + i + "/" + format.format(date);
+              String actual = DocIdUtil.generateDocId(primaryKey, row);
+              if (!expected.equals(actual)) {
+                failures.add(expected + " != " + actual);
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+  }
+
+  public void testGenerateDocIdVersion2() throws Exception {
+    List<String> primaryKey = ImmutableList.of("pk1", "pk2", "pk3", "pk4");
+    Map<String, Object> row = new HashMap<String, Object>();
+    row.put("pk1", 10);
+    row.put("pk2", "hello world/2");
+    row.put("pk3", null);
+    row.put("pk4", "100% caf\u00e9\tline\ud83d\ude00");
+
+    assertEquals("BFAF/10/hello+world%2F2//100%25+caf%C3%A9%09line%F0%9F%98%80",
+        DocIdUtil.generateDocId(primaryKey, row));
+    String docId = DocIdUtil.generateDocId(primaryKey, row,
+        DocIdUtil.VERSION_2);
+    assertEquals("2BFAF/10/hello world%2F2//100%25 caf\u00e9%09line"
+        + "\ud83d\ude00", docId);
+    assertEquals(ImmutableList.of("hello world/2",
+            "100% caf\u00e9\tline\ud83d\ude00"),
+        DocIdUtil.getTextValues(ImmutableList.of(docId)));
+  }
+
+  public void testEscape() {
+    StringBuilder buffer = new StringBuilder();
+    DocIdUtil.escape("a+b;c d\u007f\uffff\ud83d", buffer);
+    assertEquals("a+b;c d%7F%EF%BF%BF%3F", buffer.toString());
+  }
+
+  public void testEncodeUrlPath() {
+    String v1 = "BF/10/hello+world%2F2%23";
+    assertSame(v1, DocIdUtil.encodeUrlPath(v1));
+    assertEquals("2BF/10/a%20b%2F2%23%3F%26%25z%C3%A9%F0%9F%98%80",
+        DocIdUtil.encodeUrlPath(
+            "2BF/10/a b%2F2#?&%z\u00e9\ud83d\ude00"));
+  }
+
+  public void testDecodeInvalidEscape() {
+    for (String docId : new String[] { "2F/a%2", "2F/a%zz", "F/%" }) {
+      try {
+        DocIdUtil.getTextValues(ImmutableList.of(docId));
+        fail("Expected an IllegalArgumentException for " + docId);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
   /**
    * Test generating and tokenizing a Docid that consists of a single integer.
    */
@@ -167,6 +292,12 @@ public class DocIdUtilTest extends TestCase {
     assertEquals(0, DocIdUtil.compare(valueOrdering, greaterId, greaterId));
     assertTrue(DocIdUtil.compare(valueOrdering, lesserId, greaterId) < 0);
     assertTrue(DocIdUtil.compare(valueOrdering, greaterId, lesserId) > 0);
+
+    DocIdUtil.Key lesserKey = DocIdUtil.getKey(valueOrdering, lesserId);
+    DocIdUtil.Key greaterKey = DocIdUtil.getKey(valueOrdering, greaterId);
+    assertEquals(0, DocIdUtil.compare(valueOrdering, lesserKey, lesserKey));
+    assertTrue(DocIdUtil.compare(valueOrdering, lesserKey, greaterKey) < 0);
+    assertTrue(DocIdUtil.compare(valueOrdering, greaterKey, lesserKey) > 0);
   }
 
   private void compareEquivalentDocids(ValueOrdering valueOrdering, String id1, 
@@ -175,6 +306,11 @@ public class DocIdUtilTest extends TestCase {
     assertEquals(0, DocIdUtil.compare(valueOrdering, id2, id2));
     assertEquals(0, DocIdUtil.compare(valueOrdering, id1, id2));
     assertEquals(0, DocIdUtil.compare(valueOrdering, id2, id1));
+
+    DocIdUtil.Key key1 = DocIdUtil.getKey(valueOrdering, id1);
+    DocIdUtil.Key key2 = DocIdUtil.getKey(valueOrdering, id2);
+    assertEquals(0, DocIdUtil.compare(valueOrdering, key1, key2));
+    assertEquals(0, DocIdUtil.compare(valueOrdering, key2, key1));
   }
 
   public void testCompareIntegerDocids() throws Exception {
@@ -256,6 +392,15 @@ public class DocIdUtilTest extends TestCase {
     compareEquivalentDocids(valueOrdering, "F/\u00E0pple", "F/\u00C0pple");
   }
 
+  public void testBinaryCollator() throws Exception {
+    MockValueOrdering valueOrdering =
+        new MockValueOrdering(true, new BinaryCollator());
+
+    compareDocids(valueOrdering, "F/Apple", "F/apple");
+    compareDocids(valueOrdering, "F/apple", "F/\u00C0pple");
+    compareDocids(valueOrdering, "F/%EF%BF%BD", "F/%F0%9F%98%80");
+  }
+
   public void testCompareDateTimeDocids() throws Exception {
     compareDocids("I/1969-07-20", "I/1972-12-11");
     compareDocids("G/1969-07-20 20:17:40", "G/1972-12-11 19:54:57");
@@ -312,6 +457,24 @@ public class DocIdUtilTest extends TestCase {
     compareDocids(valueOrdering, "FAB/Hi//-12345", "FAB/Hi//23456");
   }
 
+  /**
+   * Docids in different formats are ordered by their values, and the
+   * version breaks a tie.
+   */
+  public void testCompareVersion2Docids() throws Exception {
+    compareDocids("F/a+b", "2F/a c");
+    compareDocids("2F/a c", "F/a+d");
+    compareDocids("F/a+b", "2F/a b");
+    compareDocids("2BF/1/x%2Fy", "BF/2/x%2Fy");
+    compareDocids("MSxKYW4", "2I/1969-07-20");
+
+    ValueOrdering valueOrdering = new MockValueOrdering(true, collator);
+    DocIdUtil.Key key1 = DocIdUtil.getKey(valueOrdering, "BF/1/a+%2F+b");
+    DocIdUtil.Key key2 = DocIdUtil.getKey(valueOrdering, "2BF/1/a %2F b");
+    assertEquals(0, DocIdUtil.compareValues(valueOrdering, key1, key2));
+    assertEquals(0, DocIdUtil.compareValues(valueOrdering, key2, key1));
+  }
+
   public void testCompareLegacyDocid() throws Exception {
     // Legacy docids always sort lower.
     compareDocids("MSxKYW4", "I/1969-07-20");
@@ -14,12 +14,14 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.util.InputStreamFactory;
 
 import junit.framework.TestCase;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -59,4 +61,38 @@ public class InputStreamFactoriesTest extends TestCase {
   public void testBig() throws IOException {
     testRoundTrip(100000);
   }
+
+  /** Test content that is decoded in several chunks. */
+  public void testHuge() throws IOException {
+    testRoundTrip(300000);
+  }
+
+  public void testWhitespace() throws IOException {
+    assertEquals("hello, world", new String(toByteArray(
+        InputStreamFactories.fromBase64String("aGVsbG8s\nIHdv cmxk\n")),
+        Charsets.UTF_8));
+  }
+
+  public void testNotBase64() throws IOException {
+    assertEquals("h\u00e9llo", new String(toByteArray(
+        InputStreamFactories.fromBase64String("h\u00e9llo")),
+        Charsets.UTF_8));
+  }
+
+  /** Invalid characters after the first chunk are not decoded either. */
+  public void testNotBase64Big() throws IOException {
+    char[] chars = new char[100000];
+    Arrays.fill(chars, 'A');
+    chars[chars.length - 1] = '\u00e9';
+    String content = new String(chars);
+    assertEquals(content, new String(toByteArray(
+        InputStreamFactories.fromBase64String(content)), Charsets.UTF_8));
+  }
+
+  public void testWriteBase64() throws IOException {
+    StringWriter out = new StringWriter();
+    InputStreamFactories.writeBase64(InputStreamFactories.newInstance(
+        "hello, world".getBytes(Charsets.UTF_8)), out);
+    assertEquals("aGVsbG8sIHdvcmxk", out.toString());
+  }
 }
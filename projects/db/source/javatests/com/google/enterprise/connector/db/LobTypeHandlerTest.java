@@ -22,8 +22,14 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.db.diffing.DigestContentHolder;
+import com.google.enterprise.connector.db.diffing.DigestFactory;
+import com.google.enterprise.connector.traversal.MimeTypeMap;
+import com.google.enterprise.connector.traversal.ProductionTraversalContext;
 import com.google.enterprise.connector.util.InputStreamFactory;
+import com.google.enterprise.connector.util.MimeTypeDetector;
 
 import junit.framework.TestCase;
 
@@ -35,6 +41,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Arrays;
 
 public class LobTypeHandlerTest extends TestCase {
   private static final String CONTENT = "hello, world";
@@ -147,4 +154,382 @@ public class LobTypeHandlerTest extends TestCase {
     expect(rs.getString(anyInt())).andReturn(null).atLeastOnce();
     testNull(rs, Types.VARCHAR);
   }
+  /** Gets the content of a VARBINARY column with a MIME type column. */
+  private DigestContentHolder getBinaryResult(LobTypeHandler handler)
+      throws SQLException {
+    ResultSetMetaData rsmd = createMock(ResultSetMetaData.class);
+    expect(rsmd.getColumnType(anyInt())).andReturn(Types.VARBINARY)
+        .anyTimes();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getMetaData()).andReturn(rsmd).anyTimes();
+    expect(rs.getBytes(1)).andReturn(CONTENT.getBytes(Charsets.UTF_8));
+    expect(rs.findColumn("mimeType")).andReturn(2).anyTimes();
+    expect(rs.getString(2)).andReturn("Text/HTML").anyTimes();
+    replay(rsmd, rs);
+
+    return handler.getNullableResult(rs, 1);
+  }
+
+  /** The MIME type column is configured on each handler. */
+  public void testMimeTypeFields() throws SQLException {
+    LobTypeHandler declared = new LobTypeHandler();
+    declared.setMimeTypeFields("mimeType", null);
+    LobTypeHandler detected = new LobTypeHandler();
+
+    assertEquals("text/html", getBinaryResult(declared).getMimeType());
+    assertEquals("text/plain", getBinaryResult(detected).getMimeType());
+  }
+
+
+  private static final long LARGE_LENGTH = 1000L * 1000L * 1000L;
+
+  private LobLimits getLimits(long maxDocumentSize, String unsupported) {
+    return getLimits(maxDocumentSize, unsupported, null);
+  }
+
+  private LobLimits getLimits(long maxDocumentSize, String unsupported,
+      ChunkedLobReader chunkedReader) {
+    ProductionTraversalContext context = new ProductionTraversalContext();
+    context.setMaxDocumentSize(maxDocumentSize);
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setUnsupportedMimeTypes(ImmutableSet.of(unsupported));
+    context.setMimeTypeMap(mimeTypeMap);
+    return new LobLimits(context, new MimeTypeDetector(), chunkedReader,
+        null, null, null, DigestFactory.SHA1, null);
+  }
+
+  private LobLimits getLimits(String unsupported, String mimeType,
+      String fileName) {
+    ProductionTraversalContext context = new ProductionTraversalContext();
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setUnsupportedMimeTypes(ImmutableSet.of(unsupported));
+    context.setMimeTypeMap(mimeTypeMap);
+    return new LobLimits(context, new MimeTypeDetector(), null, mimeType,
+        fileName, null, DigestFactory.SHA1, null);
+  }
+
+  private static String getContent(DigestContentHolder holder)
+      throws IOException {
+    return new String(ByteStreams.toByteArray(
+        ((InputStreamFactory) holder.getContent()).getInputStream()),
+        Charsets.UTF_8);
+  }
+
+  /** Only the head of a large BLOB is read. */
+  private void testSkippedBlob(long length, LobLimits limits)
+      throws SQLException, IOException {
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn(length).anyTimes();
+    expect(blob.getBytes(1L, LobLimits.HEAD_SIZE))
+        .andReturn("%PDF-1.4".getBytes(Charsets.UTF_8));
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    DigestContentHolder holder =
+        new BlobTypeStrategy().getContentHolder(rs, 1, limits);
+    verify(blob, rs);
+    assertEquals(0, holder.getLength());
+    assertEquals("", getContent(holder));
+    assertEquals("application/pdf", holder.getMimeType());
+  }
+
+  public void testBlobTooLarge() throws SQLException, IOException {
+    testSkippedBlob(LARGE_LENGTH, getLimits(1000, "none"));
+  }
+
+  public void testBlobUnsupportedMimeType()
+      throws SQLException, IOException {
+    testSkippedBlob(LARGE_LENGTH,
+        getLimits(Long.MAX_VALUE, "application/pdf"));
+  }
+
+  /** A small BLOB is read only once. */
+  public void testSmallBlob() throws SQLException, IOException {
+    byte[] content = CONTENT.getBytes(Charsets.UTF_8);
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn(CONTENT_LENGTH).anyTimes();
+    expect(blob.getBytes(1L, (int) CONTENT_LENGTH)).andReturn(content);
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    DigestContentHolder holder = new BlobTypeStrategy().getContentHolder(rs,
+        1, getLimits(1000, "application/pdf"));
+    verify(blob, rs);
+    assertEquals(CONTENT, getContent(holder));
+  }
+
+  public void testClobTooLarge() throws SQLException, IOException {
+    Clob clob = createMock(Clob.class);
+    expect(clob.length()).andReturn(LARGE_LENGTH).anyTimes();
+    expect(clob.getSubString(1L, LobLimits.HEAD_SIZE)).andReturn(CONTENT);
+    clob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getClob(anyInt())).andReturn(clob);
+    replay(clob, rs);
+
+    DigestContentHolder holder = new ClobTypeStrategy().getContentHolder(rs,
+        1, getLimits(1000, "none"));
+    verify(clob, rs);
+    assertEquals(0, holder.getLength());
+  }
+
+  /** Without a traversal context, the whole CLOB is read. */
+  public void testClobNoLimits() throws SQLException, IOException {
+    Clob clob = createMock(Clob.class);
+    expect(clob.length()).andReturn(CONTENT_LENGTH).anyTimes();
+    expect(clob.getSubString(1L, (int) CONTENT_LENGTH)).andReturn(CONTENT);
+    expect(clob.getCharacterStream()).andReturn(new StringReader(CONTENT));
+    clob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getClob(anyInt())).andReturn(clob);
+    replay(clob, rs);
+
+    DigestContentHolder holder = new ClobTypeStrategy().getContentHolder(rs,
+        1, new LobLimits(null, new MimeTypeDetector(), null, null, null,
+            null, DigestFactory.SHA1, null));
+    verify(clob, rs);
+    assertEquals(CONTENT, getContent(holder));
+  }
+
+  private static byte[] getBytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) ('a' + i % 26);
+    }
+    return bytes;
+  }
+
+  private static byte[] copyOfRange(byte[] bytes, long from, long to) {
+    return Arrays.copyOfRange(bytes, (int) from, (int) to);
+  }
+
+  /** A large BLOB is read in chunks after the head, retrying a failure. */
+  public void testChunkedBlob() throws SQLException, IOException {
+    int length = LobLimits.HEAD_SIZE + 3000;
+    byte[] content = getBytes(length);
+    long offset = LobLimits.HEAD_SIZE;
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn((long) length).anyTimes();
+    expect(blob.getBytes(1L, LobLimits.HEAD_SIZE))
+        .andReturn(copyOfRange(content, 0, offset));
+    expect(blob.getBytes(offset + 1, 2000))
+        .andThrow(new SQLException("expected"));
+    expect(blob.getBytes(offset + 1, 2000))
+        .andReturn(copyOfRange(content, offset, offset + 2000));
+    expect(blob.getBytes(offset + 2001, 1000))
+        .andReturn(copyOfRange(content, offset + 2000, length));
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    DigestContentHolder holder = new BlobTypeStrategy().getContentHolder(rs,
+        1, getLimits(Long.MAX_VALUE, "none",
+            new ChunkedLobReader(2000, 1, 0L)));
+    verify(blob, rs);
+    assertEquals(length, holder.getLength());
+    assertEquals(new String(content, Charsets.UTF_8), getContent(holder));
+    assertEquals(DigestContentHolder.getInstance(content,
+            new MimeTypeDetector()).getChecksum(),
+        holder.getChecksum());
+  }
+
+  public void testChunkedBlobFailure() throws SQLException, IOException {
+    int length = LobLimits.HEAD_SIZE + 3000;
+    byte[] content = getBytes(length);
+    long offset = LobLimits.HEAD_SIZE;
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn((long) length).anyTimes();
+    expect(blob.getBytes(1L, LobLimits.HEAD_SIZE))
+        .andReturn(copyOfRange(content, 0, offset));
+    expect(blob.getBytes(offset + 1, 2000))
+        .andThrow(new SQLException("expected")).times(2);
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    try {
+      new BlobTypeStrategy().getContentHolder(rs, 1,
+          getLimits(Long.MAX_VALUE, "none", new ChunkedLobReader(2000, 1, 0L)));
+      fail("Expected a LobReadException");
+    } catch (LobReadException expected) {
+    }
+    verify(blob, rs);
+  }
+
+  /** A BLOB that ends early is not sent truncated. */
+  public void testChunkedBlobEndsEarly() throws SQLException {
+    int length = 3000;
+    byte[] content = getBytes(length);
+    Blob blob = createMock(Blob.class);
+    expect(blob.getBytes(1L, 2000))
+        .andReturn(copyOfRange(content, 0, 2000));
+    expect(blob.getBytes(2001L, 1000)).andReturn(new byte[0]);
+    replay(blob);
+
+    try {
+      new ChunkedLobReader(2000, 1, 0L).read(blob, length, new byte[0],
+          "text/plain", getLimits(Long.MAX_VALUE, "none", null));
+      fail("Expected a LobReadException");
+    } catch (LobReadException expected) {
+    }
+    verify(blob);
+  }
+
+  /** A failed chunk is retried with a new locator from the LOB source. */
+  public void testChunkedBlobLobSource() throws SQLException, IOException {
+    int length = 3000;
+    byte[] content = getBytes(length);
+    Blob blob = createMock(Blob.class);
+    expect(blob.getBytes(1L, 2000))
+        .andReturn(copyOfRange(content, 0, 2000));
+    expect(blob.getBytes(2001L, 1000))
+        .andThrow(new SQLException("expected"));
+    final Blob newBlob = createMock(Blob.class);
+    expect(newBlob.length()).andReturn((long) length);
+    expect(newBlob.getBytes(2001L, 1000))
+        .andReturn(copyOfRange(content, 2000, length));
+    replay(blob, newBlob);
+
+    final int[] counts = new int[2];
+    ChunkedLobReader.LobSource source = new ChunkedLobReader.LobSource() {
+        @Override public Object getLob() {
+          counts[0]++;
+          return newBlob;
+        }
+
+        @Override public void close() {
+          counts[1]++;
+        }
+      };
+    LobLimits limits = new LobLimits(null, new MimeTypeDetector(), null,
+        null, null, null, DigestFactory.SHA1, source);
+    DigestContentHolder holder = new ChunkedLobReader(2000, 1, 0L).read(
+        blob, length, new byte[0], "text/plain", limits);
+    verify(blob, newBlob);
+    assertEquals(new String(content, Charsets.UTF_8), getContent(holder));
+    assertEquals(1, counts[0]);
+    assertEquals(1, counts[1]);
+  }
+
+  /** A new locator with a different length is not read from the offset. */
+  public void testChunkedBlobLobSourceChanged() throws SQLException {
+    int length = 3000;
+    byte[] content = getBytes(length);
+    Blob blob = createMock(Blob.class);
+    expect(blob.getBytes(1L, 2000))
+        .andReturn(copyOfRange(content, 0, 2000));
+    expect(blob.getBytes(2001L, 1000))
+        .andThrow(new SQLException("expected"));
+    final Blob newBlob = createMock(Blob.class);
+    expect(newBlob.length()).andReturn(length + 1L);
+    replay(blob, newBlob);
+
+    ChunkedLobReader.LobSource source = new ChunkedLobReader.LobSource() {
+        @Override public Object getLob() {
+          return newBlob;
+        }
+
+        @Override public void close() {
+        }
+      };
+    LobLimits limits = new LobLimits(null, new MimeTypeDetector(), null,
+        null, null, null, DigestFactory.SHA1, source);
+    try {
+      new ChunkedLobReader(2000, 1, 0L).read(blob, length, new byte[0],
+          "text/plain", limits);
+      fail("Expected a LobReadException");
+    } catch (LobReadException expected) {
+    }
+    verify(blob, newBlob);
+  }
+
+  public void testBackoffMillis() {
+    ChunkedLobReader reader = new ChunkedLobReader(2000, 100, 1000L);
+    assertEquals(1000L, reader.getBackoffMillis(0));
+    assertEquals(2000L, reader.getBackoffMillis(1));
+    assertEquals(8000L, reader.getBackoffMillis(3));
+    assertEquals(60000L, reader.getBackoffMillis(6));
+    assertEquals(60000L, reader.getBackoffMillis(99));
+  }
+
+  /** A surrogate pair split between chunks is read with the next chunk. */
+  public void testChunkedClob() throws SQLException, IOException {
+    String content = "abc\uD83D\uDE00defg";
+    Clob clob = createMock(Clob.class);
+    expect(clob.length()).andReturn(9L).anyTimes();
+    expect(clob.getSubString(1L, 9)).andReturn(content);
+    expect(clob.getSubString(1L, 4)).andReturn(content.substring(0, 4));
+    expect(clob.getSubString(4L, 4)).andReturn(content.substring(3, 7));
+    expect(clob.getSubString(8L, 2)).andReturn(content.substring(7));
+    clob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getClob(anyInt())).andReturn(clob);
+    replay(clob, rs);
+
+    DigestContentHolder holder = new ClobTypeStrategy().getContentHolder(rs,
+        1, getLimits(Long.MAX_VALUE, "none", new ChunkedLobReader(4, 0)));
+    verify(clob, rs);
+    assertEquals(content, getContent(holder));
+    assertEquals(content.getBytes(Charsets.UTF_8).length,
+        holder.getLength());
+  }
+
+  /** A BLOB with an unsupported declared MIME type is not read at all. */
+  public void testBlobDeclaredMimeTypeUnsupported()
+      throws SQLException, IOException {
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn(LARGE_LENGTH).anyTimes();
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    DigestContentHolder holder = new BlobTypeStrategy().getContentHolder(rs,
+        1, getLimits("application/pdf", "application/pdf", null));
+    verify(blob, rs);
+    assertEquals(0, holder.getLength());
+    assertEquals("application/pdf", holder.getMimeType());
+  }
+
+  /** A BLOB with a declared MIME type is read without a separate head. */
+  public void testBlobDeclaredMimeType() throws SQLException, IOException {
+    byte[] content = CONTENT.getBytes(Charsets.UTF_8);
+    Blob blob = createMock(Blob.class);
+    expect(blob.length()).andReturn(CONTENT_LENGTH).anyTimes();
+    expect(blob.getBytes(1L, (int) CONTENT_LENGTH)).andReturn(content);
+    blob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getBlob(anyInt())).andReturn(blob);
+    replay(blob, rs);
+
+    DigestContentHolder holder = new BlobTypeStrategy().getContentHolder(rs,
+        1, getLimits("application/pdf", "text/html", null));
+    verify(blob, rs);
+    assertEquals(CONTENT, getContent(holder));
+    assertEquals("text/html", holder.getMimeType());
+  }
+
+  /** The file name is used to detect the MIME type. */
+  public void testClobFileName() throws SQLException, IOException {
+    Clob clob = createMock(Clob.class);
+    expect(clob.length()).andReturn(CONTENT_LENGTH).anyTimes();
+    expect(clob.getSubString(1L, (int) CONTENT_LENGTH)).andReturn(CONTENT);
+    expect(clob.getCharacterStream()).andReturn(new StringReader(CONTENT));
+    clob.free();
+    ResultSet rs = createMock(ResultSet.class);
+    expect(rs.getClob(anyInt())).andReturn(clob);
+    replay(clob, rs);
+
+    DigestContentHolder holder = new ClobTypeStrategy().getContentHolder(rs,
+        1, getLimits("none", null, "report.pdf"));
+    verify(clob, rs);
+    assertEquals(CONTENT, getContent(holder));
+    assertEquals("application/pdf", holder.getMimeType());
+  }
 }
@@ -0,0 +1,70 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class QueryBulkheadTest extends TestCase {
+  public void testReject() {
+    QueryBulkhead bulkhead = new QueryBulkhead("test", 2, 0);
+    assertTrue(bulkhead.tryAcquire());
+    assertTrue(bulkhead.tryAcquire());
+    assertEquals(2, bulkhead.getActiveCount());
+    assertFalse(bulkhead.tryAcquire());
+    assertEquals(1, bulkhead.getRejectedCount());
+
+    bulkhead.release();
+    assertTrue(bulkhead.tryAcquire());
+    assertEquals(3, bulkhead.getAcceptedCount());
+    assertEquals(1, bulkhead.getRejectedCount());
+  }
+
+  /** A waiting query runs when a permit is released. */
+  public void testWait() throws Exception {
+    final QueryBulkhead bulkhead = new QueryBulkhead("test", 1, 30);
+    assertTrue(bulkhead.tryAcquire());
+
+    final boolean[] result = new boolean[1];
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread waiter = new Thread() {
+        @Override
+        public void run() {
+          result[0] = bulkhead.tryAcquire();
+          done.countDown();
+        }
+      };
+    waiter.start();
+    while (bulkhead.getWaitingCount() == 0) {
+      Thread.sleep(10);
+    }
+    bulkhead.release();
+    done.await();
+    assertTrue(result[0]);
+    assertEquals(2, bulkhead.getAcceptedCount());
+    assertEquals(0, bulkhead.getRejectedCount());
+  }
+
+  /** An interrupted wait is rejected. */
+  public void testInterrupted() {
+    QueryBulkhead bulkhead = new QueryBulkhead("test", 1, 30);
+    assertTrue(bulkhead.tryAcquire());
+    Thread.currentThread().interrupt();
+    assertFalse(bulkhead.tryAcquire());
+    assertTrue(Thread.interrupted());
+    assertEquals(1, bulkhead.getRejectedCount());
+  }
+}
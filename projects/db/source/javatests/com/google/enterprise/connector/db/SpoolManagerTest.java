@@ -0,0 +1,291 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.connector.util.InputStreamFactory;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SpoolManagerTest extends TestCase {
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = new File(System.getProperty("java.io.tmpdir"),
+        "SpoolManagerTest" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static byte[] getBytes(int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) 'x');
+    return data;
+  }
+
+  private static byte[] read(InputStreamFactory factory) throws IOException {
+    InputStream in = factory.getInputStream();
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private int countFiles() {
+    File[] files = directory.listFiles();
+    return (files == null) ? 0 : files.length;
+  }
+
+  public void testUnderThreshold() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    byte[] data = getBytes(100);
+    InputStreamFactory factory = manager.newInstance(data);
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(0, manager.getSpoolFileCount());
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+  }
+
+  public void testSpoolAndRelease() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    byte[] data = getBytes(101);
+    InputStreamFactory factory = manager.newInstance(data);
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(101, manager.getSpoolBytes());
+    assertEquals(1, countFiles());
+
+    SpoolManager.release(factory);
+    assertEquals(0, manager.getSpoolFileCount());
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+    try {
+      factory.getInputStream();
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+
+    // A second release is ignored.
+    SpoolManager.release(factory);
+    assertEquals(0, manager.getSpoolFileCount());
+    assertEquals(0, manager.getSpoolBytes());
+  }
+
+  public void testOverQuota() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 300, 100);
+    InputStreamFactory first = manager.newInstance(getBytes(200));
+    byte[] data = getBytes(200);
+    InputStreamFactory second = manager.newInstance(data);
+    assertTrue(Arrays.equals(data, read(second)));
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(200, manager.getSpoolBytes());
+    assertEquals(1, manager.getOverQuotaCount());
+
+    SpoolManager.release(first);
+    manager.newInstance(data);
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(1, manager.getOverQuotaCount());
+  }
+
+  public void testCompressed() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100, true);
+    byte[] data = getBytes(2000);
+    InputStreamFactory factory = manager.newInstance(data, "text/plain");
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(2000,
+        ((InputStreamFactories.ContentLengthInputStreamFactory) factory)
+        .length());
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(1, manager.getCompressedCount());
+    assertTrue(manager.getSpoolBytes() < 100);
+    assertEquals(2000 - manager.getSpoolBytes(),
+        manager.getCompressionSavings());
+
+    SpoolManager.release(factory);
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+  }
+
+  public void testCompressedMimeType() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100, true);
+    byte[] data = getBytes(200);
+    InputStreamFactory factory = manager.newInstance(data, "application/pdf");
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(0, manager.getCompressedCount());
+    assertEquals(200, manager.getSpoolBytes());
+  }
+
+  /** Content that does not get smaller is not compressed. */
+  public void testIncompressible() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100, true);
+    byte[] data = new byte[200];
+    new Random(42).nextBytes(data);
+    InputStreamFactory factory = manager.newInstance(data, null);
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(0, manager.getCompressedCount());
+    assertEquals(200, manager.getSpoolBytes());
+  }
+
+  public void testIsCompressible() {
+    assertTrue(SpoolManager.isCompressible(null));
+    assertTrue(SpoolManager.isCompressible("text/html; charset=UTF-8"));
+    assertTrue(SpoolManager.isCompressible("application/msword"));
+    assertFalse(SpoolManager.isCompressible("application/pdf"));
+    assertFalse(SpoolManager.isCompressible("IMAGE/JPEG"));
+    assertFalse(SpoolManager.isCompressible(
+        "application/vnd.openxmlformats-officedocument.wordprocessingml."
+        + "document"));
+  }
+
+  public void testShared() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    byte[] data = getBytes(200);
+    assertNull(manager.getSharedInstance("digest"));
+    InputStreamFactory first = manager.newInstance(data, "text/plain",
+        "digest", "text/plain");
+    SpoolManager.SharedContent second = manager.getSharedInstance("digest");
+    assertNotNull(second);
+    assertEquals("text/plain", second.getMimeType());
+    assertTrue(Arrays.equals(data, read(second)));
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(200, manager.getSpoolBytes());
+    assertEquals(1, manager.getSharedCount());
+
+    // The file is deleted after the last reference is released.
+    SpoolManager.release(first);
+    SpoolManager.release(first);
+    assertEquals(1, countFiles());
+    assertTrue(Arrays.equals(data, read(second)));
+    SpoolManager.release(second);
+    assertEquals(0, countFiles());
+    assertEquals(0, manager.getSpoolFileCount());
+    assertNull(manager.getSharedInstance("digest"));
+
+    // New content with the same digest is spooled again.
+    InputStreamFactory third = manager.newInstance(data, "text/plain",
+        "digest", "text/plain");
+    assertTrue(Arrays.equals(data, read(third)));
+    assertEquals(1, manager.getSpoolFileCount());
+    assertNotNull(manager.getSharedInstance("digest"));
+  }
+
+  /** Content that is kept in memory is not shared. */
+  public void testSharedUnderThreshold() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    manager.newInstance(getBytes(100), null, "digest", null);
+    assertNull(manager.getSharedInstance("digest"));
+  }
+
+  /** Only spool files left by an earlier process are deleted. */
+  public void testOldFilesDeleted() throws IOException {
+    assertTrue(directory.mkdirs());
+    assertTrue(new File(directory, "spool123.tmp").createNewFile());
+    assertTrue(new File(directory, "spool.txt").createNewFile());
+    assertTrue(new File(directory, "other.tmp").createNewFile());
+
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    assertEquals(2, countFiles());
+    manager.newInstance(getBytes(200));
+    assertEquals(3, countFiles());
+
+    // A new manager in the same process keeps the live spool files.
+    new SpoolManager(directory, 1000, 100);
+    assertEquals(3, countFiles());
+  }
+
+  public void testIsSpoolFileName() {
+    assertTrue(SpoolManager.isSpoolFileName("spool12345.tmp"));
+    assertTrue(SpoolManager.isSpoolFileName("spool.tmp"));
+    assertFalse(SpoolManager.isSpoolFileName("spool12345"));
+    assertFalse(SpoolManager.isSpoolFileName("spooler.txt"));
+    assertFalse(SpoolManager.isSpoolFileName("myspool.tmp"));
+  }
+
+  public void testOutputStream() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    InputStreamFactories.ContentOutputStream out =
+        manager.newOutputStream(300, "text/plain");
+    assertEquals(300, manager.getSpoolBytes());
+    byte[] data = getBytes(200);
+    out.write(data);
+    InputStreamFactory factory = out.getInputStreamFactory();
+    assertTrue(Arrays.equals(data, read(factory)));
+    assertEquals(1, manager.getSpoolFileCount());
+    assertEquals(200, manager.getSpoolBytes());
+
+    SpoolManager.release(factory);
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+  }
+
+  public void testOutputStreamDiscard() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    InputStreamFactories.ContentOutputStream out =
+        manager.newOutputStream(300, "text/plain");
+    out.write(getBytes(200));
+    out.discard();
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+  }
+
+  /** Streamed content over the quota is refused, not kept in memory. */
+  public void testOutputStreamOverQuota() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    try {
+      manager.newOutputStream(2000, "text/plain");
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    assertEquals(1, manager.getOverQuotaCount());
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+  }
+
+  /** Content read by the Connector Manager is released after it is read. */
+  public void testReleaseOnClose() throws IOException {
+    SpoolManager manager = new SpoolManager(directory, 1000, 100);
+    byte[] data = getBytes(300);
+    InputStreamFactory factory = manager.newInstance(data);
+    InputStreamFactory streamed = InputStreamFactories.releaseOnClose(factory);
+    assertEquals(300, manager.getSpoolBytes());
+
+    assertTrue(Arrays.equals(data, read(streamed)));
+    assertEquals(0, manager.getSpoolFileCount());
+    assertEquals(0, manager.getSpoolBytes());
+    assertEquals(0, countFiles());
+
+    // Content that is not spooled is not wrapped.
+    InputStreamFactory small = manager.newInstance(getBytes(100));
+    assertSame(small, InputStreamFactories.releaseOnClose(small));
+  }
+}
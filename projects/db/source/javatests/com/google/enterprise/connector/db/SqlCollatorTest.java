@@ -14,6 +14,15 @@
 
 package com.google.enterprise.connector.db;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 public class SqlCollatorTest extends DBTestBase {
 
   // Specify ORDER BY DESC to make sure my SQL query is used,
@@ -87,6 +96,150 @@ public class SqlCollatorTest extends DBTestBase {
     assertEquals(-1, dbCollator.compare("banana", "apple"));
   }
 
+  public void testGenerateCollationQueriesRankQueries() throws Exception {
+    String result = dbClient.generateCollationQueries(dbCollator);
+    assertContains(result, "rankStrings");
+    assertContains(result, "${values}");
+
+    dbCollator.setCollationQuery(COLLATION_QUERY);
+    result = dbClient.generateCollationQueries(dbCollator);
+    assertNotContains(result, "rankStrings");
+  }
+
+  public void testSqlCollatorRank() throws Exception {
+    dbClient.setDBContext(dbContext);
+
+    List<String> values =
+        ImmutableList.of("cherry", "o'brien", "apple", "banana");
+    assertEquals(ImmutableList.of("apple", "banana", "cherry", "o'brien"),
+        dbClient.executeCollationRankQuery(values));
+
+    dbCollator.rank(values);
+    assertTrue(dbCollator.compare("apple", "banana") < 0);
+    assertTrue(dbCollator.compare("cherry", "banana") > 0);
+    assertEquals(0, dbCollator.compare("cherry", "cherry"));
+  }
+
+  public void testToStringLiteral() {
+    assertEquals("'o''brien\\'", DBClient.toStringLiteral("o'brien\\", false));
+    assertEquals("'o''brien\\\\'",
+        DBClient.toStringLiteral("o'brien\\", true));
+  }
+
+  public void testSqlCollatorRankBackslash() throws Exception {
+    dbClient.setDBContext(dbContext);
+
+    // H2 does not use backslash escapes.
+    List<String> values = ImmutableList.of("b\\", "a\\");
+    assertEquals(ImmutableList.of("a\\", "b\\"),
+        dbClient.executeCollationRankQuery(values));
+  }
+
+  public void testSqlCollatorRankCustomQuery() throws Exception {
+    dbCollator.setCollationQuery(COLLATION_QUERY);
+    dbClient.setDBContext(dbContext);
+
+    assertNull(dbClient.executeCollationRankQuery(
+        ImmutableList.of("apple", "banana")));
+
+    // Without ranks, the custom query is still used.
+    dbCollator.rank(ImmutableList.of("apple", "banana"));
+    assertEquals(1, dbCollator.compare("apple", "banana"));
+  }
+
+  /** Counts the individual comparison queries. */
+  private static class CountingDBClient extends DBClient {
+    private final Map<String, Integer> order;
+    private final List<String> sorted;
+    int queries = 0;
+    int rankQueries = 0;
+
+    CountingDBClient(List<String> sorted) {
+      this.sorted = sorted;
+      this.order = Maps.newHashMap();
+      for (String value : sorted) {
+        order.put(value, order.size());
+      }
+    }
+
+    @Override
+    Integer tryCollationQuery(String source, String target) {
+      queries++;
+      return order.get(source).compareTo(order.get(target));
+    }
+
+    @Override
+    List<String> executeCollationRankQuery(List<String> values) {
+      rankQueries++;
+      List<String> result = Lists.newArrayList(sorted);
+      result.retainAll(values);
+      return result;
+    }
+  }
+
+  public void testSqlCollatorCache() {
+    CountingDBClient client =
+        new CountingDBClient(ImmutableList.of("b", "a", "c"));
+    SqlCollator collator = new SqlCollator(client);
+
+    assertTrue(collator.compare("b", "a") < 0);
+    assertTrue(collator.compare("a", "b") > 0);
+    assertTrue(collator.compare("b", "a") < 0);
+    assertEquals(1, client.queries);
+
+    collator.setCacheSize(0);
+    assertTrue(collator.compare("b", "a") < 0);
+    assertTrue(collator.compare("b", "a") < 0);
+    assertEquals(3, client.queries);
+  }
+
+  public void testSqlCollatorRankWithoutQueries() {
+    CountingDBClient client =
+        new CountingDBClient(ImmutableList.of("b", "a", "c"));
+    SqlCollator collator = new SqlCollator(client);
+
+    collator.rank(ImmutableList.of("a", "b", "c", "a"));
+    assertTrue(collator.compare("b", "a") < 0);
+    assertTrue(collator.compare("c", "a") > 0);
+    assertTrue(collator.compare("b", "c") < 0);
+    assertEquals(0, client.queries);
+  }
+
+  /** Batches larger than a query are ranked in chunks and merged. */
+  public void testSqlCollatorRankChunks() {
+    List<String> sorted = Lists.newArrayList();
+    for (int i = 0; i < SqlCollator.MAX_RANK_SIZE * 5 / 2; i++) {
+      sorted.add(String.format("%05d", i));
+    }
+    CountingDBClient client = new CountingDBClient(sorted);
+    SqlCollator collator = new SqlCollator(client);
+
+    List<String> shuffled = Lists.newArrayList(sorted);
+    Collections.shuffle(shuffled, new Random(42));
+    collator.rank(shuffled);
+    assertTrue(client.rankQueries > 3);
+
+    // Strings from different chunks are compared without queries.
+    Collections.sort(shuffled, collator);
+    assertEquals(sorted, shuffled);
+    assertEquals(0, client.queries);
+  }
+
+  /** A string that was not ranked is ranked near the strings it meets. */
+  public void testSqlCollatorRankOtherSide() {
+    CountingDBClient client =
+        new CountingDBClient(ImmutableList.of("b", "d", "a", "c"));
+    SqlCollator collator = new SqlCollator(client);
+
+    collator.rank(ImmutableList.of("b", "a", "c"));
+    assertEquals(1, client.rankQueries);
+    assertTrue(collator.compare("d", "a") < 0);
+    assertTrue(collator.compare("d", "b") > 0);
+    assertTrue(collator.compare("c", "d") > 0);
+    assertEquals(2, client.rankQueries);
+    assertEquals(0, client.queries);
+  }
+
   private void assertContains(String result, String test) {
     assertTrue(result, result.contains(test));
   }
@@ -0,0 +1,63 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+public class Utf8TranscoderTest extends TestCase {
+  // A surrogate pair among one, two and three byte characters.
+  private static final String UNICODE_STRING =
+      "caf\u00E9 \u2192 \uD83D\uDE00 \u2EC1";
+
+  public void testCharSequence() {
+    byte[] bytes = Utf8Transcoder.getInstance().toByteArray(UNICODE_STRING);
+    assertTrue(Arrays.equals(UNICODE_STRING.getBytes(Charsets.UTF_8), bytes));
+  }
+
+  public void testEmpty() {
+    assertEquals(0, Utf8Transcoder.getInstance().toByteArray("").length);
+  }
+
+  /** The buffers are reset between calls. */
+  public void testReuse() {
+    Utf8Transcoder transcoder = Utf8Transcoder.getInstance();
+    assertSame(transcoder, Utf8Transcoder.getInstance());
+    transcoder.toByteArray("\uD83D");
+    assertEquals("abc", new String(transcoder.toByteArray("abc"),
+        Charsets.UTF_8));
+  }
+
+  /** An unpaired surrogate is replaced. */
+  public void testMalformed() {
+    assertEquals("a?b", new String(
+        Utf8Transcoder.getInstance().toByteArray("a\uD83Db"),
+        Charsets.UTF_8));
+  }
+
+  public void testTranscode() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long written = Utf8Transcoder.getInstance().transcode(
+        new StringReader(UNICODE_STRING), Long.MAX_VALUE, out);
+    byte[] expected = UNICODE_STRING.getBytes(Charsets.UTF_8);
+    assertEquals(expected.length, written);
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+  }
+}
@@ -49,6 +49,23 @@ public class UtilTest extends TestCase {
     testGetBytesReader(builder.length(), builder.toString());    
   }
   
+  /** Test getBytes(int, Reader) with a surrogate pair split by a read. */
+  public void testGetBytesReaderSurrogatePair() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    builder.append('x');
+    // U+1F600 is two chars, so one pair spans the 32K buffer boundary.
+    for (int i = 0; i < 20000; i++) {
+      builder.append("\uD83D\uDE00");
+    }
+    testGetBytesReader(builder.length(), builder.toString());
+  }
+
+  /** Test getBytes(int, Reader) stops reading at the given length. */
+  public void testGetBytesReaderTruncated() throws Exception {
+    byte[] bytes = Util.getBytes(3, new StringReader("abcdef"));
+    assertEquals("abc", new String(bytes, "UTF-8"));
+  }
+
   /**
    * Tests that getBytes(int, Reader) returns a UTF-8 encoded byte array
    * representation of the test String.
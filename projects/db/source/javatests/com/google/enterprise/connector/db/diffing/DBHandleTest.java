@@ -14,12 +14,15 @@
 
 package com.google.enterprise.connector.db.diffing;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
 import com.google.enterprise.connector.spiimpl.DateValue;
 import com.google.enterprise.connector.util.diffing.DocumentHandle;
 
@@ -28,6 +31,7 @@ import junit.framework.TestCase;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.Date;
@@ -125,4 +129,49 @@ public class DBHandleTest extends TestCase {
     assertTrue(value.getClass().toString(), value instanceof DateValue);
     assertEquals(value.getClass(), deserialValue.getClass());
   }
+
+  private String getContent(DocumentHandle handle)
+      throws RepositoryException, IOException {
+    Value value = Value.getSingleValue(handle.getDocument(),
+        SpiConstants.PROPNAME_CONTENT);
+    assertTrue(value.getClass().toString(), value instanceof BinaryValue);
+    return new String(ByteStreams.toByteArray(
+        ((BinaryValue) value).getInputStream()), Charsets.UTF_8);
+  }
+
+  /**
+   * Tests that the content is decoded when the document is requested,
+   * wherever it appears in the string.
+   */
+  public void testDeserializedContent() throws Exception {
+    String content = "\"google:content\":\"aGVsbG8sIHdvcmxk\"";
+    String docid = "\"google:docid\":\"1\"";
+    String title = "\"title\":\"x,\\\"google:content\\\":\\\"aGk=\\\"\"";
+    for (String jsonString : new String[] {
+          "{" + docid + "," + content + "}",
+          "{" + content + "," + docid + "}",
+          "{" + title + "," + content + "," + docid + "}" }) {
+      DBHandle handle = new DBHandle(jsonString);
+      assertEquals("1", handle.getDocumentId());
+      assertEquals(jsonString, handle.toString());
+      assertEquals(jsonString, "hello, world", getContent(handle));
+    }
+  }
+
+  /** Tests that escaped content is unescaped by the JSON parser. */
+  public void testDeserializedEscapedContent() throws Exception {
+    DBHandle handle = new DBHandle(
+        "{\"google:docid\":\"1\",\"google:content\":\"h\\u00e9llo\"}");
+    assertEquals("1", handle.getDocumentId());
+    assertEquals("h\u00e9llo", getContent(handle));
+  }
+
+  /** Tests that a handle without a docid is rejected. */
+  public void testDeserializedNoDocid() {
+    try {
+      new DBHandle("{\"google:content\":\"aGVsbG8sIHdvcmxk\"}");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
 }
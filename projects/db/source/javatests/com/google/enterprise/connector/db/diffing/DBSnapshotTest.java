@@ -14,18 +14,23 @@
 
 package com.google.enterprise.connector.db.diffing;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.same;
 import static org.easymock.EasyMock.verify;
 
+import com.google.common.base.Charsets;
 import com.google.enterprise.connector.db.ValueOrdering;
+import com.google.enterprise.connector.util.MimeTypeDetector;
 import com.google.enterprise.connector.util.diffing.DocumentHandle;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 
 import junit.framework.TestCase;
 
+import org.easymock.Capture;
+
 import java.text.Collator;
 import java.util.Locale;
 
@@ -43,7 +48,7 @@ public class DBSnapshotTest extends TestCase {
     String docId = "1";
     String mimeType = "text/plain";
     String checksum = "1234";
-    String jsonString = builder.getJsonString(docId, checksum);
+    String serializedForm = DBSnapshot.getSerializedForm(docId, checksum);
     holder = new DocumentBuilder.DocumentHolder(builder, null, null,
         docId, new ContentHolder("hello, world", checksum, mimeType));
 
@@ -56,7 +61,8 @@ public class DBSnapshotTest extends TestCase {
         }
       };
 
-    documentSnapshot = new DBSnapshot(valueOrdering, "1", jsonString, holder);
+    documentSnapshot =
+        new DBSnapshot(valueOrdering, "1", serializedForm, holder);
   }
 
   public void testGetDocumentId() {
@@ -82,8 +88,8 @@ public class DBSnapshotTest extends TestCase {
   }
 
   public void testGetUpdateChangedDocument() throws Exception {
-    DocumentSnapshot onGsa = new DBSnapshot(null,
-        builder.getJsonString(documentSnapshot.getDocumentId(), "9999"));
+    DocumentSnapshot onGsa = new DBSnapshot(null, DBSnapshot.getSerializedForm(
+        documentSnapshot.getDocumentId(), "9999"));
 
     // Assert that our DocumentHolder is used to create the DocumentHandle.
     expect(builder.getDocumentHandle(same(holder))).andReturn(null);
@@ -93,11 +99,205 @@ public class DBSnapshotTest extends TestCase {
   }
 
   /**
-   * Test that the JSON object snapshot string is a limited subset of all the
+   * Test that the snapshot string is a limited subset of all the
    * properties. Only the docid and checksum should be included.
    */
   public void testToString() {
-    String expected = "{\"google:docid\":\"1\",\"google:sum\":\"1234\"}";
-    assertEquals(expected, documentSnapshot.toString());
+    // The checksum 0x1234 is "EjQ" in web-safe Base64.
+    assertEquals("1;1;EjQ", documentSnapshot.toString());
+  }
+
+  public void testGetSerializedForm_invalidChecksum() {
+    try {
+      DBSnapshot.getSerializedForm("1", "xyz");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests that separators in the docid do not confuse the parser. */
+  public void testFromString_separatorInDocid() {
+    String docId = "BF/1/a;b;c";
+    DBSnapshot snapshot = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm(docId, "abcdef0123456789"));
+    assertEquals(docId, snapshot.getDocumentId());
+  }
+
+  public void testFromString_invalid() {
+    try {
+      new DBSnapshot(valueOrdering, "1;no-checksum-separator");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new DBSnapshot(valueOrdering, "not a snapshot");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests reading a snapshot written in the legacy JSON form. */
+  public void testFromString_legacy() throws Exception {
+    DBSnapshot legacy = new DBSnapshot(valueOrdering,
+        "{\"google:docid\":\"1\",\"google:sum\":\"1234\"}");
+    assertEquals("1", legacy.getDocumentId());
+    assertEquals(documentSnapshot.toString(), legacy.toString());
+
+    // An unchanged document must not be updated when migrating from
+    // the legacy form.
+    assertNull(documentSnapshot.getUpdate(legacy));
+  }
+
+  /** Tests reading a snapshot with a version 2 docid. */
+  public void testFromString_version2() {
+    String docId = "2BF/1/a;b c%2Fd";
+    DBSnapshot snapshot = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm(docId, "abcdef0123456789"));
+    assertEquals(docId, snapshot.getDocumentId());
+  }
+
+  private DBSnapshot getVersion2Snapshot(boolean docIdMigration,
+      String checksum) {
+    String docId = "2F/a b";
+    DocumentBuilder.DocumentHolder version2Holder =
+        new DocumentBuilder.DocumentHolder(builder, null, null, docId,
+            new ContentHolder("hello, world", checksum, "text/plain"),
+            docIdMigration);
+    return new DBSnapshot(valueOrdering, docId,
+        DBSnapshot.getSerializedForm(docId, checksum), version2Holder);
+  }
+
+  /** Without migration, a docid in a new format is a new document. */
+  public void testCompareToVersion2() {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm("F/a+b", "1234"));
+    assertTrue(getVersion2Snapshot(false, "1234").compareTo(onGsa) > 0);
+  }
+
+  /** When migrating, an unchanged document keeps its docid. */
+  public void testGetUpdateMigratedDocid() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm("F/a+b", "1234"));
+    DBSnapshot snapshot = getVersion2Snapshot(true, "1234");
+    assertEquals(0, snapshot.compareTo(onGsa));
+    assertNull(snapshot.getUpdate(onGsa));
+    assertEquals("F/a+b", snapshot.getDocumentId());
+    assertEquals(onGsa.toString(), snapshot.toString());
+  }
+
+  /** When migrating, a changed document is updated with its old docid. */
+  public void testGetUpdateMigratedDocidChanged() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm("F/a+b", "1234"));
+    DBSnapshot snapshot = getVersion2Snapshot(true, "9999");
+    assertEquals(0, snapshot.compareTo(onGsa));
+
+    Capture<DocumentBuilder.DocumentHolder> capture =
+        new Capture<DocumentBuilder.DocumentHolder>();
+    expect(builder.getDocumentHandle(capture(capture))).andReturn(null);
+    replay(builder);
+    snapshot.getUpdate(onGsa);
+    verify(builder);
+    assertEquals("F/a+b", capture.getValue().docId);
+    assertEquals(DBSnapshot.getSerializedForm("F/a+b", "9999"),
+        snapshot.toString());
+  }
+
+  public void testGetUpdateChangedDocid() throws Exception {
+    DocumentSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm("01", "1234"));
+
+    expect(builder.getDocumentHandle(same(holder))).andReturn(null);
+    replay(builder);
+    DocumentHandle update = documentSnapshot.getUpdate(onGsa);
+    verify(builder);
+  }
+
+  public void testToString_treeHash() {
+    DBSnapshot snapshot = new DBSnapshot(valueOrdering, "1",
+        DBSnapshot.getSerializedForm(DBSnapshot.TREE_HASH_VERSION, "1",
+            "1234"), holder);
+    assertEquals("2;1;EjQ", snapshot.toString());
+    DBSnapshot deserialSnapshot =
+        new DBSnapshot(valueOrdering, snapshot.toString());
+    assertEquals("1", deserialSnapshot.getDocumentId());
+    assertEquals(snapshot.toString(), deserialSnapshot.toString());
+  }
+
+  private DocumentBuilder.DocumentHolder getLobHolder(String content,
+      DigestFactory digestFactory) {
+    DigestContentHolder contentHolder = DigestContentHolder.getInstance(
+        content.getBytes(Charsets.UTF_8), new MimeTypeDetector(),
+        "text/plain", null, null, digestFactory);
+    contentHolder.updateDigest("<metadata/>".getBytes(Charsets.UTF_8));
+    return new DocumentBuilder.DocumentHolder(builder, null, null, "1",
+        contentHolder);
+  }
+
+  private DBSnapshot getLobSnapshot(DocumentBuilder.DocumentHolder holder) {
+    int version = holder.contentHolder.getChecksumVersion();
+    return new DBSnapshot(valueOrdering, "1", DBSnapshot.getSerializedForm(
+        version, "1", holder.getChecksum(version)), holder);
+  }
+
+  /**
+   * A document is unchanged if only the checksum version changes, which
+   * is checked by computing the checksum again in the old version.
+   */
+  public void testGetUpdateChangedVersion() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering, getLobSnapshot(
+        getLobHolder("hello, world", DigestFactory.SHA1)).toString());
+    DBSnapshot snapshot = getLobSnapshot(
+        getLobHolder("hello, world", DigestFactory.getInstance(2)));
+    assertFalse(onGsa.toString().equals(snapshot.toString()));
+
+    assertNull(snapshot.getUpdate(onGsa));
+    assertTrue(snapshot.toString(), snapshot.toString().startsWith("2;1;"));
+
+    // And back again.
+    onGsa = new DBSnapshot(valueOrdering, snapshot.toString());
+    snapshot = getLobSnapshot(getLobHolder("hello, world",
+            DigestFactory.SHA1));
+    assertNull(snapshot.getUpdate(onGsa));
+  }
+
+  /** A document whose content changes with the version is sent. */
+  public void testGetUpdateChangedVersionAndContent() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering, getLobSnapshot(
+        getLobHolder("hello, world", DigestFactory.SHA1)).toString());
+    DocumentBuilder.DocumentHolder lobHolder =
+        getLobHolder("goodbye, world", DigestFactory.getInstance(2));
+    DBSnapshot snapshot = getLobSnapshot(lobHolder);
+
+    expect(builder.getDocumentHandle(same(lobHolder))).andReturn(null);
+    replay(builder);
+    snapshot.getUpdate(onGsa);
+    verify(builder);
+  }
+
+  /** A document is sent if its checksum is not available in the version. */
+  public void testGetUpdateChangedVersionUnavailable() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm(DBSnapshot.TREE_HASH_VERSION, "1",
+            "1234"));
+
+    expect(builder.getDocumentHandle(same(holder))).andReturn(null);
+    replay(builder);
+    ((DBSnapshot) documentSnapshot).getUpdate(onGsa);
+    verify(builder);
+  }
+
+  public void testGetUpdateChangedTreeHash() throws Exception {
+    DBSnapshot onGsa = new DBSnapshot(valueOrdering,
+        DBSnapshot.getSerializedForm(DBSnapshot.TREE_HASH_VERSION, "1",
+            "1234"));
+    DBSnapshot snapshot = new DBSnapshot(valueOrdering, "1",
+        DBSnapshot.getSerializedForm(DBSnapshot.TREE_HASH_VERSION, "1",
+            "9999"), holder);
+
+    expect(builder.getDocumentHandle(same(holder))).andReturn(null);
+    replay(builder);
+    snapshot.getUpdate(onGsa);
+    verify(builder);
   }
 }
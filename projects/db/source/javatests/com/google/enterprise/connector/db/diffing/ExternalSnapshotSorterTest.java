@@ -0,0 +1,227 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.connector.db.DBConnectorType;
+import com.google.enterprise.connector.db.DBContext;
+import com.google.enterprise.connector.db.DBTestBase;
+import com.google.enterprise.connector.db.SqlCollator;
+import com.google.enterprise.connector.spi.SimpleTraversalContext;
+import com.google.enterprise.connector.util.InputStreamFactory;
+import com.google.enterprise.connector.util.MimeTypeDetector;
+import com.google.enterprise.connector.util.diffing.DocumentHandle;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.TraversalContextManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class ExternalSnapshotSorterTest extends DBTestBase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    runDBScript(CREATE_TEST_DB_TABLE);
+    runDBScript(LOAD_TEST_DATA);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      runDBScript(DROP_TEST_DB_TABLE);
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  private DBContext getDbContext(String sqlQuery) {
+    return getDbContext(configMap, sqlQuery);
+  }
+
+  private DBContext getDbContext(Map<String, String> configMap,
+      String sqlQuery) {
+    Map<String, String> newConfig = Maps.newHashMap(configMap);
+    newConfig.put("sqlQuery", sqlQuery);
+    return getDbContext(newConfig);
+  }
+
+  private Map<String, String> getLobMap() {
+    Map<String, String> newConfig = Maps.newHashMap(configMap);
+    newConfig.put("extMetadataType", DBConnectorType.BLOB_CLOB);
+    newConfig.put("lobField", "LNAME");
+    return newConfig;
+  }
+
+  private DBSnapshotRepository getRepository(DBContext dbContext) {
+    TraversalContextManager traversalContextManager =
+        new TraversalContextManager();
+    traversalContextManager.setTraversalContext(new SimpleTraversalContext());
+    return new DBSnapshotRepository(
+        RepositoryHandler.makeRepositoryHandlerFromConfig(
+            dbContext, traversalContextManager));
+  }
+
+  /** Gets the snapshots and the serialized documents. */
+  private List<String> traverse(DBSnapshotRepository repository)
+      throws Exception {
+    List<String> results = Lists.newArrayList();
+    Iterator<DocumentSnapshot> iterator = repository.iterator();
+    while (iterator.hasNext()) {
+      DocumentSnapshot snapshot = iterator.next();
+      DocumentHandle handle = snapshot.getUpdate(null);
+      results.add(snapshot.toString());
+      results.add(handle.toString());
+    }
+    return results;
+  }
+
+  private void testSort(String sqlQuery, int runSize) throws Exception {
+    testSort(configMap, sqlQuery, runSize);
+  }
+
+  private void testSort(Map<String, String> configMap, String sqlQuery,
+      int runSize) throws Exception {
+    List<String> expected =
+        traverse(getRepository(getDbContext(configMap,
+                "SELECT * FROM TestEmpTable ORDER BY id")));
+    assertTrue(expected.size() > 4);
+
+    DBContext dbContext = getDbContext(configMap, sqlQuery);
+    dbContext.setConnectorSort(true);
+    dbContext.setSortRunSize(runSize);
+    assertEquals(expected, traverse(getRepository(dbContext)));
+
+    // The sort files are deleted after the merge.
+    File sortDir = new File(dbContext.getGoogleConnectorWorkDir(), "sort");
+    assertEquals(0, sortDir.list().length);
+  }
+
+  public void testSortDescending() throws Exception {
+    testSort("SELECT * FROM TestEmpTable ORDER BY id DESC", 2);
+  }
+
+  public void testSortUnordered() throws Exception {
+    testSort("SELECT * FROM TestEmpTable", 3);
+  }
+
+  public void testSortOneRun() throws Exception {
+    testSort("SELECT * FROM TestEmpTable ORDER BY id DESC", 1000);
+  }
+
+  /** Tests that the stored content is used to rebuild the documents. */
+  public void testSortLob() throws Exception {
+    testSort(getLobMap(), "SELECT * FROM TestEmpTable", 3);
+  }
+
+  /** Each run is ranked by a {@code SqlCollator} before it is sorted. */
+  public void testSortSqlCollator() throws Exception {
+    Map<String, String> newConfig = Maps.newHashMap(configMap);
+    newConfig.put("primaryKeysString", "fname");
+    final List<Integer> ranked = Lists.newArrayList();
+    DBContext dbContext =
+        getDbContext(newConfig, "SELECT * FROM TestEmpTable ORDER BY fname");
+    dbContext.setCollator(new SqlCollator(dbContext.getClient()) {
+        @Override
+        public void rank(Collection<String> values) {
+          ranked.add(values.size());
+          super.rank(values);
+        }
+      });
+    dbContext.getClient().setDBContext(dbContext);
+    List<String> expected = traverse(getRepository(dbContext));
+    assertTrue(expected.size() > 4);
+
+    ranked.clear();
+    dbContext.setSqlQuery("SELECT * FROM TestEmpTable ORDER BY fname DESC");
+    dbContext.getClient().setDBContext(dbContext);
+    dbContext.setConnectorSort(true);
+    dbContext.setSortRunSize(2);
+    assertEquals(expected, traverse(getRepository(dbContext)));
+    assertEquals(ranked.toString(), 2, (int) ranked.get(0));
+    assertEquals(ranked.toString(), 2, (int) ranked.get(1));
+  }
+
+  public void testRowRoundTrip() throws Exception {
+    Timestamp timestamp = new Timestamp(1234567890123L);
+    timestamp.setNanos(123456789);
+    Map<String, Object> row = Maps.newLinkedHashMap();
+    row.put("string", "h\u00e9llo");
+    row.put("null", null);
+    row.put("integer", 42);
+    row.put("long", Long.MAX_VALUE);
+    row.put("double", 0.5);
+    row.put("decimal", new BigDecimal("12345678901234567890.12"));
+    row.put("timestamp", timestamp);
+    row.put("date", new java.sql.Date(1234567890000L));
+    row.put("time", new Time(45296000L));
+    row.put("boolean", Boolean.TRUE);
+    row.put("content", new ContentHolder("ignored", "checksum", null));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExternalSnapshotSorter.writeRow(new DataOutputStream(bytes), row, null);
+    Map<String, Object> actual = ExternalSnapshotSorter.readRow(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+        null);
+
+    row.remove("content");
+    assertEquals(row, actual);
+    assertEquals(Lists.newArrayList(row.keySet()),
+        Lists.newArrayList(actual.keySet()));
+  }
+
+  public void testRowContent() throws Exception {
+    byte[] content = "hello, world".getBytes("UTF-8");
+    Map<String, Object> row = Maps.newLinkedHashMap();
+    row.put("id", 1);
+    row.put("lob", DigestContentHolder.getInstance(content,
+            new MimeTypeDetector(), "text/plain", null));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExternalSnapshotSorter.writeRow(new DataOutputStream(bytes), row, "lob");
+    Map<String, Object> actual = ExternalSnapshotSorter.readRow(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+        null);
+
+    assertEquals(1, actual.get("id"));
+    DigestContentHolder holder = (DigestContentHolder) actual.get("lob");
+    assertEquals("text/plain", holder.getMimeType());
+    assertEquals(content.length, holder.getLength());
+    assertTrue(Arrays.equals(content, ByteStreams.toByteArray(
+        ((InputStreamFactory) holder.getContent()).getInputStream())));
+    assertEquals(
+        ((DigestContentHolder) row.get("lob")).getChecksum(),
+        holder.getChecksum());
+  }
+
+  public void testSortEmpty() throws Exception {
+    DBContext dbContext =
+        getDbContext("SELECT * FROM TestEmpTable WHERE id < 0");
+    dbContext.setConnectorSort(true);
+    assertEquals(0, traverse(getRepository(dbContext)).size());
+  }
+}
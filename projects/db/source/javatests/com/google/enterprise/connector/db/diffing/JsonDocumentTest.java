@@ -14,10 +14,12 @@
 
 package com.google.enterprise.connector.db.diffing;
 
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.db.DBException;
 import com.google.enterprise.connector.db.DBTestBase;
 import com.google.enterprise.connector.db.InputStreamFactories;
 import com.google.enterprise.connector.db.TestUtils;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
@@ -26,6 +28,11 @@ import com.google.enterprise.connector.util.Base64;
 
 import junit.framework.TestCase;
 
+import org.json.JSONObject;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class JsonDocumentTest extends TestCase {
@@ -61,6 +68,24 @@ public class JsonDocumentTest extends TestCase {
     assertEquals(expected, jsonDocument.toJson());
   }
 
+  /** Multi-valued properties survive serialization. */
+  public void testMultiValuedProperty() throws Exception {
+    jsonObjectUtil.setProperty(SpiConstants.PROPNAME_ACLUSERS,
+        ImmutableList.of("user1", "user2"));
+    JsonDocument original = new JsonDocument(jsonObjectUtil.getProperties(),
+        jsonObjectUtil.getJsonObject());
+    JsonDocument jsonDocument =
+        new JsonDocument(new JSONObject(original.toJson()));
+    List<String> values = new ArrayList<String>();
+    Property property =
+        jsonDocument.findProperty(SpiConstants.PROPNAME_ACLUSERS);
+    Value value;
+    while ((value = property.nextValue()) != null) {
+      values.add(value.toString());
+    }
+    assertEquals(ImmutableList.of("user1", "user2"), values);
+  }
+
   public void testFindProperty() throws Exception {
     Map<String, Object> rowMap = TestUtils.getStandardDBRow();
     try {
@@ -96,4 +121,36 @@ public class JsonDocumentTest extends TestCase {
       fail("Could not generate Json document from row.");
     }
   }
+
+  /** The content is streamed at the end of the serialized document. */
+  public void testWriteJsonContent() throws Exception {
+    byte[] content = "hello, world".getBytes("UTF-8");
+    jsonObjectUtil.setBinaryContent(SpiConstants.PROPNAME_CONTENT,
+        InputStreamFactories.newInstance(content));
+    JsonDocument original = new JsonDocument(jsonObjectUtil.getProperties(),
+        jsonObjectUtil.getJsonObject());
+    StringWriter out = new StringWriter();
+    original.writeJson(out);
+    String json = out.toString();
+    assertEquals(json, original.toJson());
+    assertTrue(json,
+        json.endsWith(",\"google:content\":\"aGVsbG8sIHdvcmxk\"}"));
+
+    JsonDocument jsonDocument = new JsonDocument(new JSONObject(json));
+    assertEquals("B/1", jsonDocument.getDocumentId());
+    Value contentValue = Value.getSingleValue(jsonDocument,
+        SpiConstants.PROPNAME_CONTENT);
+    assertEquals("hello, world", InputStreamFactories.toString(contentValue));
+  }
+
+  public void testWriteJsonOnlyContent() throws Exception {
+    JsonObjectUtil contentOnly = new JsonObjectUtil();
+    contentOnly.setBinaryContent(SpiConstants.PROPNAME_CONTENT,
+        InputStreamFactories.newInstance("hello".getBytes("UTF-8")));
+    contentOnly.setProperty(SpiConstants.PROPNAME_DOCID, "B/1");
+    JSONObject jo = contentOnly.getJsonObject();
+    jo.remove(SpiConstants.PROPNAME_DOCID);
+    JsonDocument document = new JsonDocument(contentOnly.getProperties(), jo);
+    assertEquals("{\"google:content\":\"aGVsbG8=\"}", document.toJson());
+  }
 }
@@ -26,6 +26,7 @@ import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.enterprise.connector.db.DBClient;
 import com.google.enterprise.connector.db.DBException;
+import com.google.enterprise.connector.db.SpoolManager;
 import com.google.enterprise.connector.db.testing.MockClient;
 import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -282,6 +283,43 @@ public class LobDocumentBuilderTest extends DocumentBuilderFixture {
         blobContent);
   }
 
+  /**
+   * Shared content keeps only the MIME type detected from the content,
+   * not a declared MIME type, or one detected with a file name.
+   */
+  public void testDigestContentHolderSharedMimeType() throws Exception {
+    byte[] blobContent = getBlobContent();
+    MimeTypeDetector detector = new MimeTypeDetector();
+    File directory = Files.createTempDir();
+    try {
+      SpoolManager manager = new SpoolManager(directory, 1000, 10);
+      DigestContentHolder declared = DigestContentHolder.getInstance(
+          blobContent, detector, "text/html", null, manager);
+      DigestContentHolder named = DigestContentHolder.getInstance(
+          blobContent, detector, null, "blob.txt", manager);
+      DigestContentHolder detected = DigestContentHolder.getInstance(
+          blobContent, detector, null, null, manager);
+      DigestContentHolder shared = DigestContentHolder.getInstance(
+          blobContent, detector, null, null, manager);
+
+      assertEquals("text/html", declared.getMimeType());
+      assertEquals(detector.getMimeType("blob.txt", blobContent),
+          named.getMimeType());
+      assertEquals("application/pdf", detected.getMimeType());
+      assertEquals("application/pdf", shared.getMimeType());
+      assertEquals(1, manager.getSpoolFileCount());
+      assertEquals(3, manager.getSharedCount());
+
+      for (DigestContentHolder holder
+               : ImmutableList.of(declared, named, detected, shared)) {
+        SpoolManager.release((InputStreamFactory) holder.getContent());
+      }
+      assertEquals(0, manager.getSpoolFileCount());
+    } finally {
+      assertTrue(directory.delete());
+    }
+  }
+
   public void testByteArrayBlobDocument() throws Exception {
     byte[] blobContent = getBlobContent();
     testBLOBDataScenarios(blobContent, blobContent);
@@ -371,6 +409,30 @@ public class LobDocumentBuilderTest extends DocumentBuilderFixture {
     assertNull(docContent);
   }
 
+  /** A declared MIME type is used instead of the detected type. */
+  public void testDeclaredMimeType() throws Exception {
+    dbContext.setMimeTypeField("mimeType");
+    Map<String, Object> rowMap = getBlobRow(getBlobContent());
+    rowMap.put("mimeType", " Text/HTML ");
+
+    DocumentBuilder docBuilder = new LobDocumentBuilder(dbContext, context);
+    ContentHolder holder = docBuilder.getContentHolder(rowMap,
+        ImmutableList.of(primaryKeyColumn), "1");
+    assertEquals("text/html", holder.getMimeType());
+  }
+
+  /** A row without a declared MIME type has its MIME type detected. */
+  public void testDeclaredMimeTypeNull() throws Exception {
+    dbContext.setMimeTypeField("mimeType");
+    Map<String, Object> rowMap = getBlobRow(getBlobContent());
+    rowMap.put("mimeType", null);
+
+    DocumentBuilder docBuilder = new LobDocumentBuilder(dbContext, context);
+    ContentHolder holder = docBuilder.getContentHolder(rowMap,
+        ImmutableList.of(primaryKeyColumn), "1");
+    assertEquals("application/pdf", holder.getMimeType());
+  }
+
   public void testExcludedBlob() throws Exception {
     Map<String, Object> rowMap = getBlobRow(getBlobContent());
 
@@ -0,0 +1,116 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import com.google.common.collect.Lists;
+import com.google.enterprise.connector.db.DBClient;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LobFetcherTest extends TestCase {
+  private static List<Map<String, Object>> getRows(int count) {
+    List<Map<String, Object>> rows = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> row = new HashMap<String, Object>();
+      row.put("id", i);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /** A client that returns "lob" and the id, and counts the queries. */
+  private static class LobClient extends DBClient {
+    final AtomicInteger queries = new AtomicInteger();
+
+    @Override
+    public Object executeLobQuery(Map<String, Object> row) {
+      queries.incrementAndGet();
+      return "lob" + row.get("id");
+    }
+  }
+
+  public void testOrder() {
+    LobFetcher fetcher = new LobFetcher(new LobClient(), "content", 4, 1000);
+    List<Map<String, Object>> rows = getRows(20);
+    Iterator<Map<String, Object>> iterator = fetcher.fetch(rows);
+    for (int i = 0; i < 20; i++) {
+      Map<String, Object> row = iterator.next();
+      assertSame(rows.get(i), row);
+      assertEquals("lob" + i, row.get("content"));
+    }
+    assertFalse(iterator.hasNext());
+  }
+
+  public void testConcurrent() {
+    final CountDownLatch latch = new CountDownLatch(3);
+    DBClient client = new DBClient() {
+        @Override
+        public Object executeLobQuery(Map<String, Object> row) {
+          // Each query waits for the other two to start.
+          latch.countDown();
+          try {
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return "lob";
+        }
+      };
+    LobFetcher fetcher = new LobFetcher(client, "content", 3, 1000);
+    Iterator<Map<String, Object>> iterator = fetcher.fetch(getRows(3));
+    assertEquals("lob", iterator.next().get("content"));
+    assertEquals(0, latch.getCount());
+  }
+
+  /** Past the memory limit, only the next row is fetched. */
+  public void testMaxBytes() {
+    LobClient client = new LobClient();
+    LobFetcher fetcher = new LobFetcher(client, "content", 4, 0);
+    Iterator<Map<String, Object>> iterator = fetcher.fetch(getRows(5));
+    for (int i = 0; i < 5; i++) {
+      iterator.next();
+      assertEquals(i + 1, client.queries.get());
+    }
+  }
+
+  public void testFailure() {
+    DBClient client = new DBClient() {
+        @Override
+        public Object executeLobQuery(Map<String, Object> row) {
+          if (row.get("id").equals(1)) {
+            throw new SnapshotRepositoryRuntimeException("expected", null);
+          }
+          return "lob";
+        }
+      };
+    LobFetcher fetcher = new LobFetcher(client, "content", 2, 1000);
+    Iterator<Map<String, Object>> iterator = fetcher.fetch(getRows(3));
+    iterator.next();
+    try {
+      iterator.next();
+      fail("Expected a SnapshotRepositoryRuntimeException");
+    } catch (SnapshotRepositoryRuntimeException expected) {
+    }
+  }
+}
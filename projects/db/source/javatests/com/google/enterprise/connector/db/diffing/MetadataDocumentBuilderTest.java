@@ -14,12 +14,19 @@
 
 package com.google.enterprise.connector.db.diffing;
 
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.db.DBContext;
 import com.google.enterprise.connector.db.InputStreamFactories;
 import com.google.enterprise.connector.db.TestUtils;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.util.Base64;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -55,4 +62,72 @@ public class MetadataDocumentBuilderTest extends DocumentBuilderFixture {
     assertNull(doc.findProperty(DocumentBuilder.ROW_CHECKSUM));
     assertEquals(doc.toJson(), -1, doc.toJson().indexOf("google:sum"));
   }
+
+  private static List<String> getValues(JsonDocument doc, String propName)
+      throws RepositoryException {
+    List<String> values = new ArrayList<String>();
+    Property property = doc.findProperty(propName);
+    if (property != null) {
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        values.add(value.toString());
+      }
+    }
+    return values;
+  }
+
+  /** ACLs may be read from columns in the row. */
+  public void testAclColumns() throws Exception {
+    Map<String, Object> rowMap = TestUtils.getStandardDBRow();
+    rowMap.put("readers", "user2, user1,");
+    rowMap.put("readerGroups", "eng");
+    DBContext aclContext = getMinimalDbContext();
+    MetadataDocumentBuilder builder =
+        new MetadataDocumentBuilder(aclContext);
+    String noAcl = builder.getDocumentSnapshot(rowMap).toString();
+
+    aclContext.setAclUsersField("readers");
+    aclContext.setAclGroupsField(" readerGroups ");
+    DocumentSnapshot snapshot = builder.getDocumentSnapshot(rowMap);
+    assertFalse(noAcl.equals(snapshot.toString()));
+
+    // Check the deserialized document, too.
+    JsonDocument original =
+        (JsonDocument) snapshot.getUpdate(null).getDocument();
+    JsonDocument doc = (JsonDocument)
+        new DBHandle(original.toJson()).getDocument();
+    assertEquals(ImmutableList.of("user1", "user2"),
+        getValues(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertEquals(ImmutableList.of("eng"),
+        getValues(doc, SpiConstants.PROPNAME_ACLGROUPS));
+    assertEquals("false", getProperty(doc, SpiConstants.PROPNAME_ISPUBLIC));
+  }
+
+  /** An empty ACL is left to late-binding authorization. */
+  public void testEmptyAcl() throws Exception {
+    Map<String, Object> rowMap = TestUtils.getStandardDBRow();
+    DBContext aclContext = getMinimalDbContext();
+    aclContext.setAclUsersField("readers");
+    JsonDocument doc = getJsonDocument(
+        new MetadataDocumentBuilder(aclContext), rowMap);
+    assertNull(doc.findProperty(SpiConstants.PROPNAME_ACLUSERS));
+    assertNull(doc.findProperty(SpiConstants.PROPNAME_ISPUBLIC));
+  }
+
+  /** ACLs may be read with a query for each row. */
+  public void testAclQuery() throws Exception {
+    runDBScript(CREATE_USER_DOC_MAP_TABLE);
+    runDBScript(LOAD_USER_DOC_MAP_TEST_DATA);
+    dbContext.setAclQuery(
+        "SELECT username FROM user_doc_map WHERE ReportId = #{id}");
+    dbContext.setAclUsersField("USERNAME");
+    dbContext.getClient().setDBContext(dbContext);
+
+    Map<String, Object> rowMap = TestUtils.getStandardDBRow();
+    JsonDocument doc =
+        getJsonDocument(new MetadataDocumentBuilder(dbContext), rowMap);
+    assertEquals(ImmutableList.of("user1"),
+        getValues(doc, SpiConstants.PROPNAME_ACLUSERS));
+    assertNull(doc.findProperty(SpiConstants.PROPNAME_ACLGROUPS));
+  }
 }
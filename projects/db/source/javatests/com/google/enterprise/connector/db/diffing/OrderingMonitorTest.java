@@ -0,0 +1,159 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import static org.easymock.EasyMock.createMock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.enterprise.connector.db.DBContext;
+import com.google.enterprise.connector.db.DBTestBase;
+import com.google.enterprise.connector.spi.SimpleTraversalContext;
+import com.google.enterprise.connector.util.diffing.DocumentSnapshot;
+import com.google.enterprise.connector.util.diffing.SnapshotRepositoryRuntimeException;
+import com.google.enterprise.connector.util.diffing.TraversalContextManager;
+
+import java.util.Iterator;
+import java.util.Map;
+
+public class OrderingMonitorTest extends DBTestBase {
+  private DBContext dbContext;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    runDBScript(CREATE_TEST_DB_TABLE);
+    runDBScript(LOAD_TEST_DATA);
+    dbContext = getDbContext();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      runDBScript(DROP_TEST_DB_TABLE);
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  private DBSnapshot getSnapshot(String docid) {
+    return new DBSnapshot(dbContext, docid,
+        DBSnapshot.getSerializedForm(docid, "1234"), null);
+  }
+
+  private void setDescendingQuery() {
+    Map<String, String> newConfig = Maps.newHashMap(configMap);
+    newConfig.put("sqlQuery", "SELECT * FROM TestEmpTable ORDER BY id DESC");
+    dbContext = getDbContext(newConfig);
+  }
+
+  private RepositoryHandler getRepositoryHandler() {
+    TraversalContextManager traversalContextManager =
+        new TraversalContextManager();
+    traversalContextManager.setTraversalContext(new SimpleTraversalContext());
+    return RepositoryHandler.makeRepositoryHandlerFromConfig(
+        dbContext, traversalContextManager);
+  }
+
+  public void testInOrder() {
+    OrderingMonitor monitor = new OrderingMonitor(0);
+    assertTrue(monitor.check(getSnapshot("B/1")));
+    assertTrue(monitor.check(getSnapshot("B/2")));
+    assertTrue(monitor.check(getSnapshot("B/10")));
+    assertEquals(3, monitor.getCount());
+    assertEquals(0, monitor.getInversions());
+  }
+
+  public void testOutOfOrder() {
+    OrderingMonitor monitor = new OrderingMonitor(1);
+    assertTrue(monitor.check(getSnapshot("F/b")));
+    assertTrue(monitor.check(getSnapshot("F/a")));
+    assertFalse(monitor.check(getSnapshot("F/a")));
+    assertEquals(2, monitor.getInversions());
+    assertEquals(ImmutableList.of("F/b >= F/a", "F/a >= F/a"),
+        monitor.getExamples());
+  }
+
+  public void testNoLimit() {
+    OrderingMonitor monitor = new OrderingMonitor(-1);
+    for (int i = 20; i > 0; i--) {
+      assertTrue(monitor.check(getSnapshot("B/" + i)));
+    }
+    assertEquals(19, monitor.getInversions());
+    assertEquals(10, monitor.getExamples().size());
+  }
+
+  /** Only DBSnapshots are checked. */
+  public void testOtherSnapshots() {
+    OrderingMonitor monitor = new OrderingMonitor(0);
+    assertTrue(monitor.check(createMock(DocumentSnapshot.class)));
+    assertEquals(0, monitor.getCount());
+  }
+
+  /** Checks the order of all of the snapshots in a traversal. */
+  private OrderingMonitor traverse() {
+    OrderingMonitor monitor = new OrderingMonitor(-1);
+    Iterator<DocumentSnapshot> iterator =
+        new RepositoryHandlerIterator(getRepositoryHandler(), monitor);
+    while (iterator.hasNext()) {
+      iterator.next();
+    }
+    return monitor;
+  }
+
+  public void testTraversal() {
+    OrderingMonitor monitor = traverse();
+    assertTrue(monitor.getCount() > 1);
+    assertEquals(0, monitor.getInversions());
+  }
+
+  public void testTraversalDescending() {
+    setDescendingQuery();
+    OrderingMonitor monitor = traverse();
+    assertTrue(monitor.getCount() > 1);
+    assertEquals(monitor.getCount() - 1, monitor.getInversions());
+  }
+
+  /** The offline check reads the same rows as a traversal. */
+  public void testVerify() {
+    OrderingMonitor monitor = OrderingMonitor.verify(getRepositoryHandler());
+    assertEquals(traverse().getCount(), monitor.getCount());
+    assertEquals(0, monitor.getInversions());
+  }
+
+  public void testVerifyDescending() {
+    setDescendingQuery();
+    OrderingMonitor monitor = OrderingMonitor.verify(getRepositoryHandler());
+    assertTrue(monitor.getCount() > 1);
+    assertEquals(monitor.getCount() - 1, monitor.getInversions());
+  }
+
+  public void testIteratorStops() {
+    setDescendingQuery();
+    RepositoryHandler repositoryHandler = getRepositoryHandler();
+    Iterator<DocumentSnapshot> iterator = new RepositoryHandlerIterator(
+        repositoryHandler, new OrderingMonitor(0));
+    DocumentSnapshot first = iterator.next();
+    try {
+      iterator.next();
+      fail("Expected a SnapshotRepositoryRuntimeException");
+    } catch (SnapshotRepositoryRuntimeException expected) {
+    }
+
+    // The next traversal starts over from the beginning.
+    iterator = new RepositoryHandlerIterator(repositoryHandler);
+    assertEquals(first.getDocumentId(), iterator.next().getDocumentId());
+  }
+}
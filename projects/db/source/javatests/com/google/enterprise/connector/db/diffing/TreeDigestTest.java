@@ -0,0 +1,128 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.db.diffing;
+
+import junit.framework.TestCase;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TreeDigestTest extends TestCase {
+  private static final int CHUNK_SIZE = TreeDigest.CHUNK_SIZE;
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static byte[] getBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] sha1(byte[] data, int offset, int length)
+      throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA1");
+    digest.update(data, offset, length);
+    return digest.digest();
+  }
+
+  /** Computes the tree hash sequentially. */
+  private static byte[] treeHash(byte[] data) throws Exception {
+    MessageDigest root = MessageDigest.getInstance("SHA1");
+    int offset = 0;
+    for (; offset + CHUNK_SIZE <= data.length; offset += CHUNK_SIZE) {
+      root.update(sha1(data, offset, CHUNK_SIZE));
+    }
+    root.update(sha1(data, offset, data.length - offset));
+    return root.digest();
+  }
+
+  public void testEmpty() throws Exception {
+    TreeDigest digest = new TreeDigest(executor, 1);
+    assertTrue(Arrays.equals(treeHash(new byte[0]), digest.digest()));
+  }
+
+  public void testSmall() throws Exception {
+    byte[] data = getBytes(100);
+    TreeDigest digest = new TreeDigest(executor, 1);
+    digest.update(data);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+
+  public void testChunks() throws Exception {
+    byte[] data = getBytes(5 * CHUNK_SIZE / 2);
+    TreeDigest digest = new TreeDigest(executor, 1);
+    digest.update(data);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+
+  public void testExactChunks() throws Exception {
+    byte[] data = getBytes(2 * CHUNK_SIZE);
+    TreeDigest digest = new TreeDigest(executor, 4);
+    digest.update(data);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+
+  /** The digest does not depend on how the input is split into updates. */
+  public void testUpdates() throws Exception {
+    byte[] data = getBytes(3 * CHUNK_SIZE / 2);
+    TreeDigest digest = new TreeDigest(executor, 4);
+    int offset = 0;
+    digest.update(data[offset++]);
+    while (offset < data.length) {
+      int length = Math.min(data.length - offset, 65537);
+      digest.update(data, offset, length);
+      offset += length;
+    }
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+
+  public void testClone() throws Exception {
+    byte[] data = getBytes(3 * CHUNK_SIZE / 2);
+    TreeDigest digest = new TreeDigest(executor, 4);
+    digest.update(data, 0, CHUNK_SIZE + 10);
+    MessageDigest copy = (MessageDigest) digest.clone();
+    assertTrue(Arrays.equals(treeHash(Arrays.copyOf(data, CHUNK_SIZE + 10)),
+            copy.digest()));
+
+    digest.update(data, CHUNK_SIZE + 10, data.length - CHUNK_SIZE - 10);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+
+  public void testReset() throws Exception {
+    byte[] data = getBytes(100);
+    TreeDigest digest = new TreeDigest(executor, 1);
+    digest.update(getBytes(CHUNK_SIZE + 1));
+    digest.reset();
+    digest.update(data);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+
+    // The digest is reset after it is computed.
+    digest.update(data);
+    assertTrue(Arrays.equals(treeHash(data), digest.digest()));
+  }
+}